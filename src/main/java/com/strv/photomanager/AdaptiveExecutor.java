@@ -0,0 +1,142 @@
+package com.strv.photomanager;
+
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Debug;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+
+/**
+ * executor that runs at most ConcurrencyController.getLimit() tasks at once on the underlying executor, every finished task reports
+ * its latency to the controller, so the limit follows the throughput, the latency and the memory pressure of the device,
+ * the shared executors for the import and the scale work are bounded by the number of cores
+ */
+public class AdaptiveExecutor implements Executor {
+
+	private static AdaptiveExecutor sImportExecutor;
+	private static AdaptiveExecutor sScaleExecutor;
+
+	private Executor mExecutor;
+	private ConcurrencyController mController;
+	private int mActive;
+	private Queue<Runnable> mQueue = new ArrayDeque<>();
+
+
+	/**
+	 * probe that adds the gc time of the ART runtime (API 23+) to the heap headroom
+	 */
+	public static class RuntimeStatProbe extends ConcurrencyController.RuntimeProbe {
+
+		@Override
+		public long getGcTimeMillis() {
+			if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+				return -1;
+			}
+			try {
+				String gcTime = Debug.getRuntimeStat("art.gc.gc-time");
+				return gcTime != null ? Long.parseLong(gcTime) : -1;
+			} catch(NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+
+
+	/**
+	 * @param executor   executor running the tasks, e.g. AsyncTask.THREAD_POOL_EXECUTOR
+	 * @param controller controller of the number of tasks at once
+	 */
+	public AdaptiveExecutor(Executor executor, ConcurrencyController controller) {
+		mExecutor = executor;
+		mController = controller;
+	}
+
+
+	/**
+	 * @return executor shared by the imports, the copies wait on the storage so it may run more of them than there are cores
+	 */
+	public static synchronized AdaptiveExecutor getImportExecutor() {
+		if(sImportExecutor == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			sImportExecutor = new AdaptiveExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+					new ConcurrencyController(1, Math.max(2, cores), MediaBatchImporter.DEFAULT_IO_LANES, new RuntimeStatProbe()));
+		}
+		return sImportExecutor;
+	}
+
+
+	/**
+	 * @return executor shared by the scaling, which is bound by the cpu and the memory of the decoded bitmaps
+	 */
+	public static synchronized AdaptiveExecutor getScaleExecutor() {
+		if(sScaleExecutor == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			sScaleExecutor = new AdaptiveExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+					new ConcurrencyController(1, Math.max(1, cores - 1), 1, new RuntimeStatProbe()));
+		}
+		return sScaleExecutor;
+	}
+
+
+	public ConcurrencyController getController() {
+		return mController;
+	}
+
+
+	/**
+	 * @return the state and the last decision of the controller
+	 */
+	public ConcurrencyController.Metrics getMetrics() {
+		return mController.getMetrics();
+	}
+
+
+	/**
+	 * @return number of tasks running now
+	 */
+	public synchronized int getActiveCount() {
+		return mActive;
+	}
+
+
+	/**
+	 * @return number of tasks waiting for a free slot
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueue.size();
+	}
+
+
+	@Override
+	public synchronized void execute(final Runnable command) {
+		mQueue.add(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					command.run();
+				} finally {
+					long end = System.nanoTime();
+					mController.onJobFinished(end - start, end, getQueuedCount());
+					scheduleNext(true);
+				}
+			}
+		});
+		scheduleNext(false);
+	}
+
+
+	private synchronized void scheduleNext(boolean finished) {
+		if(finished) {
+			mActive--;
+		}
+		// a lowered limit takes effect as the running tasks finish
+		while(mActive < mController.getLimit() && !mQueue.isEmpty()) {
+			mActive++;
+			mExecutor.execute(mQueue.poll());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.strv.photomanager;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+
+/**
+ * encoder using Bitmap.compress, the quality is lowered by 5 until the jpeg fits the size budget,
+ * every attempt is compressed to memory so the output is written only once,
+ * with a limit of passes the quality is extrapolated from the size of the previous pass instead,
+ * an interrupted thread stops the search between the passes
+ */
+public class BitmapCompressEncoder implements ImageEncoder {
+
+	public static final int UNLIMITED_PASSES = 0;
+
+	private static final int LIMITED_START_QUALITY = 90;
+	private static final int MIN_QUALITY = 10;
+
+	private int mMaxPasses;
+	private int mLastPassCount;
+
+
+	public BitmapCompressEncoder() {
+		this(UNLIMITED_PASSES);
+	}
+
+
+	/**
+	 * @param maxPasses maximum number of compress passes, UNLIMITED_PASSES for the full search,
+	 *                  the output can exceed the size budget if the limit is reached
+	 */
+	public BitmapCompressEncoder(int maxPasses) {
+		mMaxPasses = maxPasses;
+	}
+
+
+	@Override
+	public void encode(Bitmap bitmap, OutputStream output, int maxSizeBytes) throws IOException {
+		// the passes reuse one pooled array instead of growing a new one for every encode
+		PooledByteArrayOutputStream buffer = new PooledByteArrayOutputStream();
+		try {
+			if(mMaxPasses > 0) {
+				encodeLimited(bitmap, buffer, maxSizeBytes);
+				buffer.writeTo(output);
+				return;
+			}
+
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 100, buffer);
+			mLastPassCount = 1;
+
+			int quality = 95;
+			while(maxSizeBytes > 0 && buffer.size() > maxSizeBytes && quality >= 0) {
+				checkInterrupted();
+				buffer.reset();
+				bitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffer);
+				mLastPassCount++;
+				quality -= 5;
+			}
+
+			buffer.writeTo(output);
+		} finally {
+			buffer.release();
+		}
+	}
+
+
+	/**
+	 * @return number of compress passes of the last encode
+	 */
+	public int getLastPassCount() {
+		return mLastPassCount;
+	}
+
+
+	private void encodeLimited(Bitmap bitmap, ByteArrayOutputStream buffer, int maxSizeBytes) throws InterruptedIOException {
+		int quality = LIMITED_START_QUALITY;
+		bitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffer);
+		mLastPassCount = 1;
+
+		while(maxSizeBytes > 0 && buffer.size() > maxSizeBytes && mLastPassCount < mMaxPasses && quality > MIN_QUALITY) {
+			checkInterrupted();
+			// the size falls about linearly with the quality down to MIN_QUALITY, 5 is a margin for the error of that estimate
+			int estimate = MIN_QUALITY + (int) ((quality - MIN_QUALITY) * (double) maxSizeBytes / buffer.size()) - 5;
+			quality = Math.max(MIN_QUALITY, Math.min(quality - 5, estimate));
+			buffer.reset();
+			bitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffer);
+			mLastPassCount++;
+		}
+	}
+
+
+	/**
+	 * safe point between the passes, e.g. the task was cancelled by MediaJobBinder
+	 */
+	private static void checkInterrupted() throws InterruptedIOException {
+		if(Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("BitmapCompressEncoder: interrupted");
+		}
+	}
+
+
+	@Override
+	public String getFileExtension() {
+		return ".jpg";
+	}
+
+
+	@Override
+	public String getMimeType() {
+		return "image/jpeg";
+	}
+}
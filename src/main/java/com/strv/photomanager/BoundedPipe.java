@@ -0,0 +1,178 @@
+package com.strv.photomanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+
+/**
+ * pipe between two threads backed by a fixed ring buffer, the writer blocks while the buffer is full and the reader while it's empty,
+ * if the reader closes its end the writer's data is dropped instead of blocking, so an abandoned reader never stalls the writer,
+ * a reader that doesn't take any data for the stall timeout (e.g. it's still queued on a busy executor) is cut off the same way
+ * and gets an IOException
+ */
+class BoundedPipe {
+
+	private byte[] mBuffer;
+	private long mStallTimeoutMillis;
+	private int mReadPosition;
+	private int mCount;
+	private boolean mWriterClosed;
+	private boolean mReaderClosed;
+	private boolean mReaderCutOff;
+	private IOException mWriterError;
+
+
+	/**
+	 * @param capacity           size of the ring buffer in bytes
+	 * @param stallTimeoutMillis longest time the writer waits for free space
+	 */
+	BoundedPipe(int capacity, long stallTimeoutMillis) {
+		mBuffer = new byte[capacity];
+		mStallTimeoutMillis = stallTimeoutMillis;
+	}
+
+
+	OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				BoundedPipe.this.write(new byte[]{(byte) b}, 0, 1);
+			}
+
+
+			@Override
+			public void write(byte[] buffer, int offset, int count) throws IOException {
+				BoundedPipe.this.write(buffer, offset, count);
+			}
+
+
+			@Override
+			public void close() {
+				closeWriter(null);
+			}
+		};
+	}
+
+
+	InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return BoundedPipe.this.read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+			}
+
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				return BoundedPipe.this.read(buffer, offset, count);
+			}
+
+
+			@Override
+			public int available() {
+				synchronized(BoundedPipe.this) {
+					return mCount;
+				}
+			}
+
+
+			@Override
+			public void close() {
+				closeReader();
+			}
+		};
+	}
+
+
+	/**
+	 * ends the data of the reader, it gets the error instead of the end of the stream if the error is not null
+	 *
+	 * @param error error of the writer's source, can be null
+	 */
+	synchronized void closeWriter(IOException error) {
+		mWriterClosed = true;
+		mWriterError = error;
+		notifyAll();
+	}
+
+
+	/**
+	 * @return true if the reader didn't keep up and the writer stopped feeding it
+	 */
+	synchronized boolean isReaderCutOff() {
+		return mReaderCutOff;
+	}
+
+
+	synchronized void closeReader() {
+		mReaderClosed = true;
+		notifyAll();
+	}
+
+
+	private synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+		if(mWriterClosed) {
+			throw new IOException("BoundedPipe: writer is closed");
+		}
+		while(count > 0 && !mReaderClosed) {
+			long deadline = System.currentTimeMillis() + mStallTimeoutMillis;
+			while(mCount == mBuffer.length && !mReaderClosed) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					mReaderClosed = true;
+					mReaderCutOff = true;
+					notifyAll();
+					break;
+				}
+				waitForOtherEnd(remaining);
+			}
+			if(mReaderClosed) {
+				break;
+			}
+			int writePosition = (mReadPosition + mCount) % mBuffer.length;
+			int length = Math.min(count, Math.min(mBuffer.length - mCount, mBuffer.length - writePosition));
+			System.arraycopy(buffer, offset, mBuffer, writePosition, length);
+			mCount += length;
+			offset += length;
+			count -= length;
+			notifyAll();
+		}
+	}
+
+
+	private synchronized int read(byte[] buffer, int offset, int count) throws IOException {
+		if(count == 0) {
+			return 0;
+		}
+		while(mCount == 0 && !mWriterClosed && !mReaderClosed) {
+			waitForOtherEnd(0);
+		}
+		if(mReaderClosed) {
+			throw new IOException(mReaderCutOff ? "BoundedPipe: reader stalled and was cut off" : "BoundedPipe: reader is closed");
+		}
+		if(mCount == 0) {
+			if(mWriterError != null) {
+				throw new IOException("BoundedPipe: writer failed", mWriterError);
+			}
+			return -1;
+		}
+		int length = Math.min(count, Math.min(mCount, mBuffer.length - mReadPosition));
+		System.arraycopy(mBuffer, mReadPosition, buffer, offset, length);
+		mReadPosition = (mReadPosition + length) % mBuffer.length;
+		mCount -= length;
+		notifyAll();
+		return length;
+	}
+
+
+	private void waitForOtherEnd(long timeoutMillis) throws InterruptedIOException {
+		try {
+			wait(timeoutMillis);
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("BoundedPipe: interrupted");
+		}
+	}
+}
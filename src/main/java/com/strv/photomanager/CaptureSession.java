@@ -0,0 +1,204 @@
+package com.strv.photomanager;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * one traced capture or pick from the launch to the upload-ready file, it's created by CaptureTracer
+ * and carried from stage to stage through the Uris and files it's bound to, the stages record timed spans in it,
+ * an app that doesn't scale the imported file can add spans of its own stages and finish the session with CaptureTracer.finishSession
+ */
+public class CaptureSession {
+
+	public static final String KIND_PHOTO = "photo";
+	public static final String KIND_VIDEO = "video";
+	public static final String KIND_PHOTO_VIDEO = "photo_video";
+	public static final String KIND_PICK = "pick";
+
+	public static final String OUTCOME_READY = "ready";
+	public static final String OUTCOME_CANCELLED = "cancelled";
+	public static final String OUTCOME_FAILED = "failed";
+
+	private String mId = UUID.randomUUID().toString();
+	private String mKind;
+	private long mStartWallTime = System.currentTimeMillis();
+	private long mStartTime;
+	private List<Span> mSpans = new ArrayList<>();
+	private String mOutcome;
+	private long mFinishTime;
+
+
+	public static class Span {
+
+		private CaptureSession mSession;
+		private String mName;
+		private long mStartTime;
+		private long mEndTime = -1;
+
+
+		Span(CaptureSession session, String name, long startTime) {
+			mSession = session;
+			mName = name;
+			mStartTime = startTime;
+		}
+
+
+		public String getName() {
+			return mName;
+		}
+
+
+		public CaptureSession getSession() {
+			return mSession;
+		}
+
+
+		/**
+		 * @return start of the span from the start of the session
+		 */
+		public long getStartOffsetMillis() {
+			return mStartTime - mSession.mStartTime;
+		}
+
+
+		/**
+		 * @return duration of the span, -1 if it's still open
+		 */
+		public synchronized long getDurationMillis() {
+			return mEndTime == -1 ? -1 : mEndTime - mStartTime;
+		}
+
+
+		/**
+		 * ends the span, only the first call counts
+		 */
+		public synchronized void end() {
+			if(mEndTime == -1) {
+				mEndTime = SystemClock.elapsedRealtime();
+			}
+		}
+	}
+
+
+	CaptureSession(String kind, long startTime) {
+		mKind = kind;
+		mStartTime = startTime;
+	}
+
+
+	/**
+	 * @return random id of the session
+	 */
+	public String getId() {
+		return mId;
+	}
+
+
+	/**
+	 * @return one of the KIND_ constants
+	 */
+	public String getKind() {
+		return mKind;
+	}
+
+
+	/**
+	 * @return System.currentTimeMillis when the session was created
+	 */
+	public long getStartWallTime() {
+		return mStartWallTime;
+	}
+
+
+	/**
+	 * starts a span of a stage, it should be ended when the stage finishes
+	 *
+	 * @param name name of the stage, e.g. "upload"
+	 * @return started span
+	 */
+	public Span startSpan(String name) {
+		return addSpan(name, SystemClock.elapsedRealtime());
+	}
+
+
+	/**
+	 * @return copy of the spans in the order they were started
+	 */
+	public synchronized List<Span> getSpans() {
+		return new ArrayList<>(mSpans);
+	}
+
+
+	/**
+	 * @return the last span with the name, null if there is none
+	 */
+	@Nullable
+	public synchronized Span getSpan(String name) {
+		for(int i = mSpans.size() - 1; i >= 0; i--) {
+			if(mSpans.get(i).getName().equals(name)) {
+				return mSpans.get(i);
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * @return the ended span with the longest duration, null if no span has ended
+	 */
+	@Nullable
+	public synchronized Span getSlowestSpan() {
+		Span slowest = null;
+		for(Span span : mSpans) {
+			if(span.getDurationMillis() > (slowest == null ? -1 : slowest.getDurationMillis())) {
+				slowest = span;
+			}
+		}
+		return slowest;
+	}
+
+
+	/**
+	 * @return one of the OUTCOME_ constants, null while the session is open
+	 */
+	@Nullable
+	public synchronized String getOutcome() {
+		return mOutcome;
+	}
+
+
+	/**
+	 * @return time from the start to the finish of the session, -1 while it's open
+	 */
+	public synchronized long getDurationMillis() {
+		return mOutcome == null ? -1 : mFinishTime - mStartTime;
+	}
+
+
+	synchronized Span addSpan(String name, long startTime) {
+		Span span = new Span(this, name, startTime);
+		mSpans.add(span);
+		return span;
+	}
+
+
+	/**
+	 * @return true if the session was open and is finished now
+	 */
+	synchronized boolean finish(String outcome) {
+		if(mOutcome != null) {
+			return false;
+		}
+		mOutcome = outcome;
+		mFinishTime = SystemClock.elapsedRealtime();
+		for(Span span : mSpans) {
+			span.end();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,124 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * sink that appends every finished session as one json line to a file in the app's files dir, with the device model and the os version,
+ * so the slowest stage per device can be found from the pulled files, the lines are written in order on AsyncTask.SERIAL_EXECUTOR,
+ * the file is rotated to one backup when it grows over the maximum size
+ */
+public class CaptureTraceFileExporter implements CaptureTracer.Sink {
+
+	public static final String FILE_NAME = "photomanager_capture_traces.jsonl";
+	public static final long DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+
+	private File mFile;
+	private long mMaxFileSize;
+
+
+	/**
+	 * @param context context of the app/activity
+	 */
+	public CaptureTraceFileExporter(Context context) {
+		this(new File(context.getFilesDir(), FILE_NAME), DEFAULT_MAX_FILE_SIZE);
+	}
+
+
+	/**
+	 * @param file        file the sessions are appended to
+	 * @param maxFileSize size over which the file is moved to the backup file with the ".1" suffix
+	 */
+	public CaptureTraceFileExporter(File file, long maxFileSize) {
+		mFile = file;
+		mMaxFileSize = maxFileSize;
+	}
+
+
+	public File getFile() {
+		return mFile;
+	}
+
+
+	@Override
+	public void onSessionFinished(final CaptureSession session) {
+		final String line = toJson(session);
+		AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					append(line);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+
+	private void append(String line) throws IOException {
+		if(mFile.length() > mMaxFileSize) {
+			File backup = new File(mFile.getPath() + ".1");
+			backup.delete();
+			mFile.renameTo(backup);
+		}
+		OutputStream outputStream = new FileOutputStream(mFile, true);
+		try {
+			outputStream.write(line.getBytes("UTF-8"));
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	static String toJson(CaptureSession session) {
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("{\"id\":").append(quote(session.getId()))
+				.append(",\"kind\":").append(quote(session.getKind()))
+				.append(",\"start\":").append(session.getStartWallTime())
+				.append(",\"duration\":").append(session.getDurationMillis())
+				.append(",\"outcome\":").append(quote(session.getOutcome()))
+				.append(",\"manufacturer\":").append(quote(Build.MANUFACTURER))
+				.append(",\"model\":").append(quote(Build.MODEL))
+				.append(",\"sdk\":").append(Build.VERSION.SDK_INT)
+				.append(",\"spans\":[");
+		boolean first = true;
+		for(CaptureSession.Span span : session.getSpans()) {
+			if(!first) {
+				builder.append(',');
+			}
+			first = false;
+			builder.append("{\"name\":").append(quote(span.getName()))
+					.append(",\"offset\":").append(span.getStartOffsetMillis())
+					.append(",\"duration\":").append(span.getDurationMillis())
+					.append('}');
+		}
+		return builder.append("]}\n").toString();
+	}
+
+
+	private static String quote(String value) {
+		if(value == null) {
+			return "null";
+		}
+		StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if(c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.append('"').toString();
+	}
+}
@@ -0,0 +1,218 @@
+package com.strv.photomanager;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * traces captures and picks across the launch, onActivityResult, the import and the scaling, a CaptureSession is created at the launch
+ * and bound to the output Uri, every later stage finds it by the Uri or file it gets and binds its own output to it,
+ * a session is finished when the scaled file is ready or the capture is cancelled, then it's handed to the sinks,
+ * tracing is disabled by default and all the calls are no-ops until it's enabled
+ */
+public class CaptureTracer {
+
+	public static final String SPAN_LAUNCH = "launch";
+	public static final String SPAN_CAPTURE = "capture";
+	public static final String SPAN_IMPORT = "import";
+	public static final String SPAN_SCALE = "scale";
+
+	/**
+	 * the oldest open sessions are dropped over this limit, e.g. captures whose result never came back
+	 */
+	private static final int MAX_BOUND_KEYS = 64;
+
+	private static CaptureTracer sInstance;
+
+	private volatile boolean mEnabled;
+	private List<Sink> mSinks = new CopyOnWriteArrayList<>();
+	private Map<String, CaptureSession> mSessions = new LinkedHashMap<String, CaptureSession>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CaptureSession> eldest) {
+			return size() > MAX_BOUND_KEYS;
+		}
+	};
+
+
+	public interface Sink {
+		/**
+		 * called on the thread that finished the session, a slow sink should hand the session to a worker thread
+		 *
+		 * @param session finished session
+		 */
+		void onSessionFinished(CaptureSession session);
+	}
+
+
+	private CaptureTracer() {
+	}
+
+
+	public static synchronized CaptureTracer getInstance() {
+		if(sInstance == null) {
+			sInstance = new CaptureTracer();
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * @param enabled true to trace the captures launched from now on
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		if(!enabled) {
+			synchronized(this) {
+				mSessions.clear();
+			}
+		}
+	}
+
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+
+	public void addSink(Sink sink) {
+		mSinks.add(sink);
+	}
+
+
+	public void removeSink(Sink sink) {
+		mSinks.remove(sink);
+	}
+
+
+	/**
+	 * @param uri output Uri returned by a launch method or a Uri passed to a later stage
+	 * @return open session bound to the Uri, null if there is none or tracing is disabled
+	 */
+	@Nullable
+	public synchronized CaptureSession getSession(@Nullable Uri uri) {
+		return uri == null ? null : mSessions.get(getKey(uri));
+	}
+
+
+	/**
+	 * @param file file passed between the stages, e.g. the imported or the scaled file
+	 * @return open session bound to the file, null if there is none or tracing is disabled
+	 */
+	@Nullable
+	public synchronized CaptureSession getSession(@Nullable File file) {
+		return file == null ? null : mSessions.get(file.getAbsolutePath());
+	}
+
+
+	/**
+	 * finishes the session and hands it to the sinks, e.g. when the app's own stage after the scaling is done
+	 *
+	 * @param session session that should be finished, can be null
+	 * @param outcome one of the CaptureSession.OUTCOME_ constants
+	 */
+	public void finishSession(@Nullable CaptureSession session, String outcome) {
+		if(session == null || !session.finish(outcome)) {
+			return;
+		}
+		synchronized(this) {
+			mSessions.values().removeAll(Collections.singleton(session));
+		}
+		for(Sink sink : mSinks) {
+			sink.onSessionFinished(session);
+		}
+	}
+
+
+	/**
+	 * @param kind      one of the CaptureSession.KIND_ constants
+	 * @param startTime SystemClock.elapsedRealtime when the session started
+	 * @return new session, null if tracing is disabled
+	 */
+	@Nullable
+	CaptureSession startSession(String kind, long startTime) {
+		return mEnabled ? new CaptureSession(kind, startTime) : null;
+	}
+
+
+	/**
+	 * starts a session of a launch bound to its output Uris, the launch span lasts from the launch time until now
+	 * and the capture span from now until the result comes back
+	 *
+	 * @param kind       one of the CaptureSession.KIND_ constants
+	 * @param launchTime SystemClock.elapsedRealtime when the launch started
+	 * @param uris       output Uris of the launch
+	 */
+	void traceLaunch(String kind, long launchTime, Uri... uris) {
+		CaptureSession session = startSession(kind, launchTime);
+		if(session == null) {
+			return;
+		}
+		session.addSpan(SPAN_LAUNCH, launchTime).end();
+		session.startSpan(SPAN_CAPTURE);
+		for(Uri uri : uris) {
+			bind(session, uri);
+		}
+	}
+
+
+	synchronized void bind(@Nullable CaptureSession session, @Nullable Uri uri) {
+		if(session != null && uri != null) {
+			mSessions.put(getKey(uri), session);
+		}
+	}
+
+
+	synchronized void bind(@Nullable CaptureSession session, @Nullable File file) {
+		if(session != null && file != null) {
+			mSessions.put(file.getAbsolutePath(), session);
+		}
+	}
+
+
+	/**
+	 * @return started span of the session bound to the Uri, null if there is no session
+	 */
+	@Nullable
+	CaptureSession.Span startSpan(@Nullable Uri uri, String name) {
+		CaptureSession session = getSession(uri);
+		return session == null ? null : session.startSpan(name);
+	}
+
+
+	/**
+	 * @return started span of the session bound to the file, null if there is no session
+	 */
+	@Nullable
+	CaptureSession.Span startSpan(@Nullable File file, String name) {
+		CaptureSession session = getSession(file);
+		return session == null ? null : session.startSpan(name);
+	}
+
+
+	static void endSpan(@Nullable CaptureSession session, String name) {
+		CaptureSession.Span span = session == null ? null : session.getSpan(name);
+		if(span != null) {
+			span.end();
+		}
+	}
+
+
+	static void endSpan(@Nullable CaptureSession.Span span) {
+		if(span != null) {
+			span.end();
+		}
+	}
+
+
+	private static String getKey(Uri uri) {
+		// a 'file' Uri and its file share the session
+		return "file".equals(uri.getScheme()) ? new File(uri.getPath()).getAbsolutePath() : uri.toString();
+	}
+}
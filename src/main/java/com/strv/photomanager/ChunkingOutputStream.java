@@ -0,0 +1,103 @@
+package com.strv.photomanager;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * stream that splits the written data into fixed size chunks and hashes every chunk and the whole data on the way to the underlying stream,
+ * the resulting UploadManifest is available after the stream is closed
+ */
+public class ChunkingOutputStream extends FilterOutputStream {
+
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	private int mChunkSize;
+	private MessageDigest mFileDigest;
+	private MessageDigest mChunkDigest;
+	private int mChunkPosition;
+	private long mLength;
+	private List<String> mChunkChecksums = new ArrayList<>();
+	private UploadManifest mManifest;
+
+
+	/**
+	 * @param output    underlying stream
+	 * @param chunkSize size of the chunks in bytes
+	 */
+	public ChunkingOutputStream(OutputStream output, int chunkSize) {
+		super(output);
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("ChunkingOutputStream: chunk size must be positive");
+		}
+		mChunkSize = chunkSize;
+		try {
+			mFileDigest = MessageDigest.getInstance("SHA-256");
+			mChunkDigest = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			// both algorithms are mandatory on every java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		mFileDigest.update((byte) b);
+		mChunkDigest.update((byte) b);
+		mLength++;
+		if(++mChunkPosition == mChunkSize) {
+			finishChunk();
+		}
+	}
+
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		out.write(buffer, offset, count);
+		mFileDigest.update(buffer, offset, count);
+		mLength += count;
+		while(count > 0) {
+			int length = Math.min(count, mChunkSize - mChunkPosition);
+			mChunkDigest.update(buffer, offset, length);
+			mChunkPosition += length;
+			offset += length;
+			count -= length;
+			if(mChunkPosition == mChunkSize) {
+				finishChunk();
+			}
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		if(mManifest == null) {
+			if(mChunkPosition > 0) {
+				finishChunk();
+			}
+			mManifest = new UploadManifest(mLength, mChunkSize, UploadManifest.toHex(mFileDigest.digest()), mChunkChecksums);
+		}
+		super.close();
+	}
+
+
+	/**
+	 * @return manifest of the written data, null until the stream is closed
+	 */
+	public UploadManifest getManifest() {
+		return mManifest;
+	}
+
+
+	private void finishChunk() {
+		mChunkChecksums.add(UploadManifest.toHex(mChunkDigest.digest()));
+		mChunkPosition = 0;
+	}
+}
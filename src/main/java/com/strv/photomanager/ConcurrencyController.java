@@ -0,0 +1,352 @@
+package com.strv.photomanager;
+
+import java.util.Arrays;
+
+
+/**
+ * AIMD controller of the number of media jobs running at once, the finished jobs are collected in windows and at the end of every window
+ * the limit is decreased multiplicatively when the memory headroom is low, the gc takes too much of the wall time or the latency grows
+ * without a throughput gain, and increased by one when jobs were waiting and the last increase paid off in throughput
+ * <p/>
+ * it doesn't depend on android or on the wall clock, the times are passed by the caller, so a simulated workload can drive it on a plain jvm,
+ * see AdaptiveExecutor for the executor using it
+ */
+public class ConcurrencyController {
+
+	public static final int DECISION_HOLD = 0;
+	public static final int DECISION_INCREASE = 1;
+	public static final int DECISION_DECREASE = 2;
+
+	public static final int REASON_NONE = 0;
+	public static final int REASON_DEMAND = 1;
+	public static final int REASON_MEMORY = 2;
+	public static final int REASON_GC = 3;
+	public static final int REASON_LATENCY = 4;
+	public static final int REASON_PLATEAU = 5;
+
+	/**
+	 * below this fraction of free heap the limit is halved
+	 */
+	static final double MIN_MEMORY_HEADROOM = 0.2;
+
+	/**
+	 * above this fraction of the window spent in gc the limit is halved
+	 */
+	static final double MAX_GC_FRACTION = 0.1;
+
+	/**
+	 * the median latency of a window may grow to this multiple of the baseline before the limit is decreased
+	 */
+	static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * an increase has to raise the throughput by this fraction, otherwise it's reverted
+	 */
+	static final double MIN_THROUGHPUT_GAIN = 0.05;
+
+	private static final double PRESSURE_DECREASE_FACTOR = 0.5;
+	private static final double LATENCY_DECREASE_FACTOR = 0.75;
+	private static final double BASELINE_DRIFT = 0.05;
+	private static final int MIN_WINDOW_JOBS = 4;
+	private static final long MIN_WINDOW_NANOS = 200 * 1000 * 1000L;
+	private static final int PLATEAU_HOLD_WINDOWS = 4;
+
+	private int mMinLimit;
+	private int mMaxLimit;
+	private int mLimit;
+	private Probe mProbe;
+
+	private long mWindowStart = -1;
+	private long mWindowGcStart;
+	private long[] mLatencies = new long[16];
+	private int mWindowJobs;
+	private boolean mWindowSaturated;
+	private double mLastThroughput;
+	private long mBaselineLatency;
+	private int mHoldWindows;
+
+	private long mCompletedJobs;
+	private int mIncreaseCount;
+	private int mDecreaseCount;
+	private int mLastDecision = DECISION_HOLD;
+	private int mLastReason = REASON_NONE;
+	private long mLastMedianLatency;
+	private double mLastGcFraction;
+	private double mLastHeadroom = 1;
+
+
+	/**
+	 * source of the runtime pressure signals
+	 */
+	public interface Probe {
+		/**
+		 * @return total time spent in gc since the start of the process, -1 if it's not known
+		 */
+		long getGcTimeMillis();
+
+		/**
+		 * @return free fraction of the maximum heap between 0 and 1
+		 */
+		double getMemoryHeadroom();
+	}
+
+
+	/**
+	 * probe reading the heap of the java runtime, the gc time is not known
+	 */
+	public static class RuntimeProbe implements Probe {
+
+		@Override
+		public long getGcTimeMillis() {
+			return -1;
+		}
+
+
+		@Override
+		public double getMemoryHeadroom() {
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			return 1 - (double) used / runtime.maxMemory();
+		}
+	}
+
+
+	/**
+	 * snapshot of the state and the last decision of the controller
+	 */
+	public static class Metrics {
+
+		private int mLimit;
+		private long mCompletedJobs;
+		private int mIncreaseCount;
+		private int mDecreaseCount;
+		private int mLastDecision;
+		private int mLastReason;
+		private double mThroughput;
+		private long mMedianLatencyNanos;
+		private long mBaselineLatencyNanos;
+		private double mGcFraction;
+		private double mMemoryHeadroom;
+
+
+		Metrics(ConcurrencyController controller) {
+			mLimit = controller.mLimit;
+			mCompletedJobs = controller.mCompletedJobs;
+			mIncreaseCount = controller.mIncreaseCount;
+			mDecreaseCount = controller.mDecreaseCount;
+			mLastDecision = controller.mLastDecision;
+			mLastReason = controller.mLastReason;
+			mThroughput = controller.mLastThroughput;
+			mMedianLatencyNanos = controller.mLastMedianLatency;
+			mBaselineLatencyNanos = controller.mBaselineLatency;
+			mGcFraction = controller.mLastGcFraction;
+			mMemoryHeadroom = controller.mLastHeadroom;
+		}
+
+
+		public int getLimit() {
+			return mLimit;
+		}
+
+
+		public long getCompletedJobs() {
+			return mCompletedJobs;
+		}
+
+
+		public int getIncreaseCount() {
+			return mIncreaseCount;
+		}
+
+
+		public int getDecreaseCount() {
+			return mDecreaseCount;
+		}
+
+
+		/**
+		 * @return one of the DECISION_ constants
+		 */
+		public int getLastDecision() {
+			return mLastDecision;
+		}
+
+
+		/**
+		 * @return one of the REASON_ constants
+		 */
+		public int getLastReason() {
+			return mLastReason;
+		}
+
+
+		/**
+		 * @return finished jobs per second in the last window
+		 */
+		public double getThroughput() {
+			return mThroughput;
+		}
+
+
+		public long getMedianLatencyNanos() {
+			return mMedianLatencyNanos;
+		}
+
+
+		/**
+		 * @return the lowest recent median latency, the latency of the jobs without contention
+		 */
+		public long getBaselineLatencyNanos() {
+			return mBaselineLatencyNanos;
+		}
+
+
+		/**
+		 * @return fraction of the last window spent in gc, 0 if it's not known
+		 */
+		public double getGcFraction() {
+			return mGcFraction;
+		}
+
+
+		public double getMemoryHeadroom() {
+			return mMemoryHeadroom;
+		}
+
+
+		@Override
+		public String toString() {
+			return "Metrics{limit=" + mLimit + ", completed=" + mCompletedJobs + ", decision=" + mLastDecision + ", reason=" + mLastReason
+					+ ", throughput=" + mThroughput + ", median=" + mMedianLatencyNanos / 1000000 + "ms, baseline=" + mBaselineLatencyNanos / 1000000
+					+ "ms, gc=" + mGcFraction + ", headroom=" + mMemoryHeadroom + "}";
+		}
+	}
+
+
+	/**
+	 * @param minLimit     lowest number of jobs at once, at least 1
+	 * @param maxLimit     highest number of jobs at once
+	 * @param initialLimit number of jobs at once before the first window
+	 * @param probe        source of the gc and memory signals
+	 */
+	public ConcurrencyController(int minLimit, int maxLimit, int initialLimit, Probe probe) {
+		mMinLimit = Math.max(1, minLimit);
+		mMaxLimit = Math.max(mMinLimit, maxLimit);
+		mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, initialLimit));
+		mProbe = probe;
+	}
+
+
+	/**
+	 * @return current number of jobs that may run at once
+	 */
+	public synchronized int getLimit() {
+		return mLimit;
+	}
+
+
+	public synchronized Metrics getMetrics() {
+		return new Metrics(this);
+	}
+
+
+	/**
+	 * records a finished job and adjusts the limit at the end of a window
+	 *
+	 * @param latencyNanos time from the start to the end of the job
+	 * @param nowNanos     time of the end of the job, any monotonic clock in nanoseconds
+	 * @param waitingJobs  number of jobs waiting for a free slot when the job finished
+	 * @return the limit after the job
+	 */
+	public synchronized int onJobFinished(long latencyNanos, long nowNanos, int waitingJobs) {
+		if(mWindowStart == -1) {
+			startWindow(nowNanos - latencyNanos);
+		}
+		if(mWindowJobs == mLatencies.length) {
+			long[] latencies = new long[mLatencies.length * 2];
+			System.arraycopy(mLatencies, 0, latencies, 0, mWindowJobs);
+			mLatencies = latencies;
+		}
+		mLatencies[mWindowJobs++] = latencyNanos;
+		mWindowSaturated |= waitingJobs > 0;
+		mCompletedJobs++;
+
+		long windowNanos = nowNanos - mWindowStart;
+		if(mWindowJobs >= Math.max(MIN_WINDOW_JOBS, mLimit) && windowNanos >= MIN_WINDOW_NANOS) {
+			adjust(windowNanos);
+			startWindow(nowNanos);
+		}
+		return mLimit;
+	}
+
+
+	private void adjust(long windowNanos) {
+		double throughput = mWindowJobs * 1e9 / windowNanos;
+		long median = median(mLatencies, mWindowJobs);
+		long gcTime = mProbe.getGcTimeMillis();
+		double gcFraction = gcTime >= 0 && mWindowGcStart >= 0 ? (gcTime - mWindowGcStart) * 1e6 / windowNanos : 0;
+		double headroom = mProbe.getMemoryHeadroom();
+		boolean gained = mLastThroughput == 0 || throughput >= mLastThroughput * (1 + MIN_THROUGHPUT_GAIN);
+
+		if(headroom < MIN_MEMORY_HEADROOM) {
+			decrease(PRESSURE_DECREASE_FACTOR, REASON_MEMORY);
+		} else if(gcFraction > MAX_GC_FRACTION) {
+			decrease(PRESSURE_DECREASE_FACTOR, REASON_GC);
+		} else if(mBaselineLatency > 0 && median > mBaselineLatency * LATENCY_TOLERANCE && !gained) {
+			decrease(LATENCY_DECREASE_FACTOR, REASON_LATENCY);
+		} else if(mLastDecision == DECISION_INCREASE && !gained) {
+			// the added job didn't add throughput, the limit goes back and stays there for a while before probing again
+			mLimit = Math.max(mMinLimit, mLimit - 1);
+			record(DECISION_DECREASE, REASON_PLATEAU);
+			mHoldWindows = PLATEAU_HOLD_WINDOWS;
+		} else if(mWindowSaturated && mHoldWindows == 0 && mLimit < mMaxLimit) {
+			mLimit++;
+			record(DECISION_INCREASE, REASON_DEMAND);
+		} else {
+			record(DECISION_HOLD, REASON_NONE);
+		}
+
+		if(mHoldWindows > 0 && mLastReason != REASON_PLATEAU) {
+			mHoldWindows--;
+		}
+		// the baseline follows the lowest median and drifts up slowly, so a few fast jobs don't keep the limit low forever
+		mBaselineLatency = mBaselineLatency == 0 ? median : Math.min(median, (long) (mBaselineLatency * (1 + BASELINE_DRIFT)));
+		mLastThroughput = throughput;
+		mLastMedianLatency = median;
+		mLastGcFraction = gcFraction;
+		mLastHeadroom = headroom;
+	}
+
+
+	private void decrease(double factor, int reason) {
+		mLimit = Math.max(mMinLimit, (int) (mLimit * factor));
+		record(DECISION_DECREASE, reason);
+	}
+
+
+	private void record(int decision, int reason) {
+		mLastDecision = decision;
+		mLastReason = reason;
+		if(decision == DECISION_INCREASE) {
+			mIncreaseCount++;
+		} else if(decision == DECISION_DECREASE) {
+			mDecreaseCount++;
+		}
+	}
+
+
+	private void startWindow(long nowNanos) {
+		mWindowStart = nowNanos;
+		mWindowGcStart = mProbe.getGcTimeMillis();
+		mWindowJobs = 0;
+		mWindowSaturated = false;
+	}
+
+
+	private static long median(long[] values, int count) {
+		long[] sorted = new long[count];
+		System.arraycopy(values, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted[count / 2];
+	}
+}
@@ -0,0 +1,91 @@
+package com.strv.photomanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * encoded image held in memory, e.g. for an upload right after the scaling without writing and reading the file back,
+ * the bytes are in a pooled array which should be returned with release() when the image is consumed
+ */
+public class EncodedImage {
+
+	private PooledByteArrayOutputStream mOutput;
+	private String mMimeType;
+
+
+	EncodedImage(PooledByteArrayOutputStream output, String mimeType) {
+		mOutput = output;
+		mMimeType = mimeType;
+	}
+
+
+	public String getMimeType() {
+		return mMimeType;
+	}
+
+
+	/**
+	 * @return number of the encoded bytes
+	 */
+	public int getLength() {
+		return mOutput.size();
+	}
+
+
+	/**
+	 * @return read-only buffer of the encoded bytes, it's valid until release() is called
+	 */
+	public ByteBuffer getByteBuffer() {
+		return ByteBuffer.wrap(getArray(), 0, getLength()).slice().asReadOnlyBuffer();
+	}
+
+
+	/**
+	 * @return the pooled array, the encoded bytes are from 0 to getLength(), it's valid until release() is called
+	 */
+	public byte[] getArray() {
+		byte[] buffer = mOutput.getBuffer();
+		if(buffer == null) {
+			throw new IllegalStateException("EncodedImage: image is released");
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * @return copy of the encoded bytes, it stays valid after release()
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(getArray(), getLength());
+	}
+
+
+	/**
+	 * @return stream of the encoded bytes, it's valid until release() is called
+	 */
+	public InputStream openInputStream() {
+		return new ByteArrayInputStream(getArray(), 0, getLength());
+	}
+
+
+	/**
+	 * @param outputStream stream the encoded bytes are written to, it's not closed
+	 * @throws IOException is thrown if the stream cannot be written
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(getArray(), 0, getLength());
+	}
+
+
+	/**
+	 * returns the array to the pool, the image must not be used after that
+	 */
+	public void release() {
+		mOutput.release();
+	}
+}
@@ -0,0 +1,255 @@
+package com.strv.photomanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+
+/**
+ * random access view of the plaintext of a file written by EncryptedMediaStore, only the segments covering the read range are read
+ * and authenticated, the last opened segment is kept, so sequential and small reads decrypt every segment once,
+ * e.g. an upload chunk from UploadManifest can be read with openInputStream(getChunkOffset, getChunkLength)
+ */
+public class EncryptedFile implements Closeable {
+
+	private RandomAccessFile mFile;
+	private Cipher mCipher;
+	private SecretKey mKey;
+	private byte[] mNoncePrefix;
+	private int mSegmentSize;
+	private boolean mGcmParameterSpec;
+	private int mSegmentCount;
+	private long mLength;
+	private byte[] mPlain;
+	private byte[] mSealed;
+	private int mOpenedSegment = -1;
+	private int mOpenedLength;
+
+
+	EncryptedFile(RandomAccessFile file, SecretKey key, byte[] noncePrefix, int segmentSize, boolean gcmParameterSpec) throws IOException {
+		mFile = file;
+		mKey = key;
+		mNoncePrefix = noncePrefix;
+		mSegmentSize = segmentSize;
+		mGcmParameterSpec = gcmParameterSpec;
+
+		long fileLength = file.length();
+		mLength = getPlaintextLength(fileLength, segmentSize);
+		if(mLength < 0) {
+			throw new IOException("EncryptedFile: truncated file");
+		}
+		int sealedSegmentSize = segmentSize + EncryptedMediaStore.TAG_SIZE;
+		mSegmentCount = (int) ((fileLength - EncryptedMediaStore.HEADER_SIZE + sealedSegmentSize - 1) / sealedSegmentSize);
+
+		mCipher = EncryptedMediaStore.createCipher();
+		mPlain = EncryptedMediaStore.acquireBuffer(segmentSize);
+		mSealed = EncryptedMediaStore.acquireBuffer(segmentSize);
+	}
+
+
+	/**
+	 * computes the size of the plaintext from the size of the file, every segment is followed by its tag, the last one may be shorter
+	 *
+	 * @param fileLength  size of the encrypted file including the header
+	 * @param segmentSize plaintext size of a segment
+	 * @return size of the plaintext, -1 if the file is truncated
+	 */
+	static long getPlaintextLength(long fileLength, int segmentSize) {
+		int sealedSegmentSize = segmentSize + EncryptedMediaStore.TAG_SIZE;
+		long sealedLength = fileLength - EncryptedMediaStore.HEADER_SIZE;
+		long fullSegments = sealedLength / sealedSegmentSize;
+		int remainder = (int) (sealedLength % sealedSegmentSize);
+		if(remainder == 0 && fullSegments > 0) {
+			return fullSegments * segmentSize;
+		} else if(remainder >= EncryptedMediaStore.TAG_SIZE) {
+			return fullSegments * segmentSize + remainder - EncryptedMediaStore.TAG_SIZE;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * @return size of the plaintext
+	 */
+	public long length() {
+		return mLength;
+	}
+
+
+	/**
+	 * reads the plaintext at the given position
+	 *
+	 * @param position position in the plaintext
+	 * @param buffer   destination buffer
+	 * @param offset   offset in the buffer
+	 * @param count    maximum number of bytes to read
+	 * @return number of bytes read, -1 if the position is at the end of the file
+	 * @throws IOException is thrown if the file cannot be read or a segment fails authentication
+	 */
+	public synchronized int read(long position, byte[] buffer, int offset, int count) throws IOException {
+		if(mPlain == null) {
+			throw new IOException("EncryptedFile: file is closed");
+		}
+		if(position >= mLength) {
+			return -1;
+		}
+		int read = 0;
+		while(count > 0 && position < mLength) {
+			int segment = (int) (position / mSegmentSize);
+			openSegment(segment);
+			int segmentOffset = (int) (position - (long) segment * mSegmentSize);
+			int length = Math.min(count, mOpenedLength - segmentOffset);
+			System.arraycopy(mPlain, segmentOffset, buffer, offset, length);
+			position += length;
+			offset += length;
+			count -= length;
+			read += length;
+		}
+		return read;
+	}
+
+
+	/**
+	 * @return stream of the whole plaintext, closing the stream doesn't close this file
+	 */
+	public InputStream openInputStream() {
+		return new RangeInputStream(0, mLength, false);
+	}
+
+
+	/**
+	 * @param position start of the range in the plaintext
+	 * @param length   length of the range
+	 * @return stream of the plaintext range, closing the stream doesn't close this file
+	 */
+	public InputStream openInputStream(long position, long length) {
+		return new RangeInputStream(position, Math.min(mLength, position + length), false);
+	}
+
+
+	InputStream openInputStream(boolean closeFile) {
+		return new RangeInputStream(0, mLength, closeFile);
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(mPlain == null) {
+			return;
+		}
+		EncryptedMediaStore.releaseBuffer(mPlain);
+		EncryptedMediaStore.releaseBuffer(mSealed);
+		mPlain = null;
+		mSealed = null;
+		mFile.close();
+	}
+
+
+	private void openSegment(int segment) throws IOException {
+		if(segment == mOpenedSegment) {
+			return;
+		}
+		boolean last = segment == mSegmentCount - 1;
+		int sealedSegmentSize = mSegmentSize + EncryptedMediaStore.TAG_SIZE;
+		long start = EncryptedMediaStore.HEADER_SIZE + (long) segment * sealedSegmentSize;
+		int sealedLength = last ? (int) (mFile.length() - start) : sealedSegmentSize;
+		mFile.seek(start);
+		mFile.readFully(mSealed, 0, sealedLength);
+		try {
+			mCipher.init(Cipher.DECRYPT_MODE, mKey, EncryptedMediaStore.createParameterSpec(mNoncePrefix, segment, last, mGcmParameterSpec));
+			mOpenedLength = mCipher.doFinal(mSealed, 0, sealedLength, mPlain, 0);
+			mOpenedSegment = segment;
+		} catch(GeneralSecurityException e) {
+			mOpenedSegment = -1;
+			throw new IOException("EncryptedFile: segment " + segment + " failed authentication", e);
+		}
+	}
+
+
+	/**
+	 * stream of a plaintext range, mark and skip only move the position, so BitmapFactory can read it without a BufferedInputStream
+	 */
+	private class RangeInputStream extends InputStream {
+
+		private long mPosition;
+		private long mEnd;
+		private long mMark;
+		private boolean mCloseFile;
+
+
+		RangeInputStream(long position, long end, boolean closeFile) {
+			mPosition = position;
+			mMark = position;
+			mEnd = end;
+			mCloseFile = closeFile;
+		}
+
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+		}
+
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(count == 0) {
+				return 0;
+			}
+			if(mPosition >= mEnd) {
+				return -1;
+			}
+			int read = EncryptedFile.this.read(mPosition, buffer, offset, (int) Math.min(count, mEnd - mPosition));
+			if(read > 0) {
+				mPosition += read;
+			}
+			return read;
+		}
+
+
+		@Override
+		public long skip(long count) {
+			long skipped = Math.max(0, Math.min(count, mEnd - mPosition));
+			mPosition += skipped;
+			return skipped;
+		}
+
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+		}
+
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			mMark = mPosition;
+		}
+
+
+		@Override
+		public synchronized void reset() {
+			mPosition = mMark;
+		}
+
+
+		@Override
+		public void close() throws IOException {
+			if(mCloseFile) {
+				EncryptedFile.this.close();
+			}
+		}
+	}
+}
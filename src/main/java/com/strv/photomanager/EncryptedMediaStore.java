@@ -0,0 +1,535 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * encrypted storage of the cached media, the files are split into segments sealed with AES-GCM, so they can be written in one pass
+ * and any byte range can be read and authenticated without decrypting the file from the start
+ * <p/>
+ * layout of a file: header (magic, version, segment size, salt, nonce prefix) followed by the sealed segments, every segment is
+ * SEGMENT_SIZE bytes of plaintext plus the tag, the last one can be shorter, every file has its own key derived from the master key
+ * and the salt, the nonce of a segment is the nonce prefix, the segment index and a flag of the last segment, so the segments
+ * cannot be reordered or the file truncated unnoticed
+ * <p/>
+ * the master key is generated on the first use and kept in the private files dir of the app, the segment buffers are pooled
+ */
+public class EncryptedMediaStore {
+
+	/**
+	 * plaintext size of a segment
+	 */
+	public static final int SEGMENT_SIZE = 64 * 1024;
+
+	static final int TAG_SIZE = 16;
+	static final int SALT_SIZE = 16;
+	static final int NONCE_PREFIX_SIZE = 7;
+	static final int HEADER_SIZE = 4 + 1 + 4 + SALT_SIZE + NONCE_PREFIX_SIZE;
+
+	private static final byte[] MAGIC = {'P', 'M', 'E', 'C'};
+	private static final int VERSION = 1;
+	private static final String KEY_FILE_NAME = "photomanager_media_key";
+	private static final int KEY_SIZE = 32;
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	private static EncryptedMediaStore sInstance;
+	private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
+
+	private Context mContext;
+	private File mKeyDir;
+	private boolean mGcmParameterSpec;
+	private SecureRandom mRandom = new SecureRandom();
+	private byte[] mMasterKey;
+	private volatile boolean mEnabled;
+
+
+	public static class Benchmark {
+
+		private long mBytes;
+		private long mPlainWriteNanos;
+		private long mPlainReadNanos;
+		private long mEncryptedWriteNanos;
+		private long mEncryptedReadNanos;
+
+
+		Benchmark(long bytes, long plainWriteNanos, long plainReadNanos, long encryptedWriteNanos, long encryptedReadNanos) {
+			mBytes = bytes;
+			mPlainWriteNanos = plainWriteNanos;
+			mPlainReadNanos = plainReadNanos;
+			mEncryptedWriteNanos = encryptedWriteNanos;
+			mEncryptedReadNanos = encryptedReadNanos;
+		}
+
+
+		public long getBytes() {
+			return mBytes;
+		}
+
+
+		public double getPlainWriteBytesPerSecond() {
+			return bytesPerSecond(mPlainWriteNanos);
+		}
+
+
+		public double getPlainReadBytesPerSecond() {
+			return bytesPerSecond(mPlainReadNanos);
+		}
+
+
+		public double getEncryptedWriteBytesPerSecond() {
+			return bytesPerSecond(mEncryptedWriteNanos);
+		}
+
+
+		public double getEncryptedReadBytesPerSecond() {
+			return bytesPerSecond(mEncryptedReadNanos);
+		}
+
+
+		/**
+		 * @return time of the encrypted write divided by the time of the plaintext write, e.g. 1.3 means 30 % overhead
+		 */
+		public double getWriteOverhead() {
+			return mPlainWriteNanos > 0 ? (double) mEncryptedWriteNanos / mPlainWriteNanos : 0;
+		}
+
+
+		/**
+		 * @return time of the encrypted read divided by the time of the plaintext read
+		 */
+		public double getReadOverhead() {
+			return mPlainReadNanos > 0 ? (double) mEncryptedReadNanos / mPlainReadNanos : 0;
+		}
+
+
+		@Override
+		public String toString() {
+			return String.format("write %.1f/%.1f MB/s (x%.2f), read %.1f/%.1f MB/s (x%.2f) plain/encrypted",
+					getPlainWriteBytesPerSecond() / 1e6, getEncryptedWriteBytesPerSecond() / 1e6, getWriteOverhead(),
+					getPlainReadBytesPerSecond() / 1e6, getEncryptedReadBytesPerSecond() / 1e6, getReadOverhead());
+		}
+
+
+		private double bytesPerSecond(long nanos) {
+			return nanos > 0 ? mBytes * 1e9 / nanos : 0;
+		}
+	}
+
+
+	private EncryptedMediaStore(Context context) {
+		mContext = context;
+		// the GCM provider of the older versions takes the nonce as IvParameterSpec
+		mGcmParameterSpec = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+
+	/**
+	 * store that keeps its master key in the given dir instead of the private files dir of the app
+	 *
+	 * @param keyDir           dir of the master key
+	 * @param gcmParameterSpec true to pass the nonce as GCMParameterSpec, the plain JVM of the unit tests needs it
+	 */
+	@VisibleForTesting
+	EncryptedMediaStore(File keyDir, boolean gcmParameterSpec) {
+		mKeyDir = keyDir;
+		mGcmParameterSpec = gcmParameterSpec;
+	}
+
+
+	/**
+	 * returns the shared store
+	 *
+	 * @param context context of the app/activity
+	 * @return shared encrypted store
+	 */
+	public static synchronized EncryptedMediaStore getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new EncryptedMediaStore(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * checks the magic at the start of the file
+	 *
+	 * @param file file that should be checked
+	 * @return true if the file was written by an encrypted store
+	 */
+	public static boolean isEncrypted(File file) {
+		byte[] magic = new byte[MAGIC.length];
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file, "r");
+			input.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		} catch(IOException e) {
+			return false;
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * enables the encryption of the imported photo copies and of the ScaleImageHelper outputs, encrypted files are read
+	 * transparently by the library whether the encryption is enabled or not
+	 *
+	 * @param enabled true to encrypt the newly written files
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+
+	/**
+	 * opens an encrypting stream to the file, the stream buffers one segment, so it should not be wrapped in another buffered stream,
+	 * the file is complete only after the stream is closed
+	 *
+	 * @param file file that should be written
+	 * @return encrypting stream, the caller is responsible for closing it
+	 * @throws IOException is thrown if the file cannot be created or the key cannot be loaded
+	 */
+	public OutputStream openOutputStream(File file) throws IOException {
+		byte[] salt = new byte[SALT_SIZE];
+		byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		mRandom.nextBytes(salt);
+		mRandom.nextBytes(noncePrefix);
+		byte[] header = new byte[HEADER_SIZE];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[4] = VERSION;
+		writeInt(header, 5, SEGMENT_SIZE);
+		System.arraycopy(salt, 0, header, 9, SALT_SIZE);
+		System.arraycopy(noncePrefix, 0, header, 9 + SALT_SIZE, NONCE_PREFIX_SIZE);
+
+		SecretKey key = deriveKey(salt);
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(header);
+			return new EncryptedOutputStream(output, key, noncePrefix, SEGMENT_SIZE, mGcmParameterSpec);
+		} catch(IOException e) {
+			output.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * opens the file for random access reads of the plaintext
+	 *
+	 * @param file encrypted file
+	 * @return decrypting view of the file, the caller is responsible for closing it
+	 * @throws IOException is thrown if the file cannot be opened or is not encrypted
+	 */
+	public EncryptedFile openRandomAccess(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			input.readFully(header);
+			int segmentSize = readSegmentSize(header, file);
+			SecretKey key = deriveKey(Arrays.copyOfRange(header, 9, 9 + SALT_SIZE));
+			byte[] noncePrefix = Arrays.copyOfRange(header, 9 + SALT_SIZE, HEADER_SIZE);
+			return new EncryptedFile(input, key, noncePrefix, segmentSize, mGcmParameterSpec);
+		} catch(IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * computes the size of the plaintext of an encrypted file from its header and size, the key is not needed
+	 *
+	 * @param file encrypted file
+	 * @return size of the plaintext
+	 * @throws IOException is thrown if the file cannot be read, is not encrypted or is truncated
+	 */
+	public static long getPlaintextLength(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			input.readFully(header);
+			long length = EncryptedFile.getPlaintextLength(input.length(), readSegmentSize(header, file));
+			if(length < 0) {
+				throw new IOException("EncryptedMediaStore: truncated file " + file);
+			}
+			return length;
+		} finally {
+			input.close();
+		}
+	}
+
+
+	/**
+	 * opens the file for sequential reading, encrypted files are decrypted, other files are read as they are
+	 *
+	 * @param file encrypted or plaintext file
+	 * @return stream of the plaintext, the caller is responsible for closing it
+	 * @throws IOException is thrown if the file cannot be opened
+	 */
+	public InputStream openInputStream(File file) throws IOException {
+		if(isEncrypted(file)) {
+			return openRandomAccess(file).openInputStream(true);
+		}
+		return new FileInputStream(file);
+	}
+
+
+	/**
+	 * decrypts the file to a plaintext copy for the consumers that need a path, e.g. an upload library or a media player,
+	 * the caller should delete the copy as soon as it's not needed
+	 *
+	 * @param source      encrypted file
+	 * @param destination plaintext copy
+	 * @throws IOException is thrown if the file cannot be read, fails authentication or the copy cannot be written
+	 */
+	public void decryptToFile(File source, File destination) throws IOException {
+		InputStream input = openInputStream(source);
+		try {
+			copy(input, new BufferedOutputStream(new FileOutputStream(destination)));
+		} finally {
+			input.close();
+		}
+	}
+
+
+	/**
+	 * measures the throughput of the encrypted writes and reads against plaintext I/O of the same data in the cache dir,
+	 * it blocks for a while and should be called on a worker thread
+	 *
+	 * @param sizeBytes size of the test file, a few MB gives stable results
+	 * @return measured throughput
+	 * @throws IOException is thrown if the test files cannot be written
+	 */
+	public Benchmark benchmark(int sizeBytes) throws IOException {
+		byte[] data = new byte[16 * 1024];
+		mRandom.nextBytes(data);
+		File cacheDir = mContext.getCacheDir();
+		File plainFile = File.createTempFile("benchmark", ".plain", cacheDir);
+		File encryptedFile = File.createTempFile("benchmark", ".encrypted", cacheDir);
+		try {
+			// the first round warms up the cipher and the file system, the second one is measured
+			long[] plain = new long[2];
+			long[] encrypted = new long[2];
+			for(int round = 0; round < 2; round++) {
+				plain[0] = System.nanoTime();
+				writeBenchmarkData(new BufferedOutputStream(new FileOutputStream(plainFile)), data, sizeBytes);
+				plain[0] = System.nanoTime() - plain[0];
+				plain[1] = System.nanoTime();
+				readBenchmarkData(new BufferedInputStream(new FileInputStream(plainFile)), data);
+				plain[1] = System.nanoTime() - plain[1];
+
+				encrypted[0] = System.nanoTime();
+				writeBenchmarkData(openOutputStream(encryptedFile), data, sizeBytes);
+				encrypted[0] = System.nanoTime() - encrypted[0];
+				encrypted[1] = System.nanoTime();
+				readBenchmarkData(openInputStream(encryptedFile), data);
+				encrypted[1] = System.nanoTime() - encrypted[1];
+			}
+			return new Benchmark(sizeBytes, plain[0], plain[1], encrypted[0], encrypted[1]);
+		} finally {
+			plainFile.delete();
+			encryptedFile.delete();
+		}
+	}
+
+
+	/**
+	 * derives the key of a file from the master key and the salt of the file with HMAC-SHA256
+	 */
+	SecretKey deriveKey(byte[] salt) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(getMasterKey(), "HmacSHA256"));
+			return new SecretKeySpec(mac.doFinal(salt), "AES");
+		} catch(GeneralSecurityException e) {
+			throw new IOException("EncryptedMediaStore: cannot derive the key", e);
+		}
+	}
+
+
+	static Cipher createCipher() throws IOException {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch(GeneralSecurityException e) {
+			throw new IOException("EncryptedMediaStore: AES-GCM is not available", e);
+		}
+	}
+
+
+	/**
+	 * @param gcmParameterSpec true for GCMParameterSpec, false for IvParameterSpec
+	 * @return parameters of the segment, the nonce is the nonce prefix, big endian segment index and 1 for the last segment
+	 */
+	static AlgorithmParameterSpec createParameterSpec(byte[] noncePrefix, int segmentIndex, boolean last, boolean gcmParameterSpec) {
+		byte[] nonce = new byte[NONCE_PREFIX_SIZE + 5];
+		System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_SIZE);
+		writeInt(nonce, NONCE_PREFIX_SIZE, segmentIndex);
+		nonce[NONCE_PREFIX_SIZE + 4] = (byte) (last ? 1 : 0);
+		if(gcmParameterSpec) {
+			return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+		}
+		// the older provider uses a 128 bit tag
+		return new IvParameterSpec(nonce);
+	}
+
+
+	/**
+	 * @return buffer for a sealed segment of the default size, from the pool if possible
+	 */
+	static byte[] acquireBuffer(int segmentSize) {
+		if(segmentSize == SEGMENT_SIZE) {
+			synchronized(sBufferPool) {
+				byte[] buffer = sBufferPool.poll();
+				if(buffer != null) {
+					return buffer;
+				}
+			}
+		}
+		return new byte[segmentSize + TAG_SIZE];
+	}
+
+
+	static void releaseBuffer(byte[] buffer) {
+		if(buffer != null && buffer.length == SEGMENT_SIZE + TAG_SIZE) {
+			synchronized(sBufferPool) {
+				if(sBufferPool.size() < MAX_POOLED_BUFFERS) {
+					sBufferPool.push(buffer);
+				}
+			}
+		}
+	}
+
+
+	private synchronized byte[] getMasterKey() throws IOException {
+		if(mMasterKey != null) {
+			return mMasterKey;
+		}
+
+		File dir = mKeyDir;
+		if(dir == null) {
+			dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? mContext.getNoBackupFilesDir() : mContext.getFilesDir();
+		}
+		File keyFile = new File(dir, KEY_FILE_NAME);
+		byte[] key = new byte[KEY_SIZE];
+		if(keyFile.length() == KEY_SIZE) {
+			RandomAccessFile input = new RandomAccessFile(keyFile, "r");
+			try {
+				input.readFully(key);
+			} finally {
+				input.close();
+			}
+		} else {
+			mRandom.nextBytes(key);
+			// the key is written to a temp file and renamed, so a crash cannot leave a partial key that would make the cache unreadable
+			File tempFile = new File(dir, KEY_FILE_NAME + ".tmp");
+			FileOutputStream output = new FileOutputStream(tempFile);
+			try {
+				output.write(key);
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			if(!tempFile.renameTo(keyFile)) {
+				throw new IOException("EncryptedMediaStore: cannot store the key");
+			}
+		}
+		mMasterKey = key;
+		return key;
+	}
+
+
+	private static void copy(InputStream input, OutputStream output) throws IOException {
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+
+	private static void writeBenchmarkData(OutputStream output, byte[] data, int sizeBytes) throws IOException {
+		try {
+			for(int written = 0; written < sizeBytes; written += data.length) {
+				output.write(data, 0, Math.min(data.length, sizeBytes - written));
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+
+	private static void readBenchmarkData(InputStream input, byte[] buffer) throws IOException {
+		try {
+			while(input.read(buffer) != -1) {
+				// only the throughput is measured
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+
+	private static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+
+	private static int readSegmentSize(byte[] header, File file) throws IOException {
+		if(!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) || header[4] != VERSION) {
+			throw new IOException("EncryptedMediaStore: not an encrypted file " + file);
+		}
+		int segmentSize = readInt(header, 5);
+		if(segmentSize <= 0 || segmentSize > 16 * SEGMENT_SIZE) {
+			throw new IOException("EncryptedMediaStore: malformed header " + file);
+		}
+		return segmentSize;
+	}
+
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+}
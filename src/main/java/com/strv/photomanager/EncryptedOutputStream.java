@@ -0,0 +1,121 @@
+package com.strv.photomanager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+
+/**
+ * stream that seals the written data into the segments of EncryptedMediaStore, one segment is buffered in a pooled buffer
+ * and sealed straight into another one, writes longer than a segment are sealed from the caller's array without copying,
+ * a full segment is sealed only when more data comes, because the last segment has to be flagged at close
+ */
+class EncryptedOutputStream extends OutputStream {
+
+	private OutputStream mOutput;
+	private Cipher mCipher;
+	private SecretKey mKey;
+	private byte[] mNoncePrefix;
+	private int mSegmentSize;
+	private boolean mGcmParameterSpec;
+	private byte[] mBuffer;
+	private byte[] mSealed;
+	private int mLength;
+	private int mSegmentIndex;
+	private boolean mClosed;
+
+
+	/**
+	 * @param output           underlying stream positioned after the header
+	 * @param key              key of the file
+	 * @param noncePrefix      nonce prefix from the header
+	 * @param segmentSize      plaintext size of a segment
+	 * @param gcmParameterSpec true to pass the nonce as GCMParameterSpec
+	 */
+	EncryptedOutputStream(OutputStream output, SecretKey key, byte[] noncePrefix, int segmentSize, boolean gcmParameterSpec) throws IOException {
+		mOutput = output;
+		mCipher = EncryptedMediaStore.createCipher();
+		mKey = key;
+		mNoncePrefix = noncePrefix;
+		mSegmentSize = segmentSize;
+		mGcmParameterSpec = gcmParameterSpec;
+		mBuffer = EncryptedMediaStore.acquireBuffer(segmentSize);
+		mSealed = EncryptedMediaStore.acquireBuffer(segmentSize);
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+		if(mLength == mSegmentSize) {
+			seal(mBuffer, 0, mLength, false);
+			mLength = 0;
+		}
+		mBuffer[mLength++] = (byte) b;
+	}
+
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		if(mClosed) {
+			throw new IOException("EncryptedOutputStream: stream is closed");
+		}
+		while(count > 0) {
+			if(mLength == mSegmentSize) {
+				seal(mBuffer, 0, mLength, false);
+				mLength = 0;
+			}
+			if(mLength == 0 && count > mSegmentSize) {
+				// more data follows, so the segment cannot be the last one
+				seal(buffer, offset, mSegmentSize, false);
+				offset += mSegmentSize;
+				count -= mSegmentSize;
+				continue;
+			}
+			int length = Math.min(count, mSegmentSize - mLength);
+			System.arraycopy(buffer, offset, mBuffer, mLength, length);
+			mLength += length;
+			offset += length;
+			count -= length;
+		}
+	}
+
+
+	@Override
+	public void flush() throws IOException {
+		// the buffered segment cannot be sealed before it's full, the sealed ones are already written
+		mOutput.flush();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		if(mClosed) {
+			return;
+		}
+		mClosed = true;
+		try {
+			seal(mBuffer, 0, mLength, true);
+		} finally {
+			EncryptedMediaStore.releaseBuffer(mBuffer);
+			EncryptedMediaStore.releaseBuffer(mSealed);
+			mBuffer = null;
+			mSealed = null;
+			mOutput.close();
+		}
+	}
+
+
+	private void seal(byte[] buffer, int offset, int length, boolean last) throws IOException {
+		try {
+			mCipher.init(Cipher.ENCRYPT_MODE, mKey, EncryptedMediaStore.createParameterSpec(mNoncePrefix, mSegmentIndex, last, mGcmParameterSpec));
+			int sealedLength = mCipher.doFinal(buffer, offset, length, mSealed, 0);
+			mOutput.write(mSealed, 0, sealedLength);
+			mSegmentIndex++;
+		} catch(GeneralSecurityException e) {
+			throw new IOException("EncryptedOutputStream: cannot seal segment " + mSegmentIndex, e);
+		}
+	}
+}
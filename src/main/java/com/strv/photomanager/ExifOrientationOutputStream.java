@@ -0,0 +1,106 @@
+package com.strv.photomanager;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * stream that inserts a minimal APP1 exif segment with only the orientation tag right after the SOI marker of the written jpeg,
+ * data that doesn't start with SOI is passed through unchanged
+ */
+public class ExifOrientationOutputStream extends FilterOutputStream {
+
+	/**
+	 * size of the inserted segment including its marker
+	 */
+	public static final int SEGMENT_SIZE = 36;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TYPE_SHORT = 3;
+
+	private int mOrientation;
+	private int mPosition;
+	private int mFirstByte;
+
+
+	/**
+	 * @param output      underlying stream
+	 * @param orientation exif orientation written to the segment
+	 */
+	public ExifOrientationOutputStream(OutputStream output, int orientation) {
+		super(output);
+		mOrientation = orientation;
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+		if(mPosition == 0) {
+			// the first byte is held back until it's known whether the data starts with SOI
+			mFirstByte = b & 0xff;
+			mPosition++;
+			return;
+		}
+		if(mPosition == 1) {
+			out.write(mFirstByte);
+			out.write(b);
+			if(mFirstByte == 0xff && (b & 0xff) == 0xd8) {
+				out.write(buildSegment(mOrientation));
+			}
+		} else {
+			out.write(b);
+		}
+		mPosition++;
+	}
+
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		while(mPosition < 2 && count > 0) {
+			write(buffer[offset]);
+			offset++;
+			count--;
+		}
+		if(count > 0) {
+			out.write(buffer, offset, count);
+			mPosition += count;
+		}
+	}
+
+
+	/**
+	 * writes the held back byte without closing the underlying stream, e.g. when the stream is owned by the caller
+	 *
+	 * @throws IOException is thrown if the underlying stream cannot be written
+	 */
+	public void finish() throws IOException {
+		if(mPosition == 1) {
+			out.write(mFirstByte);
+			mPosition++;
+		}
+		out.flush();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		super.close();
+	}
+
+
+	/**
+	 * builds the APP1 segment: exif header, big endian tiff header and IFD0 with the orientation entry
+	 */
+	static byte[] buildSegment(int orientation) {
+		return new byte[]{
+				(byte) 0xff, (byte) 0xe1, 0, SEGMENT_SIZE - 2,
+				'E', 'x', 'i', 'f', 0, 0,
+				'M', 'M', 0, 42, 0, 0, 0, 8,
+				0, 1,
+				TAG_ORIENTATION >> 8, TAG_ORIENTATION & 0xff, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+				0, 0, 0, 0
+		};
+	}
+}
@@ -0,0 +1,34 @@
+package com.strv.photomanager;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * encoder of the scaled bitmaps, ScaleImageHelper writes its output through it so the output format and the rate control can be swapped
+ */
+public interface ImageEncoder {
+	/**
+	 * encodes the bitmap to the stream, the bitmap is not recycled
+	 *
+	 * @param bitmap       bitmap that should be encoded
+	 * @param output       stream where the encoded image is written, it is not closed
+	 * @param maxSizeBytes size budget of the encoded image in bytes, 0 for no limit
+	 * @throws IOException is thrown if the image cannot be encoded or written
+	 */
+	void encode(Bitmap bitmap, OutputStream output, int maxSizeBytes) throws IOException;
+
+
+	/**
+	 * @return file extension of the encoded images including the dot
+	 */
+	String getFileExtension();
+
+
+	/**
+	 * @return mime type of the encoded images
+	 */
+	String getMimeType();
+}
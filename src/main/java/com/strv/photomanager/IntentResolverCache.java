@@ -0,0 +1,173 @@
+package com.strv.photomanager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+
+import com.commonsware.cwac.cam2.CameraActivity;
+import com.commonsware.cwac.cam2.VideoRecorderActivity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * caches results of PackageManager.queryIntentActivities for the camera and video camera intents of the choosers,
+ * so the chooser builders don't have to do binder calls on the main thread when the user taps the camera button,
+ * the cache is cleared whenever a package is added, removed or changed
+ */
+public class IntentResolverCache {
+
+	static final String KEY_PHOTO_CAMERA = "photo_camera";
+	static final String KEY_VIDEO_CAMERA = "video_camera";
+	static final String KEY_CUSTOM_PHOTO_CAMERA = "custom_photo_camera";
+	static final String KEY_CUSTOM_VIDEO_CAMERA = "custom_video_camera";
+
+	private static IntentResolverCache sInstance;
+
+	private Context mContext;
+	private final Map<String, List<ResolveInfo>> mActivities = new HashMap<>();
+	private boolean mPrewarmed;
+	private int mGeneration;
+
+
+	private IntentResolverCache(Context context) {
+		mContext = context;
+	}
+
+
+	/**
+	 * returns the cache shared by the whole app, the first call registers a receiver for package changes
+	 *
+	 * @param context context of the app/activity
+	 * @return shared resolver cache
+	 */
+	public static synchronized IntentResolverCache getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new IntentResolverCache(context.getApplicationContext());
+			sInstance.registerPackageReceiver();
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * resolves the camera and video camera handlers, external and custom, on a background thread, should be called at app start
+	 */
+	public void prewarm() {
+		synchronized(this) {
+			mPrewarmed = true;
+		}
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				getPhotoCameraActivities();
+				getVideoCameraActivities();
+				getCustomPhotoCameraActivities();
+				getCustomVideoCameraActivities();
+			}
+		});
+	}
+
+
+	/**
+	 * forgets all resolved handlers, they are resolved again in background if the cache was prewarmed before
+	 */
+	public void invalidate() {
+		boolean prewarmed;
+		synchronized(this) {
+			mActivities.clear();
+			mGeneration++;
+			prewarmed = mPrewarmed;
+		}
+		if(prewarmed) {
+			prewarm();
+		}
+	}
+
+
+	/**
+	 * @return activities that can capture an image (MediaStore.ACTION_IMAGE_CAPTURE)
+	 */
+	public List<ResolveInfo> getPhotoCameraActivities() {
+		return getActivities(KEY_PHOTO_CAMERA, new Intent(MediaStore.ACTION_IMAGE_CAPTURE), PackageManager.MATCH_DEFAULT_ONLY);
+	}
+
+
+	/**
+	 * @return activities that can capture a video (MediaStore.ACTION_VIDEO_CAPTURE)
+	 */
+	public List<ResolveInfo> getVideoCameraActivities() {
+		return getActivities(KEY_VIDEO_CAMERA, new Intent(MediaStore.ACTION_VIDEO_CAPTURE), PackageManager.MATCH_DEFAULT_ONLY);
+	}
+
+
+	/**
+	 * @return the custom camera activity (cwac-cam2), it's resolved by its component like the intent of its IntentBuilder
+	 */
+	public List<ResolveInfo> getCustomPhotoCameraActivities() {
+		return getActivities(KEY_CUSTOM_PHOTO_CAMERA, new Intent(mContext, CameraActivity.class), 0);
+	}
+
+
+	/**
+	 * @return the custom video camera activity (cwac-cam2), it's resolved by its component like the intent of its IntentBuilder
+	 */
+	public List<ResolveInfo> getCustomVideoCameraActivities() {
+		return getActivities(KEY_CUSTOM_VIDEO_CAMERA, new Intent(mContext, VideoRecorderActivity.class), 0);
+	}
+
+
+	/**
+	 * returns cached activities for the key, the intent is resolved only if the key is not cached yet
+	 *
+	 * @param key    key of the cached query, the same key must always be used with an equivalent intent and flags
+	 * @param intent intent that should be resolved
+	 * @param flags  flags for PackageManager.queryIntentActivities
+	 * @return unmodifiable list of activities that can handle the intent
+	 */
+	List<ResolveInfo> getActivities(String key, Intent intent, int flags) {
+		int generation;
+		synchronized(this) {
+			List<ResolveInfo> activities = mActivities.get(key);
+			if(activities != null) {
+				return activities;
+			}
+			generation = mGeneration;
+		}
+
+		List<ResolveInfo> resolved = mContext.getPackageManager().queryIntentActivities(intent, flags);
+		List<ResolveInfo> activities = Collections.unmodifiableList(resolved != null ? new ArrayList<>(resolved) : new ArrayList<ResolveInfo>());
+		synchronized(this) {
+			// packages changed while resolving, the result may be stale so it is not cached
+			if(generation == mGeneration) {
+				mActivities.put(key, activities);
+			}
+		}
+		return activities;
+	}
+
+
+	private void registerPackageReceiver() {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addDataScheme("package");
+		mContext.registerReceiver(new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				invalidate();
+			}
+		}, filter);
+	}
+}
@@ -0,0 +1,113 @@
+package com.strv.photomanager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * reader of the append-only logs of MediaMetadataIndex, MediaJobQueue and PerceptualHashIndex: an int version followed by records
+ * that are prefixed by their length, the log ends at the first record that is cut off, has an impossible length or cannot be parsed,
+ * e.g. after the process was killed while appending, and the file is truncated there so the next append follows the last valid record
+ */
+class JournalReader {
+
+	/**
+	 * no record of the logs comes close to this, a longer length is a corrupt prefix
+	 */
+	static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+
+	interface RecordHandler {
+		/**
+		 * @param record bytes of one record without its length prefix
+		 * @throws IOException is thrown if the record cannot be parsed, the log is cut off before it
+		 */
+		void onRecord(byte[] record) throws IOException;
+	}
+
+
+	private JournalReader() {
+	}
+
+
+	/**
+	 * reads all the valid records of the log and truncates the file after the last one,
+	 * a log of another version is deleted
+	 *
+	 * @param file    file of the log
+	 * @param version version the log should start with
+	 * @param handler handler of the records in the order they were appended
+	 * @return number of valid records
+	 */
+	static int read(File file, int version, RecordHandler handler) {
+		if(!file.exists()) {
+			return 0;
+		}
+
+		long fileLength = file.length();
+		long validLength = 0;
+		int recordCount = 0;
+		// only a broken end of the log is cut off, a failed read of the file keeps it for the next launch
+		boolean truncate = false;
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(input.readInt() != version) {
+				input.close();
+				input = null;
+				file.delete();
+				return 0;
+			}
+			validLength = 4;
+			while(true) {
+				int recordLength = input.readInt();
+				if(recordLength < 0 || recordLength > MAX_RECORD_LENGTH || recordLength > fileLength - validLength - 4) {
+					truncate = true;
+					throw new IOException("JournalReader: corrupt record length " + recordLength + " in " + file.getName());
+				}
+				byte[] record = new byte[recordLength];
+				input.readFully(record);
+				try {
+					handler.onRecord(record);
+				} catch(IOException e) {
+					truncate = true;
+					throw e;
+				}
+				recordCount++;
+				validLength += 4 + recordLength;
+			}
+		} catch(EOFException e) {
+			// end of the log, a partially written record from a killed process is cut off below
+			truncate = true;
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		if(truncate && validLength < fileLength) {
+			try {
+				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+				try {
+					randomAccessFile.setLength(validLength);
+				} finally {
+					randomAccessFile.close();
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return recordCount;
+	}
+}
@@ -0,0 +1,576 @@
+package com.strv.photomanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * baseline JPEG encoder written in plain java, it works on ARGB int[] pixels so it runs the same on the device and on a JVM,
+ * unlike Bitmap.compress it can pick the quantization scale from a size budget: the DCT is done once and the size of the output
+ * is estimated from histograms of the coefficients for every candidate scale, only the entropy coding is repeated if the estimate missed
+ */
+public class JpegEncoder {
+
+	public static final int MIN_SCALE = 1;
+	public static final int MAX_SCALE = 5000;
+
+	private static final int MAX_MAGNITUDE = 2047;
+	private static final int MAX_CORRECTIONS = 3;
+
+	// average extra bits spent on the zero runs preceding a nonzero AC coefficient, the histograms don't know the runs
+	private static final double RUN_PENALTY_BITS = 1.5;
+
+	private static final float[] DCT_MATRIX = new float[64];
+
+	private ChromaSubsampling mSubsampling;
+	private int mLastScale;
+
+
+	public enum ChromaSubsampling {
+		YUV444(1, 1),
+		YUV422(2, 1),
+		YUV420(2, 2);
+
+		final int horizontal;
+		final int vertical;
+
+
+		ChromaSubsampling(int horizontal, int vertical) {
+			this.horizontal = horizontal;
+			this.vertical = vertical;
+		}
+	}
+
+
+	static {
+		for(int u = 0; u < 8; u++) {
+			double c = u == 0 ? Math.sqrt(0.5) : 1;
+			for(int x = 0; x < 8; x++) {
+				DCT_MATRIX[u * 8 + x] = (float) (0.5 * c * Math.cos((2 * x + 1) * u * Math.PI / 16));
+			}
+		}
+	}
+
+
+	public JpegEncoder(ChromaSubsampling subsampling) {
+		mSubsampling = subsampling;
+	}
+
+
+	/**
+	 * converts the JPEG quality (1-100) to the quantization scale in percent of the standard tables the same way as libjpeg does
+	 *
+	 * @param quality quality between 1 and 100
+	 * @return scale between MIN_SCALE and MAX_SCALE
+	 */
+	public static int qualityToScale(int quality) {
+		quality = Math.max(1, Math.min(100, quality));
+		return Math.max(MIN_SCALE, quality < 50 ? 5000 / quality : 200 - 2 * quality);
+	}
+
+
+	/**
+	 * encodes the pixels with the given quality
+	 *
+	 * @param pixels  ARGB pixels in row major order, alpha is ignored
+	 * @param width   width of the image
+	 * @param height  height of the image
+	 * @param quality quality between 1 and 100
+	 * @param output  stream where the JPEG is written
+	 * @return number of bytes written
+	 * @throws IOException is thrown if the output cannot be written
+	 */
+	public int encode(int[] pixels, int width, int height, int quality, OutputStream output) throws IOException {
+		Coefficients coefficients = transform(pixels, width, height);
+		mLastScale = qualityToScale(quality);
+		byte[] jpeg = write(coefficients, mLastScale);
+		output.write(jpeg);
+		return jpeg.length;
+	}
+
+
+	/**
+	 * encodes the pixels with the finest quantization scale whose output fits the size budget,
+	 * the output exceeds the budget only if the image doesn't fit even with MAX_SCALE
+	 *
+	 * @param pixels       ARGB pixels in row major order, alpha is ignored
+	 * @param width        width of the image
+	 * @param height       height of the image
+	 * @param maxSizeBytes size budget of the output in bytes
+	 * @param output       stream where the JPEG is written
+	 * @return number of bytes written
+	 * @throws IOException is thrown if the output cannot be written
+	 */
+	public int encodeWithinBudget(int[] pixels, int width, int height, int maxSizeBytes, OutputStream output) throws IOException {
+		return encodeWithinBudget(pixels, width, height, maxSizeBytes, MIN_SCALE, output);
+	}
+
+
+	/**
+	 * encodes the pixels with the finest quantization scale not finer than minScale whose output fits the size budget
+	 *
+	 * @param pixels       ARGB pixels in row major order, alpha is ignored
+	 * @param width        width of the image
+	 * @param height       height of the image
+	 * @param maxSizeBytes size budget of the output in bytes
+	 * @param minScale     finest allowed scale, see qualityToScale
+	 * @param output       stream where the JPEG is written
+	 * @return number of bytes written
+	 * @throws IOException is thrown if the output cannot be written
+	 */
+	public int encodeWithinBudget(int[] pixels, int width, int height, int maxSizeBytes, int minScale, OutputStream output) throws IOException {
+		Coefficients coefficients = transform(pixels, width, height);
+		coefficients.buildHistograms();
+
+		long budgetBits = 8L * (maxSizeBytes - headerSize(coefficients));
+		int low = Math.max(MIN_SCALE, Math.min(MAX_SCALE, minScale));
+		int high = MAX_SCALE;
+		while(low < high) {
+			int scale = (low + high) >>> 1;
+			if(coefficients.estimateBits(scale) <= budgetBits) {
+				high = scale;
+			} else {
+				low = scale + 1;
+			}
+		}
+
+		int scale = low;
+		byte[] jpeg = write(coefficients, scale);
+		for(int i = 0; i < MAX_CORRECTIONS && jpeg.length > maxSizeBytes && scale < MAX_SCALE; i++) {
+			scale = (int) Math.min(MAX_SCALE, Math.max(scale + 1, scale * 1.05 * jpeg.length / maxSizeBytes));
+			jpeg = write(coefficients, scale);
+		}
+
+		mLastScale = scale;
+		output.write(jpeg);
+		return jpeg.length;
+	}
+
+
+	/**
+	 * @return quantization scale used by the last encode call, in percent of the standard tables
+	 */
+	public int getLastScale() {
+		return mLastScale;
+	}
+
+
+	/**
+	 * converts the pixels to YCbCr, subsamples the chroma and does the forward DCT of all the blocks,
+	 * the image is processed in strips of one MCU row so only the coefficients are kept for the whole image
+	 */
+	private Coefficients transform(int[] pixels, int width, int height) {
+		int horizontal = mSubsampling.horizontal;
+		int vertical = mSubsampling.vertical;
+		Coefficients coefficients = new Coefficients(width, height, horizontal, vertical);
+		int paddedWidth = coefficients.mcusX * 8 * horizontal;
+		int stripHeight = 8 * vertical;
+		int chromaWidth = paddedWidth / horizontal;
+
+		float[] luminance = new float[paddedWidth * stripHeight];
+		float[] blueFull = new float[paddedWidth * stripHeight];
+		float[] redFull = new float[paddedWidth * stripHeight];
+		float[] blue = new float[chromaWidth * 8];
+		float[] red = new float[chromaWidth * 8];
+		float[] block = new float[64];
+		float[] temp = new float[64];
+
+		for(int mcuY = 0; mcuY < coefficients.mcusY; mcuY++) {
+			for(int row = 0; row < stripHeight; row++) {
+				int y = Math.min(mcuY * stripHeight + row, height - 1);
+				for(int x = 0; x < paddedWidth; x++) {
+					int pixel = pixels[y * width + Math.min(x, width - 1)];
+					int r = (pixel >> 16) & 0xff;
+					int g = (pixel >> 8) & 0xff;
+					int b = pixel & 0xff;
+					int i = row * paddedWidth + x;
+					luminance[i] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+					blueFull[i] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+					redFull[i] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+				}
+			}
+
+			float area = horizontal * vertical;
+			for(int row = 0; row < 8; row++) {
+				for(int x = 0; x < chromaWidth; x++) {
+					float blueSum = 0;
+					float redSum = 0;
+					for(int dy = 0; dy < vertical; dy++) {
+						for(int dx = 0; dx < horizontal; dx++) {
+							int i = (row * vertical + dy) * paddedWidth + x * horizontal + dx;
+							blueSum += blueFull[i];
+							redSum += redFull[i];
+						}
+					}
+					blue[row * chromaWidth + x] = blueSum / area;
+					red[row * chromaWidth + x] = redSum / area;
+				}
+			}
+
+			for(int by = 0; by < vertical; by++) {
+				for(int bx = 0; bx < paddedWidth / 8; bx++) {
+					forwardDct(luminance, paddedWidth, bx * 8, by * 8, block, temp);
+					coefficients.store(0, bx, mcuY * vertical + by, block);
+				}
+			}
+			for(int bx = 0; bx < chromaWidth / 8; bx++) {
+				forwardDct(blue, chromaWidth, bx * 8, 0, block, temp);
+				coefficients.store(1, bx, mcuY, block);
+				forwardDct(red, chromaWidth, bx * 8, 0, block, temp);
+				coefficients.store(2, bx, mcuY, block);
+			}
+		}
+		return coefficients;
+	}
+
+
+	private static void forwardDct(float[] plane, int stride, int left, int top, float[] out, float[] temp) {
+		for(int y = 0; y < 8; y++) {
+			int rowStart = (top + y) * stride + left;
+			for(int u = 0; u < 8; u++) {
+				float sum = 0;
+				for(int x = 0; x < 8; x++) {
+					sum += plane[rowStart + x] * DCT_MATRIX[u * 8 + x];
+				}
+				temp[y * 8 + u] = sum;
+			}
+		}
+		for(int v = 0; v < 8; v++) {
+			for(int u = 0; u < 8; u++) {
+				float sum = 0;
+				for(int y = 0; y < 8; y++) {
+					sum += DCT_MATRIX[v * 8 + y] * temp[y * 8 + u];
+				}
+				out[v * 8 + u] = sum;
+			}
+		}
+	}
+
+
+	private static int[][] buildQuantizationTables(int scale) {
+		int[][] tables = new int[2][64];
+		for(int i = 0; i < 64; i++) {
+			tables[0][i] = Math.max(1, Math.min(255, (JpegTables.LUMINANCE_QUANTIZATION[i] * scale + 50) / 100));
+			tables[1][i] = Math.max(1, Math.min(255, (JpegTables.CHROMINANCE_QUANTIZATION[i] * scale + 50) / 100));
+		}
+		return tables;
+	}
+
+
+	private static int quantize(int coefficient, int quantization) {
+		return coefficient >= 0 ? (coefficient + quantization / 2) / quantization : -((-coefficient + quantization / 2) / quantization);
+	}
+
+
+	private int headerSize(Coefficients coefficients) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		writeHeader(header, coefficients, buildQuantizationTables(100));
+		// header + EOI marker
+		return header.size() + 2;
+	}
+
+
+	private byte[] write(Coefficients coefficients, int scale) throws IOException {
+		int[][] tables = buildQuantizationTables(scale);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(coefficients.blockCount() * 8);
+		writeHeader(output, coefficients, tables);
+
+		BitWriter writer = new BitWriter(output);
+		int[] dcCodes0 = JpegTables.buildHuffmanCodes(JpegTables.DC_LUMINANCE_BITS, JpegTables.DC_LUMINANCE_VALUES);
+		int[] acCodes0 = JpegTables.buildHuffmanCodes(JpegTables.AC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_VALUES);
+		int[] dcCodes1 = JpegTables.buildHuffmanCodes(JpegTables.DC_CHROMINANCE_BITS, JpegTables.DC_CHROMINANCE_VALUES);
+		int[] acCodes1 = JpegTables.buildHuffmanCodes(JpegTables.AC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_VALUES);
+		int[] predictions = new int[3];
+
+		int horizontal = mSubsampling.horizontal;
+		int vertical = mSubsampling.vertical;
+		for(int mcuY = 0; mcuY < coefficients.mcusY; mcuY++) {
+			for(int mcuX = 0; mcuX < coefficients.mcusX; mcuX++) {
+				for(int by = 0; by < vertical; by++) {
+					for(int bx = 0; bx < horizontal; bx++) {
+						predictions[0] = writeBlock(writer, coefficients, 0, mcuX * horizontal + bx, mcuY * vertical + by, tables[0], predictions[0], dcCodes0, acCodes0);
+					}
+				}
+				predictions[1] = writeBlock(writer, coefficients, 1, mcuX, mcuY, tables[1], predictions[1], dcCodes1, acCodes1);
+				predictions[2] = writeBlock(writer, coefficients, 2, mcuX, mcuY, tables[1], predictions[2], dcCodes1, acCodes1);
+			}
+		}
+		writer.flush();
+
+		output.write(0xff);
+		output.write(0xd9);
+		return output.toByteArray();
+	}
+
+
+	/**
+	 * writes one block and returns its quantized DC, which is the prediction for the next block of the component
+	 */
+	private static int writeBlock(BitWriter writer, Coefficients coefficients, int component, int blockX, int blockY, int[] table, int prediction, int[] dcCodes, int[] acCodes) throws IOException {
+		short[] data = coefficients.data[component];
+		int offset = (blockY * coefficients.blocksX[component] + blockX) * 64;
+
+		int dc = quantize(data[offset], table[0]);
+		writer.writeCode(dcCodes, JpegTables.category(dc - prediction));
+		writer.writeValue(dc - prediction);
+
+		int run = 0;
+		for(int k = 1; k < 64; k++) {
+			int natural = JpegTables.ZIGZAG[k];
+			int value = quantize(data[offset + natural], table[natural]);
+			if(value == 0) {
+				run++;
+				continue;
+			}
+			while(run > 15) {
+				writer.writeCode(acCodes, 0xf0);
+				run -= 16;
+			}
+			int category = JpegTables.category(value);
+			writer.writeCode(acCodes, (run << 4) | category);
+			writer.writeValue(value);
+			run = 0;
+		}
+		if(run > 0) {
+			writer.writeCode(acCodes, 0x00);
+		}
+		return dc;
+	}
+
+
+	private void writeHeader(OutputStream output, Coefficients coefficients, int[][] tables) throws IOException {
+		// SOI and JFIF APP0
+		output.write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+		// DQT
+		writeMarker(output, 0xdb, 2 + 2 * 65);
+		for(int t = 0; t < 2; t++) {
+			output.write(t);
+			for(int k = 0; k < 64; k++) {
+				output.write(tables[t][JpegTables.ZIGZAG[k]]);
+			}
+		}
+
+		// SOF0
+		writeMarker(output, 0xc0, 17);
+		output.write(8);
+		output.write(coefficients.height >> 8);
+		output.write(coefficients.height);
+		output.write(coefficients.width >> 8);
+		output.write(coefficients.width);
+		output.write(3);
+		output.write(new byte[]{1, (byte) ((mSubsampling.horizontal << 4) | mSubsampling.vertical), 0, 2, 0x11, 1, 3, 0x11, 1});
+
+		// DHT
+		int[][] bits = {JpegTables.DC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_BITS, JpegTables.DC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_BITS};
+		int[][] values = {JpegTables.DC_LUMINANCE_VALUES, JpegTables.AC_LUMINANCE_VALUES, JpegTables.DC_CHROMINANCE_VALUES, JpegTables.AC_CHROMINANCE_VALUES};
+		int[] classes = {0x00, 0x10, 0x01, 0x11};
+		int length = 2;
+		for(int[] tableValues : values) {
+			length += 17 + tableValues.length;
+		}
+		writeMarker(output, 0xc4, length);
+		for(int t = 0; t < 4; t++) {
+			output.write(classes[t]);
+			for(int count : bits[t]) {
+				output.write(count);
+			}
+			for(int value : values[t]) {
+				output.write(value);
+			}
+		}
+
+		// SOS
+		writeMarker(output, 0xda, 12);
+		output.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+	}
+
+
+	private static void writeMarker(OutputStream output, int marker, int length) throws IOException {
+		output.write(0xff);
+		output.write(marker);
+		output.write(length >> 8);
+		output.write(length);
+	}
+
+
+	private static class Coefficients {
+
+		int width;
+		int height;
+		int horizontal;
+		int vertical;
+		int mcusX;
+		int mcusY;
+		int[] blocksX = new int[3];
+		short[][] data = new short[3][];
+
+		// histograms of magnitudes of AC coefficients per table (luminance, chrominance) and natural index, and of DC differences per table
+		int[][][] acHistograms;
+		int[][] dcHistograms;
+		int[] blockCounts;
+
+
+		Coefficients(int width, int height, int horizontal, int vertical) {
+			this.width = width;
+			this.height = height;
+			this.horizontal = horizontal;
+			this.vertical = vertical;
+			mcusX = (width + 8 * horizontal - 1) / (8 * horizontal);
+			mcusY = (height + 8 * vertical - 1) / (8 * vertical);
+			blocksX[0] = mcusX * horizontal;
+			blocksX[1] = mcusX;
+			blocksX[2] = mcusX;
+			data[0] = new short[blocksX[0] * mcusY * vertical * 64];
+			data[1] = new short[mcusX * mcusY * 64];
+			data[2] = new short[mcusX * mcusY * 64];
+		}
+
+
+		int blockCount() {
+			return (data[0].length + data[1].length + data[2].length) / 64;
+		}
+
+
+		void store(int component, int blockX, int blockY, float[] block) {
+			int offset = (blockY * blocksX[component] + blockX) * 64;
+			for(int i = 0; i < 64; i++) {
+				data[component][offset + i] = (short) Math.round(block[i]);
+			}
+		}
+
+
+		void buildHistograms() {
+			acHistograms = new int[2][64][MAX_MAGNITUDE + 1];
+			dcHistograms = new int[2][2 * MAX_MAGNITUDE + 2];
+			blockCounts = new int[2];
+			for(int component = 0; component < 3; component++) {
+				int table = component == 0 ? 0 : 1;
+				short[] values = data[component];
+				int[][] acHistogram = acHistograms[table];
+				int[] dcHistogram = dcHistograms[table];
+				int previousDc = 0;
+				// DC differences follow the MCU order of the scan, for luminance it differs from the raster order of the blocks
+				for(int mcuY = 0; mcuY < mcusY; mcuY++) {
+					for(int mcuX = 0; mcuX < mcusX; mcuX++) {
+						int blocksPerMcuX = component == 0 ? horizontal : 1;
+						int blocksPerMcuY = component == 0 ? vertical : 1;
+						for(int by = 0; by < blocksPerMcuY; by++) {
+							for(int bx = 0; bx < blocksPerMcuX; bx++) {
+								int offset = ((mcuY * blocksPerMcuY + by) * blocksX[component] + mcuX * blocksPerMcuX + bx) * 64;
+								int dc = values[offset];
+								dcHistogram[Math.min(Math.abs(dc - previousDc), dcHistogram.length - 1)]++;
+								previousDc = dc;
+								for(int k = 1; k < 64; k++) {
+									acHistogram[k][Math.min(Math.abs(values[offset + k]), MAX_MAGNITUDE)]++;
+								}
+								blockCounts[table]++;
+							}
+						}
+					}
+				}
+			}
+		}
+
+
+		/**
+		 * estimates the size of the entropy coded data for the given scale from the histograms
+		 */
+		long estimateBits(int scale) {
+			int[][] tables = buildQuantizationTables(scale);
+			int[][] dcCodes = {JpegTables.buildHuffmanCodes(JpegTables.DC_LUMINANCE_BITS, JpegTables.DC_LUMINANCE_VALUES),
+					JpegTables.buildHuffmanCodes(JpegTables.DC_CHROMINANCE_BITS, JpegTables.DC_CHROMINANCE_VALUES)};
+			int[][] acCodes = {JpegTables.buildHuffmanCodes(JpegTables.AC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_VALUES),
+					JpegTables.buildHuffmanCodes(JpegTables.AC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_VALUES)};
+
+			double bits = 0;
+			for(int table = 0; table < 2; table++) {
+				for(int k = 1; k < 64; k++) {
+					int quantization = tables[table][k];
+					int[] histogram = acHistograms[table][k];
+					for(int magnitude = quantization / 2 + 1; magnitude <= MAX_MAGNITUDE; magnitude++) {
+						int count = histogram[magnitude];
+						if(count != 0) {
+							int category = JpegTables.category(quantize(magnitude, quantization));
+							bits += count * (category + (acCodes[table][category] >>> 16) + RUN_PENALTY_BITS);
+						}
+					}
+				}
+
+				int quantization = tables[table][0];
+				int[] histogram = dcHistograms[table];
+				for(int difference = 0; difference < histogram.length; difference++) {
+					int count = histogram[difference];
+					if(count != 0) {
+						int category = JpegTables.category(quantize(difference, quantization));
+						bits += count * (category + (dcCodes[table][category] >>> 16));
+					}
+				}
+
+				// end of block
+				bits += blockCounts[table] * (acCodes[table][0] >>> 16);
+			}
+			return (long) bits;
+		}
+	}
+
+
+	static class BitWriter {
+
+		private OutputStream mOutput;
+		private int mBuffer;
+		private int mBitCount;
+
+
+		BitWriter(OutputStream output) {
+			mOutput = output;
+		}
+
+
+		void writeCode(int[] codes, int symbol) throws IOException {
+			int code = codes[symbol];
+			writeBits(code & 0xffff, code >>> 16);
+		}
+
+
+		/**
+		 * writes the additional bits of a coefficient, negative values are stored as one's complement
+		 */
+		void writeValue(int value) throws IOException {
+			int category = JpegTables.category(value);
+			if(category > 0) {
+				writeBits(value < 0 ? value - 1 : value, category);
+			}
+		}
+
+
+		void writeBits(int bits, int count) throws IOException {
+			for(int i = count - 1; i >= 0; i--) {
+				mBuffer = (mBuffer << 1) | ((bits >>> i) & 1);
+				mBitCount++;
+				if(mBitCount == 8) {
+					writeByte();
+				}
+			}
+		}
+
+
+		void flush() throws IOException {
+			if(mBitCount > 0) {
+				writeBits(0x7f, 8 - mBitCount);
+			}
+		}
+
+
+		private void writeByte() throws IOException {
+			int value = mBuffer & 0xff;
+			mOutput.write(value);
+			if(value == 0xff) {
+				mOutput.write(0);
+			}
+			mBuffer = 0;
+			mBitCount = 0;
+		}
+	}
+}
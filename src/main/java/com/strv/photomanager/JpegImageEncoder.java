@@ -0,0 +1,61 @@
+package com.strv.photomanager;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * encoder using the pure java JpegEncoder, the quantization scale is picked from the size budget instead of trying quality values
+ */
+public class JpegImageEncoder implements ImageEncoder {
+
+	public static final int DEFAULT_QUALITY = 95;
+
+	private JpegEncoder.ChromaSubsampling mSubsampling;
+	private int mQuality;
+
+
+	public JpegImageEncoder() {
+		this(JpegEncoder.ChromaSubsampling.YUV420, DEFAULT_QUALITY);
+	}
+
+
+	/**
+	 * @param subsampling subsampling of the chroma channels
+	 * @param quality     quality between 1 and 100 used when there is no size budget, with a budget it is the best allowed quality
+	 */
+	public JpegImageEncoder(JpegEncoder.ChromaSubsampling subsampling, int quality) {
+		mSubsampling = subsampling;
+		mQuality = quality;
+	}
+
+
+	@Override
+	public void encode(Bitmap bitmap, OutputStream output, int maxSizeBytes) throws IOException {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+		JpegEncoder encoder = new JpegEncoder(mSubsampling);
+		if(maxSizeBytes > 0) {
+			encoder.encodeWithinBudget(pixels, width, height, maxSizeBytes, JpegEncoder.qualityToScale(mQuality), output);
+		} else {
+			encoder.encode(pixels, width, height, mQuality, output);
+		}
+	}
+
+
+	@Override
+	public String getFileExtension() {
+		return ".jpg";
+	}
+
+
+	@Override
+	public String getMimeType() {
+		return "image/jpeg";
+	}
+}
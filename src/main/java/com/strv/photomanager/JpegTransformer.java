@@ -0,0 +1,809 @@
+package com.strv.photomanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * lossless rotation and flipping of baseline jpegs in the DCT domain like jpegtran does, the entropy coded data is decoded only
+ * to quantized coefficients, the blocks are rearranged, transposed and sign flipped and coded again, so there is no generation loss
+ * <p/>
+ * blocks cannot be moved from the partial MCUs on the right and bottom edge to the left or top edge, so an edge that would end up
+ * there is trimmed to a whole number of MCUs (at most 15 pixels), the output uses the standard huffman tables of the JPEG specification
+ * <p/>
+ * only the JFIF and ICC profile segments of the source are kept and its exif is replaced by a minimal one with the normal orientation,
+ * the exif of the source would carry the GPS location and the maker notes into the output, along with a thumbnail that isn't rotated
+ * and pixel dimensions that don't match the transformed image
+ * <p/>
+ * the transformer is plain java without android dependencies, progressive, arithmetic coded, lossless and multi-scan jpegs are not supported
+ */
+public class JpegTransformer {
+
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_EOI = 0xd9;
+	private static final int MARKER_SOF0 = 0xc0;
+	private static final int MARKER_SOF1 = 0xc1;
+	private static final int MARKER_DHT = 0xc4;
+	private static final int MARKER_DQT = 0xdb;
+	private static final int MARKER_DRI = 0xdd;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_COM = 0xfe;
+	private static final int MARKER_APP0 = 0xe0;
+	private static final int MARKER_APP1 = 0xe1;
+	private static final int MARKER_APP2 = 0xe2;
+	private static final int MARKER_APP15 = 0xef;
+	private static final int MARKER_RST0 = 0xd0;
+	private static final int MARKER_RST7 = 0xd7;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+
+
+	private JpegTransformer() {
+	}
+
+
+	/**
+	 * @param orientation exif orientation
+	 * @return true if the orientation needs a transform, i.e. it is one of the seven rotated or flipped orientations
+	 */
+	public static boolean isTransformNeeded(int orientation) {
+		return orientation >= 2 && orientation <= 8;
+	}
+
+
+	/**
+	 * transforms the jpeg file so that the image is upright and the exif orientation is normal
+	 *
+	 * @param source      baseline jpeg
+	 * @param destination file where the transformed jpeg is written
+	 * @param orientation exif orientation of the source
+	 * @throws IOException is thrown if the source cannot be read, is not a supported jpeg or the destination cannot be written
+	 */
+	public static void transform(File source, File destination, int orientation) throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(source));
+		try {
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(destination));
+			try {
+				transform(input, output, orientation);
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+
+	/**
+	 * transforms the jpeg so that the image is upright and the exif orientation is normal
+	 *
+	 * @param input       stream with a baseline jpeg, it should be buffered
+	 * @param output      stream where the transformed jpeg is written, it is not closed
+	 * @param orientation exif orientation of the source
+	 * @throws IOException is thrown if the source is not a supported jpeg or the output cannot be written
+	 */
+	public static void transform(InputStream input, OutputStream output, int orientation) throws IOException {
+		Image image = read(new DataInputStream(input));
+		write(transform(image, orientation), output);
+	}
+
+
+	private static Image transform(Image source, int orientation) throws IOException {
+		// the orientation is normalized as an optional transpose followed by flips of the transposed image
+		boolean transpose = orientation >= 5 && orientation <= 8;
+		boolean flipX = orientation == 2 || orientation == 3 || orientation == 6 || orientation == 7;
+		boolean flipY = orientation == 3 || orientation == 4 || orientation == 7 || orientation == 8;
+		boolean mirrorSourceX = transpose ? flipY : flipX;
+		boolean mirrorSourceY = transpose ? flipX : flipY;
+
+		int maxH = 1;
+		int maxV = 1;
+		for(Component component : source.components) {
+			maxH = Math.max(maxH, component.h);
+			maxV = Math.max(maxV, component.v);
+		}
+		int mcuWidth = 8 * maxH;
+		int mcuHeight = 8 * maxV;
+		int width = mirrorSourceX ? source.width - source.width % mcuWidth : source.width;
+		int height = mirrorSourceY ? source.height - source.height % mcuHeight : source.height;
+		if(width == 0 || height == 0) {
+			throw new IOException("JpegTransformer: image is smaller than one MCU");
+		}
+
+		Image result = new Image();
+		result.width = transpose ? height : width;
+		result.height = transpose ? width : height;
+		result.segments = filterSegments(source.segments);
+		for(int i = 0; i < source.quantization.length; i++) {
+			int[] table = source.quantization[i];
+			if(table != null) {
+				result.quantization[i] = new int[64];
+				for(int k = 0; k < 64; k++) {
+					result.quantization[i][k] = table[transpose ? (k % 8) * 8 + k / 8 : k];
+				}
+			}
+		}
+
+		result.components = new Component[source.components.length];
+		for(int c = 0; c < source.components.length; c++) {
+			Component from = source.components[c];
+			int sourceBlocksX = mirrorSourceX ? width / mcuWidth * from.h : from.blocksX;
+			int sourceBlocksY = mirrorSourceY ? height / mcuHeight * from.v : from.blocksY;
+
+			Component to = new Component();
+			to.id = from.id;
+			to.h = transpose ? from.v : from.h;
+			to.v = transpose ? from.h : from.v;
+			to.tq = from.tq;
+			to.blocksX = transpose ? sourceBlocksY : sourceBlocksX;
+			to.blocksY = transpose ? sourceBlocksX : sourceBlocksY;
+			to.data = new short[to.blocksX * to.blocksY * 64];
+
+			for(int y = 0; y < to.blocksY; y++) {
+				for(int x = 0; x < to.blocksX; x++) {
+					int tx = flipX ? to.blocksX - 1 - x : x;
+					int ty = flipY ? to.blocksY - 1 - y : y;
+					int sourceX = transpose ? ty : tx;
+					int sourceY = transpose ? tx : ty;
+					int sourceOffset = (sourceY * from.blocksX + sourceX) * 64;
+					int offset = (y * to.blocksX + x) * 64;
+					for(int k = 0; k < 64; k++) {
+						int u = k % 8;
+						int v = k / 8;
+						int value = from.data[sourceOffset + (transpose ? u * 8 + v : k)];
+						// mirroring negates the coefficients of odd horizontal/vertical frequencies
+						if((flipX && (u & 1) == 1) != (flipY && (v & 1) == 1)) {
+							value = -value;
+						}
+						to.data[offset + k] = (short) value;
+					}
+				}
+			}
+			result.components[c] = to;
+		}
+		return result;
+	}
+
+
+	private static Image read(DataInputStream input) throws IOException {
+		if(input.readUnsignedByte() != 0xff || input.readUnsignedByte() != MARKER_SOI) {
+			throw new IOException("JpegTransformer: not a jpeg");
+		}
+
+		Image image = new Image();
+		image.segments = new ArrayList<>();
+		HuffmanTable[] dcTables = new HuffmanTable[4];
+		HuffmanTable[] acTables = new HuffmanTable[4];
+		int restartInterval = 0;
+
+		while(true) {
+			int marker = readMarker(input);
+			if(marker == MARKER_EOI) {
+				throw new IOException("JpegTransformer: no scan");
+			}
+			int length = input.readUnsignedShort() - 2;
+			if(length < 0) {
+				throw new IOException("JpegTransformer: malformed segment");
+			}
+
+			if((marker >= MARKER_APP0 && marker <= MARKER_APP15) || marker == MARKER_COM) {
+				byte[] segment = new byte[length + 1];
+				segment[0] = (byte) marker;
+				input.readFully(segment, 1, length);
+				image.segments.add(segment);
+			} else if(marker == MARKER_DQT) {
+				while(length > 0) {
+					int info = input.readUnsignedByte();
+					int precision = info >> 4;
+					int[] table = new int[64];
+					for(int k = 0; k < 64; k++) {
+						table[JpegTables.ZIGZAG[k]] = precision == 0 ? input.readUnsignedByte() : input.readUnsignedShort();
+					}
+					image.quantization[info & 3] = table;
+					length -= 1 + (precision == 0 ? 64 : 128);
+				}
+			} else if(marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+				if(input.readUnsignedByte() != 8) {
+					throw new IOException("JpegTransformer: unsupported sample precision");
+				}
+				image.height = input.readUnsignedShort();
+				image.width = input.readUnsignedShort();
+				int count = input.readUnsignedByte();
+				if(image.width == 0 || image.height == 0 || count == 0) {
+					throw new IOException("JpegTransformer: unsupported frame");
+				}
+				image.components = new Component[count];
+				for(int c = 0; c < count; c++) {
+					Component component = new Component();
+					component.id = input.readUnsignedByte();
+					int sampling = input.readUnsignedByte();
+					// a single component is always coded as 8x8 blocks regardless of its sampling factors
+					component.h = count == 1 ? 1 : sampling >> 4;
+					component.v = count == 1 ? 1 : sampling & 15;
+					component.tq = input.readUnsignedByte() & 3;
+					if(component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+						throw new IOException("JpegTransformer: unsupported sampling factors");
+					}
+					image.components[c] = component;
+				}
+			} else if((marker >= 0xc2 && marker <= 0xcf) && marker != MARKER_DHT && marker != 0xc8 && marker != 0xcc) {
+				throw new IOException("JpegTransformer: only baseline jpegs are supported");
+			} else if(marker == MARKER_DHT) {
+				while(length > 0) {
+					int info = input.readUnsignedByte();
+					int[] bits = new int[16];
+					int total = 0;
+					for(int i = 0; i < 16; i++) {
+						bits[i] = input.readUnsignedByte();
+						total += bits[i];
+					}
+					int[] values = new int[total];
+					for(int i = 0; i < total; i++) {
+						values[i] = input.readUnsignedByte();
+					}
+					HuffmanTable table = new HuffmanTable(bits, values);
+					if((info >> 4) == 0) {
+						dcTables[info & 3] = table;
+					} else {
+						acTables[info & 3] = table;
+					}
+					length -= 17 + total;
+				}
+			} else if(marker == MARKER_DRI) {
+				restartInterval = input.readUnsignedShort();
+				skipFully(input, length - 2);
+			} else if(marker == MARKER_SOS) {
+				if(image.components == null) {
+					throw new IOException("JpegTransformer: scan before frame");
+				}
+				int count = input.readUnsignedByte();
+				if(count != image.components.length) {
+					throw new IOException("JpegTransformer: multi-scan jpegs are not supported");
+				}
+				HuffmanTable[] componentDcTables = new HuffmanTable[count];
+				HuffmanTable[] componentAcTables = new HuffmanTable[count];
+				for(int i = 0; i < count; i++) {
+					int id = input.readUnsignedByte();
+					int tables = input.readUnsignedByte();
+					if(image.components[i].id != id) {
+						throw new IOException("JpegTransformer: unsupported component order of the scan");
+					}
+					componentDcTables[i] = dcTables[tables >> 4 & 3];
+					componentAcTables[i] = acTables[tables & 3];
+					if(componentDcTables[i] == null || componentAcTables[i] == null) {
+						throw new IOException("JpegTransformer: missing huffman table");
+					}
+				}
+				skipFully(input, 3);
+				decodeScan(input, image, componentDcTables, componentAcTables, restartInterval);
+				return image;
+			} else {
+				skipFully(input, length);
+			}
+		}
+	}
+
+
+	private static void decodeScan(DataInputStream input, Image image, HuffmanTable[] dcTables, HuffmanTable[] acTables, int restartInterval) throws IOException {
+		int maxH = 1;
+		int maxV = 1;
+		for(Component component : image.components) {
+			maxH = Math.max(maxH, component.h);
+			maxV = Math.max(maxV, component.v);
+		}
+		int mcusX = (image.width + 8 * maxH - 1) / (8 * maxH);
+		int mcusY = (image.height + 8 * maxV - 1) / (8 * maxV);
+		for(Component component : image.components) {
+			component.blocksX = mcusX * component.h;
+			component.blocksY = mcusY * component.v;
+			component.data = new short[component.blocksX * component.blocksY * 64];
+		}
+
+		BitReader reader = new BitReader(input);
+		int[] predictions = new int[image.components.length];
+		int mcuCount = mcusX * mcusY;
+		for(int mcu = 0; mcu < mcuCount; mcu++) {
+			if(restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+				reader.restart();
+				predictions = new int[image.components.length];
+			}
+			int mcuX = mcu % mcusX;
+			int mcuY = mcu / mcusX;
+			for(int c = 0; c < image.components.length; c++) {
+				Component component = image.components[c];
+				for(int by = 0; by < component.v; by++) {
+					for(int bx = 0; bx < component.h; bx++) {
+						int offset = ((mcuY * component.v + by) * component.blocksX + mcuX * component.h + bx) * 64;
+						predictions[c] = decodeBlock(reader, component.data, offset, predictions[c], dcTables[c], acTables[c]);
+					}
+				}
+			}
+		}
+	}
+
+
+	private static int decodeBlock(BitReader reader, short[] data, int offset, int prediction, HuffmanTable dcTable, HuffmanTable acTable) throws IOException {
+		int category = dcTable.decode(reader);
+		int dc = prediction + (category == 0 ? 0 : extend(reader.readBits(category), category));
+		data[offset] = (short) dc;
+
+		int k = 1;
+		while(k < 64) {
+			int symbol = acTable.decode(reader);
+			int run = symbol >> 4;
+			int size = symbol & 15;
+			if(size == 0) {
+				if(run != 15) {
+					break;
+				}
+				k += 16;
+				continue;
+			}
+			k += run;
+			if(k > 63) {
+				throw new IOException("JpegTransformer: corrupted block");
+			}
+			data[offset + JpegTables.ZIGZAG[k]] = (short) extend(reader.readBits(size), size);
+			k++;
+		}
+		return dc;
+	}
+
+
+	private static int extend(int value, int size) {
+		return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+	}
+
+
+	private static void write(Image image, OutputStream output) throws IOException {
+		output.write(0xff);
+		output.write(MARKER_SOI);
+		for(byte[] segment : image.segments) {
+			writeMarker(output, segment[0] & 0xff, segment.length + 1);
+			output.write(segment, 1, segment.length - 1);
+		}
+
+		boolean extended = false;
+		for(int i = 0; i < image.quantization.length; i++) {
+			int[] table = image.quantization[i];
+			if(table == null) {
+				continue;
+			}
+			boolean wide = false;
+			for(int value : table) {
+				wide |= value > 255;
+			}
+			extended |= wide;
+			writeMarker(output, MARKER_DQT, 3 + (wide ? 128 : 64));
+			output.write((wide ? 0x10 : 0) | i);
+			for(int k = 0; k < 64; k++) {
+				int value = table[JpegTables.ZIGZAG[k]];
+				if(wide) {
+					output.write(value >> 8);
+				}
+				output.write(value);
+			}
+		}
+
+		int count = image.components.length;
+		writeMarker(output, extended ? MARKER_SOF1 : MARKER_SOF0, 8 + 3 * count);
+		output.write(8);
+		output.write(image.height >> 8);
+		output.write(image.height);
+		output.write(image.width >> 8);
+		output.write(image.width);
+		output.write(count);
+		for(Component component : image.components) {
+			output.write(component.id);
+			output.write((component.h << 4) | component.v);
+			output.write(component.tq);
+		}
+
+		int[][] bits = {JpegTables.DC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_BITS, JpegTables.DC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_BITS};
+		int[][] values = {JpegTables.DC_LUMINANCE_VALUES, JpegTables.AC_LUMINANCE_VALUES, JpegTables.DC_CHROMINANCE_VALUES, JpegTables.AC_CHROMINANCE_VALUES};
+		int[] classes = {0x00, 0x10, 0x01, 0x11};
+		// a grayscale image uses only the luminance tables
+		int tableCount = count == 1 ? 2 : 4;
+		int length = 2;
+		for(int t = 0; t < tableCount; t++) {
+			length += 17 + values[t].length;
+		}
+		writeMarker(output, MARKER_DHT, length);
+		for(int t = 0; t < tableCount; t++) {
+			output.write(classes[t]);
+			for(int value : bits[t]) {
+				output.write(value);
+			}
+			for(int value : values[t]) {
+				output.write(value);
+			}
+		}
+
+		writeMarker(output, MARKER_SOS, 6 + 2 * count);
+		output.write(count);
+		for(int c = 0; c < count; c++) {
+			output.write(image.components[c].id);
+			output.write(c == 0 ? 0x00 : 0x11);
+		}
+		output.write(0);
+		output.write(63);
+		output.write(0);
+
+		int[][] dcCodes = {JpegTables.buildHuffmanCodes(JpegTables.DC_LUMINANCE_BITS, JpegTables.DC_LUMINANCE_VALUES),
+				JpegTables.buildHuffmanCodes(JpegTables.DC_CHROMINANCE_BITS, JpegTables.DC_CHROMINANCE_VALUES)};
+		int[][] acCodes = {JpegTables.buildHuffmanCodes(JpegTables.AC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_VALUES),
+				JpegTables.buildHuffmanCodes(JpegTables.AC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_VALUES)};
+
+		int maxH = 1;
+		int maxV = 1;
+		for(Component component : image.components) {
+			maxH = Math.max(maxH, component.h);
+			maxV = Math.max(maxV, component.v);
+		}
+		int mcusX = (image.width + 8 * maxH - 1) / (8 * maxH);
+		int mcusY = (image.height + 8 * maxV - 1) / (8 * maxV);
+
+		JpegEncoder.BitWriter writer = new JpegEncoder.BitWriter(output);
+		int[] predictions = new int[count];
+		for(int mcuY = 0; mcuY < mcusY; mcuY++) {
+			for(int mcuX = 0; mcuX < mcusX; mcuX++) {
+				for(int c = 0; c < count; c++) {
+					Component component = image.components[c];
+					int table = c == 0 ? 0 : 1;
+					for(int by = 0; by < component.v; by++) {
+						for(int bx = 0; bx < component.h; bx++) {
+							int offset = ((mcuY * component.v + by) * component.blocksX + mcuX * component.h + bx) * 64;
+							predictions[c] = encodeBlock(writer, component.data, offset, predictions[c], dcCodes[table], acCodes[table]);
+						}
+					}
+				}
+			}
+		}
+		writer.flush();
+
+		output.write(0xff);
+		output.write(MARKER_EOI);
+	}
+
+
+	private static int encodeBlock(JpegEncoder.BitWriter writer, short[] data, int offset, int prediction, int[] dcCodes, int[] acCodes) throws IOException {
+		int dc = data[offset];
+		writer.writeCode(dcCodes, JpegTables.category(dc - prediction));
+		writer.writeValue(dc - prediction);
+
+		int run = 0;
+		for(int k = 1; k < 64; k++) {
+			int value = data[offset + JpegTables.ZIGZAG[k]];
+			if(value == 0) {
+				run++;
+				continue;
+			}
+			while(run > 15) {
+				writer.writeCode(acCodes, 0xf0);
+				run -= 16;
+			}
+			writer.writeCode(acCodes, (run << 4) | JpegTables.category(value));
+			writer.writeValue(value);
+			run = 0;
+		}
+		if(run > 0) {
+			writer.writeCode(acCodes, 0x00);
+		}
+		return dc;
+	}
+
+
+	/**
+	 * reads the exif orientation from the segments in front of the first scan, for the streams ExifInterface cannot read,
+	 * e.g. the plaintext of an encrypted file
+	 *
+	 * @param input stream of a jpeg, it is read only up to the start of the scan
+	 * @return exif orientation, ORIENTATION_NORMAL (1) if the jpeg has none, ORIENTATION_UNDEFINED (0) if it's not a jpeg
+	 */
+	static int readExifOrientation(InputStream input) {
+		int[] header = readHeader(input);
+		return header != null ? header[2] : 0;
+	}
+
+
+	/**
+	 * reads the dimensions and the exif orientation from the segments in front of the first scan without decoding anything
+	 *
+	 * @param input stream of a jpeg, it is read only up to the start of the scan
+	 * @return width, height and exif orientation (ORIENTATION_NORMAL (1) if the jpeg has none), null if it's not a jpeg or the header is malformed
+	 */
+	static int[] readHeader(InputStream input) {
+		try {
+			DataInputStream dataInput = new DataInputStream(input);
+			if(dataInput.readUnsignedByte() != 0xff || dataInput.readUnsignedByte() != MARKER_SOI) {
+				return null;
+			}
+			int[] header = {0, 0, 1};
+			while(true) {
+				int marker = readMarker(dataInput);
+				if(marker == MARKER_SOS || marker == MARKER_EOI) {
+					return header[0] > 0 && header[1] > 0 ? header : null;
+				}
+				int length = dataInput.readUnsignedShort() - 2;
+				if(length < 0) {
+					return null;
+				}
+				if(marker >= MARKER_SOF0 && marker <= 0xcf && marker != MARKER_DHT && marker != 0xc8 && marker != 0xcc) {
+					// precision, height, width
+					dataInput.readUnsignedByte();
+					header[1] = dataInput.readUnsignedShort();
+					header[0] = dataInput.readUnsignedShort();
+					skipFully(dataInput, length - 5);
+				} else if(marker == MARKER_APP1) {
+					byte[] segment = new byte[length + 1];
+					segment[0] = (byte) marker;
+					dataInput.readFully(segment, 1, length);
+					int entry = findOrientationEntry(segment);
+					if(entry != -1) {
+						header[2] = readShort(segment, entry + 8, segment[7] == 'I');
+					}
+				} else {
+					skipFully(dataInput, length);
+				}
+			}
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * @return JFIF segments, a minimal exif segment with the normal orientation and ICC profile segments, in the order a jpeg expects them
+	 */
+	private static List<byte[]> filterSegments(List<byte[]> segments) {
+		List<byte[]> result = new ArrayList<>();
+		for(byte[] segment : segments) {
+			if((segment[0] & 0xff) == MARKER_APP0 && startsWith(segment, "JFIF\0")) {
+				result.add(segment);
+			}
+		}
+		byte[] exif = ExifOrientationOutputStream.buildSegment(1);
+		byte[] exifSegment = new byte[exif.length - 3];
+		exifSegment[0] = (byte) MARKER_APP1;
+		System.arraycopy(exif, 4, exifSegment, 1, exif.length - 4);
+		result.add(exifSegment);
+		for(byte[] segment : segments) {
+			if((segment[0] & 0xff) == MARKER_APP2 && startsWith(segment, "ICC_PROFILE\0")) {
+				result.add(segment);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * @return true if the payload of the segment starts with the identifier
+	 */
+	private static boolean startsWith(byte[] segment, String identifier) {
+		if(segment.length < 1 + identifier.length()) {
+			return false;
+		}
+		for(int i = 0; i < identifier.length(); i++) {
+			if(segment[1 + i] != identifier.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @param segment APP or COM segment starting with its marker byte
+	 * @return offset of the orientation entry in IFD0 if the segment is exif, -1 otherwise
+	 */
+	private static int findOrientationEntry(byte[] segment) {
+		// marker byte, "Exif\0\0", tiff header
+		if((segment[0] & 0xff) != MARKER_APP1 || segment.length < 1 + 6 + 8
+				|| segment[1] != 'E' || segment[2] != 'x' || segment[3] != 'i' || segment[4] != 'f') {
+			return -1;
+		}
+		int tiff = 7;
+		boolean littleEndian = segment[tiff] == 'I';
+		int ifd = tiff + readInt(segment, tiff + 4, littleEndian);
+		if(ifd < tiff || ifd + 2 > segment.length) {
+			return -1;
+		}
+		int entries = readShort(segment, ifd, littleEndian);
+		for(int i = 0; i < entries; i++) {
+			int entry = ifd + 2 + 12 * i;
+			if(entry + 12 > segment.length) {
+				break;
+			}
+			if(readShort(segment, entry, littleEndian) == TAG_ORIENTATION) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian) {
+		int first = data[offset] & 0xff;
+		int second = data[offset + 1] & 0xff;
+		return littleEndian ? (second << 8) | first : (first << 8) | second;
+	}
+
+
+	private static int readInt(byte[] data, int offset, boolean littleEndian) {
+		int first = readShort(data, offset, littleEndian);
+		int second = readShort(data, offset + 2, littleEndian);
+		return littleEndian ? (second << 16) | first : (first << 16) | second;
+	}
+
+
+	private static int readMarker(DataInputStream input) throws IOException {
+		if(input.readUnsignedByte() != 0xff) {
+			throw new IOException("JpegTransformer: marker expected");
+		}
+		int marker;
+		do {
+			marker = input.readUnsignedByte();
+		} while(marker == 0xff);
+		return marker;
+	}
+
+
+	private static void writeMarker(OutputStream output, int marker, int length) throws IOException {
+		output.write(0xff);
+		output.write(marker);
+		output.write(length >> 8);
+		output.write(length);
+	}
+
+
+	private static void skipFully(DataInputStream input, int count) throws IOException {
+		if(input.skipBytes(count) != count) {
+			throw new EOFException();
+		}
+	}
+
+
+	private static class Image {
+
+		int width;
+		int height;
+		int[][] quantization = new int[4][];
+		Component[] components;
+
+		// APPn and COM segments, the first byte is the marker followed by the payload
+		List<byte[]> segments;
+	}
+
+
+	private static class Component {
+
+		int id;
+		int h;
+		int v;
+		int tq;
+		int blocksX;
+		int blocksY;
+
+		// quantized coefficients of the blocks in raster order, every block in natural (row major) order
+		short[] data;
+	}
+
+
+	private static class HuffmanTable {
+
+		private int[] mMaxCode = new int[18];
+		private int[] mValueOffset = new int[17];
+		private int[] mValues;
+
+
+		HuffmanTable(int[] bits, int[] values) {
+			mValues = values;
+			int code = 0;
+			int k = 0;
+			for(int length = 1; length <= 16; length++) {
+				mValueOffset[length] = k - code;
+				code += bits[length - 1];
+				k += bits[length - 1];
+				mMaxCode[length] = bits[length - 1] > 0 ? code - 1 : -1;
+				code <<= 1;
+			}
+			mMaxCode[17] = Integer.MAX_VALUE;
+		}
+
+
+		int decode(BitReader reader) throws IOException {
+			int code = 0;
+			for(int length = 1; length <= 16; length++) {
+				code = (code << 1) | reader.readBit();
+				if(code <= mMaxCode[length]) {
+					int index = mValueOffset[length] + code;
+					if(index < 0 || index >= mValues.length) {
+						break;
+					}
+					return mValues[index];
+				}
+			}
+			throw new IOException("JpegTransformer: invalid huffman code");
+		}
+	}
+
+
+	private static class BitReader {
+
+		private DataInputStream mInput;
+		private int mBuffer;
+		private int mBitCount;
+		private boolean mMarkerReached;
+
+
+		BitReader(DataInputStream input) {
+			mInput = input;
+		}
+
+
+		int readBit() throws IOException {
+			if(mBitCount == 0) {
+				fill();
+			}
+			mBitCount--;
+			return (mBuffer >> mBitCount) & 1;
+		}
+
+
+		int readBits(int count) throws IOException {
+			int value = 0;
+			for(int i = 0; i < count; i++) {
+				value = (value << 1) | readBit();
+			}
+			return value;
+		}
+
+
+		/**
+		 * drops the remaining bits of the interval and consumes the RST marker
+		 */
+		void restart() throws IOException {
+			mBitCount = 0;
+			if(!mMarkerReached) {
+				int marker = readMarker(mInput);
+				if(marker < MARKER_RST0 || marker > MARKER_RST7) {
+					throw new IOException("JpegTransformer: restart marker expected");
+				}
+			}
+			mMarkerReached = false;
+		}
+
+
+		private void fill() throws IOException {
+			if(mMarkerReached) {
+				// a truncated or corrupted interval, the decoder reads zeros like libjpeg does
+				mBuffer = 0;
+				mBitCount = 8;
+				return;
+			}
+			int value = mInput.readUnsignedByte();
+			if(value == 0xff) {
+				int next = mInput.readUnsignedByte();
+				if(next != 0) {
+					if(next < MARKER_RST0 || next > MARKER_RST7) {
+						throw new IOException("JpegTransformer: unexpected marker in the scan");
+					}
+					mMarkerReached = true;
+					value = 0;
+				}
+			}
+			mBuffer = value;
+			mBitCount = 8;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+
+/**
+ * imports several picked media concurrently, at most ioLanes copies run at once so the storage isn't thrashed, by default the number
+ * of copies adapts to the device through AdaptiveExecutor.getImportExecutor(), the optional processing stage (e.g. scaling) of an imported
+ * file runs on AdaptiveExecutor.getScaleExecutor() while the next files are being copied,
+ * every item is delivered as soon as it is done and the batch ends with aggregate statistics
+ */
+public class MediaBatchImporter {
+
+	public static final int DEFAULT_IO_LANES = 2;
+
+	private Context mContext;
+	private Executor mIoExecutor;
+	private Executor mProcessExecutor = AdaptiveExecutor.getScaleExecutor();
+
+
+	public interface OnBatchImportListener {
+		/**
+		 * called on the main thread when an item was imported (and processed) or failed, the items complete in any order
+		 *
+		 * @param index index of the item in the imported list
+		 * @param uri   Uri of the item
+		 * @param file  imported (and processed) file, null if the item failed
+		 * @param error error of a failed item, null otherwise
+		 */
+		void onItemImported(int index, Uri uri, @Nullable File file, @Nullable Exception error);
+
+		/**
+		 * called on the main thread after the last item
+		 *
+		 * @param stats aggregate statistics of the batch
+		 */
+		void onBatchFinished(Stats stats);
+	}
+
+
+	public static class Stats {
+
+		private int mItemCount;
+		private int mFailedCount;
+		private long mBytes;
+		private long mElapsedMillis;
+
+
+		Stats(int itemCount, int failedCount, long bytes, long elapsedMillis) {
+			mItemCount = itemCount;
+			mFailedCount = failedCount;
+			mBytes = bytes;
+			mElapsedMillis = elapsedMillis;
+		}
+
+
+		public int getItemCount() {
+			return mItemCount;
+		}
+
+
+		public int getFailedCount() {
+			return mFailedCount;
+		}
+
+
+		/**
+		 * @return total size of the imported files in bytes
+		 */
+		public long getBytes() {
+			return mBytes;
+		}
+
+
+		/**
+		 * @return wall time of the whole batch
+		 */
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+
+		/**
+		 * @return imported bytes per second of wall time
+		 */
+		public double getBytesPerSecond() {
+			return mElapsedMillis > 0 ? mBytes * 1000.0 / mElapsedMillis : 0;
+		}
+
+
+		/**
+		 * @return imported items per second of wall time
+		 */
+		public double getItemsPerSecond() {
+			return mElapsedMillis > 0 ? (mItemCount - mFailedCount) * 1000.0 / mElapsedMillis : 0;
+		}
+	}
+
+
+	/**
+	 * @param context context of the app/activity, the number of copies at once adapts to the device
+	 */
+	public MediaBatchImporter(Context context) {
+		mContext = context.getApplicationContext();
+		mIoExecutor = AdaptiveExecutor.getImportExecutor();
+	}
+
+
+	/**
+	 * @param context context of the app/activity
+	 * @param ioLanes fixed number of media copied at once
+	 */
+	public MediaBatchImporter(Context context, int ioLanes) {
+		mContext = context.getApplicationContext();
+		mIoExecutor = new LimitedExecutor(AsyncTask.THREAD_POOL_EXECUTOR, Math.max(1, ioLanes));
+	}
+
+
+	/**
+	 * imports the media to files
+	 *
+	 * @param uris     picked Uris, see PhotoManager.getPickedUris
+	 * @param isPhoto  indicator of type of the imported media
+	 * @param listener listener of the items and of the batch
+	 */
+	public void importUris(List<Uri> uris, boolean isPhoto, OnBatchImportListener listener) {
+		importUris(uris, isPhoto, null, listener);
+	}
+
+
+	/**
+	 * imports the media to files and processes every imported file
+	 *
+	 * @param uris     picked Uris, see PhotoManager.getPickedUris
+	 * @param isPhoto  indicator of type of the imported media
+	 * @param process  stage that processes the imported file on the scale executor, e.g. scaling, can be null
+	 * @param listener listener of the items and of the batch
+	 */
+	public void importUris(List<Uri> uris, boolean isPhoto, @Nullable final MediaPipeline.Stage<File, File> process, final OnBatchImportListener listener) {
+		final Batch batch = new Batch(uris.size(), listener);
+		if(uris.isEmpty()) {
+			listener.onBatchFinished(new Stats(0, 0, 0, 0));
+			return;
+		}
+
+		for(int i = 0; i < uris.size(); i++) {
+			final int index = i;
+			final Uri uri = uris.get(i);
+			MediaPipeline.<Uri>create()
+					.then(MediaStages.importUri(mContext, isPhoto))
+					.workOn(mIoExecutor)
+					.callbackOn(process != null ? mProcessExecutor : AsyncTask.THREAD_POOL_EXECUTOR)
+					.run(uri, new MediaPipeline.OnPipelineFinishedListener<File>() {
+						@Override
+						public void onPipelineFinished(@Nullable File file, @Nullable Exception error) {
+							if(file == null) {
+								batch.deliver(index, uri, null, error);
+								return;
+							}
+							batch.addBytes(file.length());
+							if(process == null) {
+								batch.deliver(index, uri, file, null);
+								return;
+							}
+							// the copy lane is free again, the processing runs in a slot of the scale executor
+							try {
+								batch.deliver(index, uri, process.process(file), null);
+							} catch(Exception e) {
+								e.printStackTrace();
+								batch.deliver(index, uri, null, e);
+							}
+						}
+					});
+		}
+	}
+
+
+	private static class Batch {
+
+		private int mItemCount;
+		private int mRemaining;
+		private int mFailedCount;
+		private long mBytes;
+		private long mStartTime = SystemClock.elapsedRealtime();
+		private Handler mMainHandler = new Handler(Looper.getMainLooper());
+		private OnBatchImportListener mListener;
+
+
+		Batch(int itemCount, OnBatchImportListener listener) {
+			mItemCount = itemCount;
+			mRemaining = itemCount;
+			mListener = listener;
+		}
+
+
+		synchronized void addBytes(long bytes) {
+			mBytes += bytes;
+		}
+
+
+		void deliver(final int index, final Uri uri, @Nullable final File file, @Nullable final Exception error) {
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(mListener != null) {
+						mListener.onItemImported(index, uri, file, error);
+					}
+					finishItem(file == null ? 1 : 0);
+				}
+			});
+		}
+
+
+		/**
+		 * called on the main thread
+		 */
+		void finishItem(int failed) {
+			mFailedCount += failed;
+			if(mRemaining > 0 && --mRemaining > 0) {
+				return;
+			}
+			if(mListener != null) {
+				mListener.onBatchFinished(new Stats(mItemCount, mFailedCount, mBytes, SystemClock.elapsedRealtime() - mStartTime));
+			}
+		}
+	}
+
+
+	/**
+	 * executor that runs at most the given number of tasks at once on the underlying executor
+	 */
+	private static class LimitedExecutor implements Executor {
+
+		private Executor mExecutor;
+		private int mLimit;
+		private int mActive;
+		private Queue<Runnable> mQueue = new ArrayDeque<>();
+
+
+		LimitedExecutor(Executor executor, int limit) {
+			mExecutor = executor;
+			mLimit = limit;
+		}
+
+
+		@Override
+		public synchronized void execute(final Runnable command) {
+			mQueue.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} finally {
+						scheduleNext(true);
+					}
+				}
+			});
+			scheduleNext(false);
+		}
+
+
+		private synchronized void scheduleNext(boolean finished) {
+			if(finished) {
+				mActive--;
+			}
+			while(mActive < mLimit && !mQueue.isEmpty()) {
+				mActive++;
+				mExecutor.execute(mQueue.poll());
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * resolves and creates the storage directories of the capture output files in advance on a background thread,
+ * so launching a camera only names a file in a known directory instead of touching the storage on the main thread,
+ * the file is named when it's handed out, so it carries the capture time, and it's created by the camera app,
+ * no empty files are left in the public media directories when a capture is abandoned
+ */
+public class MediaFileSlotPool {
+
+	private static MediaFileSlotPool sInstance;
+
+	private Context mContext;
+	private final Map<String, File> mStorageDirs = new HashMap<>();
+	private final Set<String> mResolving = new HashSet<>();
+	private final Random mRandom = new Random();
+
+
+	private MediaFileSlotPool(Context context) {
+		mContext = context;
+	}
+
+
+	/**
+	 * returns the pool shared by the whole app
+	 *
+	 * @param context context of the app/activity
+	 * @return shared slot pool
+	 */
+	public static synchronized MediaFileSlotPool getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new MediaFileSlotPool(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * prepares the directories for images and videos with the given name on a background thread
+	 *
+	 * @param dirName name of the directory where the captured media will be stored
+	 */
+	public void prepare(String dirName) {
+		resolve(dirName, false);
+		resolve(dirName, true);
+	}
+
+
+	/**
+	 * names a new output file in the prepared directory without any I/O, so it can be called on the main thread,
+	 * the directory is checked again in background, e.g. the storage could have been unmounted since it was prepared
+	 *
+	 * @param dirName name of the directory where the captured media will be stored
+	 * @param isVideo flag if the file is for video or image
+	 * @return file that doesn't exist yet or null if the directory is not prepared yet
+	 */
+	@Nullable
+	public File poll(String dirName, boolean isVideo) {
+		File storageDir;
+		synchronized(this) {
+			storageDir = mStorageDirs.get(getKey(dirName, isVideo));
+		}
+		resolve(dirName, isVideo);
+		return storageDir != null ? nameSlot(storageDir, isVideo) : null;
+	}
+
+
+	/**
+	 * names a new output file in the prepared directory or creates one if the directory is not prepared yet
+	 *
+	 * @param dirName name of the directory where the captured media will be stored
+	 * @param isVideo flag if the file is for video or image
+	 * @return file where the captured media should be stored
+	 * @throws IOException is thrown if the file creation was not successful
+	 */
+	public File take(String dirName, boolean isVideo) throws IOException {
+		File slot = poll(dirName, isVideo);
+		return slot != null ? slot : createSlot(dirName, isVideo);
+	}
+
+
+	private void resolve(final String dirName, final boolean isVideo) {
+		final String key = getKey(dirName, isVideo);
+		synchronized(this) {
+			if(!mResolving.add(key)) {
+				return;
+			}
+		}
+
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					File storageDir = PhotoManager.getMediaDir(mContext, dirName, false, isVideo);
+					synchronized(MediaFileSlotPool.this) {
+						mStorageDirs.put(key, storageDir);
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+					synchronized(MediaFileSlotPool.this) {
+						// launches create their files the slow way until the storage is back
+						mStorageDirs.remove(key);
+					}
+				} finally {
+					synchronized(MediaFileSlotPool.this) {
+						mResolving.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+
+	private File createSlot(String dirName, boolean isVideo) throws IOException {
+		File storageDir = PhotoManager.getMediaDir(mContext, dirName, false, isVideo);
+		synchronized(this) {
+			mStorageDirs.put(getKey(dirName, isVideo), storageDir);
+		}
+		return PhotoManager.createMediaFileInDir(storageDir, isVideo);
+	}
+
+
+	/**
+	 * @return file with the current timestamp and a random part like File.createTempFile, it's not created
+	 */
+	private File nameSlot(File storageDir, boolean isVideo) {
+		long random;
+		synchronized(mRandom) {
+			random = mRandom.nextLong();
+		}
+		String suffix = isVideo ? ".mp4" : ".jpg";
+		return new File(storageDir, PhotoManager.getMediaFilePrefix(isVideo) + (random == Long.MIN_VALUE ? 0 : Math.abs(random)) + suffix);
+	}
+
+
+	private static String getKey(String dirName, boolean isVideo) {
+		return (isVideo ? "video/" : "image/") + dirName;
+	}
+}
@@ -0,0 +1,180 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * lightweight handle of a captured or picked media, nothing is copied or decoded until the caller asks for it,
+ * all the methods except getUri and isPhoto can block and should be called on a worker thread
+ */
+public class MediaHandle {
+
+	private Context mContext;
+	private Uri mUri;
+	private boolean mIsPhoto;
+	private File mFile;
+
+
+	MediaHandle(Context context, Uri uri, boolean isPhoto) {
+		mContext = context.getApplicationContext();
+		mUri = uri;
+		mIsPhoto = isPhoto;
+	}
+
+
+	public Uri getUri() {
+		return mUri;
+	}
+
+
+	public boolean isPhoto() {
+		return mIsPhoto;
+	}
+
+
+	/**
+	 * @return open capture session of the media if CaptureTracer is enabled, null otherwise
+	 */
+	@Nullable
+	public CaptureSession getCaptureSession() {
+		return CaptureTracer.getInstance().getSession(mUri);
+	}
+
+
+	/**
+	 * @return metadata of the media from MediaMetadataIndex, null if the media cannot be read
+	 */
+	@Nullable
+	public MediaMetadata getMetadata() {
+		return MediaMetadataIndex.getInstance(mContext).getMetadata(mUri);
+	}
+
+
+	/**
+	 * opens the media for reading without copying it
+	 *
+	 * @return buffered stream of the media, the caller is responsible for closing it
+	 * @throws IOException       is thrown if the media cannot be opened
+	 * @throws SecurityException is thrown if the app doesn't have a permission to read the Uri
+	 */
+	public InputStream openStream() throws IOException {
+		synchronized(this) {
+			if(mFile != null) {
+				// the cached copy can be encrypted, see EncryptedMediaStore
+				return new BufferedInputStream(EncryptedMediaStore.getInstance(mContext).openInputStream(mFile));
+			}
+		}
+		if("file".equals(mUri.getScheme())) {
+			File file = PhotoManager.getFileFromUri(mUri);
+			if(!file.canRead() && file.exists()) {
+				throw new SecurityException();
+			}
+			return new BufferedInputStream(new FileInputStream(file));
+		}
+		InputStream inputStream = mContext.getContentResolver().openInputStream(mUri);
+		if(inputStream == null) {
+			throw new FileNotFoundException("MediaHandle: cannot open " + mUri);
+		}
+		return new BufferedInputStream(inputStream);
+	}
+
+
+	/**
+	 * decodes a thumbnail whose longer side is close to the given size, only a subsampled image is decoded
+	 *
+	 * @param size required size of the longer side of the thumbnail
+	 * @return thumbnail, null if the media cannot be decoded
+	 * @throws IOException is thrown if the media cannot be read
+	 */
+	@Nullable
+	public Bitmap decodeThumbnail(int size) throws IOException {
+		if(!mIsPhoto) {
+			return decodeVideoThumbnail(size);
+		}
+
+		MediaMetadata metadata = getMetadata();
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if(metadata != null && metadata.getWidth() > 0 && metadata.getHeight() > 0) {
+			int inSampleSize = 1;
+			while(Math.max(metadata.getWidth(), metadata.getHeight()) / (inSampleSize * 2) >= size) {
+				inSampleSize *= 2;
+			}
+			options.inSampleSize = inSampleSize;
+		}
+
+		InputStream inputStream = openStream();
+		try {
+			return BitmapFactory.decodeStream(inputStream, null, options);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+
+	/**
+	 * returns the media as a file, a 'content' Uri is copied to the cache dir on the first call and the copy is reused afterwards
+	 *
+	 * @return file with the media
+	 * @throws IOException       is thrown if the media cannot be copied
+	 * @throws SecurityException is thrown if the app doesn't have a permission to read the Uri
+	 */
+	public synchronized File materializeFile() throws IOException {
+		if(mFile == null) {
+			if("file".equals(mUri.getScheme())) {
+				File file = PhotoManager.getFileFromUri(mUri);
+				if(!file.canRead() && file.exists()) {
+					throw new SecurityException();
+				}
+				mFile = file;
+			} else {
+				CaptureSession.Span importSpan = CaptureTracer.getInstance().startSpan(mUri, CaptureTracer.SPAN_IMPORT);
+				mFile = PhotoManager.copyToCacheFile(mContext, openStream(), mIsPhoto);
+				if(importSpan != null) {
+					importSpan.end();
+					CaptureTracer.getInstance().bind(importSpan.getSession(), mFile);
+				}
+			}
+		}
+		return mFile;
+	}
+
+
+	@Nullable
+	private Bitmap decodeVideoThumbnail(int size) {
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			if("file".equals(mUri.getScheme())) {
+				retriever.setDataSource(PhotoManager.getFileFromUri(mUri).getAbsolutePath());
+			} else {
+				retriever.setDataSource(mContext, mUri);
+			}
+			Bitmap frame = retriever.getFrameAtTime();
+			if(frame == null || Math.max(frame.getWidth(), frame.getHeight()) <= size) {
+				return frame;
+			}
+			double ratio = (double) size / Math.max(frame.getWidth(), frame.getHeight());
+			Bitmap thumbnail = Bitmap.createScaledBitmap(frame, (int) (frame.getWidth() * ratio), (int) (frame.getHeight() * ratio), true);
+			if(thumbnail != frame) {
+				frame.recycle();
+			}
+			return thumbnail;
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			retriever.release();
+		}
+	}
+}
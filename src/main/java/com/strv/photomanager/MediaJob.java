@@ -0,0 +1,154 @@
+package com.strv.photomanager;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+
+/**
+ * import (and scale) job of MediaJobQueue together with the checkpoints of its stages, it is a snapshot of the journaled state
+ */
+public class MediaJob {
+
+	public static final int STATE_PENDING = 0;
+	public static final int STATE_FINISHED = 1;
+	public static final int STATE_FAILED = 2;
+	static final int STATE_REMOVED = 3;
+
+	private String mId;
+	private Uri mUri;
+	private boolean mIsPhoto;
+	private int mReqWidth;
+	private int mReqHeight;
+	private int mState;
+	private int mAttempts;
+	private File mImportedFile;
+	private File mScaledFile;
+	private String mError;
+
+
+	MediaJob(String id, Uri uri, boolean isPhoto, int reqWidth, int reqHeight, int state, int attempts, File importedFile, File scaledFile, String error) {
+		mId = id;
+		mUri = uri;
+		mIsPhoto = isPhoto;
+		mReqWidth = reqWidth;
+		mReqHeight = reqHeight;
+		mState = state;
+		mAttempts = attempts;
+		mImportedFile = importedFile;
+		mScaledFile = scaledFile;
+		mError = error;
+	}
+
+
+	public String getId() {
+		return mId;
+	}
+
+
+	public Uri getUri() {
+		return mUri;
+	}
+
+
+	public boolean isPhoto() {
+		return mIsPhoto;
+	}
+
+
+	/**
+	 * @return required width of the scaled image, 0 if the job only imports the media
+	 */
+	public int getReqWidth() {
+		return mReqWidth;
+	}
+
+
+	public int getReqHeight() {
+		return mReqHeight;
+	}
+
+
+	/**
+	 * @return true if the job scales the imported image
+	 */
+	public boolean isScaled() {
+		return mIsPhoto && mReqWidth > 0 && mReqHeight > 0;
+	}
+
+
+	/**
+	 * @return one of STATE_PENDING, STATE_FINISHED, STATE_FAILED
+	 */
+	public int getState() {
+		return mState;
+	}
+
+
+	/**
+	 * @return number of times the job was started, including runs interrupted by a killed process
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+
+	/**
+	 * @return checkpoint of the import stage, null if the media wasn't imported yet
+	 */
+	@Nullable
+	public File getImportedFile() {
+		return mImportedFile;
+	}
+
+
+	/**
+	 * @return checkpoint of the scale stage, null if the image wasn't scaled yet
+	 */
+	@Nullable
+	public File getScaledFile() {
+		return mScaledFile;
+	}
+
+
+	/**
+	 * @return output of the last stage of a finished job, null otherwise
+	 */
+	@Nullable
+	public File getResultFile() {
+		if(mState != STATE_FINISHED) {
+			return null;
+		}
+		return isScaled() ? mScaledFile : mImportedFile;
+	}
+
+
+	/**
+	 * @return description of the error of a failed job
+	 */
+	@Nullable
+	public String getError() {
+		return mError;
+	}
+
+
+	MediaJob withState(int state, String error) {
+		return new MediaJob(mId, mUri, mIsPhoto, mReqWidth, mReqHeight, state, mAttempts, mImportedFile, mScaledFile, error);
+	}
+
+
+	MediaJob withAttempt() {
+		return new MediaJob(mId, mUri, mIsPhoto, mReqWidth, mReqHeight, mState, mAttempts + 1, mImportedFile, mScaledFile, mError);
+	}
+
+
+	MediaJob withImportedFile(File importedFile) {
+		return new MediaJob(mId, mUri, mIsPhoto, mReqWidth, mReqHeight, mState, mAttempts, importedFile, mScaledFile, mError);
+	}
+
+
+	MediaJob withScaledFile(File scaledFile) {
+		return new MediaJob(mId, mUri, mIsPhoto, mReqWidth, mReqHeight, mState, mAttempts, mImportedFile, scaledFile, mError);
+	}
+}
@@ -0,0 +1,204 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * binds the import and scale jobs to the lifecycle of an activity or a fragment, it's a retained fragment without a view added
+ * to the owner, so it survives configuration changes: the jobs keep running while the owner is recreated, their listeners are dropped
+ * when the old owner detaches and a result that arrives in between is held until the new owner re-attaches by the job key,
+ * when the owner is destroyed for good the unfinished jobs are cancelled and stop at their next safe point
+ * <p/>
+ * all the methods should be called on the main thread
+ */
+public class MediaJobBinder extends Fragment {
+
+	private static final String TAG = "com.strv.photomanager.MediaJobBinder";
+
+	// binders whose transaction wasn't executed yet, findFragmentByTag doesn't see them
+	private static Map<FragmentManager, MediaJobBinder> sPendingBinders = new HashMap<>();
+
+	private Map<String, Job<?>> mJobs = new HashMap<>();
+	private boolean mOwnerDetached;
+
+
+	/**
+	 * job that can be bound to a MediaJobBinder, implemented by ScaleImageAsyncTask and the import tasks of PhotoManager
+	 *
+	 * @param <L> type of the listener of the job
+	 */
+	public interface Job<L> {
+		/**
+		 * replaces the listener, a result that arrived while there was no listener is delivered to the new one right away
+		 *
+		 * @param listener listener of the result, null to drop the current listener
+		 */
+		void attach(@Nullable L listener);
+
+		/**
+		 * cancels the job, a pending job doesn't start and a running one stops at its next safe point, the listener is not called
+		 */
+		void cancelJob();
+
+		/**
+		 * @return true if the result was delivered or the job was cancelled
+		 */
+		boolean isDone();
+	}
+
+
+	public MediaJobBinder() {
+		setRetainInstance(true);
+	}
+
+
+	/**
+	 * @param activity owner of the jobs
+	 * @return binder of the activity, it's added to the activity if it doesn't have one yet
+	 */
+	public static MediaJobBinder get(FragmentActivity activity) {
+		return get(activity.getSupportFragmentManager());
+	}
+
+
+	/**
+	 * @param fragment owner of the jobs
+	 * @return binder of the fragment, it's added as a child fragment if the fragment doesn't have one yet
+	 */
+	public static MediaJobBinder get(Fragment fragment) {
+		return get(fragment.getChildFragmentManager());
+	}
+
+
+	private static MediaJobBinder get(FragmentManager fragmentManager) {
+		MediaJobBinder binder = (MediaJobBinder) fragmentManager.findFragmentByTag(TAG);
+		if(binder == null) {
+			binder = sPendingBinders.get(fragmentManager);
+		}
+		if(binder == null) {
+			binder = new MediaJobBinder();
+			sPendingBinders.put(fragmentManager, binder);
+			// the binder has no state of its own to lose, the jobs are only referenced from it
+			fragmentManager.beginTransaction().add(binder, TAG).commitAllowingStateLoss();
+		}
+		return binder;
+	}
+
+
+	/**
+	 * binds the job under the key, an unfinished job already bound under the key is cancelled,
+	 * the job should be executed right after it's bound
+	 *
+	 * @param key      key under which the owner re-attaches after a configuration change
+	 * @param job      job that should be bound
+	 * @param listener listener of the result
+	 * @param <L>      type of the listener of the job
+	 */
+	public <L> void bind(String key, Job<L> job, @Nullable L listener) {
+		pruneDone();
+		Job<?> previous = mJobs.put(key, job);
+		if(previous != null && previous != job) {
+			previous.cancelJob();
+		}
+		// the listener is kept only while an owner is attached, a detached binder holds the result until reattach
+		job.attach(mOwnerDetached ? null : listener);
+	}
+
+
+	/**
+	 * attaches the recreated owner to the job bound under the key, e.g. in onCreate after a configuration change,
+	 * the listener has to be of the type the job was bound with
+	 *
+	 * @param key      key the job was bound under
+	 * @param listener listener of the result
+	 * @param <L>      type of the listener of the job
+	 * @return true if there is a job under the key, it may deliver its result right away
+	 */
+	@SuppressWarnings("unchecked")
+	public <L> boolean reattach(String key, @Nullable L listener) {
+		Job<L> job = (Job<L>) mJobs.get(key);
+		if(job == null || job.isDone()) {
+			mJobs.remove(key);
+			return false;
+		}
+		job.attach(listener);
+		return true;
+	}
+
+
+	/**
+	 * @return true if there is an unfinished or undelivered job under the key
+	 */
+	public boolean isBound(String key) {
+		Job<?> job = mJobs.get(key);
+		return job != null && !job.isDone();
+	}
+
+
+	/**
+	 * cancels the job bound under the key
+	 */
+	public void cancel(String key) {
+		Job<?> job = mJobs.remove(key);
+		if(job != null) {
+			job.cancelJob();
+		}
+	}
+
+
+	/**
+	 * cancels all the bound jobs
+	 */
+	public void cancelAll() {
+		for(Job<?> job : mJobs.values()) {
+			job.cancelJob();
+		}
+		mJobs.clear();
+	}
+
+
+	@Override
+	public void onAttach(Context context) {
+		super.onAttach(context);
+		mOwnerDetached = false;
+		sPendingBinders.values().remove(this);
+	}
+
+
+	@Override
+	public void onDetach() {
+		super.onDetach();
+		mOwnerDetached = true;
+		// a configuration change detaches the retained binder, the listeners reference the old owner and would leak it
+		for(Job<?> job : mJobs.values()) {
+			job.attach(null);
+		}
+	}
+
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		// a retained binder is destroyed only with its owner
+		sPendingBinders.values().remove(this);
+		cancelAll();
+	}
+
+
+	private void pruneDone() {
+		Iterator<Job<?>> iterator = mJobs.values().iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().isDone()) {
+				iterator.remove();
+			}
+		}
+	}
+}
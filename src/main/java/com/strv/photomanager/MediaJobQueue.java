@@ -0,0 +1,444 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+
+/**
+ * persistent queue of import and scale jobs that survives the process being killed between onActivityResult and the end of the processing,
+ * every job and every finished stage is appended to a journal in the files dir, after a restart resume() runs the unfinished jobs again
+ * and skips the stages whose outputs still exist
+ * <p/>
+ * the replay cost at startup is bounded: the journal is compacted when it contains too many stale records, only MAX_KEPT_JOBS finished jobs
+ * are kept and a job that was started MAX_ATTEMPTS times without finishing (e.g. the process keeps being killed while decoding it) is failed
+ * <p/>
+ * content Uris from the gallery can lose their read permission when the process dies, such jobs fail with a SecurityException after a restart
+ * unless they were imported before
+ * <p/>
+ * enqueue, remove and resume read and write the journal on a single background thread, so they can be called on the main thread,
+ * e.g. in onActivityResult, a new job is journaled on that thread before it starts, the stages journal their checkpoints on the workers
+ */
+public class MediaJobQueue {
+
+	public static final int MAX_ATTEMPTS = 3;
+	public static final int MAX_KEPT_JOBS = 32;
+
+	private static final String JOURNAL_FILE_NAME = "photomanager_job_journal";
+	private static final int JOURNAL_VERSION = 1;
+	private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+	private static MediaJobQueue sInstance;
+
+	private Context mContext;
+	private File mJournalFile;
+	private LinkedHashMap<String, MediaJob> mJobs;
+	private int mRecordCount;
+	private Set<String> mRunningJobs = new HashSet<>();
+	private Executor mJournalExecutor = Executors.newSingleThreadExecutor();
+	private Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private OnJobFinishedListener mListener;
+
+
+	public interface OnJobFinishedListener {
+		/**
+		 * called on the main thread when a job finished or failed
+		 *
+		 * @param job   final state of the job, the result is in job.getResultFile()
+		 * @param error error of a failed job, null if the job finished
+		 */
+		void onJobFinished(MediaJob job, @Nullable Exception error);
+	}
+
+
+	MediaJobQueue(Context context, File journalFile) {
+		mContext = context;
+		mJournalFile = journalFile;
+	}
+
+
+	/**
+	 * returns the queue shared by the whole app, the journal is stored in the files dir of the app
+	 *
+	 * @param context context of the app/activity
+	 * @return shared job queue
+	 */
+	public static synchronized MediaJobQueue getInstance(Context context) {
+		if(sInstance == null) {
+			Context appContext = context.getApplicationContext();
+			sInstance = new MediaJobQueue(appContext, new File(appContext.getFilesDir(), JOURNAL_FILE_NAME));
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * sets the listener of finished jobs, it should be set at startup before resume() because jobs can finish right after it
+	 *
+	 * @param listener listener called on the main thread, can be null
+	 */
+	public void setListener(@Nullable OnJobFinishedListener listener) {
+		mListener = listener;
+	}
+
+
+	/**
+	 * adds a job that imports the media to a file, the job is journaled and started on the background thread
+	 *
+	 * @param uri     Uri of the media from onActivityResult
+	 * @param isPhoto indicator of type of the imported media
+	 * @return the job
+	 */
+	public MediaJob enqueueImport(Uri uri, boolean isPhoto) {
+		return enqueue(uri, isPhoto, 0, 0);
+	}
+
+
+	/**
+	 * adds a job that imports the image to a file and scales it, the job is journaled and started on the background thread
+	 *
+	 * @param uri       Uri of the image from onActivityResult
+	 * @param reqWidth  required width of the scaled image
+	 * @param reqHeight required height of the scaled image
+	 * @return the job
+	 */
+	public MediaJob enqueueImportAndScale(Uri uri, int reqWidth, int reqHeight) {
+		return enqueue(uri, true, reqWidth, reqHeight);
+	}
+
+
+	/**
+	 * loads the journal on the background thread and starts all the unfinished jobs, it should be called once at startup
+	 */
+	public void resume() {
+		mJournalExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(MediaJob job : getJobs()) {
+					if(job.getState() != MediaJob.STATE_PENDING) {
+						continue;
+					}
+					if(job.getAttempts() >= MAX_ATTEMPTS) {
+						MediaJob failedJob = job.withState(MediaJob.STATE_FAILED, "too many attempts");
+						save(failedJob);
+						deliver(failedJob, new IOException("MediaJobQueue: job " + job.getId() + " was interrupted " + job.getAttempts() + " times"));
+					} else {
+						start(job);
+					}
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * reads the journal on the first call, so it should be called on a worker thread or after resume() loaded it
+	 *
+	 * @return snapshot of all the jobs in the order in which they were last updated, finished jobs stay in the queue until they are removed
+	 */
+	public synchronized List<MediaJob> getJobs() {
+		ensureLoaded();
+		return new ArrayList<>(mJobs.values());
+	}
+
+
+	/**
+	 * reads the journal on the first call, see getJobs
+	 *
+	 * @param id id of the job
+	 * @return current state of the job, null if there is no such job
+	 */
+	@Nullable
+	public synchronized MediaJob getJob(String id) {
+		ensureLoaded();
+		return mJobs.get(id);
+	}
+
+
+	/**
+	 * removes a finished or failed job from the queue on the background thread, the files of the job are not deleted
+	 *
+	 * @param id id of the job
+	 */
+	public void remove(final String id) {
+		mJournalExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(MediaJobQueue.this) {
+					ensureLoaded();
+					MediaJob job = mJobs.get(id);
+					if(job != null && !mRunningJobs.contains(id)) {
+						save(job.withState(MediaJob.STATE_REMOVED, null));
+					}
+				}
+			}
+		});
+	}
+
+
+	private MediaJob enqueue(Uri uri, boolean isPhoto, int reqWidth, int reqHeight) {
+		final MediaJob job = new MediaJob(UUID.randomUUID().toString(), uri, isPhoto, reqWidth, reqHeight, MediaJob.STATE_PENDING, 0, null, null, null);
+		mJournalExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// the job is started only after it's journaled, so a job that ran is always resumed after a restart
+				save(job);
+				start(job);
+			}
+		});
+		return job;
+	}
+
+
+	private void start(MediaJob job) {
+		synchronized(this) {
+			if(!mRunningJobs.add(job.getId())) {
+				return;
+			}
+			job = job.withAttempt();
+			save(job);
+		}
+
+		MediaPipeline.<MediaJob>create()
+				.then(importStage())
+				.then(scaleStage())
+				.workOn(AdaptiveExecutor.getScaleExecutor())
+				.callbackOn(new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						// the final state is journaled on the worker thread, only the listener is posted to the main thread
+						command.run();
+					}
+				})
+				.run(job, new FinishListener(job.getId()));
+	}
+
+
+	private MediaPipeline.Stage<MediaJob, MediaJob> importStage() {
+		return new MediaPipeline.Stage<MediaJob, MediaJob>() {
+			@Override
+			public MediaJob process(MediaJob job) throws Exception {
+				if(isCheckpointValid(job.getImportedFile())) {
+					return job;
+				}
+				File file = MediaStages.importUri(mContext, job.isPhoto()).process(job.getUri());
+				job = job.withImportedFile(file);
+				save(job);
+				return job;
+			}
+		};
+	}
+
+
+	private MediaPipeline.Stage<MediaJob, MediaJob> scaleStage() {
+		return new MediaPipeline.Stage<MediaJob, MediaJob>() {
+			@Override
+			public MediaJob process(MediaJob job) throws Exception {
+				if(!job.isScaled() || isCheckpointValid(job.getScaledFile())) {
+					return job;
+				}
+				File file = new ScaleImageHelper(mContext, job.getReqWidth(), job.getReqHeight()).scaleImageFile(job.getImportedFile());
+				job = job.withScaledFile(file);
+				save(job);
+				return job;
+			}
+		};
+	}
+
+
+	private static boolean isCheckpointValid(@Nullable File file) {
+		return file != null && file.length() > 0;
+	}
+
+
+	private void deliver(final MediaJob job, @Nullable final Exception error) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(mListener != null) {
+					mListener.onJobFinished(job, error);
+				}
+			}
+		});
+	}
+
+
+	private synchronized void save(MediaJob job) {
+		ensureLoaded();
+		mJobs.remove(job.getId());
+		if(job.getState() != MediaJob.STATE_REMOVED) {
+			mJobs.put(job.getId(), job);
+		}
+		try {
+			appendRecord(job);
+			mRecordCount++;
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	private void ensureLoaded() {
+		if(mJobs != null) {
+			return;
+		}
+		mJobs = new LinkedHashMap<>();
+		mRecordCount = JournalReader.read(mJournalFile, JOURNAL_VERSION, new JournalReader.RecordHandler() {
+			@Override
+			public void onRecord(byte[] record) throws IOException {
+				MediaJob job = readRecord(record);
+				mJobs.remove(job.getId());
+				if(job.getState() != MediaJob.STATE_REMOVED) {
+					mJobs.put(job.getId(), job);
+				}
+			}
+		});
+
+		// the oldest finished jobs that the app never removed are dropped so they don't grow the replay forever
+		int doneJobs = 0;
+		for(MediaJob job : mJobs.values()) {
+			if(job.getState() != MediaJob.STATE_PENDING) {
+				doneJobs++;
+			}
+		}
+		boolean trimmed = false;
+		Iterator<MediaJob> iterator = mJobs.values().iterator();
+		while(doneJobs > MAX_KEPT_JOBS && iterator.hasNext()) {
+			if(iterator.next().getState() != MediaJob.STATE_PENDING) {
+				iterator.remove();
+				doneJobs--;
+				trimmed = true;
+			}
+		}
+
+		if(trimmed || (mRecordCount > MIN_RECORDS_TO_COMPACT && mRecordCount > 2 * mJobs.size())) {
+			try {
+				compact(mJobs.values().toArray(new MediaJob[mJobs.size()]));
+				mRecordCount = mJobs.size();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void appendRecord(MediaJob job) throws IOException {
+		boolean writeHeader = !mJournalFile.exists() || mJournalFile.length() == 0;
+		writeRecords(mJournalFile, new MediaJob[]{job}, writeHeader);
+	}
+
+
+	/**
+	 * replaces the journal with the given jobs, the compacted journal is written to a temp file and renamed over the old one,
+	 * so a process killed during the compaction leaves the old journal with all its pending jobs
+	 */
+	private void compact(MediaJob[] jobs) throws IOException {
+		File tempFile = new File(mJournalFile.getPath() + ".tmp");
+		writeRecords(tempFile, jobs, true);
+		if(!tempFile.renameTo(mJournalFile)) {
+			tempFile.delete();
+			throw new IOException("MediaJobQueue: cannot replace the journal");
+		}
+	}
+
+
+	private static void writeRecords(File file, MediaJob[] jobs, boolean writeHeader) throws IOException {
+		FileOutputStream fileOutput = new FileOutputStream(file, !writeHeader);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+		try {
+			if(writeHeader) {
+				output.writeInt(JOURNAL_VERSION);
+			}
+			for(MediaJob job : jobs) {
+				byte[] record = writeRecord(job);
+				output.writeInt(record.length);
+				output.write(record);
+			}
+			output.flush();
+			// a checkpoint has to reach the disk before the stage that depends on it runs
+			fileOutput.getFD().sync();
+		} finally {
+			output.close();
+		}
+	}
+
+
+	private static byte[] writeRecord(MediaJob job) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeUTF(job.getId());
+		output.writeUTF(job.getUri().toString());
+		output.writeBoolean(job.isPhoto());
+		output.writeInt(job.getReqWidth());
+		output.writeInt(job.getReqHeight());
+		output.writeInt(job.getState());
+		output.writeInt(job.getAttempts());
+		output.writeUTF(job.getImportedFile() != null ? job.getImportedFile().getAbsolutePath() : "");
+		output.writeUTF(job.getScaledFile() != null ? job.getScaledFile().getAbsolutePath() : "");
+		output.writeUTF(job.getError() != null ? job.getError() : "");
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+
+	private static MediaJob readRecord(byte[] record) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		String id = input.readUTF();
+		Uri uri = Uri.parse(input.readUTF());
+		boolean isPhoto = input.readBoolean();
+		int reqWidth = input.readInt();
+		int reqHeight = input.readInt();
+		int state = input.readInt();
+		int attempts = input.readInt();
+		String importedPath = input.readUTF();
+		String scaledPath = input.readUTF();
+		String error = input.readUTF();
+		return new MediaJob(id, uri, isPhoto, reqWidth, reqHeight, state, attempts,
+				importedPath.isEmpty() ? null : new File(importedPath),
+				scaledPath.isEmpty() ? null : new File(scaledPath),
+				error.isEmpty() ? null : error);
+	}
+
+
+	private class FinishListener implements MediaPipeline.OnPipelineFinishedListener<MediaJob> {
+
+		private String mJobId;
+
+
+		FinishListener(String jobId) {
+			mJobId = jobId;
+		}
+
+
+		@Override
+		public void onPipelineFinished(@Nullable MediaJob result, @Nullable Exception error) {
+			MediaJob job;
+			synchronized(MediaJobQueue.this) {
+				mRunningJobs.remove(mJobId);
+				job = result != null ? result.withState(MediaJob.STATE_FINISHED, null) : getJob(mJobId).withState(MediaJob.STATE_FAILED, String.valueOf(error));
+				save(job);
+			}
+			deliver(job, error);
+		}
+	}
+}
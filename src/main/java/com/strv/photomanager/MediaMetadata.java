@@ -0,0 +1,107 @@
+package com.strv.photomanager;
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * facts about a media file that are expensive to ask the platform for (bounds decode, exif, metadata retriever)
+ */
+public class MediaMetadata {
+
+	public static final long UNKNOWN_DURATION = -1;
+
+	private String mKey;
+	private long mSize;
+	private long mLastModified;
+	private int mWidth;
+	private int mHeight;
+	private int mOrientation;
+	private String mMimeType;
+	private long mDurationMillis;
+	private String mFingerprint;
+
+
+	MediaMetadata(String key, long size, long lastModified, int width, int height, int orientation, String mimeType, long durationMillis, String fingerprint) {
+		mKey = key;
+		mSize = size;
+		mLastModified = lastModified;
+		mWidth = width;
+		mHeight = height;
+		mOrientation = orientation;
+		mMimeType = mimeType;
+		mDurationMillis = durationMillis;
+		mFingerprint = fingerprint;
+	}
+
+
+	/**
+	 * @return absolute path of the file or string representation of the content Uri
+	 */
+	public String getKey() {
+		return mKey;
+	}
+
+
+	public long getSize() {
+		return mSize;
+	}
+
+
+	public long getLastModified() {
+		return mLastModified;
+	}
+
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+
+	/**
+	 * @return exif orientation of the media (one of ExifInterface.ORIENTATION_* constants), video rotation is mapped to the same constants
+	 */
+	public int getOrientation() {
+		return mOrientation;
+	}
+
+
+	@Nullable
+	public String getMimeType() {
+		return mMimeType;
+	}
+
+
+	/**
+	 * @return duration of the video in milliseconds, UNKNOWN_DURATION for images
+	 */
+	public long getDurationMillis() {
+		return mDurationMillis;
+	}
+
+
+	/**
+	 * fingerprint of the content, see MediaMetadataIndex.fingerprintFile, only the size, the first and the last block are hashed,
+	 * so equal fingerprints mark likely duplicates, not a proof that the whole contents are equal
+	 *
+	 * @return hex encoded fingerprint, null if the media wasn't fingerprinted, e.g. a copy the library has just created
+	 */
+	@Nullable
+	public String getFingerprint() {
+		return mFingerprint;
+	}
+
+
+	public boolean isVideo() {
+		return mMimeType != null && mMimeType.startsWith("video/");
+	}
+
+
+	boolean matches(long size, long lastModified) {
+		return mSize == size && mLastModified == lastModified;
+	}
+}
@@ -0,0 +1,517 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * persistent index of media metadata keyed by file path or content Uri together with size and last modification time,
+ * the index is an append-only log of records that is read lazily on the first lookup and compacted when it contains too many stale records
+ * <p/>
+ * files the library has just created (copies in the cache dir, captured photos, see markCreated) are scaled once and never looked up
+ * in a later session, their metadata is probed without the fingerprint and kept only in memory, so the first scaling of a fresh
+ * capture neither loads nor appends to the log
+ */
+public class MediaMetadataIndex {
+
+	private static final String INDEX_FILE_NAME = "photomanager_media_index";
+	private static final int INDEX_VERSION = 1;
+	private static final int HASHED_BLOCK_SIZE = 64 * 1024;
+	private static final int MIN_RECORDS_TO_COMPACT = 64;
+	private static final int MAX_TRANSIENT_ENTRIES = 32;
+
+	private static MediaMetadataIndex sInstance;
+
+	private Context mContext;
+	private File mIndexFile;
+	private Map<String, MediaMetadata> mEntries;
+	private int mRecordCount;
+	private Map<String, MediaMetadata> mTransientEntries = new BoundedMap<>(MAX_TRANSIENT_ENTRIES);
+	private Map<String, Boolean> mCreatedFiles = new BoundedMap<>(MAX_TRANSIENT_ENTRIES);
+	private String[] mCacheDirPaths;
+
+
+	/**
+	 * map that drops the least recently inserted entry over the limit
+	 */
+	private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int mMaxSize;
+
+
+		BoundedMap(int maxSize) {
+			mMaxSize = maxSize;
+		}
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > mMaxSize;
+		}
+	}
+
+
+	MediaMetadataIndex(Context context, File indexFile) {
+		mContext = context;
+		mIndexFile = indexFile;
+	}
+
+
+	/**
+	 * returns the index shared by the whole app, the index file is stored in the cache dir of the app
+	 *
+	 * @param context context of the app/activity
+	 * @return shared metadata index
+	 */
+	public static synchronized MediaMetadataIndex getInstance(Context context) {
+		if(sInstance == null) {
+			Context appContext = context.getApplicationContext();
+			sInstance = new MediaMetadataIndex(appContext, new File(appContext.getCacheDir(), INDEX_FILE_NAME));
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * marks a file the library has just created outside of the cache dir, e.g. a photo captured to the public pictures dir,
+	 * its metadata is kept only in memory like of the files in the cache dir
+	 *
+	 * @param file file that was created
+	 */
+	public synchronized void markCreated(File file) {
+		mCreatedFiles.put(file.getAbsolutePath(), Boolean.TRUE);
+	}
+
+
+	/**
+	 * returns metadata of an image file, the file is probed (bounds decode, exif, fingerprint) only if the index does not know its current version
+	 *
+	 * @param file image file
+	 * @return metadata of the image
+	 */
+	public MediaMetadata getImageMetadata(File file) {
+		String key = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		MediaMetadata metadata = lookup(key, size, lastModified);
+		if(metadata == null) {
+			boolean fingerprint = !isTransient(key);
+			if(EncryptedMediaStore.isEncrypted(file)) {
+				metadata = probeEncryptedImage(file, key, size, lastModified, fingerprint);
+			} else {
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(key, options);
+				metadata = new MediaMetadata(key, size, lastModified, options.outWidth, options.outHeight, readExifOrientation(key), options.outMimeType, MediaMetadata.UNKNOWN_DURATION,
+						fingerprint ? fingerprintFile(file) : null);
+			}
+			put(metadata);
+		}
+		return metadata;
+	}
+
+
+	/**
+	 * returns metadata of a video file, the file is probed with MediaMetadataRetriever only if the index does not know its current version
+	 *
+	 * @param file video file
+	 * @return metadata of the video
+	 */
+	public MediaMetadata getVideoMetadata(File file) {
+		String key = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		MediaMetadata metadata = lookup(key, size, lastModified);
+		if(metadata == null) {
+			MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+			try {
+				retriever.setDataSource(key);
+				metadata = readVideoMetadata(retriever, key, size, lastModified, isTransient(key) ? null : fingerprintFile(file));
+				put(metadata);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				metadata = new MediaMetadata(key, size, lastModified, 0, 0, ExifInterface.ORIENTATION_UNDEFINED, null, MediaMetadata.UNKNOWN_DURATION, null);
+			} finally {
+				retriever.release();
+			}
+		}
+		return metadata;
+	}
+
+
+	/**
+	 * returns metadata of a media on a 'file' or 'content' Uri, content Uris are cached only if the provider reports their size,
+	 * the last modification time is taken from MediaStore columns if the provider has them
+	 *
+	 * @param uri Uri of the image or video
+	 * @return metadata of the media, null if the media cannot be read
+	 */
+	@Nullable
+	public MediaMetadata getMetadata(Uri uri) {
+		if("file".equals(uri.getScheme())) {
+			File file = new File(uri.getPath());
+			MediaMetadata metadata = lookup(file.getAbsolutePath(), file.length(), file.lastModified());
+			if(metadata != null) {
+				return metadata;
+			}
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+			return options.outMimeType != null ? getImageMetadata(file) : getVideoMetadata(file);
+		}
+
+		String key = uri.toString();
+		long size = -1;
+		long lastModified = 0;
+		Cursor cursor = null;
+		try {
+			cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+			if(cursor != null && cursor.moveToFirst()) {
+				int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+				if(sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+					size = cursor.getLong(sizeIndex);
+				}
+				int modifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+				if(modifiedIndex != -1 && !cursor.isNull(modifiedIndex)) {
+					lastModified = cursor.getLong(modifiedIndex);
+				}
+			}
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			if(cursor != null) {
+				cursor.close();
+			}
+		}
+
+		MediaMetadata metadata = size >= 0 ? lookup(key, size, lastModified) : null;
+		if(metadata != null) {
+			return metadata;
+		}
+
+		String mimeType = mContext.getContentResolver().getType(uri);
+		if(mimeType != null && mimeType.startsWith("video/")) {
+			MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+			try {
+				retriever.setDataSource(mContext, uri);
+				metadata = readVideoMetadata(retriever, key, size, lastModified, null);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				retriever.release();
+			}
+		} else {
+			InputStream inputStream = null;
+			try {
+				inputStream = mContext.getContentResolver().openInputStream(uri);
+				if(inputStream == null) {
+					return null;
+				}
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeStream(new BufferedInputStream(inputStream), null, options);
+				metadata = new MediaMetadata(key, size, lastModified, options.outWidth, options.outHeight, ExifInterface.ORIENTATION_UNDEFINED, options.outMimeType != null ? options.outMimeType : mimeType, MediaMetadata.UNKNOWN_DURATION, null);
+			} catch(IOException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				closeQuietly(inputStream);
+			}
+		}
+
+		if(size >= 0) {
+			put(metadata);
+		}
+		return metadata;
+	}
+
+
+	/**
+	 * finds the metadata of the given version of the media
+	 *
+	 * @param key          absolute path of the file or string representation of the content Uri
+	 * @param size         current size of the media
+	 * @param lastModified current last modification time of the media
+	 * @return metadata if the index contains the same version of the media, null otherwise
+	 */
+	@Nullable
+	public synchronized MediaMetadata lookup(String key, long size, long lastModified) {
+		MediaMetadata metadata;
+		if(isTransient(key)) {
+			metadata = mTransientEntries.get(key);
+		} else {
+			ensureLoaded();
+			metadata = mEntries.get(key);
+		}
+		return metadata != null && metadata.matches(size, lastModified) ? metadata : null;
+	}
+
+
+	/**
+	 * stores the metadata in the index and appends it to the index file, metadata of the files the library has just created
+	 * is kept only in memory
+	 *
+	 * @param metadata metadata that should be stored
+	 */
+	public synchronized void put(MediaMetadata metadata) {
+		if(isTransient(metadata.getKey())) {
+			mTransientEntries.put(metadata.getKey(), metadata);
+			return;
+		}
+		ensureLoaded();
+		mEntries.put(metadata.getKey(), metadata);
+		try {
+			appendRecords(new MediaMetadata[]{metadata}, true);
+			mRecordCount++;
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * @return true if the key is a file in the cache dir of the app or a file marked by markCreated
+	 */
+	private synchronized boolean isTransient(String key) {
+		if(mCreatedFiles.containsKey(key)) {
+			return true;
+		}
+		if(mCacheDirPaths == null) {
+			File externalCacheDir = mContext.getExternalCacheDir();
+			mCacheDirPaths = new String[]{
+					mContext.getCacheDir().getAbsolutePath() + File.separator,
+					externalCacheDir != null ? externalCacheDir.getAbsolutePath() + File.separator : null
+			};
+		}
+		for(String cacheDirPath : mCacheDirPaths) {
+			if(cacheDirPath != null && key.startsWith(cacheDirPath)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private void ensureLoaded() {
+		if(mEntries != null) {
+			return;
+		}
+		mEntries = new HashMap<>();
+		mRecordCount = JournalReader.read(mIndexFile, INDEX_VERSION, new JournalReader.RecordHandler() {
+			@Override
+			public void onRecord(byte[] record) throws IOException {
+				MediaMetadata metadata = readRecord(record);
+				mEntries.put(metadata.getKey(), metadata);
+			}
+		});
+
+		if(mRecordCount > MIN_RECORDS_TO_COMPACT && mRecordCount > 2 * mEntries.size()) {
+			try {
+				mRecordCount = mEntries.size();
+				appendRecords(mEntries.values().toArray(new MediaMetadata[mEntries.size()]), false);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void appendRecords(MediaMetadata[] records, boolean append) throws IOException {
+		boolean writeHeader = !append || !mIndexFile.exists() || mIndexFile.length() == 0;
+		DataOutputStream output = new DataOutputStream(new FileOutputStream(mIndexFile, !writeHeader));
+		try {
+			if(writeHeader) {
+				output.writeInt(INDEX_VERSION);
+			}
+			for(MediaMetadata metadata : records) {
+				byte[] record = writeRecord(metadata);
+				output.writeInt(record.length);
+				output.write(record);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+
+	private static byte[] writeRecord(MediaMetadata metadata) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeUTF(metadata.getKey());
+		output.writeLong(metadata.getSize());
+		output.writeLong(metadata.getLastModified());
+		output.writeInt(metadata.getWidth());
+		output.writeInt(metadata.getHeight());
+		output.writeInt(metadata.getOrientation());
+		output.writeUTF(metadata.getMimeType() != null ? metadata.getMimeType() : "");
+		output.writeLong(metadata.getDurationMillis());
+		output.writeUTF(metadata.getFingerprint() != null ? metadata.getFingerprint() : "");
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+
+	private static MediaMetadata readRecord(byte[] record) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		String key = input.readUTF();
+		long size = input.readLong();
+		long lastModified = input.readLong();
+		int width = input.readInt();
+		int height = input.readInt();
+		int orientation = input.readInt();
+		String mimeType = input.readUTF();
+		long durationMillis = input.readLong();
+		String fingerprint = input.readUTF();
+		return new MediaMetadata(key, size, lastModified, width, height, orientation, mimeType.isEmpty() ? null : mimeType, durationMillis, fingerprint.isEmpty() ? null : fingerprint);
+	}
+
+
+	private static MediaMetadata readVideoMetadata(MediaMetadataRetriever retriever, String key, long size, long lastModified, String fingerprint) {
+		int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+			orientation = rotationToOrientation(parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)));
+		}
+		String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+		return new MediaMetadata(key, size, lastModified,
+				parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)),
+				parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)),
+				orientation,
+				retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE),
+				duration != null ? Long.parseLong(duration) : MediaMetadata.UNKNOWN_DURATION,
+				fingerprint);
+	}
+
+
+	/**
+	 * probes the plaintext of an encrypted image, only the segments with the headers are decrypted,
+	 * the fingerprint is computed from the ciphertext, which identifies the content as well
+	 */
+	private MediaMetadata probeEncryptedImage(File file, String key, long size, long lastModified, boolean fingerprint) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+		EncryptedFile encryptedFile = null;
+		try {
+			encryptedFile = EncryptedMediaStore.getInstance(mContext).openRandomAccess(file);
+			BitmapFactory.decodeStream(encryptedFile.openInputStream(), null, options);
+			orientation = JpegTransformer.readExifOrientation(encryptedFile.openInputStream());
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(encryptedFile);
+		}
+		return new MediaMetadata(key, size, lastModified, options.outWidth, options.outHeight, orientation, options.outMimeType, MediaMetadata.UNKNOWN_DURATION,
+				fingerprint ? fingerprintFile(file) : null);
+	}
+
+
+	private static int readExifOrientation(String path) {
+		try {
+			return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+		} catch(IOException e) {
+			return ExifInterface.ORIENTATION_UNDEFINED;
+		}
+	}
+
+
+	private static int rotationToOrientation(int rotation) {
+		switch(rotation) {
+			case 90:
+				return ExifInterface.ORIENTATION_ROTATE_90;
+			case 180:
+				return ExifInterface.ORIENTATION_ROTATE_180;
+			case 270:
+				return ExifInterface.ORIENTATION_ROTATE_270;
+			default:
+				return ExifInterface.ORIENTATION_NORMAL;
+		}
+	}
+
+
+	private static int parseInt(String value) {
+		try {
+			return value != null ? Integer.parseInt(value) : 0;
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+
+	/**
+	 * fingerprints the file by hashing its size together with the first and the last block, so whole videos are not read,
+	 * files that differ only in the middle get the same fingerprint, it finds likely duplicates but doesn't prove them
+	 *
+	 * @param file file that should be fingerprinted
+	 * @return hex encoded fingerprint, null if the file cannot be read
+	 */
+	@Nullable
+	static String fingerprintFile(File file) {
+		RandomAccessFile input = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			input = new RandomAccessFile(file, "r");
+			long length = input.length();
+			byte[] buffer = new byte[(int) Math.min(HASHED_BLOCK_SIZE, length)];
+			input.readFully(buffer);
+			digest.update(buffer);
+			if(length > HASHED_BLOCK_SIZE) {
+				input.seek(Math.max(HASHED_BLOCK_SIZE, length - HASHED_BLOCK_SIZE));
+				int read = input.read(buffer);
+				digest.update(buffer, 0, Math.max(read, 0));
+			}
+			for(int i = 0; i < 8; i++) {
+				digest.update((byte) (length >>> (8 * i)));
+			}
+
+			StringBuilder hash = new StringBuilder();
+			for(byte b : digest.digest()) {
+				hash.append(String.format("%02x", b & 0xff));
+			}
+			return hash.toString();
+		} catch(IOException | NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			closeQuietly(input);
+		}
+	}
+
+
+	private static void closeQuietly(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
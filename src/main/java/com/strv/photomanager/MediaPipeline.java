@@ -0,0 +1,175 @@
+package com.strv.photomanager;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+/**
+ * chain of media processing stages (import, probe, scale, encode, publish or custom ones) that runs on a worker thread,
+ * every stage hands its output directly to the next one on the same thread and only the final result is posted to the callback executor
+ * <p/>
+ * usage:
+ * <pre>
+ * MediaPipeline.&lt;Uri&gt;create()
+ *         .then(MediaStages.importUri(context, true))
+ *         .then(MediaStages.scale(context, 1024, 1024))
+ *         .then(MediaStages.encode(context))
+ *         .run(uri, listener);
+ * </pre>
+ *
+ * @param <I> type of the pipeline input
+ * @param <O> type of the pipeline output
+ */
+public class MediaPipeline<I, O> {
+
+	private static Executor sMainThreadExecutor;
+
+	private List<Stage<?, ?>> mStages;
+	private Executor mWorkerExecutor;
+	private Executor mCallbackExecutor;
+
+
+	public interface Stage<I, O> {
+		/**
+		 * processes the output of the previous stage, it is called on a worker thread
+		 *
+		 * @param input output of the previous stage or input of the pipeline
+		 * @return input of the next stage or result of the pipeline
+		 * @throws Exception is thrown if the stage fails, the rest of the pipeline is skipped and the error is delivered to the listener
+		 */
+		O process(I input) throws Exception;
+	}
+
+
+	public interface OnPipelineFinishedListener<O> {
+		/**
+		 * called on the callback executor when the pipeline finished
+		 *
+		 * @param result result of the last stage, null if the pipeline failed
+		 * @param error  error thrown by a stage, null if the pipeline succeeded
+		 */
+		void onPipelineFinished(@Nullable O result, @Nullable Exception error);
+	}
+
+
+	private MediaPipeline(List<Stage<?, ?>> stages, Executor workerExecutor, Executor callbackExecutor) {
+		mStages = stages;
+		mWorkerExecutor = workerExecutor;
+		mCallbackExecutor = callbackExecutor;
+	}
+
+
+	/**
+	 * creates an empty pipeline that runs on AsyncTask.THREAD_POOL_EXECUTOR and delivers results on the main thread
+	 *
+	 * @param <T> type of the pipeline input
+	 * @return empty pipeline
+	 */
+	public static <T> MediaPipeline<T, T> create() {
+		return new MediaPipeline<>(Collections.<Stage<?, ?>>emptyList(), AsyncTask.THREAD_POOL_EXECUTOR, getMainThreadExecutor());
+	}
+
+
+	/**
+	 * returns a new pipeline with the stage appended, this pipeline is not changed
+	 *
+	 * @param stage stage that processes the output of this pipeline
+	 * @param <R>   output type of the stage
+	 * @return new pipeline ending with the stage
+	 */
+	public <R> MediaPipeline<I, R> then(Stage<? super O, ? extends R> stage) {
+		List<Stage<?, ?>> stages = new ArrayList<>(mStages);
+		stages.add(stage);
+		return new MediaPipeline<>(stages, mWorkerExecutor, mCallbackExecutor);
+	}
+
+
+	/**
+	 * @param workerExecutor executor on which all the stages run
+	 * @return new pipeline with the same stages running on the given executor
+	 */
+	public MediaPipeline<I, O> workOn(Executor workerExecutor) {
+		return new MediaPipeline<>(mStages, workerExecutor, mCallbackExecutor);
+	}
+
+
+	/**
+	 * @param callbackExecutor executor on which the listener is called, main thread by default
+	 * @return new pipeline with the same stages delivering the result on the given executor
+	 */
+	public MediaPipeline<I, O> callbackOn(Executor callbackExecutor) {
+		return new MediaPipeline<>(mStages, mWorkerExecutor, callbackExecutor);
+	}
+
+
+	/**
+	 * runs all the stages one after another on the worker executor and delivers the result to the listener on the callback executor
+	 *
+	 * @param input    input of the first stage
+	 * @param listener listener that receives the result or the error, can be null
+	 */
+	public void run(final I input, @Nullable final OnPipelineFinishedListener<O> listener) {
+		mWorkerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				O result = null;
+				Exception error = null;
+				try {
+					result = runStages(input);
+				} catch(Exception e) {
+					e.printStackTrace();
+					error = e;
+				}
+
+				final O finalResult = result;
+				final Exception finalError = error;
+				if(listener != null) {
+					mCallbackExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							listener.onPipelineFinished(finalResult, finalError);
+						}
+					});
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * runs all the stages on the calling thread
+	 *
+	 * @param input input of the first stage
+	 * @return result of the last stage
+	 * @throws Exception is thrown if any of the stages fails
+	 */
+	@SuppressWarnings("unchecked")
+	public O runStages(I input) throws Exception {
+		Object value = input;
+		for(Stage<?, ?> stage : mStages) {
+			value = ((Stage<Object, Object>) stage).process(value);
+		}
+		return (O) value;
+	}
+
+
+	private static synchronized Executor getMainThreadExecutor() {
+		if(sMainThreadExecutor == null) {
+			final Handler handler = new Handler(Looper.getMainLooper());
+			sMainThreadExecutor = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					handler.post(command);
+				}
+			};
+		}
+		return sMainThreadExecutor;
+	}
+}
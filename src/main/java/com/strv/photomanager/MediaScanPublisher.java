@@ -0,0 +1,242 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * publishes media files to the system gallery in batches, the files published within a short window are collected
+ * and handed to the media scanner in one MediaScannerConnection.scanFile call with their mime types,
+ * a path published again before it was scanned is scanned only once and all its listeners are called
+ * <p/>
+ * files in the cache dirs of the app are never published, they are the private copies and the scaled (possibly encrypted) outputs,
+ * the app should decrypt or copy them to a public dir first, see EncryptedMediaStore.decryptToFile
+ */
+public class MediaScanPublisher {
+
+	public static final long DEFAULT_WINDOW_MILLIS = 500;
+
+	private static MediaScanPublisher sInstance;
+
+	private Context mContext;
+	private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+	private Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private Map<String, Pending> mPending = new LinkedHashMap<>();
+	private Map<String, Pending> mScanning = new HashMap<>();
+	private int mScanCount;
+	private String[] mCacheDirPaths;
+	private Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+
+	public interface OnPublishedListener {
+		/**
+		 * called on the main thread when the media scanner finished the file
+		 *
+		 * @param file published file
+		 * @param uri  content Uri of the file in MediaStore, null if the scanner failed
+		 */
+		void onPublished(File file, @Nullable Uri uri);
+	}
+
+
+	private static class Pending {
+
+		File file;
+		String mimeType;
+		List<OnPublishedListener> listeners = new ArrayList<>();
+	}
+
+
+	private MediaScanPublisher(Context context) {
+		mContext = context;
+	}
+
+
+	/**
+	 * returns the shared publisher
+	 *
+	 * @param context context of the app/activity
+	 * @return shared publisher
+	 */
+	public static synchronized MediaScanPublisher getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new MediaScanPublisher(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * @param path absolute path of a file
+	 * @return true if the file is in the internal or the external cache dir of the app
+	 */
+	synchronized boolean isInCacheDir(String path) {
+		if(mCacheDirPaths == null) {
+			File externalCacheDir = mContext.getExternalCacheDir();
+			mCacheDirPaths = new String[]{
+					mContext.getCacheDir().getAbsolutePath() + File.separator,
+					externalCacheDir != null ? externalCacheDir.getAbsolutePath() + File.separator : null
+			};
+		}
+		for(String cacheDirPath : mCacheDirPaths) {
+			if(cacheDirPath != null && path.startsWith(cacheDirPath)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * @param windowMillis time for which the published files are collected before the scan, 0 scans every file right away
+	 */
+	public synchronized void setWindowMillis(long windowMillis) {
+		mWindowMillis = windowMillis;
+	}
+
+
+	/**
+	 * publishes the file with the mime type guessed from its extension
+	 *
+	 * @param file     media file that should be made public in the system gallery
+	 * @param listener listener called when the file was scanned, can be null
+	 */
+	public void publish(File file, @Nullable OnPublishedListener listener) {
+		publish(file, guessMimeType(file), listener);
+	}
+
+
+	/**
+	 * adds the file to the next scan, it can be called from any thread
+	 *
+	 * @param file     media file that should be made public in the system gallery
+	 * @param mimeType mime type of the file, null lets the scanner detect it
+	 * @param listener listener called when the file was scanned, can be null
+	 */
+	public synchronized void publish(final File file, @Nullable String mimeType, @Nullable final OnPublishedListener listener) {
+		String path = file.getAbsolutePath();
+		if(isInCacheDir(path)) {
+			// the scanner would index a private or encrypted file
+			if(listener != null) {
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						listener.onPublished(file, null);
+					}
+				});
+			}
+			return;
+		}
+		Pending pending = mPending.get(path);
+		if(pending == null) {
+			pending = new Pending();
+			pending.file = file;
+			mPending.put(path, pending);
+		}
+		if(mimeType != null) {
+			pending.mimeType = mimeType;
+		}
+		if(listener != null) {
+			pending.listeners.add(listener);
+		}
+
+		if(mPending.size() == 1) {
+			// the window starts with the first file, later files don't postpone the scan
+			mMainHandler.postDelayed(mFlushRunnable, mWindowMillis);
+		}
+	}
+
+
+	/**
+	 * hands the collected files to the media scanner right away, e.g. before the app goes to the background
+	 */
+	public synchronized void flush() {
+		mMainHandler.removeCallbacks(mFlushRunnable);
+		if(mPending.isEmpty()) {
+			return;
+		}
+
+		String[] paths = new String[mPending.size()];
+		String[] mimeTypes = new String[mPending.size()];
+		int i = 0;
+		for(Map.Entry<String, Pending> entry : mPending.entrySet()) {
+			paths[i] = entry.getKey();
+			mimeTypes[i] = entry.getValue().mimeType;
+			i++;
+			// a path still being scanned from the previous batch gets the listeners of both scans
+			Pending scanning = mScanning.get(entry.getKey());
+			if(scanning != null) {
+				entry.getValue().listeners.addAll(scanning.listeners);
+			}
+			mScanning.put(entry.getKey(), entry.getValue());
+		}
+		mPending.clear();
+		mScanCount++;
+
+		MediaScannerConnection.scanFile(mContext, paths, mimeTypes, new MediaScannerConnection.OnScanCompletedListener() {
+			@Override
+			public void onScanCompleted(String path, Uri uri) {
+				onFileScanned(path, uri);
+			}
+		});
+	}
+
+
+	/**
+	 * @return number of scanner calls made since the start of the process, every call can contain many files
+	 */
+	public synchronized int getScanCount() {
+		return mScanCount;
+	}
+
+
+	/**
+	 * called on a binder thread of the scanner connection
+	 */
+	private void onFileScanned(String path, final Uri uri) {
+		final Pending pending;
+		synchronized(this) {
+			pending = mScanning.remove(path);
+		}
+		if(pending == null || pending.listeners.isEmpty()) {
+			return;
+		}
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for(OnPublishedListener listener : pending.listeners) {
+					listener.onPublished(pending.file, uri);
+				}
+			}
+		});
+	}
+
+
+	@Nullable
+	private static String guessMimeType(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if(dot == -1) {
+			return null;
+		}
+		return MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.US));
+	}
+}
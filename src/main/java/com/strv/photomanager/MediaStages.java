@@ -0,0 +1,162 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * stages of MediaPipeline for the steps that PhotoManager does between onActivityResult and an upload-ready file
+ */
+public class MediaStages {
+
+	private MediaStages() {
+	}
+
+
+	/**
+	 * @param context context of the app/activity
+	 * @param isPhoto indicator of type of the imported media
+	 * @return stage that turns a 'file' Uri into its File and copies a 'content' Uri to a file in the cache dir
+	 */
+	public static MediaPipeline.Stage<Uri, File> importUri(final Context context, final boolean isPhoto) {
+		return new MediaPipeline.Stage<Uri, File>() {
+			@Override
+			public File process(Uri uri) throws Exception {
+				if("file".equals(uri.getScheme())) {
+					File file = PhotoManager.getFileFromUri(uri);
+					if(!file.canRead() && file.exists()) {
+						throw new SecurityException();
+					}
+					return file;
+				}
+
+				InputStream inputStream = context.getContentResolver().openInputStream(uri);
+				if(inputStream == null) {
+					throw new FileNotFoundException("MediaStages: cannot open " + uri);
+				}
+				return PhotoManager.copyToCacheFile(context, new BufferedInputStream(inputStream), isPhoto);
+			}
+		};
+	}
+
+
+	/**
+	 * @param context   context of the app/activity
+	 * @param reqWidth  required width of the output image
+	 * @param reqHeight required height of the output image
+	 * @return stage that copies a photo Uri to the cache dir and scales it from the same stream at once, see PipelinedImporter,
+	 * it returns the scaled file
+	 */
+	public static MediaPipeline.Stage<Uri, File> importAndScale(final Context context, final int reqWidth, final int reqHeight) {
+		return new MediaPipeline.Stage<Uri, File>() {
+			@Override
+			public File process(Uri uri) throws Exception {
+				return new PipelinedImporter(context, new ScaleImageHelper(context, reqWidth, reqHeight)).importAndScale(uri).getScaled();
+			}
+		};
+	}
+
+
+	/**
+	 * @return stage that turns a MediaHandle into a file, the media is copied only if it is not a file already
+	 */
+	public static MediaPipeline.Stage<MediaHandle, File> materialize() {
+		return new MediaPipeline.Stage<MediaHandle, File>() {
+			@Override
+			public File process(MediaHandle handle) throws Exception {
+				return handle.materializeFile();
+			}
+		};
+	}
+
+
+	/**
+	 * @param context context of the app/activity
+	 * @return stage that reads the image metadata into MediaMetadataIndex, so the following stages get it with one lookup
+	 */
+	public static MediaPipeline.Stage<File, File> probe(final Context context) {
+		return new MediaPipeline.Stage<File, File>() {
+			@Override
+			public File process(File file) throws Exception {
+				MediaMetadataIndex.getInstance(context).getImageMetadata(file);
+				return file;
+			}
+		};
+	}
+
+
+	/**
+	 * @param context   context of the app/activity
+	 * @param reqWidth  required width of the output image
+	 * @param reqHeight required height of the output image
+	 * @return stage that decodes, scales and rotates the image
+	 */
+	public static MediaPipeline.Stage<File, Bitmap> scale(final Context context, final int reqWidth, final int reqHeight) {
+		return new MediaPipeline.Stage<File, Bitmap>() {
+			@Override
+			public Bitmap process(File file) throws Exception {
+				return new ScaleImageHelper(context, reqWidth, reqHeight).scaleImage(file);
+			}
+		};
+	}
+
+
+	/**
+	 * @param context   context of the app/activity
+	 * @param reqWidth  required width of the output image
+	 * @param reqHeight required height of the output image
+	 * @return stage that scales and rotates the image and writes it as a compressed jpeg to the cache dir
+	 */
+	public static MediaPipeline.Stage<File, File> scaleToFile(final Context context, final int reqWidth, final int reqHeight) {
+		return new MediaPipeline.Stage<File, File>() {
+			@Override
+			public File process(File file) throws Exception {
+				return new ScaleImageHelper(context, reqWidth, reqHeight).scaleImageFile(file);
+			}
+		};
+	}
+
+
+	/**
+	 * @param context context of the app/activity
+	 * @return stage that compresses the bitmap to a jpeg file in the cache dir and recycles the bitmap
+	 */
+	public static MediaPipeline.Stage<Bitmap, File> encode(final Context context) {
+		return new MediaPipeline.Stage<Bitmap, File>() {
+			@Override
+			public File process(Bitmap bitmap) throws Exception {
+				try {
+					return new ScaleImageHelper(context, bitmap.getWidth(), bitmap.getHeight()).writeCompressedBitmap(bitmap);
+				} finally {
+					bitmap.recycle();
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * @param context context of the app/activity
+	 * @return stage that publishes the file to the system gallery, it fails for the files in the cache dir and the encrypted files,
+	 * which are private, a file should be decrypted or copied to a public dir by a previous stage
+	 */
+	public static MediaPipeline.Stage<File, File> publish(final Context context) {
+		return new MediaPipeline.Stage<File, File>() {
+			@Override
+			public File process(File file) throws Exception {
+				if(MediaScanPublisher.getInstance(context).isInCacheDir(file.getAbsolutePath()) || EncryptedMediaStore.isEncrypted(file)) {
+					throw new IOException("MediaStages: private file " + file.getAbsolutePath() + " cannot be published");
+				}
+				PhotoManager.publishMediaToSystemGallery(context, Uri.fromFile(file));
+				return file;
+			}
+		};
+	}
+}
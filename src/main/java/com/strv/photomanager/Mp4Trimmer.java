@@ -0,0 +1,772 @@
+package com.strv.photomanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * trims an mp4 (ISO base media) file to a maximal duration without decoding or re-encoding any sample,
+ * only the sample tables are rewritten and the kept ranges of mdat are copied to the output
+ */
+public class Mp4Trimmer {
+
+	private static final long MAX_UINT32 = 0xffffffffL;
+	private static final List<String> CONTAINER_BOXES = Arrays.asList("moov", "trak", "mdia", "minf", "stbl", "edts");
+
+	private long mMaxDurationMillis;
+
+
+	/**
+	 * @param maxDurationMillis maximal duration of the output video in milliseconds
+	 */
+	public Mp4Trimmer(long maxDurationMillis) {
+		mMaxDurationMillis = maxDurationMillis;
+	}
+
+
+	/**
+	 * trims the source video to the maximal duration, the cut is made at the nearest sync sample of the video track preceding the limit,
+	 * other tracks are cut at the same presentation time, mdat ranges are streamed to the output without touching the samples
+	 *
+	 * @param source      mp4 file that should be trimmed
+	 * @param destination file where the trimmed video is written, it is not touched if the source already fits the limit
+	 * @return true if the trimmed video was written to destination, false if the source is not longer than the limit
+	 * @throws IOException is thrown if the source cannot be read or its structure is malformed or not supported (e.g. fragmented mp4)
+	 */
+	public boolean trim(File source, File destination) throws IOException {
+		try {
+			return trimFile(source, destination);
+		} catch(RuntimeException e) {
+			// a table pointing outside of its box or an entry count that doesn't match the samples
+			throw new IOException("Mp4Trimmer: malformed sample tables", e);
+		}
+	}
+
+
+	/**
+	 * checks the brand box at the start of the file, only ISO base media files (mp4, m4v, 3gp, mov) can be trimmed
+	 *
+	 * @param file file that should be checked
+	 * @return true if the file starts with an ftyp box
+	 */
+	public static boolean isIsoBaseMedia(File file) {
+		try {
+			RandomAccessFile sourceFile = new RandomAccessFile(file, "r");
+			try {
+				if(sourceFile.length() < 8) {
+					return false;
+				}
+				byte[] header = new byte[8];
+				sourceFile.readFully(header);
+				return readType(ByteBuffer.wrap(header, 4, 4)).equals("ftyp");
+			} finally {
+				sourceFile.close();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	private boolean trimFile(File source, File destination) throws IOException {
+		RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+		try {
+			FileChannel sourceChannel = sourceFile.getChannel();
+			List<Box> headerBoxes = new ArrayList<>();
+			Box moov = null;
+
+			long fileSize = sourceChannel.size();
+			long position = 0;
+			while(position + 8 <= fileSize) {
+				ByteBuffer header = read(sourceChannel, position, (int) Math.min(16, fileSize - position));
+				long size = header.getInt() & MAX_UINT32;
+				String type = readType(header);
+				int headerSize = 8;
+				if(size == 1) {
+					size = header.getLong();
+					headerSize = 16;
+				} else if(size == 0) {
+					size = fileSize - position;
+				}
+				if(size < headerSize || position + size > fileSize) {
+					throw new IOException("Mp4Trimmer: malformed box " + type);
+				}
+
+				if(type.equals("moof") || type.equals("mvex")) {
+					throw new IOException("Mp4Trimmer: fragmented mp4 is not supported");
+				} else if(type.equals("moov") || !isSkippedTopLevelBox(type)) {
+					if(size > Integer.MAX_VALUE) {
+						throw new IOException("Mp4Trimmer: box " + type + " is too large");
+					}
+					ByteBuffer payload = read(sourceChannel, position + headerSize, (int) (size - headerSize));
+					Box box = parseBox(type, payload);
+					if(type.equals("moov")) {
+						moov = box;
+					} else {
+						headerBoxes.add(box);
+					}
+				}
+				position += size;
+			}
+
+			if(moov == null) {
+				throw new IOException("Mp4Trimmer: moov box not found");
+			}
+			if(moov.find("mvex") != null) {
+				throw new IOException("Mp4Trimmer: fragmented mp4 is not supported");
+			}
+
+			Box mvhd = moov.require("mvhd");
+			long movieTimescale = readTimescale(mvhd);
+			List<Track> tracks = new ArrayList<>();
+			for(Box child : moov.children) {
+				if(child.type.equals("trak")) {
+					tracks.add(new Track(child));
+				}
+			}
+			if(tracks.isEmpty()) {
+				throw new IOException("Mp4Trimmer: no tracks found");
+			}
+
+			if(!cutTracks(tracks)) {
+				return false;
+			}
+
+			List<Chunk> chunks = new ArrayList<>();
+			for(Track track : tracks) {
+				track.collectKeptChunks(chunks);
+			}
+			Collections.sort(chunks, new Comparator<Chunk>() {
+				@Override
+				public int compare(Chunk lhs, Chunk rhs) {
+					return lhs.sourceOffset < rhs.sourceOffset ? -1 : (lhs.sourceOffset == rhs.sourceOffset ? 0 : 1);
+				}
+			});
+			long mdatPayloadSize = 0;
+			for(Chunk chunk : chunks) {
+				mdatPayloadSize += chunk.length;
+			}
+
+			long movieDuration = 0;
+			for(Track track : tracks) {
+				movieDuration = Math.max(movieDuration, track.rewriteDurations(movieTimescale));
+			}
+			writeDuration(mvhd, movieDuration, 16, 24);
+
+			long headerBoxesSize = 0;
+			for(Box box : headerBoxes) {
+				headerBoxesSize += box.size();
+			}
+
+			// the offsets do not change the size of the moov box, so it can be laid out before mdat and the offsets patched afterwards
+			boolean useLargeOffsets = false;
+			for(Track track : tracks) {
+				track.rewriteSampleTables(useLargeOffsets);
+			}
+			long mdatHeaderSize = mdatPayloadSize + 8 > MAX_UINT32 ? 16 : 8;
+			if(headerBoxesSize + moov.size() + mdatHeaderSize + mdatPayloadSize > MAX_UINT32) {
+				useLargeOffsets = true;
+				for(Track track : tracks) {
+					track.rewriteSampleTables(useLargeOffsets);
+				}
+			}
+
+			long outputOffset = headerBoxesSize + moov.size() + mdatHeaderSize;
+			for(Chunk chunk : chunks) {
+				chunk.track.chunkOffsets[chunk.index] = outputOffset;
+				outputOffset += chunk.length;
+			}
+			for(Track track : tracks) {
+				track.rewriteSampleTables(useLargeOffsets);
+			}
+
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream headerOutput = new DataOutputStream(headerBytes);
+			for(Box box : headerBoxes) {
+				box.write(headerOutput);
+			}
+			moov.write(headerOutput);
+			if(mdatHeaderSize == 16) {
+				headerOutput.writeInt(1);
+				writeType(headerOutput, "mdat");
+				headerOutput.writeLong(mdatPayloadSize + 16);
+			} else {
+				headerOutput.writeInt((int) (mdatPayloadSize + 8));
+				writeType(headerOutput, "mdat");
+			}
+			headerOutput.flush();
+
+			FileOutputStream destinationStream = new FileOutputStream(destination);
+			try {
+				FileChannel destinationChannel = destinationStream.getChannel();
+				ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+				while(headerBuffer.hasRemaining()) {
+					destinationChannel.write(headerBuffer);
+				}
+
+				// chunks that were adjacent in the source are copied in one transfer
+				int i = 0;
+				while(i < chunks.size()) {
+					long start = chunks.get(i).sourceOffset;
+					long end = start + chunks.get(i).length;
+					i++;
+					while(i < chunks.size() && chunks.get(i).sourceOffset == end) {
+						end += chunks.get(i).length;
+						i++;
+					}
+					transfer(sourceChannel, start, end - start, destinationChannel);
+				}
+			} finally {
+				destinationStream.close();
+			}
+			return true;
+		} finally {
+			sourceFile.close();
+		}
+	}
+
+
+	/**
+	 * finds the cut point on the reference (video) track and applies it to all tracks
+	 *
+	 * @param tracks all tracks of the movie
+	 * @return true if at least one track is longer than the limit and was cut, false otherwise
+	 */
+	private boolean cutTracks(List<Track> tracks) {
+		Track reference = tracks.get(0);
+		for(Track track : tracks) {
+			if(track.isVideo) {
+				reference = track;
+				break;
+			}
+		}
+
+		boolean isTooLong = false;
+		for(Track track : tracks) {
+			if(track.sampleTimes[track.sampleCount] * 1000 > mMaxDurationMillis * track.timescale) {
+				isTooLong = true;
+			}
+		}
+		if(!isTooLong) {
+			return false;
+		}
+
+		long limit = mMaxDurationMillis * reference.timescale / 1000;
+		int cut = 0;
+		for(int sample = 1; sample < reference.sampleCount && reference.sampleTimes[sample] <= limit; sample++) {
+			if(reference.isSyncSample(sample)) {
+				cut = sample;
+			}
+		}
+		if(cut == 0) {
+			// there is no other sync sample within the limit, cut at the limit itself
+			while(cut < reference.sampleCount && reference.sampleTimes[cut + 1] <= limit) {
+				cut++;
+			}
+		}
+
+		long cutTime = reference.sampleTimes[cut];
+		for(Track track : tracks) {
+			int kept = 0;
+			while(kept < track.sampleCount && track.sampleTimes[kept + 1] * reference.timescale <= cutTime * track.timescale) {
+				kept++;
+			}
+			track.keptSamples = kept;
+		}
+		return true;
+	}
+
+
+	private static boolean isSkippedTopLevelBox(String type) {
+		return type.equals("mdat") || type.equals("free") || type.equals("skip") || type.equals("wide");
+	}
+
+
+	private static Box parseBox(String type, ByteBuffer payload) throws IOException {
+		Box box = new Box(type);
+		if(!CONTAINER_BOXES.contains(type)) {
+			box.data = new byte[payload.remaining()];
+			payload.get(box.data);
+			return box;
+		}
+
+		box.children = new ArrayList<>();
+		while(payload.remaining() >= 8) {
+			long size = payload.getInt() & MAX_UINT32;
+			String childType = readType(payload);
+			int headerSize = 8;
+			if(size == 1) {
+				size = payload.getLong();
+				headerSize = 16;
+			} else if(size == 0) {
+				size = payload.remaining() + 8;
+			}
+			if(size < headerSize || size - headerSize > payload.remaining()) {
+				throw new IOException("Mp4Trimmer: malformed box " + childType);
+			}
+			ByteBuffer childPayload = payload.slice();
+			childPayload.limit((int) (size - headerSize));
+			payload.position(payload.position() + (int) (size - headerSize));
+			box.children.add(parseBox(childType, childPayload));
+		}
+		return box;
+	}
+
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Mp4Trimmer: unexpected end of file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+
+	private static void transfer(FileChannel source, long position, long length, FileChannel destination) throws IOException {
+		while(length > 0) {
+			long transferred = source.transferTo(position, length, destination);
+			if(transferred <= 0) {
+				throw new IOException("Mp4Trimmer: unexpected end of file");
+			}
+			position += transferred;
+			length -= transferred;
+		}
+	}
+
+
+	private static String readType(ByteBuffer buffer) {
+		char[] type = new char[4];
+		for(int i = 0; i < 4; i++) {
+			type[i] = (char) (buffer.get() & 0xff);
+		}
+		return new String(type);
+	}
+
+
+	private static void writeType(DataOutputStream output, String type) throws IOException {
+		for(int i = 0; i < 4; i++) {
+			output.writeByte(type.charAt(i));
+		}
+	}
+
+
+	/**
+	 * reads timescale from mvhd or mdhd box, both have the same layout up to the duration
+	 */
+	private static long readTimescale(Box box) {
+		ByteBuffer data = ByteBuffer.wrap(box.data);
+		return data.getInt(data.get(0) == 1 ? 20 : 12) & MAX_UINT32;
+	}
+
+
+	/**
+	 * writes duration to a full box where the duration is stored at the given offset for version 0 and version 1
+	 */
+	private static void writeDuration(Box box, long duration, int offsetVersion0, int offsetVersion1) {
+		ByteBuffer data = ByteBuffer.wrap(box.data);
+		if(data.get(0) == 1) {
+			data.putLong(offsetVersion1, duration);
+		} else {
+			data.putInt(offsetVersion0, (int) Math.min(duration, MAX_UINT32));
+		}
+	}
+
+
+	private static class Box {
+
+		String type;
+		byte[] data;
+		List<Box> children;
+
+
+		Box(String type) {
+			this.type = type;
+		}
+
+
+		Box find(String childType) {
+			if(children != null) {
+				for(Box child : children) {
+					if(child.type.equals(childType)) {
+						return child;
+					}
+				}
+			}
+			return null;
+		}
+
+
+		Box require(String childType) throws IOException {
+			Box child = find(childType);
+			if(child == null) {
+				throw new IOException("Mp4Trimmer: box " + childType + " not found in " + type);
+			}
+			return child;
+		}
+
+
+		long size() {
+			long size = 8;
+			if(children == null) {
+				size += data.length;
+			} else {
+				for(Box child : children) {
+					size += child.size();
+				}
+			}
+			return size;
+		}
+
+
+		void write(DataOutputStream output) throws IOException {
+			output.writeInt((int) size());
+			writeType(output, type);
+			if(children == null) {
+				output.write(data);
+			} else {
+				for(Box child : children) {
+					child.write(output);
+				}
+			}
+		}
+	}
+
+
+	private static class Chunk {
+
+		Track track;
+		int index;
+		long sourceOffset;
+		long length;
+	}
+
+
+	private static class Track {
+
+		Box tkhd;
+		Box mdhd;
+		Box elst;
+		Box stbl;
+		boolean isVideo;
+		long timescale;
+
+		int sampleCount;
+		long[] sampleTimes;
+		int[] sampleSizes;
+		int[] syncSamples;
+
+		long[] chunkOffsets;
+		int[] chunkFirstSamples;
+		int[] chunkSampleCounts;
+		int[] chunkDescriptionIndexes;
+
+		int keptSamples;
+		int keptChunks;
+
+
+		Track(Box trak) throws IOException {
+			tkhd = trak.require("tkhd");
+			Box edts = trak.find("edts");
+			elst = edts != null ? edts.find("elst") : null;
+			Box mdia = trak.require("mdia");
+			mdhd = mdia.require("mdhd");
+			timescale = readTimescale(mdhd);
+			if(timescale == 0) {
+				throw new IOException("Mp4Trimmer: track timescale is 0");
+			}
+			Box hdlr = mdia.find("hdlr");
+			isVideo = hdlr != null && hdlr.data.length >= 12 && readType(ByteBuffer.wrap(hdlr.data, 8, 4)).equals("vide");
+			stbl = mdia.require("minf").require("stbl");
+			if(stbl.find("stz2") != null) {
+				throw new IOException("Mp4Trimmer: compact sample sizes are not supported");
+			}
+
+			readSampleSizes(stbl.require("stsz"));
+			readSampleTimes(stbl.require("stts"));
+			readSyncSamples(stbl.find("stss"));
+			readChunks(stbl.require("stsc"), stbl.find("stco"), stbl.find("co64"));
+		}
+
+
+		boolean isSyncSample(int sample) {
+			return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+		}
+
+
+		private void readSampleSizes(Box stsz) {
+			ByteBuffer data = ByteBuffer.wrap(stsz.data);
+			int uniformSize = data.getInt(4);
+			sampleCount = data.getInt(8);
+			sampleSizes = new int[sampleCount];
+			for(int i = 0; i < sampleCount; i++) {
+				sampleSizes[i] = uniformSize != 0 ? uniformSize : data.getInt(12 + 4 * i);
+			}
+		}
+
+
+		private void readSampleTimes(Box stts) {
+			ByteBuffer data = ByteBuffer.wrap(stts.data);
+			int entryCount = data.getInt(4);
+			sampleTimes = new long[sampleCount + 1];
+			int sample = 0;
+			long time = 0;
+			for(int i = 0; i < entryCount && sample < sampleCount; i++) {
+				long count = data.getInt(8 + 8 * i) & MAX_UINT32;
+				long delta = data.getInt(12 + 8 * i) & MAX_UINT32;
+				for(long j = 0; j < count && sample < sampleCount; j++) {
+					sampleTimes[sample++] = time;
+					time += delta;
+				}
+			}
+			while(sample <= sampleCount) {
+				sampleTimes[sample++] = time;
+			}
+		}
+
+
+		private void readSyncSamples(Box stss) {
+			if(stss == null) {
+				return;
+			}
+			ByteBuffer data = ByteBuffer.wrap(stss.data);
+			syncSamples = new int[data.getInt(4)];
+			for(int i = 0; i < syncSamples.length; i++) {
+				syncSamples[i] = data.getInt(8 + 4 * i) - 1;
+			}
+			Arrays.sort(syncSamples);
+		}
+
+
+		private void readChunks(Box stsc, Box stco, Box co64) throws IOException {
+			Box offsets = stco != null ? stco : co64;
+			if(offsets == null) {
+				throw new IOException("Mp4Trimmer: chunk offsets not found");
+			}
+			ByteBuffer offsetData = ByteBuffer.wrap(offsets.data);
+			int chunkCount = offsetData.getInt(4);
+			chunkOffsets = new long[chunkCount];
+			for(int i = 0; i < chunkCount; i++) {
+				chunkOffsets[i] = stco != null ? offsetData.getInt(8 + 4 * i) & MAX_UINT32 : offsetData.getLong(8 + 8 * i);
+			}
+
+			ByteBuffer data = ByteBuffer.wrap(stsc.data);
+			int entryCount = data.getInt(4);
+			chunkFirstSamples = new int[chunkCount];
+			chunkSampleCounts = new int[chunkCount];
+			chunkDescriptionIndexes = new int[chunkCount];
+			int sample = 0;
+			for(int i = 0; i < entryCount; i++) {
+				int firstChunk = data.getInt(8 + 12 * i) - 1;
+				int lastChunk = i + 1 < entryCount ? data.getInt(8 + 12 * (i + 1)) - 1 : chunkCount;
+				int samplesPerChunk = data.getInt(12 + 12 * i);
+				int descriptionIndex = data.getInt(16 + 12 * i);
+				for(int chunk = Math.max(firstChunk, 0); chunk < Math.min(lastChunk, chunkCount); chunk++) {
+					chunkFirstSamples[chunk] = sample;
+					chunkSampleCounts[chunk] = samplesPerChunk;
+					chunkDescriptionIndexes[chunk] = descriptionIndex;
+					sample += samplesPerChunk;
+				}
+			}
+		}
+
+
+		void collectKeptChunks(List<Chunk> chunks) {
+			keptChunks = 0;
+			for(int i = 0; i < chunkOffsets.length && chunkFirstSamples[i] < keptSamples; i++) {
+				int count = Math.min(chunkSampleCounts[i], keptSamples - chunkFirstSamples[i]);
+				chunkSampleCounts[i] = count;
+				Chunk chunk = new Chunk();
+				chunk.track = this;
+				chunk.index = i;
+				chunk.sourceOffset = chunkOffsets[i];
+				for(int sample = chunkFirstSamples[i]; sample < chunkFirstSamples[i] + count; sample++) {
+					chunk.length += sampleSizes[sample];
+				}
+				chunks.add(chunk);
+				keptChunks++;
+			}
+		}
+
+
+		/**
+		 * updates mdhd, elst and tkhd durations to the kept samples
+		 *
+		 * @param movieTimescale timescale of the movie from mvhd
+		 * @return new duration of the track in the movie timescale
+		 */
+		long rewriteDurations(long movieTimescale) {
+			long mediaDuration = sampleTimes[keptSamples];
+			writeDuration(mdhd, mediaDuration, 16, 24);
+
+			long trackDuration = mediaDuration * movieTimescale / timescale;
+			if(elst != null) {
+				ByteBuffer data = ByteBuffer.wrap(elst.data);
+				boolean isVersion1 = data.get(0) == 1;
+				int entrySize = isVersion1 ? 20 : 12;
+				int entryCount = data.getInt(4);
+				long presented = 0;
+				int keptEntries = 0;
+				for(int i = 0; i < entryCount && presented < trackDuration; i++) {
+					int offset = 8 + entrySize * i;
+					long segmentDuration = isVersion1 ? data.getLong(offset) : data.getInt(offset) & MAX_UINT32;
+					segmentDuration = Math.min(segmentDuration, trackDuration - presented);
+					if(isVersion1) {
+						data.putLong(offset, segmentDuration);
+					} else {
+						data.putInt(offset, (int) segmentDuration);
+					}
+					presented += segmentDuration;
+					keptEntries++;
+				}
+				data.putInt(4, keptEntries);
+				elst.data = Arrays.copyOf(elst.data, 8 + entrySize * keptEntries);
+				trackDuration = presented;
+			}
+
+			writeDuration(tkhd, trackDuration, 20, 28);
+			return trackDuration;
+		}
+
+
+		/**
+		 * rebuilds the sample tables of the track so they describe only the kept samples
+		 *
+		 * @param useLargeOffsets true if co64 should be written instead of stco
+		 */
+		void rewriteSampleTables(boolean useLargeOffsets) throws IOException {
+			List<Box> children = new ArrayList<>();
+			for(Box child : stbl.children) {
+				if(child.type.equals("stco") || child.type.equals("co64")) {
+					children.add(writeChunkOffsets(useLargeOffsets));
+				} else if(child.type.equals("stts") || child.type.equals("ctts")) {
+					children.add(truncateRuns(child, 4, 8));
+				} else if(child.type.equals("sbgp")) {
+					children.add(truncateRuns(child, child.data[0] == 1 ? 12 : 8, 8));
+				} else if(child.type.equals("stsz")) {
+					children.add(truncateSampleSizes(child));
+				} else if(child.type.equals("stss")) {
+					children.add(truncateSyncSamples(child));
+				} else if(child.type.equals("stsc")) {
+					children.add(writeSampleToChunk());
+				} else if(child.type.equals("sdtp")) {
+					Box sdtp = new Box("sdtp");
+					sdtp.data = Arrays.copyOf(child.data, Math.min(child.data.length, 4 + keptSamples));
+					children.add(sdtp);
+				} else {
+					children.add(child);
+				}
+			}
+			stbl.children = children;
+		}
+
+
+		/**
+		 * truncates a run-length table (stts, ctts, sbgp) whose entries start with a sample count
+		 *
+		 * @param box        box with the table
+		 * @param countOffset offset of the entry count in the box payload
+		 * @param entrySize  size of one entry in bytes
+		 * @return new box with runs covering only the kept samples
+		 */
+		private Box truncateRuns(Box box, int countOffset, int entrySize) {
+			ByteBuffer data = ByteBuffer.wrap(box.data);
+			int entryCount = data.getInt(countOffset);
+			int entriesStart = countOffset + 4;
+			ByteBuffer result = ByteBuffer.allocate(entriesStart + entrySize * entryCount);
+			result.put(box.data, 0, entriesStart);
+			int remaining = keptSamples;
+			int keptEntries = 0;
+			for(int i = 0; i < entryCount && remaining > 0; i++) {
+				int offset = entriesStart + entrySize * i;
+				int count = (int) Math.min(data.getInt(offset) & MAX_UINT32, remaining);
+				result.putInt(count);
+				result.put(box.data, offset + 4, entrySize - 4);
+				remaining -= count;
+				keptEntries++;
+			}
+			result.putInt(countOffset, keptEntries);
+			Box truncated = new Box(box.type);
+			truncated.data = Arrays.copyOf(result.array(), entriesStart + entrySize * keptEntries);
+			return truncated;
+		}
+
+
+		private Box truncateSampleSizes(Box stsz) {
+			ByteBuffer data = ByteBuffer.wrap(stsz.data);
+			boolean isUniform = data.getInt(4) != 0;
+			Box truncated = new Box("stsz");
+			truncated.data = Arrays.copyOf(stsz.data, isUniform ? 12 : 12 + 4 * keptSamples);
+			ByteBuffer.wrap(truncated.data).putInt(8, keptSamples);
+			return truncated;
+		}
+
+
+		private Box truncateSyncSamples(Box stss) {
+			int kept = 0;
+			while(kept < syncSamples.length && syncSamples[kept] < keptSamples) {
+				kept++;
+			}
+			ByteBuffer result = ByteBuffer.allocate(8 + 4 * kept);
+			result.put(stss.data, 0, 4);
+			result.putInt(kept);
+			for(int i = 0; i < kept; i++) {
+				result.putInt(syncSamples[i] + 1);
+			}
+			Box truncated = new Box("stss");
+			truncated.data = result.array();
+			return truncated;
+		}
+
+
+		private Box writeSampleToChunk() {
+			ByteBuffer result = ByteBuffer.allocate(8 + 12 * keptChunks);
+			result.putInt(0);
+			result.putInt(0);
+			int entryCount = 0;
+			for(int i = 0; i < keptChunks; i++) {
+				if(i == 0 || chunkSampleCounts[i] != chunkSampleCounts[i - 1] || chunkDescriptionIndexes[i] != chunkDescriptionIndexes[i - 1]) {
+					result.putInt(i + 1);
+					result.putInt(chunkSampleCounts[i]);
+					result.putInt(chunkDescriptionIndexes[i]);
+					entryCount++;
+				}
+			}
+			result.putInt(4, entryCount);
+			Box stsc = new Box("stsc");
+			stsc.data = Arrays.copyOf(result.array(), 8 + 12 * entryCount);
+			return stsc;
+		}
+
+
+		private Box writeChunkOffsets(boolean useLargeOffsets) throws IOException {
+			ByteBuffer result = ByteBuffer.allocate(8 + (useLargeOffsets ? 8 : 4) * keptChunks);
+			result.putInt(0);
+			result.putInt(keptChunks);
+			for(int i = 0; i < keptChunks; i++) {
+				if(useLargeOffsets) {
+					result.putLong(chunkOffsets[i]);
+				} else {
+					result.putInt((int) chunkOffsets[i]);
+				}
+			}
+			Box offsets = new Box(useLargeOffsets ? "co64" : "stco");
+			offsets.data = result.array();
+			return offsets;
+		}
+	}
+}
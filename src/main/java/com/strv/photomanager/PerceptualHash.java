@@ -0,0 +1,129 @@
+package com.strv.photomanager;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+
+
+/**
+ * 64 bit difference hash (dHash) of an image: the luminance is averaged in a 9x9 grid and every bit tells whether a cell is darker
+ * than its right neighbour, so recompression, resizing and small edits flip only a few bits, near-duplicates are images whose hashes
+ * differ in at most about 10 bits, see distance
+ * <p/>
+ * the grid is read from evenly spaced whole rows of the bitmap, that is a fraction of the pixels the scaling already touched,
+ * the orientation is applied to the grid, so a rotation-free output hashes the same as its rotated version
+ */
+public class PerceptualHash {
+
+	private static final int GRID_SIZE = 9;
+	private static final int ROWS_PER_CELL = 8;
+
+
+	private PerceptualHash() {
+	}
+
+
+	/**
+	 * @param bitmap      bitmap of the image, e.g. the scaled output
+	 * @param orientation exif orientation of the bitmap, ORIENTATION_NORMAL if its pixels are upright
+	 * @return hash of the image as it's displayed
+	 */
+	public static long compute(Bitmap bitmap, int orientation) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		long[] sums = new long[GRID_SIZE * GRID_SIZE];
+		int[] counts = new int[GRID_SIZE * GRID_SIZE];
+		int[] row = new int[width];
+		for(int cellY = 0; cellY < GRID_SIZE; cellY++) {
+			int top = cellY * height / GRID_SIZE;
+			int bottom = Math.min(height, Math.max(top + 1, (cellY + 1) * height / GRID_SIZE));
+			int step = Math.max(1, (bottom - top) / ROWS_PER_CELL);
+			for(int y = top; y < bottom; y += step) {
+				bitmap.getPixels(row, 0, width, 0, y, width, 1);
+				for(int x = 0; x < width; x++) {
+					int pixel = row[x];
+					int cell = cellY * GRID_SIZE + x * GRID_SIZE / width;
+					// Rec. 601 luma scaled by 1000
+					sums[cell] += ((pixel >> 16) & 0xff) * 299 + ((pixel >> 8) & 0xff) * 587 + (pixel & 0xff) * 114;
+					counts[cell]++;
+				}
+			}
+		}
+
+		int[] luminance = new int[GRID_SIZE * GRID_SIZE];
+		for(int i = 0; i < luminance.length; i++) {
+			luminance[i] = counts[i] > 0 ? (int) (sums[i] / counts[i]) : 0;
+		}
+		return fromGrid(luminance, orientation);
+	}
+
+
+	/**
+	 * @return number of differing bits, 0 for the same image, about 32 for unrelated images
+	 */
+	public static int distance(long hash, long otherHash) {
+		return Long.bitCount(hash ^ otherHash);
+	}
+
+
+	/**
+	 * @param luminance   9x9 grid of the average luminance in the orientation of the pixels, row by row
+	 * @param orientation exif orientation of the pixels
+	 * @return hash of the upright grid
+	 */
+	static long fromGrid(int[] luminance, int orientation) {
+		long hash = 0;
+		for(int y = 0; y < GRID_SIZE - 1; y++) {
+			for(int x = 0; x < GRID_SIZE - 1; x++) {
+				int left = luminance[getSourceCell(x, y, orientation)];
+				int right = luminance[getSourceCell(x + 1, y, orientation)];
+				hash = hash << 1 | (left < right ? 1 : 0);
+			}
+		}
+		return hash;
+	}
+
+
+	/**
+	 * @return index of the cell of the stored grid that is displayed at x, y
+	 */
+	private static int getSourceCell(int x, int y, int orientation) {
+		int last = GRID_SIZE - 1;
+		int sourceX;
+		int sourceY;
+		switch(orientation) {
+			case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+				sourceX = last - x;
+				sourceY = y;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				sourceX = last - x;
+				sourceY = last - y;
+				break;
+			case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+				sourceX = x;
+				sourceY = last - y;
+				break;
+			case ExifInterface.ORIENTATION_TRANSPOSE:
+				sourceX = y;
+				sourceY = x;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				sourceX = y;
+				sourceY = last - x;
+				break;
+			case ExifInterface.ORIENTATION_TRANSVERSE:
+				sourceX = last - y;
+				sourceY = last - x;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				sourceX = last - y;
+				sourceY = x;
+				break;
+			default:
+				sourceX = x;
+				sourceY = y;
+				break;
+		}
+		return sourceY * GRID_SIZE + sourceX;
+	}
+}
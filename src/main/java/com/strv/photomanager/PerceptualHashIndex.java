@@ -0,0 +1,317 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * persistent index of the perceptual hashes of the recently scaled images, keyed by an id of the app (e.g. the upload id),
+ * it flags near-duplicates, e.g. from a burst, before they're uploaded, likely exact duplicates are found by MediaMetadata.getFingerprint
+ * <p/>
+ * the hashes are kept in a plain long array and a lookup compares all of them by the Hamming distance, which is a few microseconds
+ * for MAX_ENTRIES, the oldest images are dropped over that limit, the index is an append-only log like MediaMetadataIndex
+ * that is read lazily on the first call and compacted when it contains too many stale records
+ */
+public class PerceptualHashIndex {
+
+	/**
+	 * images whose hashes differ in at most this number of bits are near-duplicates
+	 */
+	public static final int DEFAULT_MAX_DISTANCE = 10;
+
+	public static final int MAX_ENTRIES = 4096;
+
+	private static final String INDEX_FILE_NAME = "photomanager_phash_index";
+	private static final int INDEX_VERSION = 1;
+	private static final int MIN_RECORDS_TO_COMPACT = 64;
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	private static PerceptualHashIndex sInstance;
+
+	private File mIndexFile;
+	private String[] mKeys;
+	private long[] mHashes;
+	private int mCount;
+	private int mRecordCount;
+
+
+	public static class Match {
+
+		private String mKey;
+		private long mHash;
+		private int mDistance;
+
+
+		Match(String key, long hash, int distance) {
+			mKey = key;
+			mHash = hash;
+			mDistance = distance;
+		}
+
+
+		/**
+		 * @return key under which the matching image was indexed
+		 */
+		public String getKey() {
+			return mKey;
+		}
+
+
+		public long getHash() {
+			return mHash;
+		}
+
+
+		/**
+		 * @return number of bits in which the hashes differ
+		 */
+		public int getDistance() {
+			return mDistance;
+		}
+	}
+
+
+	PerceptualHashIndex(File indexFile) {
+		mIndexFile = indexFile;
+	}
+
+
+	/**
+	 * returns the index shared by the whole app, the index file is stored in the files dir of the app
+	 *
+	 * @param context context of the app/activity
+	 * @return shared perceptual hash index
+	 */
+	public static synchronized PerceptualHashIndex getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new PerceptualHashIndex(new File(context.getApplicationContext().getFilesDir(), INDEX_FILE_NAME));
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * indexes the hash under the key, a hash already indexed under the key is replaced
+	 *
+	 * @param key  id of the image in the app
+	 * @param hash perceptual hash of the image, see PerceptualHash
+	 */
+	public synchronized void put(String key, long hash) {
+		ensureLoaded();
+		putEntry(key, hash);
+		appendRecord(RECORD_PUT, key, hash);
+	}
+
+
+	public synchronized void remove(String key) {
+		ensureLoaded();
+		if(removeEntry(key)) {
+			appendRecord(RECORD_REMOVE, key, 0);
+		}
+	}
+
+
+	/**
+	 * finds the indexed image nearest to the hash
+	 *
+	 * @param hash        perceptual hash of the image
+	 * @param maxDistance maximum number of differing bits, see DEFAULT_MAX_DISTANCE
+	 * @return nearest image within the distance, the most recent one of equally near images, null if there is none
+	 */
+	@Nullable
+	public synchronized Match findNearest(long hash, int maxDistance) {
+		ensureLoaded();
+		int nearest = -1;
+		int nearestDistance = maxDistance + 1;
+		for(int i = mCount - 1; i >= 0; i--) {
+			int distance = Long.bitCount(mHashes[i] ^ hash);
+			if(distance < nearestDistance) {
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+		return nearest != -1 ? new Match(mKeys[nearest], mHashes[nearest], nearestDistance) : null;
+	}
+
+
+	/**
+	 * finds all the indexed images within the distance of the hash
+	 *
+	 * @param hash        perceptual hash of the image
+	 * @param maxDistance maximum number of differing bits, see DEFAULT_MAX_DISTANCE
+	 * @return matching images from the most recent one
+	 */
+	public synchronized List<Match> findWithin(long hash, int maxDistance) {
+		ensureLoaded();
+		List<Match> matches = new ArrayList<>();
+		for(int i = mCount - 1; i >= 0; i--) {
+			int distance = Long.bitCount(mHashes[i] ^ hash);
+			if(distance <= maxDistance) {
+				matches.add(new Match(mKeys[i], mHashes[i], distance));
+			}
+		}
+		return matches;
+	}
+
+
+	/**
+	 * finds the nearest near-duplicate of the image and indexes the image, so the next image of a burst is matched against it
+	 *
+	 * @param key         id of the image in the app
+	 * @param hash        perceptual hash of the image
+	 * @param maxDistance maximum number of differing bits, see DEFAULT_MAX_DISTANCE
+	 * @return nearest other image within the distance, null if the image is not a near-duplicate
+	 */
+	@Nullable
+	public synchronized Match indexAndMatch(String key, long hash, int maxDistance) {
+		ensureLoaded();
+		// the previous hash under the same key is not a duplicate of the image
+		removeEntry(key);
+		Match match = findNearest(hash, maxDistance);
+		put(key, hash);
+		return match;
+	}
+
+
+	public synchronized int size() {
+		ensureLoaded();
+		return mCount;
+	}
+
+
+	private void putEntry(String key, long hash) {
+		removeEntry(key);
+		if(mCount == MAX_ENTRIES) {
+			removeAt(0);
+		}
+		mKeys[mCount] = key;
+		mHashes[mCount] = hash;
+		mCount++;
+	}
+
+
+	private boolean removeEntry(String key) {
+		for(int i = mCount - 1; i >= 0; i--) {
+			if(mKeys[i].equals(key)) {
+				removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private void removeAt(int index) {
+		// the entries stay in the order they were indexed, the oldest is dropped first
+		System.arraycopy(mKeys, index + 1, mKeys, index, mCount - index - 1);
+		System.arraycopy(mHashes, index + 1, mHashes, index, mCount - index - 1);
+		mCount--;
+		mKeys[mCount] = null;
+	}
+
+
+	private void ensureLoaded() {
+		if(mKeys != null) {
+			return;
+		}
+		mKeys = new String[MAX_ENTRIES];
+		mHashes = new long[MAX_ENTRIES];
+		mCount = 0;
+		mRecordCount = JournalReader.read(mIndexFile, INDEX_VERSION, new JournalReader.RecordHandler() {
+			@Override
+			public void onRecord(byte[] record) throws IOException {
+				DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+				byte type = recordInput.readByte();
+				String key = recordInput.readUTF();
+				long hash = recordInput.readLong();
+				if(type == RECORD_PUT) {
+					putEntry(key, hash);
+				} else {
+					removeEntry(key);
+				}
+			}
+		});
+
+		if(mRecordCount > MIN_RECORDS_TO_COMPACT && mRecordCount > 2 * mCount) {
+			try {
+				compact();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void appendRecord(byte type, String key, long hash) {
+		try {
+			if(mRecordCount > MIN_RECORDS_TO_COMPACT && mRecordCount > 2 * mCount) {
+				// the entries already contain the record
+				compact();
+				return;
+			}
+			boolean writeHeader = !mIndexFile.exists() || mIndexFile.length() == 0;
+			DataOutputStream output = new DataOutputStream(new FileOutputStream(mIndexFile, !writeHeader));
+			try {
+				if(writeHeader) {
+					output.writeInt(INDEX_VERSION);
+				}
+				writeRecord(output, type, key, hash);
+			} finally {
+				output.close();
+			}
+			mRecordCount++;
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * the compacted index is written to a temp file and renamed over the old one, so a process killed during the compaction keeps the old index
+	 */
+	private void compact() throws IOException {
+		File tempFile = new File(mIndexFile.getPath() + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(tempFile);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+		try {
+			output.writeInt(INDEX_VERSION);
+			for(int i = 0; i < mCount; i++) {
+				writeRecord(output, RECORD_PUT, mKeys[i], mHashes[i]);
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+		} finally {
+			output.close();
+		}
+		if(!tempFile.renameTo(mIndexFile)) {
+			tempFile.delete();
+			throw new IOException("PerceptualHashIndex: cannot replace the index");
+		}
+		mRecordCount = mCount;
+	}
+
+
+	private static void writeRecord(DataOutputStream output, byte type, String key, long hash) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream recordOutput = new DataOutputStream(bytes);
+		recordOutput.writeByte(type);
+		recordOutput.writeUTF(key);
+		recordOutput.writeLong(hash);
+		recordOutput.flush();
+		// the length prefix lets a partially written record be detected and cut off
+		output.writeInt(bytes.size());
+		bytes.writeTo(output);
+	}
+}
@@ -2,18 +2,19 @@ package com.strv.photomanager;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.LabeledIntent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.annotation.CheckResult;
 import android.support.annotation.Nullable;
@@ -21,6 +22,7 @@ import android.support.annotation.StringRes;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.util.Pair;
+import android.webkit.MimeTypeMap;
 
 import com.commonsware.cwac.cam2.CameraActivity;
 import com.commonsware.cwac.cam2.FlashMode;
@@ -32,6 +34,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -47,6 +50,7 @@ public class PhotoManager {
 	public static final int REQUEST_VIDEO_CAPTURE = 170;
 	public static final int REQUEST_PERMISSION_READ_EXTERNAL_STORAGE = 169;
 	public static final int REQUEST_PHOTO_VIDEO_CAPTURE = 171;
+	public static final int REQUEST_GALLERY_MULTIPLE = 172;
 	private static final long MAX_LENGTH = 15;
 	private static final int DEFAULT_VIDEO_LENGTH = 15000;
 
@@ -56,6 +60,11 @@ public class PhotoManager {
 	}
 
 
+	public interface OnCaptureLaunchedListener {
+		void onCaptureLaunched(@Nullable Uri uri);
+	}
+
+
 	/**
 	 * creates a camera chooser for camera with all the apps on the device that support taking pictures
 	 *
@@ -126,9 +135,9 @@ public class PhotoManager {
 
 
 	private static Intent getLabeledIntentForPhotoCamera(Context context, Intent intent) {
-		List<ResolveInfo> resInfo = context.getPackageManager().queryIntentActivities(intent, 0);
+		List<ResolveInfo> resInfo = IntentResolverCache.getInstance(context).getCustomPhotoCameraActivities();
 		String packageName = "";
-		if(resInfo != null && resInfo.isEmpty()) {
+		if(resInfo != null && !resInfo.isEmpty()) {
 			packageName = resInfo.get(0).activityInfo.packageName;
 		}
 		return new LabeledIntent(intent, packageName, R.string.camera, R.drawable.camera_icon);
@@ -174,9 +183,9 @@ public class PhotoManager {
 
 
 	private static Intent getLabeledIntentForVideoCamera(Context context, Intent intent) {
-		List<ResolveInfo> resInfo = context.getPackageManager().queryIntentActivities(intent, 0);
+		List<ResolveInfo> resInfo = IntentResolverCache.getInstance(context).getCustomVideoCameraActivities();
 		String packageName = "";
-		if(resInfo != null && resInfo.isEmpty()) {
+		if(resInfo != null && !resInfo.isEmpty()) {
 			packageName = resInfo.get(0).activityInfo.packageName;
 		}
 		return new LabeledIntent(intent, packageName, R.string.camcorder, R.drawable.camcorder_icon);
@@ -224,11 +233,11 @@ public class PhotoManager {
 	private static Intent makePhotoVideoCameraChooserIntent(Context context, Uri outputPhotoUri, Uri outputVideoUri, String cameraChooserTitle, int videoDurationLimit) {
 		// Array for all desired intents - photo cameras, video cameras, galleries
 		final List<Intent> cameraIntents = new ArrayList<>();
-		final PackageManager packageManager = context.getPackageManager();
+		final IntentResolverCache resolverCache = IntentResolverCache.getInstance(context);
 
 		// Photos
 		final Intent capturePhotoIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-		final List<ResolveInfo> listPhotoCam = packageManager.queryIntentActivities(capturePhotoIntent, PackageManager.MATCH_DEFAULT_ONLY);
+		final List<ResolveInfo> listPhotoCam = resolverCache.getPhotoCameraActivities();
 		for(ResolveInfo res : listPhotoCam) {
 			final String packageName = res.activityInfo.packageName;
 			final Intent intent = new Intent(capturePhotoIntent);
@@ -240,7 +249,7 @@ public class PhotoManager {
 
 		// Videos
 		final Intent captureVideoIntent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
-		final List<ResolveInfo> listVideoCam = packageManager.queryIntentActivities(captureVideoIntent, PackageManager.MATCH_DEFAULT_ONLY);
+		final List<ResolveInfo> listVideoCam = resolverCache.getVideoCameraActivities();
 		for(ResolveInfo res : listVideoCam) {
 			final String packageName = res.activityInfo.packageName;
 			final Intent intent = new Intent(captureVideoIntent);
@@ -310,6 +319,21 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * creates an Intent that when run will start an app that lets the user pick several images,
+	 * pickers older than Jelly Bean MR2 ignore EXTRA_ALLOW_MULTIPLE and return a single image
+	 *
+	 * @return Intent that when run will start an app that can pick several images
+	 */
+	private static Intent makeGalleryMultipleIntent() {
+		Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+		intent.setType("image/*");
+		intent.addCategory(Intent.CATEGORY_OPENABLE);
+		intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+		return intent;
+	}
+
+
 	/**
 	 * creates an app chooser for both camera and gallery apps
 	 *
@@ -348,7 +372,8 @@ public class PhotoManager {
 
 	/**
 	 * Creates file where an image will be later stored and returns an Uri for this image,
-	 * the file has a unique timestamp and is stored in the directory provided in the parameter
+	 * the file has a unique timestamp and is stored in the directory provided in the parameter,
+	 * it's only named in the directory prepared in background by MediaFileSlotPool if there is one
 	 *
 	 * @param context context of the app/activity
 	 * @param dirName name of the directory where the file should be stored
@@ -356,13 +381,14 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the file creation was not successful because of some I/O failure
 	 */
 	private static Uri createImageFileUri(Context context, String dirName) throws IOException {
-		return Uri.fromFile(createImageFile(context, dirName));
+		return Uri.fromFile(MediaFileSlotPool.getInstance(context).take(dirName, false));
 	}
 
 
 	/**
 	 * Creates file where an video will be later stored and returns an Uri for this video,
-	 * the file has a unique timestamp and is stored in the directory provided in the parameter
+	 * the file has a unique timestamp and is stored in the directory provided in the parameter,
+	 * it's only named in the directory prepared in background by MediaFileSlotPool if there is one
 	 *
 	 * @param context context of the app/activity
 	 * @param dirName name of the directory where the file should be stored
@@ -370,7 +396,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the file creation was not successful because of some I/O failure
 	 */
 	private static Uri createVideoFileUri(Context context, String dirName) throws IOException {
-		return Uri.fromFile(createVideoFile(context, dirName));
+		return Uri.fromFile(MediaFileSlotPool.getInstance(context).take(dirName, true));
 	}
 
 
@@ -427,15 +453,21 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the file creation was not successful because of some I/O failure
 	 */
 	private static File createMediaFile(Context context, String dirName, boolean createImageInCache, boolean isVideo) throws IOException {
-		// Create an image or video file name
-		String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-		String mediaFileName;
-		if(isVideo) {
-			mediaFileName = "MPG4_" + timeStamp + "_";
-		} else {
-			mediaFileName = "JPEG_" + timeStamp + "_";
-		}
+		return createMediaFileInDir(getMediaDir(context, dirName, createImageInCache, isVideo), isVideo);
+	}
+
 
+	/**
+	 * Resolves and creates the directory where images or videos are stored
+	 *
+	 * @param context            context of the app/activity
+	 * @param dirName            name of the directory where the file should be stored
+	 * @param createImageInCache flag if the directory should be in cache (if set to true) or in external storage (if set to false)
+	 * @param isVideo            flag if the directory is for images or videos
+	 * @return directory that exists on the device
+	 * @throws IOException is thrown if the directory cannot be resolved or created
+	 */
+	static File getMediaDir(Context context, String dirName, boolean createImageInCache, boolean isVideo) throws IOException {
 		File mediaDir;
 		String externalStorageState = Environment.getExternalStorageState();
 		if(createImageInCache) {
@@ -467,8 +499,43 @@ public class PhotoManager {
 		if(!(mkDirsOk || isDir)) {
 			throw new IOException("!(mkDirsOk || isDir)");
 		}
+		return storageDir;
+	}
+
 
-		if(isVideo) {
+	/**
+	 * Creates file with a unique timestamp in the given directory
+	 *
+	 * @param storageDir directory where the file should be created
+	 * @param isVideo    flag if the file should be created for image or video
+	 * @return File that was created
+	 * @throws IOException is thrown if the file creation was not successful because of some I/O failure
+	 */
+	static File createMediaFileInDir(File storageDir, boolean isVideo) throws IOException {
+		return createMediaFileInDir(storageDir, isVideo, null);
+	}
+
+
+	/**
+	 * Creates file with a unique timestamp and the given extension in the given directory
+	 *
+	 * @param storageDir directory where the file should be created
+	 * @param isVideo    flag if the file should be created for image or video
+	 * @param extension  extension of the file without the dot, e.g. from the mime type of the source, null for mp4 or jpg
+	 * @return File that was created
+	 * @throws IOException is thrown if the file creation was not successful because of some I/O failure
+	 */
+	static File createMediaFileInDir(File storageDir, boolean isVideo, @Nullable String extension) throws IOException {
+		// Create an image or video file name
+		String mediaFileName = getMediaFilePrefix(isVideo);
+
+		if(extension != null) {
+			return File.createTempFile(
+					mediaFileName,    /* prefix */
+					"." + extension,  /* suffix */
+					storageDir        /* directory */
+			);
+		} else if(isVideo) {
 			return File.createTempFile(
 					mediaFileName,  /* prefix */
 					".mp4",         /* suffix */
@@ -485,6 +552,16 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * @param isVideo flag if the name is for image or video
+	 * @return start of the name of a media file with the current timestamp
+	 */
+	static String getMediaFilePrefix(boolean isVideo) {
+		String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+		return (isVideo ? "MPG4_" : "JPEG_") + timeStamp + "_";
+	}
+
+
 	/**
 	 * Creates file where an image will be later stored, the file has a unique timestamp and is stored in the directory provided in the parameter
 	 *
@@ -553,22 +630,66 @@ public class PhotoManager {
 	}
 
 
-	private static long getVideoLength(File videoFile) {
-		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-		retriever.setDataSource(videoFile.getAbsolutePath());
-		String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-		long timeInMillis = Long.parseLong(time);
-		return TimeUnit.MILLISECONDS.toSeconds(timeInMillis);
+	/**
+	 * gets the length of the video, known videos are answered from the metadata index without opening MediaMetadataRetriever
+	 *
+	 * @param context   context of the app/activity
+	 * @param videoFile video file
+	 * @return length of the video in seconds, -1 if the length cannot be read
+	 */
+	private static long getVideoLength(Context context, File videoFile) {
+		long timeInMillis = MediaMetadataIndex.getInstance(context).getVideoMetadata(videoFile).getDurationMillis();
+		return timeInMillis == MediaMetadata.UNKNOWN_DURATION ? -1 : TimeUnit.MILLISECONDS.toSeconds(timeInMillis);
+	}
+
+
+	/**
+	 * trims the video to MAX_LENGTH seconds into a new file in the cache dir if it is longer, the samples are not re-encoded
+	 * and the video file itself is never modified, it may be the user's original in the gallery,
+	 * only ISO base media files (mp4, 3gp, mov) are trimmed, other containers are kept as they are
+	 *
+	 * @param context   context of the app/activity
+	 * @param videoFile video file that should be trimmed
+	 * @return trimmed copy of the video if it was longer than MAX_LENGTH, null if it wasn't trimmed
+	 */
+	@Nullable
+	private static File trimVideoFile(Context context, File videoFile) {
+		long length = getVideoLength(context, videoFile);
+		if(length >= 0 && length < MAX_LENGTH) {
+			return null;
+		}
+		if(!Mp4Trimmer.isIsoBaseMedia(videoFile)) {
+			return null;
+		}
+
+		File trimmedFile = null;
+		boolean trimmed = false;
+		try {
+			trimmedFile = createMediaFile(context, getDefaultDir(context), true, true);
+			trimmed = new Mp4Trimmer(TimeUnit.SECONDS.toMillis(MAX_LENGTH)).trim(videoFile, trimmedFile);
+			return trimmed ? trimmedFile : null;
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if(!trimmed && trimmedFile != null) {
+				trimmedFile.delete();
+			}
+		}
 	}
 
 
 	/**
-	 * publishes photo to phone's photo gallery without a need of permission
+	 * publishes photo or video to phone's photo gallery without a need of permission, files are published in batches by MediaScanPublisher
 	 *
 	 * @param context      context of the app/activity
 	 * @param mediaFileUri uri of the file that should be made public in the phone's gallery
 	 */
-	private static void publishMediaToSystemGallery(Context context, Uri mediaFileUri) {
+	static void publishMediaToSystemGallery(Context context, Uri mediaFileUri) {
+		if("file".equals(mediaFileUri.getScheme())) {
+			MediaScanPublisher.getInstance(context).publish(getFileFromUri(mediaFileUri), null);
+			return;
+		}
 		Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
 		mediaScanIntent.setData(mediaFileUri);
 		context.sendBroadcast(mediaScanIntent);
@@ -605,6 +726,42 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * resolves camera, video camera and gallery apps installed on the device on a background thread,
+	 * should be called at app start so the launch methods don't have to query the package manager on the main thread
+	 *
+	 * @param context context of the app/activity
+	 */
+	public static void prewarmIntentResolution(Context context) {
+		IntentResolverCache.getInstance(context).prewarm();
+	}
+
+
+	/**
+	 * calibrates the scaling strategy of the device on a background thread if it's not calibrated yet,
+	 * should be called when the app is idle, the scalings use the default strategy until the calibration finishes
+	 *
+	 * @param context context of the app/activity
+	 */
+	public static void calibrateScaling(Context context) {
+		ScalingCalibrator.getInstance(context).calibrateInBackground(null);
+	}
+
+
+	/**
+	 * calibrates the scaling strategy like calibrateScaling(Context), the RGB_565 decoding can be picked only if the app allows it,
+	 * it halves the memory of the bitmaps but bands smooth gradients
+	 *
+	 * @param context      context of the app/activity
+	 * @param allowRgb565 true if the calibration may pick the RGB_565 decoding
+	 */
+	public static void calibrateScaling(Context context, boolean allowRgb565) {
+		ScalingCalibrator calibrator = ScalingCalibrator.getInstance(context);
+		calibrator.setRgb565Allowed(allowRgb565);
+		calibrator.calibrateInBackground(null);
+	}
+
+
 	/**
 	 * launches a camera app that is installed on the phone, launches an app picker if more options are available
 	 *
@@ -615,6 +772,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the image file creation was not successful
 	 */
 	public static Uri launchCameraOnly(Fragment fragment, String cameraChooserTitle, String galleryDirName) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createImageFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -623,11 +781,92 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeCameraChooserIntent(uri, cameraChooserTitle);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_IMAGE_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO, launchTime, uri);
 
 		return uri;
 	}
 
 
+	/**
+	 * prepares the directories of captured images and videos on a background thread, so the next launch doesn't touch the storage on the main thread
+	 *
+	 * @param context        context of the app/activity
+	 * @param galleryDirName name of directory where the captured pictures and videos are supposed to be stored
+	 */
+	public static void prepareCaptureSlots(Context context, String galleryDirName) {
+		MediaFileSlotPool.getInstance(context).prepare(galleryDirName);
+	}
+
+
+	/**
+	 * prepares the directories of captured images and videos on a background thread, so the next launch doesn't touch the storage on the main thread
+	 * the directory name where the media is stored is based on the package name of the app using this PhotoManager
+	 *
+	 * @param context context of the app/activity
+	 */
+	public static void prepareCaptureSlots(Context context) {
+		prepareCaptureSlots(context, getDefaultDir(context));
+	}
+
+
+	/**
+	 * launches a camera app that is installed on the phone, launches an app picker if more options are available,
+	 * the output file is prepared off the main thread if there is no prepared file yet
+	 *
+	 * @param fragment           fragment calling the camera intent
+	 * @param cameraChooserTitle title of the camera app chooser
+	 * @param galleryDirName     name of directory where the taken picture is supposed to be stored
+	 * @param listener           listener that receives Uri where the captured image will be stored, or null if the file creation was not successful
+	 */
+	public static void launchCameraOnlyAsync(Fragment fragment, final String cameraChooserTitle, String galleryDirName, OnCaptureLaunchedListener listener) {
+		new PrepareCaptureAsyncTask(fragment, galleryDirName, false, REQUEST_IMAGE_CAPTURE, listener) {
+			@Override
+			protected Intent makeLaunchIntent(Uri uri) {
+				return makeCameraChooserIntent(uri, cameraChooserTitle);
+			}
+		}.start();
+	}
+
+
+	/**
+	 * launches a video camera app that is installed on the phone, launches an app picker if more options are available,
+	 * the output file is prepared off the main thread if there is no prepared file yet
+	 *
+	 * @param fragment           fragment calling the camera intent
+	 * @param cameraChooserTitle title of the camera app chooser
+	 * @param videoDurationLimit limit the video duration in seconds, if set to 0, there's no limitation
+	 * @param galleryDirName     name of directory where the taken video is supposed to be stored
+	 * @param listener           listener that receives Uri where the captured video will be stored, or null if the file creation was not successful
+	 */
+	public static void launchVideoCameraOnlyAsync(Fragment fragment, final String cameraChooserTitle, final int videoDurationLimit, String galleryDirName, OnCaptureLaunchedListener listener) {
+		new PrepareCaptureAsyncTask(fragment, galleryDirName, true, REQUEST_VIDEO_CAPTURE, listener) {
+			@Override
+			protected Intent makeLaunchIntent(Uri uri) {
+				return makeVideoCameraChooserIntent(uri, cameraChooserTitle, videoDurationLimit);
+			}
+		}.start();
+	}
+
+
+	/**
+	 * launches an app picker with all camera and gallery apps installed on the device,
+	 * the output file for the camera is prepared off the main thread if there is no prepared file yet
+	 *
+	 * @param fragment           fragment starting the camera/gallery app
+	 * @param cameraChooserTitle title of the app chooser
+	 * @param galleryDirName     directory name of the gallery where the picture from camera is supposed to be stored
+	 * @param listener           listener that receives Uri where the captured image from camera will be stored, or null if the file creation was not successful
+	 */
+	public static void launchCameraGalleryAsync(final Fragment fragment, final String cameraChooserTitle, String galleryDirName, OnCaptureLaunchedListener listener) {
+		new PrepareCaptureAsyncTask(fragment, galleryDirName, false, REQUEST_IMAGE_CAPTURE, listener) {
+			@Override
+			protected Intent makeLaunchIntent(Uri uri) {
+				return makeCameraGalleryChooserIntent(uri, cameraChooserTitle, fragment.getContext());
+			}
+		}.start();
+	}
+
+
 	/**
 	 * launches a camera app that is installed on the phone, launches an app picker if more options are available
 	 * the directory name where the image is stored is based on the package name of the app using this PhotoManager
@@ -665,6 +904,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the image file creation was not successful
 	 */
 	public static Uri launchCustomCameraOnly(Fragment fragment, String galleryDirName) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createImageFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -673,6 +913,7 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeCustomCameraIntent(uri, fragment.getContext());
 		fragment.startActivityForResult(cameraLauncher, REQUEST_IMAGE_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO, launchTime, uri);
 
 		return uri;
 	}
@@ -689,6 +930,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the video file creation was not successful
 	 */
 	public static Uri launchVideoCameraOnly(Fragment fragment, String cameraChooserTitle, int videoDurationLimit, String galleryDirName) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createVideoFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -697,6 +939,7 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeVideoCameraChooserIntent(uri, cameraChooserTitle, videoDurationLimit);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_VIDEO_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_VIDEO, launchTime, uri);
 
 		return uri;
 	}
@@ -742,6 +985,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the video file creation was not successful
 	 */
 	public static Uri launchCustomVideoCameraOnly(Fragment fragment, int videoDurationLimit, String galleryDirName) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createVideoFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -750,6 +994,7 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeCustomVideoCameraIntent(uri, videoDurationLimit, fragment.getContext());
 		fragment.startActivityForResult(cameraLauncher, REQUEST_VIDEO_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_VIDEO, launchTime, uri);
 
 		return uri;
 	}
@@ -766,6 +1011,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the video file creation was not successful
 	 */
 	public static Pair<Uri, Uri> launchPhotoVideoCameraGallery(Fragment fragment, String cameraChooserTitle, String galleryDirName, int videoDurationLimit) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri videoUri = createVideoFileUri(fragment.getContext(), galleryDirName);
 		Uri photoUri = createImageFileUri(fragment.getContext(), galleryDirName);
 		if(videoUri == null || photoUri == null) {
@@ -774,6 +1020,7 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeCustomPhotoVideoCameraChooserIntent(fragment.getContext(), photoUri, videoUri, cameraChooserTitle, videoDurationLimit);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_PHOTO_VIDEO_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO_VIDEO, launchTime, photoUri, videoUri);
 
 		return new Pair<>(photoUri, videoUri);
 	}
@@ -790,6 +1037,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the video file creation was not successful
 	 */
 	public static Pair<Uri, Uri> launchCustomPhotoVideoCameraGallery(Fragment fragment, String cameraChooserTitle, String galleryDirName, int videoDurationLimit) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri videoUri = createVideoFileUri(fragment.getContext(), galleryDirName);
 		Uri photoUri = createImageFileUri(fragment.getContext(), galleryDirName);
 		if(videoUri == null || photoUri == null) {
@@ -798,6 +1046,7 @@ public class PhotoManager {
 
 		Intent cameraLauncher = makeCustomPhotoVideoCameraChooserIntent(fragment.getContext(), photoUri, videoUri, cameraChooserTitle, videoDurationLimit);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_PHOTO_VIDEO_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO_VIDEO, launchTime, photoUri, videoUri);
 
 		return new Pair<>(photoUri, videoUri);
 	}
@@ -884,6 +1133,31 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * launches an image picker in which the user can select several images, the result is delivered with REQUEST_GALLERY_MULTIPLE,
+	 * see onActivityResultMultiple
+	 *
+	 * @param fragment            fragment that started the gallery picker
+	 * @param galleryChooserTitle title of the app chooser for the case when there are more gallery apps installed on the device
+	 */
+	public static void launchGalleryMultiple(Fragment fragment, String galleryChooserTitle) {
+		Intent galleryLauncher = Intent.createChooser(makeGalleryMultipleIntent(), galleryChooserTitle);
+		fragment.startActivityForResult(galleryLauncher, REQUEST_GALLERY_MULTIPLE);
+	}
+
+
+	/**
+	 * launches an image picker in which the user can select several images, the result is delivered with REQUEST_GALLERY_MULTIPLE,
+	 * see onActivityResultMultiple
+	 *
+	 * @param fragment                 fragment that started the gallery picker
+	 * @param galleryChooserTitleResId string resolution id of the title of the app chooser
+	 */
+	public static void launchGalleryMultiple(Fragment fragment, @StringRes int galleryChooserTitleResId) {
+		launchGalleryMultiple(fragment, fragment.getString(galleryChooserTitleResId));
+	}
+
+
 	/**
 	 * launches gallery from which the user can pick an image
 	 *
@@ -918,6 +1192,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the file creation for captured image has failed
 	 */
 	public static Uri launchCameraGallery(Fragment fragment, String cameraChooserTitle, String galleryDirName, Context context) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createImageFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -926,6 +1201,7 @@ public class PhotoManager {
 
 		final Intent cameraLauncher = makeCameraGalleryChooserIntent(uri, cameraChooserTitle, context);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_IMAGE_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO, launchTime, uri);
 
 		return uri;
 	}
@@ -942,6 +1218,7 @@ public class PhotoManager {
 	 * @throws IOException is thrown if the file creation for captured image has failed
 	 */
 	public static Uri launchCustomCameraGallery(Fragment fragment, String cameraChooserTitle, String galleryDirName, Context context) throws IOException {
+		long launchTime = SystemClock.elapsedRealtime();
 		Uri uri = createImageFileUri(fragment.getContext(), galleryDirName);
 
 		if(uri == null) {
@@ -950,6 +1227,7 @@ public class PhotoManager {
 
 		final Intent cameraLauncher = makeCustomCameraGalleryChooserIntent(uri, cameraChooserTitle, context);
 		fragment.startActivityForResult(cameraLauncher, REQUEST_IMAGE_CAPTURE);
+		CaptureTracer.getInstance().traceLaunch(CaptureSession.KIND_PHOTO, launchTime, uri);
 
 		return uri;
 	}
@@ -1037,7 +1315,26 @@ public class PhotoManager {
 	 *                           on the Uri - this needs to be handled on Marshmallow and newer devices to prompt the user to grant the permission
 	 */
 	public static Uri loadFileFromUri(final Context context, Uri uri, boolean isPhoto, OnFileFromUriExtractedListener listener) throws SecurityException {
+		return loadFileFromUri(context, uri, isPhoto, null, null, listener);
+	}
+
+
+	/**
+	 * loads File from Uri like loadFileFromUri(Context, Uri, boolean, OnFileFromUriExtractedListener) with the import bound to the lifecycle
+	 * of the binder's owner, the import is cancelled when the owner is destroyed and the recreated owner gets the File
+	 * after a configuration change through binder.reattach(jobKey, listener)
+	 *
+	 * @param context  context of the app or activity
+	 * @param uri      Uri from which the File should be extracted
+	 * @param isPhoto  indicator of type of file
+	 * @param binder   binder of the owner, see MediaJobBinder.get
+	 * @param jobKey   key of the import in the binder
+	 * @param listener listener to provide the resulting File
+	 * @throws SecurityException is thrown if the user doesn't have a permission to read the Uri
+	 */
+	public static Uri loadFileFromUri(final Context context, Uri uri, boolean isPhoto, @Nullable MediaJobBinder binder, @Nullable String jobKey, OnFileFromUriExtractedListener listener) throws SecurityException {
 		Uri fileUri = uri;
+		CaptureSession.Span importSpan = CaptureTracer.getInstance().startSpan(uri, CaptureTracer.SPAN_IMPORT);
 		//in case of the image was saved from camera
 		if(uri.getScheme().equals("file")) {
 			File file = getFileFromUri(uri);
@@ -1045,8 +1342,18 @@ public class PhotoManager {
 			if(!file.canRead() && file.exists()) {
 				throw new SecurityException();
 			}
-			if(listener != null) {
-				listener.onFileFromUriExtracted(file, false);
+			if(!isPhoto) {
+				TrimVideoAsyncTask task = new TrimVideoAsyncTask(context, importSpan, listener);
+				if(binder != null) {
+					binder.bind(jobKey, task, listener);
+				}
+				task.execute(file);
+			} else {
+				// the session is already bound to the file through its Uri
+				CaptureTracer.endSpan(importSpan);
+				if(listener != null) {
+					listener.onFileFromUriExtracted(file, false);
+				}
 			}
 
 		} //in case the image was saved from gallery
@@ -1059,13 +1366,112 @@ public class PhotoManager {
 			}
 			if(i != null) {
 				BufferedInputStream bufferedInputStream = new BufferedInputStream(i);
-				new LoadFileFromInputStreamAsyncTask(context, listener).execute(bufferedInputStream);
+				LoadFileFromInputStreamAsyncTask task = new LoadFileFromInputStreamAsyncTask(context, isPhoto, getExtensionFromUri(context, uri), importSpan, listener);
+				if(binder != null) {
+					binder.bind(jobKey, task, listener);
+				}
+				task.execute(bufferedInputStream);
+			} else if(importSpan != null) {
+				CaptureTracer.getInstance().finishSession(importSpan.getSession(), CaptureSession.OUTCOME_FAILED);
 			}
 		}
 		return fileUri;
 	}
 
 
+	/**
+	 * resolves the extension of the content behind the Uri from its mime type, e.g. a picked video may be webm or 3gp
+	 *
+	 * @param context context of the app/activity
+	 * @param uri     Uri with a 'content' scheme
+	 * @return extension without the dot, null if the mime type is not known
+	 */
+	@Nullable
+	static String getExtensionFromUri(Context context, Uri uri) {
+		String mimeType = context.getContentResolver().getType(uri);
+		return mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+	}
+
+
+	/**
+	 * copies an input stream to a new file in the cache dir, the input stream is closed afterwards,
+	 * photos are encrypted if EncryptedMediaStore is enabled
+	 *
+	 * @param context     context of the app/activity necessary to create a file
+	 * @param inputStream input stream from which the file is supposed to be created
+	 * @param isPhoto     indicator of type of file
+	 * @return file with the content of the input stream
+	 * @throws IOException is thrown if the file cannot be created or the stream cannot be read
+	 */
+	static File copyToCacheFile(Context context, InputStream inputStream, boolean isPhoto) throws IOException {
+		return copyToCacheFile(context, inputStream, isPhoto, null);
+	}
+
+
+	/**
+	 * copies an input stream to a new file in the cache dir like copyToCacheFile(Context, InputStream, boolean)
+	 * and writes every read block to the tee as well, the tee is not closed
+	 *
+	 * @param context     context of the app/activity necessary to create a file
+	 * @param inputStream input stream from which the file is supposed to be created
+	 * @param isPhoto     indicator of type of file
+	 * @param tee         stream that gets a copy of the data, e.g. for a concurrent decoder, can be null
+	 * @return file with the content of the input stream
+	 * @throws IOException is thrown if the file cannot be created or the stream cannot be read
+	 */
+	static File copyToCacheFile(Context context, InputStream inputStream, boolean isPhoto, @Nullable OutputStream tee) throws IOException {
+		return copyToCacheFile(context, inputStream, isPhoto, null, tee);
+	}
+
+
+	/**
+	 * copies an input stream to a new file with the given extension in the cache dir like copyToCacheFile(Context, InputStream, boolean, OutputStream)
+	 *
+	 * @param context     context of the app/activity necessary to create a file
+	 * @param inputStream input stream from which the file is supposed to be created
+	 * @param isPhoto     indicator of type of file
+	 * @param extension   extension of the file without the dot, see getExtensionFromUri, null for mp4 or jpg
+	 * @param tee         stream that gets a copy of the data, e.g. for a concurrent decoder, can be null
+	 * @return file with the content of the input stream
+	 * @throws IOException is thrown if the file cannot be created or the stream cannot be read
+	 */
+	static File copyToCacheFile(Context context, InputStream inputStream, boolean isPhoto, @Nullable String extension, @Nullable OutputStream tee) throws IOException {
+		try {
+			File file = createMediaFileInDir(getMediaDir(context, getDefaultDir(context), true, !isPhoto), !isPhoto, extension);
+
+			// videos stay plaintext, they are passed by path to MediaMetadataRetriever, Mp4Trimmer and players
+			EncryptedMediaStore encryptedStore = EncryptedMediaStore.getInstance(context);
+			OutputStream output = isPhoto && encryptedStore.isEnabled() ? encryptedStore.openOutputStream(file) : new FileOutputStream(file);
+			boolean success = false;
+			try {
+				byte[] buffer = new byte[4 * 1024];
+				int read;
+
+				while((read = inputStream.read(buffer)) != -1) {
+					// safe point, e.g. the import was cancelled by MediaJobBinder
+					if(Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException("PhotoManager: copy interrupted");
+					}
+					output.write(buffer, 0, read);
+					if(tee != null) {
+						tee.write(buffer, 0, read);
+					}
+				}
+				output.flush();
+				success = true;
+			} finally {
+				output.close();
+				if(!success) {
+					file.delete();
+				}
+			}
+			return file;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+
 	/**
 	 * helper method that wraps up everything that needs to be done in fragment's onActivityResult after taking a picture/picking a picture from a gallery
 	 *
@@ -1080,10 +1486,33 @@ public class PhotoManager {
 	 */
 	@CheckResult
 	public static Uri onActivityResult(final Fragment fragment, int requestCode, int resultCode, Intent data, Uri mediaUri, OnFileFromUriExtractedListener listener) {
+		return onActivityResult(fragment, requestCode, resultCode, data, mediaUri, null, listener);
+	}
+
+
+	/**
+	 * helper method like onActivityResult(Fragment, int, int, Intent, Uri, OnFileFromUriExtractedListener) with the import bound
+	 * to the fragment through MediaJobBinder, the import is cancelled when the fragment is destroyed, after a configuration change
+	 * the recreated fragment gets the file by calling MediaJobBinder.get(this).reattach(jobKey, listener) e.g. in onCreate
+	 *
+	 * @param fragment    fragment that calls this method
+	 * @param requestCode request code with which the onActivityResult method in fragment was called
+	 * @param resultCode  result code with which the onActivityResult method in fragment was called
+	 * @param data        data of onActivityResult in fragment
+	 * @param mediaUri    photo Uri stored in the fragment, see onActivityResult(Fragment, int, int, Intent, Uri, OnFileFromUriExtractedListener)
+	 * @param jobKey      key of the import in the binder of the fragment, null to not bind the import
+	 * @param listener    callback listener that provides the file
+	 * @return photoUri if the file can be created from uri, null if something failed or if the permission to read uri was not granted
+	 */
+	@CheckResult
+	public static Uri onActivityResult(final Fragment fragment, int requestCode, int resultCode, Intent data, Uri mediaUri, @Nullable String jobKey, OnFileFromUriExtractedListener listener) {
+		MediaJobBinder binder = jobKey != null ? MediaJobBinder.get(fragment) : null;
+		traceResult(resultCode, data, mediaUri);
 		//process request normally if the result was OK, if not, delete the temp file if it was created for a photo
 		if(resultCode == Activity.RESULT_OK) {
 			if(requestCode == PhotoManager.REQUEST_IMAGE_CAPTURE) {
 
+				boolean isCaptured = data == null || data.getData() == null || data.getData().equals(mediaUri);
 				//this happens if the picture is chosen from the gallery
 				if(data != null && data.getData() != null) {
 					//delete file on this Uri because a picture was chosen from gallery and therefore the temp file where the captured photo was supposed to be saved wasn't used
@@ -1095,8 +1524,11 @@ public class PhotoManager {
 
 				if(mediaUri == null) return null;
 
+				if(isCaptured) {
+					markCaptured(fragment.getContext(), mediaUri);
+				}
 				try {
-					loadFileFromUri(fragment.getContext(), mediaUri, true, listener);
+					loadFileFromUri(fragment.getContext(), mediaUri, true, binder, jobKey, listener);
 					PhotoManager.publishMediaToSystemGallery(fragment.getContext(), mediaUri);
 				} catch(SecurityException e) {
 					e.printStackTrace();
@@ -1107,7 +1539,8 @@ public class PhotoManager {
 			} else if(requestCode == PhotoManager.REQUEST_VIDEO_CAPTURE) {
 				if(mediaUri == null) return null;
 
-				mediaUri = loadFileFromUri(fragment.getContext(), mediaUri, false, listener);
+				markCaptured(fragment.getContext(), mediaUri);
+				mediaUri = loadFileFromUri(fragment.getContext(), mediaUri, false, binder, jobKey, listener);
 				return mediaUri;
 			} else {
 				return null;
@@ -1119,6 +1552,16 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * tells MediaMetadataIndex that a captured file is new, so its first scaling doesn't load and append to the persistent index
+	 */
+	private static void markCaptured(Context context, Uri mediaUri) {
+		if("file".equals(mediaUri.getScheme())) {
+			MediaMetadataIndex.getInstance(context).markCreated(getFileFromUri(mediaUri));
+		}
+	}
+
+
 	/**
 	 * helper method that wraps up everything that needs to be done in fragment's onActivityResult after taking a picture/picking a picture from a gallery
 	 *
@@ -1136,6 +1579,131 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * variant of onActivityResult that doesn't load the file, it returns a handle through which the caller can read metadata,
+	 * stream the media, decode a thumbnail or copy the media to a file only when it is needed
+	 *
+	 * @param fragment    fragment that calls this method
+	 * @param requestCode request code with which the onActivityResult method in fragment was called
+	 * @param resultCode  result code with which the onActivityResult method in fragment was called
+	 * @param data        data of onActivityResult in fragment
+	 * @param mediaUri    media Uri - needs to be stored in the fragment and provided from the fragment if the camera was chosen because this Uri is then not provided in the Intent of onActivityResult,
+	 *                    only gallery returns Uri in Intent of onActivityResult
+	 * @return handle of the media, null if something failed or if the permission to read uri was not granted (in this case a request for permission was automatically initiated)
+	 */
+	@CheckResult
+	@Nullable
+	public static MediaHandle onActivityResultAsHandle(Fragment fragment, int requestCode, int resultCode, Intent data, Uri mediaUri) {
+		traceResult(resultCode, data, mediaUri);
+		if(resultCode != Activity.RESULT_OK) {
+			deleteFileForUri(mediaUri);
+			return null;
+		}
+
+		boolean isPhoto;
+		if(requestCode == PhotoManager.REQUEST_IMAGE_CAPTURE) {
+			//this happens if the picture is chosen from the gallery
+			if(data != null && data.getData() != null) {
+				//delete file on this Uri because a picture was chosen from gallery and therefore the temp file where the captured photo was supposed to be saved wasn't used
+				if(mediaUri != null && !mediaUri.equals(data.getData())) {
+					deleteFileForUri(mediaUri);
+				}
+				mediaUri = data.getData();
+			}
+			isPhoto = true;
+		} else if(requestCode == PhotoManager.REQUEST_VIDEO_CAPTURE) {
+			isPhoto = false;
+		} else {
+			return null;
+		}
+
+		if(mediaUri == null) return null;
+
+		if(mediaUri.getScheme().equals("file")) {
+			File file = getFileFromUri(mediaUri);
+			if(!file.canRead() && file.exists()) {
+				checkReadExternalStoragePermission(fragment, REQUEST_PERMISSION_READ_EXTERNAL_STORAGE);
+				return null;
+			}
+		}
+		PhotoManager.publishMediaToSystemGallery(fragment.getContext(), mediaUri);
+		return new MediaHandle(fragment.getContext(), mediaUri, isPhoto);
+	}
+
+
+	/**
+	 * ends the capture span of the session started at the launch and binds the session to the picked Uri if the gallery was chosen,
+	 * a pick without a launch session (e.g. from launchGalleryOnly) starts a new one, a cancelled capture finishes the session
+	 */
+	private static void traceResult(int resultCode, @Nullable Intent data, @Nullable Uri mediaUri) {
+		CaptureTracer tracer = CaptureTracer.getInstance();
+		if(!tracer.isEnabled()) {
+			return;
+		}
+		Uri pickedUri = data != null ? data.getData() : null;
+		CaptureSession session = tracer.getSession(mediaUri);
+		if(session == null && pickedUri != null && resultCode == Activity.RESULT_OK) {
+			session = tracer.startSession(CaptureSession.KIND_PICK, SystemClock.elapsedRealtime());
+		}
+		CaptureTracer.endSpan(session, CaptureTracer.SPAN_CAPTURE);
+		if(resultCode != Activity.RESULT_OK) {
+			tracer.finishSession(session, CaptureSession.OUTCOME_CANCELLED);
+			return;
+		}
+		tracer.bind(session, pickedUri);
+	}
+
+
+	/**
+	 * reads all the Uris picked in a gallery, a multi-select picker returns them in ClipData, a single pick in the data Uri
+	 *
+	 * @param data data of onActivityResult in fragment
+	 * @return picked Uris, empty if nothing was picked
+	 */
+	public static List<Uri> getPickedUris(@Nullable Intent data) {
+		List<Uri> uris = new ArrayList<>();
+		if(data == null) {
+			return uris;
+		}
+		ClipData clipData = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? data.getClipData() : null;
+		if(clipData != null) {
+			for(int i = 0; i < clipData.getItemCount(); i++) {
+				Uri uri = clipData.getItemAt(i).getUri();
+				if(uri != null) {
+					uris.add(uri);
+				}
+			}
+		}
+		if(uris.isEmpty() && data.getData() != null) {
+			uris.add(data.getData());
+		}
+		return uris;
+	}
+
+
+	/**
+	 * helper method for fragment's onActivityResult after picking several images with launchGalleryMultiple,
+	 * the images are imported concurrently and every file is delivered to the listener as soon as it is ready
+	 *
+	 * @param fragment    fragment that calls this method
+	 * @param requestCode request code with which the onActivityResult method in fragment was called
+	 * @param resultCode  result code with which the onActivityResult method in fragment was called
+	 * @param data        data of onActivityResult in fragment
+	 * @param process     stage that processes every imported file, e.g. MediaStages.scaleToFile, can be null
+	 * @param listener    listener of the imported files and of the whole batch
+	 * @return picked Uris, null if the request is not a multiple pick or it was cancelled
+	 */
+	@Nullable
+	public static List<Uri> onActivityResultMultiple(Fragment fragment, int requestCode, int resultCode, Intent data, @Nullable MediaPipeline.Stage<File, File> process, MediaBatchImporter.OnBatchImportListener listener) {
+		if(requestCode != REQUEST_GALLERY_MULTIPLE || resultCode != Activity.RESULT_OK) {
+			return null;
+		}
+		List<Uri> uris = getPickedUris(data);
+		new MediaBatchImporter(fragment.getContext()).importUris(uris, true, process, listener);
+		return uris;
+	}
+
+
 	/**
 	 * deletes file at a given uri if the uri is not null and if the file exists
 	 *
@@ -1167,6 +1735,59 @@ public class PhotoManager {
 	}
 
 
+	/**
+	 * scales an image like scaleImageFile(Context, File, int, int, OnFileScaledListener) with the scaling bound to the lifecycle
+	 * of the binder's owner, the scaling is cancelled when the owner is destroyed and the recreated owner gets the scaled image
+	 * after a configuration change through binder.reattach(jobKey, listener)
+	 *
+	 * @param context   context of tha app/activity
+	 * @param imageFile image file that should be scaled
+	 * @param reqWidth  required width of the output image
+	 * @param reqHeight required height of the output image
+	 * @param binder    binder of the owner, see MediaJobBinder.get
+	 * @param jobKey    key of the scaling in the binder
+	 * @param listener  listener that will be used to provide the calling fragment the resulting scaled image
+	 */
+	public static void scaleImageFile(final Context context, final File imageFile, int reqWidth, int reqHeight, MediaJobBinder binder, String jobKey, ScaleImageAsyncTask.OnFileScaledListener listener) {
+		ScaleImageAsyncTask task = new ScaleImageAsyncTask(context, reqWidth, reqHeight, listener);
+		binder.bind(jobKey, task, listener);
+		task.execute(imageFile);
+	}
+
+
+	/**
+	 * scales and if necessary adjusts rotation an image to required width and height, a low resolution preview is delivered first
+	 * and the scaled image follows in the listener callback, both deliveries are timed
+	 *
+	 * @param context          context of tha app/activity
+	 * @param imageFile        image file that should be scaled
+	 * @param reqWidth         required width of the output image
+	 * @param reqHeight        required height of the output image
+	 * @param previewSize      required size of the longer side of the preview
+	 * @param progressListener listener that receives the preview and the timings
+	 * @param listener         listener that will be used to provide the calling fragment the resulting scaled image
+	 */
+	public static void scaleImageFile(final Context context, final File imageFile, int reqWidth, int reqHeight, int previewSize, ScaleImageAsyncTask.OnScaleProgressListener progressListener, ScaleImageAsyncTask.OnFileScaledListener listener) {
+		new ScaleImageAsyncTask(context, reqWidth, reqHeight, previewSize, progressListener, listener).execute(imageFile);
+	}
+
+
+	/**
+	 * scales and if necessary adjusts rotation an image to required width and height, a low resolution preview of DEFAULT_PREVIEW_SIZE is delivered first
+	 * and the scaled image follows in the listener callback, both deliveries are timed
+	 *
+	 * @param context          context of tha app/activity
+	 * @param imageFile        image file that should be scaled
+	 * @param reqWidth         required width of the output image
+	 * @param reqHeight        required height of the output image
+	 * @param progressListener listener that receives the preview and the timings
+	 * @param listener         listener that will be used to provide the calling fragment the resulting scaled image
+	 */
+	public static void scaleImageFile(final Context context, final File imageFile, int reqWidth, int reqHeight, ScaleImageAsyncTask.OnScaleProgressListener progressListener, ScaleImageAsyncTask.OnFileScaledListener listener) {
+		scaleImageFile(context, imageFile, reqWidth, reqHeight, ScaleImageAsyncTask.DEFAULT_PREVIEW_SIZE, progressListener, listener);
+	}
+
+
 	/**
 	 * Checks permission and if it is not granted, shows a dialog to deny/grant permission, if it was denied with 'don't show again' it shows a snackbar with a button to access settings
 	 *
@@ -1184,28 +1805,221 @@ public class PhotoManager {
 	}
 
 
-	//asynchronous loading of a File from InputStream
-	private static class LoadFileFromInputStreamAsyncTask extends AsyncTask<BufferedInputStream, Void, File> {
+	//asynchronous preparation of the capture output file followed by launching the capture intent on the main thread
+	private static abstract class PrepareCaptureAsyncTask extends AsyncTask<Void, Void, Uri> {
+
+		private Fragment mFragment;
+		private MediaFileSlotPool mSlotPool;
+		private String mDirName;
+		private boolean mIsVideo;
+		private int mRequestCode;
+		private OnCaptureLaunchedListener mListener;
+		private long mLaunchTime;
+
+
+		public PrepareCaptureAsyncTask(Fragment fragment, String dirName, boolean isVideo, int requestCode, OnCaptureLaunchedListener listener) {
+			mFragment = fragment;
+			mSlotPool = MediaFileSlotPool.getInstance(fragment.getContext());
+			mDirName = dirName;
+			mIsVideo = isVideo;
+			mRequestCode = requestCode;
+			mListener = listener;
+		}
+
+
+		protected abstract Intent makeLaunchIntent(Uri uri);
+
+
+		/**
+		 * launches the capture right away if the directory is prepared, otherwise creates the file in background first
+		 */
+		public void start() {
+			mLaunchTime = SystemClock.elapsedRealtime();
+			File slot = mSlotPool.poll(mDirName, mIsVideo);
+			if(slot != null) {
+				onPostExecute(Uri.fromFile(slot));
+			} else {
+				executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}
+		}
+
+
+		@Override
+		protected Uri doInBackground(Void... params) {
+			try {
+				return Uri.fromFile(mSlotPool.take(mDirName, mIsVideo));
+			} catch(IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
 
+		@Override
+		protected void onPostExecute(Uri uri) {
+			if(uri != null && !mFragment.isAdded()) {
+				// the fragment is gone, nobody would receive the result of the capture
+				deleteFileForUri(uri);
+				uri = null;
+			}
+			if(uri != null) {
+				mFragment.startActivityForResult(makeLaunchIntent(uri), mRequestCode);
+				CaptureTracer.getInstance().traceLaunch(mIsVideo ? CaptureSession.KIND_VIDEO : CaptureSession.KIND_PHOTO, mLaunchTime, uri);
+			}
+			if(mListener != null) {
+				mListener.onCaptureLaunched(uri);
+			}
+		}
+	}
+
+
+	//asynchronous import of a File delivered to OnFileFromUriExtractedListener, the task can be bound to a MediaJobBinder
+	private static abstract class ImportFileAsyncTask<P> extends AsyncTask<P, Void, File> implements MediaJobBinder.Job<OnFileFromUriExtractedListener> {
+
+		protected Context mContext;
+		protected CaptureSession.Span mImportSpan;
+		protected boolean mIsTrimmed;
 		private OnFileFromUriExtractedListener mListener;
-		private Context mContext;
+		private File mResult;
+		private boolean mHasResult;
+		private boolean mDelivered;
 
 
-		public LoadFileFromInputStreamAsyncTask(Context context, OnFileFromUriExtractedListener listener) {
+		public ImportFileAsyncTask(Context context, @Nullable CaptureSession.Span importSpan, OnFileFromUriExtractedListener listener) {
+			// the task can outlive the activity
+			mContext = context.getApplicationContext();
+			mImportSpan = importSpan;
 			mListener = listener;
-			mContext = context;
 		}
 
 
 		@Override
-		protected File doInBackground(BufferedInputStream... params) {
-			return getFileFromInputStream(mContext, params[0]);
+		public void attach(@Nullable OnFileFromUriExtractedListener listener) {
+			mListener = listener;
+			if(listener != null && mHasResult && !mDelivered) {
+				mDelivered = true;
+				listener.onFileFromUriExtracted(mResult, mIsTrimmed);
+			}
+		}
+
+
+		@Override
+		public void cancelJob() {
+			cancel(true);
+		}
+
+
+		@Override
+		public boolean isDone() {
+			return mDelivered || isCancelled();
 		}
 
 
 		@Override
 		protected void onPostExecute(File file) {
-			mListener.onFileFromUriExtracted(file, false);
+			mResult = file;
+			mHasResult = true;
+			if(mListener != null) {
+				mDelivered = true;
+				mListener.onFileFromUriExtracted(file, mIsTrimmed);
+			}
+		}
+	}
+
+
+	//asynchronous trimming of a video File that is already stored on the device
+	private static class TrimVideoAsyncTask extends ImportFileAsyncTask<File> {
+
+		public TrimVideoAsyncTask(Context context, @Nullable CaptureSession.Span importSpan, OnFileFromUriExtractedListener listener) {
+			super(context, importSpan, listener);
+		}
+
+
+		/**
+		 * the trim isn't interrupted, the captured video should end up trimmed in the gallery even if nobody waits for it
+		 */
+		@Override
+		public void cancelJob() {
+			cancel(false);
+		}
+
+
+		@Override
+		protected File doInBackground(File... params) {
+			// the gallery keeps the whole captured video, the app gets the trimmed copy from the cache dir
+			publishMediaToSystemGallery(mContext, Uri.fromFile(params[0]));
+			File trimmedFile = trimVideoFile(mContext, params[0]);
+			mIsTrimmed = trimmedFile != null;
+			if(mImportSpan != null) {
+				// videos are not scaled, the trimmed file is the end of the capture
+				mImportSpan.end();
+				CaptureTracer.getInstance().finishSession(mImportSpan.getSession(), CaptureSession.OUTCOME_READY);
+			}
+			return mIsTrimmed ? trimmedFile : params[0];
+		}
+
+
+		@Override
+		protected void onCancelled(File file) {
+			// only the trimmed copy belongs to the task, the source stays
+			if(mIsTrimmed && file != null) {
+				file.delete();
+			}
+		}
+	}
+
+
+	//asynchronous loading of a File from InputStream
+	private static class LoadFileFromInputStreamAsyncTask extends ImportFileAsyncTask<BufferedInputStream> {
+
+		private boolean mIsPhoto;
+		private String mExtension;
+
+
+		public LoadFileFromInputStreamAsyncTask(Context context, boolean isPhoto, @Nullable String extension, @Nullable CaptureSession.Span importSpan, OnFileFromUriExtractedListener listener) {
+			super(context, importSpan, listener);
+			mIsPhoto = isPhoto;
+			mExtension = extension;
+		}
+
+
+		@Override
+		protected File doInBackground(BufferedInputStream... params) {
+			File file = getFileFromInputStream(mContext, params[0]);
+			if(file != null && !mIsPhoto && !isCancelled()) {
+				File trimmedFile = trimVideoFile(mContext, file);
+				if(trimmedFile != null) {
+					// the full copy is ours, only the trimmed one is kept
+					file.delete();
+					file = trimmedFile;
+					mIsTrimmed = true;
+				}
+			}
+			if(mImportSpan != null) {
+				CaptureTracer tracer = CaptureTracer.getInstance();
+				mImportSpan.end();
+				if(isCancelled()) {
+					tracer.finishSession(mImportSpan.getSession(), CaptureSession.OUTCOME_CANCELLED);
+				} else if(file != null && !mIsPhoto) {
+					// videos are not scaled, the trimmed file is the end of the capture
+					tracer.finishSession(mImportSpan.getSession(), CaptureSession.OUTCOME_READY);
+				} else if(file != null) {
+					// the copy carries the session to the scaling
+					tracer.bind(mImportSpan.getSession(), file);
+				} else {
+					tracer.finishSession(mImportSpan.getSession(), CaptureSession.OUTCOME_FAILED);
+				}
+			}
+			return file;
+		}
+
+
+		@Override
+		protected void onCancelled(File file) {
+			// the copy finished before it was cancelled, nobody reads it
+			if(file != null) {
+				file.delete();
+			}
 		}
 
 
@@ -1217,33 +2031,15 @@ public class PhotoManager {
 		 * @return file from the input stream if the process was successful, null otherwise
 		 */
 		private File getFileFromInputStream(Context context, BufferedInputStream inputStream) {
-
 			try {
-				File file = createImageFile(context, true);
-
-				OutputStream output = new FileOutputStream(file);
-				byte[] buffer = new byte[4 * 1024];
-				int read;
-
-				while((read = inputStream.read(buffer)) != -1) {
-					output.write(buffer, 0, read);
-				}
-				output.flush();
-				return file;
-
+				return copyToCacheFile(context, inputStream, mIsPhoto, mExtension, null);
+			} catch(InterruptedIOException e) {
+				// cancelled while copying
+				return null;
 			} catch(IOException e) {
 				e.printStackTrace();
-			} finally {
-				if(inputStream != null) {
-					try {
-						inputStream.close();
-					} catch(IOException e) {
-						e.printStackTrace();
-					}
-				}
+				return null;
 			}
-
-			return null;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * imports a picked photo and scales it in one pass over the source stream, the stream is copied to the cache dir
+ * and teed through a bounded pipe to a decoder on the thread pool, which probes the jpeg header and decodes the image
+ * while the copy is still being written, so the scaled image is ready about when the copy is done instead of after it
+ * <p/>
+ * sources the decoder cannot take from the stream (not a jpeg, no scaling needed, decode failure, a decoder that didn't start
+ * before the copy was done, see TeeDecoder) are scaled from the copy
+ * by ScaleImageHelper.scaleImageFile afterwards, so the result is the same as of the sequential import
+ */
+public class PipelinedImporter {
+
+	public static final int DEFAULT_PIPE_CAPACITY = 256 * 1024;
+
+	/**
+	 * the copy stops feeding a decoder that doesn't keep up for this long, e.g. because the thread pool is busy,
+	 * and the image is scaled from the copy
+	 */
+	private static final long DECODER_STALL_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * longest wait for a decoder that started before the copy was done, it has all the data by then
+	 */
+	private static final long DECODE_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * the header is read ahead with mark and reset, the exif segment is at most 64 KB
+	 */
+	private static final int HEADER_MARK_LIMIT = 128 * 1024;
+
+	private Context mContext;
+	private ScaleImageHelper mScaleImageHelper;
+	private int mPipeCapacity;
+
+
+	public static class Result {
+
+		private File mCopy;
+		private File mScaled;
+		private boolean mPipelined;
+
+
+		Result(File copy, File scaled, boolean pipelined) {
+			mCopy = copy;
+			mScaled = scaled;
+			mPipelined = pipelined;
+		}
+
+
+		/**
+		 * @return copy of the source in the cache dir, the source file itself for a 'file' Uri
+		 */
+		public File getCopy() {
+			return mCopy;
+		}
+
+
+		/**
+		 * @return output of the scaling
+		 */
+		public File getScaled() {
+			return mScaled;
+		}
+
+
+		/**
+		 * @return true if the image was decoded from the stream, false if it was scaled from the copy
+		 */
+		public boolean isPipelined() {
+			return mPipelined;
+		}
+	}
+
+
+	private static class Decoded {
+
+		int[] header;
+		Bitmap bitmap;
+	}
+
+
+	/**
+	 * @param context          context of the app/activity
+	 * @param scaleImageHelper configured helper that scales and writes the images
+	 */
+	public PipelinedImporter(Context context, ScaleImageHelper scaleImageHelper) {
+		this(context, scaleImageHelper, DEFAULT_PIPE_CAPACITY);
+	}
+
+
+	/**
+	 * @param context          context of the app/activity
+	 * @param scaleImageHelper configured helper that scales and writes the images
+	 * @param pipeCapacity     size of the ring buffer between the copy and the decoder, the copy waits while it's full
+	 */
+	public PipelinedImporter(Context context, ScaleImageHelper scaleImageHelper, int pipeCapacity) {
+		mContext = context.getApplicationContext();
+		mScaleImageHelper = scaleImageHelper;
+		mPipeCapacity = pipeCapacity;
+	}
+
+
+	/**
+	 * imports and scales the photo, it blocks and should be called on a worker thread
+	 *
+	 * @param uri 'file' or 'content' Uri of the photo
+	 * @return copy and scaled file
+	 * @throws IOException       is thrown if the photo cannot be read, copied or scaled
+	 * @throws SecurityException is thrown if the app doesn't have a permission to read the Uri
+	 */
+	public Result importAndScale(Uri uri) throws IOException {
+		if("file".equals(uri.getScheme())) {
+			File file = PhotoManager.getFileFromUri(uri);
+			if(!file.canRead() && file.exists()) {
+				throw new SecurityException();
+			}
+			return new Result(file, mScaleImageHelper.scaleImageFile(file), false);
+		}
+
+		InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+		if(inputStream == null) {
+			throw new FileNotFoundException("PipelinedImporter: cannot open " + uri);
+		}
+
+		// the caller usually runs on the same pool, a decoder queued behind it is dropped when the copy is done
+		TeeDecoder<Decoded> decoder = new TeeDecoder<>(AsyncTask.THREAD_POOL_EXECUTOR, mPipeCapacity, DECODER_STALL_TIMEOUT_MILLIS,
+				new TeeDecoder.Decoder<Decoded>() {
+					@Override
+					public Decoded decode(InputStream input) throws IOException {
+						return PipelinedImporter.this.decode(input);
+					}
+				});
+
+		File copy;
+		try {
+			copy = PhotoManager.copyToCacheFile(mContext, new BufferedInputStream(inputStream), true, decoder.getOutputStream());
+		} catch(IOException e) {
+			decoder.abort(e);
+			throw e;
+		}
+
+		// the copy is scaled the usual way if the decoder didn't start, was cut off, failed or is too slow
+		Decoded decoded = decoder.finish(DECODE_TIMEOUT_MILLIS);
+		if(decoded == null || decoded.bitmap == null) {
+			return new Result(copy, mScaleImageHelper.scaleImageFile(copy), false);
+		}
+
+		// the copy is known to the index without probing it again, it's a cache file, so it's only kept in memory
+		int[] header = decoded.header;
+		MediaMetadataIndex.getInstance(mContext).put(new MediaMetadata(copy.getAbsolutePath(), copy.length(), copy.lastModified(),
+				header[0], header[1], header[2], "image/jpeg", MediaMetadata.UNKNOWN_DURATION, null));
+		try {
+			File scaled = mScaleImageHelper.isRotationFree() ? mScaleImageHelper.writeCompressedBitmap(decoded.bitmap, header[2]) : mScaleImageHelper.writeCompressedBitmap(decoded.bitmap);
+			return new Result(copy, scaled, true);
+		} finally {
+			decoded.bitmap.recycle();
+		}
+	}
+
+
+	/**
+	 * runs on the thread pool, probes the header and decodes the image from the pipe
+	 *
+	 * @return header and scaled bitmap, null if the image should be scaled from the copy
+	 */
+	private Decoded decode(InputStream pipeInput) throws IOException {
+		BufferedInputStream inputStream = new BufferedInputStream(pipeInput, 32 * 1024);
+		inputStream.mark(HEADER_MARK_LIMIT);
+		int[] header = JpegTransformer.readHeader(inputStream);
+		if(header == null || ScalePlanner.fits(header[0], header[1], mScaleImageHelper.getReqWidth(), mScaleImageHelper.getReqHeight())) {
+			// not a jpeg, or ScalePlanner may pass it through or rotate it losslessly, both work with the copy
+			return null;
+		}
+		inputStream.reset();
+
+		Decoded decoded = new Decoded();
+		decoded.header = header;
+		decoded.bitmap = mScaleImageHelper.scaleImage(inputStream, header[0], header[1],
+				mScaleImageHelper.isRotationFree() ? ExifInterface.ORIENTATION_NORMAL : header[2]);
+		return decoded;
+	}
+}
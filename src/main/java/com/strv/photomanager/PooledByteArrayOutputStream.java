@@ -0,0 +1,68 @@
+package com.strv.photomanager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+
+/**
+ * ByteArrayOutputStream that starts with an array from a small shared pool and returns its array to the pool when it's released,
+ * an array grown by the stream is pooled instead of the original one, so the next encode of a similar image doesn't grow it again
+ */
+class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+	static final int DEFAULT_CAPACITY = 512 * 1024;
+
+	private static final int MAX_POOLED_BUFFERS = 4;
+	private static final int MAX_POOLED_CAPACITY = 4 * 1024 * 1024;
+
+	private static final ArrayDeque<byte[]> sPool = new ArrayDeque<>();
+
+
+	PooledByteArrayOutputStream() {
+		super(0);
+		buf = acquire(DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * @return the array holding the written bytes from 0 to size(), it's not copied
+	 */
+	synchronized byte[] getBuffer() {
+		return buf;
+	}
+
+
+	/**
+	 * returns the array to the pool, the stream and the arrays returned by getBuffer must not be used after that
+	 */
+	synchronized void release() {
+		if(buf == null) {
+			return;
+		}
+		if(buf.length <= MAX_POOLED_CAPACITY) {
+			synchronized(sPool) {
+				if(sPool.size() < MAX_POOLED_BUFFERS) {
+					sPool.push(buf);
+				}
+			}
+		}
+		buf = null;
+		count = 0;
+	}
+
+
+	private static byte[] acquire(int capacity) {
+		synchronized(sPool) {
+			Iterator<byte[]> iterator = sPool.iterator();
+			while(iterator.hasNext()) {
+				byte[] buffer = iterator.next();
+				if(buffer.length >= capacity) {
+					iterator.remove();
+					return buffer;
+				}
+			}
+		}
+		return new byte[capacity];
+	}
+}
@@ -0,0 +1,130 @@
+package com.strv.photomanager;
+
+
+/**
+ * per pixel costs of the steps of a scaling learned as moving averages from the finished deadline scalings, it predicts how long
+ * a scaling takes and picks the least degraded plan that fits the time left to a deadline, see ScaleImageHelper.scaleImageFile(File, long)
+ */
+class ScaleCostModel {
+
+	/**
+	 * passes of the full quality search assumed by the prediction, most images fit the budget within the first few qualities
+	 */
+	static final int FULL_SEARCH_PASSES = 3;
+
+	static final int CAPPED_PASSES = 2;
+
+	private static final double UNFILTERED_COST_FACTOR = 0.3;
+	private static final double AVERAGE_WEIGHT = 0.3;
+
+	// conservative starting values of a mid-range device, they are replaced by the measured ones after the first scalings
+	private static volatile double sDecodeNanosPerPixel = 40;
+	private static volatile double sScaleNanosPerPixel = 15;
+	private static volatile double sEncodeNanosPerPixel = 30;
+
+	/**
+	 * the levels from the best to the cheapest, each one adds a degradation to the previous one
+	 */
+	private static final Plan[] LEVELS = {
+			new Plan(1, true, BitmapCompressEncoder.UNLIMITED_PASSES, 0),
+			new Plan(1, true, CAPPED_PASSES, ScaleImageHelper.DEGRADED_QUALITY_SEARCH),
+			new Plan(1, false, CAPPED_PASSES, ScaleImageHelper.DEGRADED_QUALITY_SEARCH | ScaleImageHelper.DEGRADED_FILTER),
+			new Plan(2, false, 1, ScaleImageHelper.DEGRADED_QUALITY_SEARCH | ScaleImageHelper.DEGRADED_FILTER | ScaleImageHelper.DEGRADED_SAMPLE_SIZE),
+			new Plan(4, false, 1, ScaleImageHelper.DEGRADED_QUALITY_SEARCH | ScaleImageHelper.DEGRADED_FILTER | ScaleImageHelper.DEGRADED_SAMPLE_SIZE)
+	};
+
+
+	static class Plan {
+
+		final int sampleMultiplier;
+		final boolean filter;
+		final int maxPasses;
+		final int degradation;
+
+
+		Plan(int sampleMultiplier, boolean filter, int maxPasses, int degradation) {
+			this.sampleMultiplier = sampleMultiplier;
+			this.filter = filter;
+			this.maxPasses = maxPasses;
+			this.degradation = degradation;
+		}
+	}
+
+
+	private ScaleCostModel() {
+	}
+
+
+	/**
+	 * @param sourcePixels    number of pixels of the source image
+	 * @param inSampleSize    sample size the image would be decoded with without a deadline
+	 * @param outputPixels    number of pixels of the output
+	 * @param remainingMillis time left to the deadline
+	 * @return the least degraded plan predicted to fit the time, the cheapest one if none fits
+	 */
+	static Plan plan(long sourcePixels, int inSampleSize, long outputPixels, long remainingMillis) {
+		for(Plan level : LEVELS) {
+			if(predictMillis(level, sourcePixels, inSampleSize, outputPixels) <= remainingMillis) {
+				return level;
+			}
+		}
+		return LEVELS[LEVELS.length - 1];
+	}
+
+
+	/**
+	 * caps the quality search to the passes that fit the time left after decoding
+	 *
+	 * @param outputPixels    number of pixels of the scaled bitmap
+	 * @param remainingMillis time left to the deadline
+	 * @param plannedPasses   passes of the plan
+	 * @return UNLIMITED_PASSES if the full search fits, otherwise the affordable passes, at least 1
+	 */
+	static int getAffordablePasses(long outputPixels, long remainingMillis, int plannedPasses) {
+		double passMillis = outputPixels * sEncodeNanosPerPixel / 1e6;
+		int affordable = passMillis > 0 ? (int) (remainingMillis / passMillis) : Integer.MAX_VALUE;
+		if(plannedPasses == BitmapCompressEncoder.UNLIMITED_PASSES) {
+			return affordable >= FULL_SEARCH_PASSES ? BitmapCompressEncoder.UNLIMITED_PASSES : Math.max(1, Math.min(affordable, CAPPED_PASSES));
+		}
+		return Math.max(1, Math.min(affordable, plannedPasses));
+	}
+
+
+	static void recordDecode(long decodedPixels, long nanos) {
+		if(decodedPixels > 0) {
+			sDecodeNanosPerPixel = average(sDecodeNanosPerPixel, (double) nanos / decodedPixels);
+		}
+	}
+
+
+	static void recordScale(long scaledPixels, boolean filter, long nanos) {
+		if(scaledPixels > 0) {
+			sScaleNanosPerPixel = average(sScaleNanosPerPixel, nanos / (filter ? 1 : UNFILTERED_COST_FACTOR) / scaledPixels);
+		}
+	}
+
+
+	static void recordEncode(long scaledPixels, int passes, long nanos) {
+		if(scaledPixels > 0 && passes > 0) {
+			sEncodeNanosPerPixel = average(sEncodeNanosPerPixel, (double) nanos / passes / scaledPixels);
+		}
+	}
+
+
+	private static long predictMillis(Plan plan, long sourcePixels, int inSampleSize, long outputPixels) {
+		long sampleSize = (long) inSampleSize * plan.sampleMultiplier;
+		double decodedPixels = (double) sourcePixels / (sampleSize * sampleSize);
+		// a larger sample size than needed gives a bitmap smaller than the output, which is not scaled up
+		double scaledPixels = Math.min(decodedPixels, outputPixels);
+		int passes = plan.maxPasses == BitmapCompressEncoder.UNLIMITED_PASSES ? FULL_SEARCH_PASSES : plan.maxPasses;
+		double nanos = decodedPixels * sDecodeNanosPerPixel
+				+ scaledPixels * sScaleNanosPerPixel * (plan.filter ? 1 : UNFILTERED_COST_FACTOR)
+				+ scaledPixels * sEncodeNanosPerPixel * passes;
+		return (long) (nanos / 1e6);
+	}
+
+
+	private static double average(double average, double sample) {
+		return average * (1 - AVERAGE_WEIGHT) + sample * AVERAGE_WEIGHT;
+	}
+}
@@ -6,20 +6,45 @@ import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.media.ExifInterface;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 
-public class ScaleImageAsyncTask extends AsyncTask<File, Void, File> {
+/**
+ * scales an image file in background, the task can be bound to the lifecycle of its owner with MediaJobBinder,
+ * a bound task is cancelled when the owner is destroyed and re-attached to the recreated owner after a configuration change
+ */
+public class ScaleImageAsyncTask extends AsyncTask<File, Bitmap, File> implements MediaJobBinder.Job<ScaleImageAsyncTask.OnFileScaledListener> {
+
+	public static final int DEFAULT_PREVIEW_SIZE = 320;
 
 	private int mReqWidth;
 	private int mReqHeight;
 	private OnFileScaledListener mListener;
 	private Context mContext;
+	private OnScaleProgressListener mProgressListener;
+	private int mPreviewSize;
+	private long mStartTime;
+	private int mUploadChunkSize;
+	private boolean mRotationFree;
+	private int mPassThroughMode = ScaleImageHelper.PASS_THROUGH_DISABLED;
+	private long mBudgetMillis;
+	private int mDegradation;
+	private volatile ScaleImageHelper mHelper;
+	private File mSource;
+	private String mHashKey;
+	private boolean mHasPerceptualHash;
+	private long mPerceptualHash;
+	private PerceptualHashIndex.Match mNearDuplicate;
+	private File mResult;
+	private boolean mHasResult;
+	private boolean mDelivered;
 
 
 	public interface OnFileScaledListener {
@@ -27,6 +52,24 @@ public class ScaleImageAsyncTask extends AsyncTask<File, Void, File> {
 	}
 
 
+	public interface OnScaleProgressListener {
+		/**
+		 * called on the main thread with a low resolution preview while the full scale is still running
+		 *
+		 * @param preview             preview rotated according to exif
+		 * @param timeToPreviewMillis time from the start of the task to the preview (time to first pixel)
+		 */
+		void onPreviewDecoded(Bitmap preview, long timeToPreviewMillis);
+
+		/**
+		 * called on the main thread right before OnFileScaledListener
+		 *
+		 * @param timeToFileMillis time from the start of the task to the final scaled file
+		 */
+		void onScaleFinished(long timeToFileMillis);
+	}
+
+
 	/*
 	this constructor should be used when you want to use the async task and call execute on it
 	 */
@@ -34,14 +77,212 @@ public class ScaleImageAsyncTask extends AsyncTask<File, Void, File> {
 		mReqWidth = width;
 		mReqHeight = height;
 		mListener = listener;
-		mContext = context;
+		// the task can outlive the activity, the helper only needs the app's dirs
+		mContext = context.getApplicationContext();
+	}
+
+
+	/*
+	this constructor should be used when the caller wants to show a low resolution preview before the scaled file is ready
+	 */
+	public ScaleImageAsyncTask(Context context, int width, int height, int previewSize, OnScaleProgressListener progressListener, OnFileScaledListener listener) {
+		this(context, width, height, listener);
+		mPreviewSize = previewSize;
+		mProgressListener = progressListener;
+	}
+
+
+	/**
+	 * makes the task write the upload manifest next to the scaled file, it has to be called before execute
+	 *
+	 * @param chunkSize size of the upload chunks in bytes, 0 disables the manifest
+	 * @return this task
+	 */
+	public ScaleImageAsyncTask setUploadChunkSize(int chunkSize) {
+		mUploadChunkSize = chunkSize;
+		return this;
+	}
+
+
+	/**
+	 * makes the task keep the scaled pixels in the sensor orientation and write the exif orientation instead, it has to be called before execute
+	 *
+	 * @param rotationFree true to write the exif orientation instead of rotating the pixels
+	 * @return this task
+	 */
+	public ScaleImageAsyncTask setRotationFree(boolean rotationFree) {
+		mRotationFree = rotationFree;
+		return this;
+	}
+
+
+	/**
+	 * sets how an image that already meets the spec is returned, it has to be called before execute,
+	 * a passed through image keeps the metadata of the source, e.g. its GPS location
+	 *
+	 * @param passThroughMode see ScaleImageHelper.setPassThroughMode
+	 * @return this task
+	 */
+	public ScaleImageAsyncTask setPassThroughMode(int passThroughMode) {
+		mPassThroughMode = passThroughMode;
+		return this;
+	}
+
+
+	/**
+	 * gives the task a time budget, as it runs out the scaling is degraded instead of finishing late, it has to be called before execute
+	 *
+	 * @param budgetMillis time from the start of the task by which the scaled file should be ready, 0 disables the deadline
+	 * @return this task
+	 */
+	public ScaleImageAsyncTask setDeadline(long budgetMillis) {
+		mBudgetMillis = budgetMillis;
+		return this;
+	}
+
+
+	/**
+	 * makes the task index the perceptual hash of the scaled image in PerceptualHashIndex and look up its nearest near-duplicate,
+	 * e.g. an earlier photo of the same burst, it has to be called before execute, the image is hashed only if the key is set
+	 *
+	 * @param key id of the image in the app under which it's indexed, e.g. the upload id, null disables the hash and the lookup
+	 * @return this task
+	 */
+	public ScaleImageAsyncTask setNearDuplicateKey(String key) {
+		mHashKey = key;
+		return this;
+	}
+
+
+	/**
+	 * can be read in OnFileScaledListener
+	 *
+	 * @return true if the scaled image was hashed, i.e. setNearDuplicateKey was called
+	 */
+	public boolean hasPerceptualHash() {
+		return mHasPerceptualHash;
+	}
+
+
+	/**
+	 * can be read in OnFileScaledListener
+	 *
+	 * @return perceptual hash of the scaled image, see PerceptualHash, valid if hasPerceptualHash returns true
+	 */
+	public long getPerceptualHash() {
+		return mPerceptualHash;
+	}
+
+
+	/**
+	 * can be read in OnFileScaledListener, the app can skip or flag the upload of a near-duplicate
+	 *
+	 * @return nearest earlier image within PerceptualHashIndex.DEFAULT_MAX_DISTANCE, null if there is none or the key wasn't set
+	 */
+	public PerceptualHashIndex.Match getNearDuplicate() {
+		return mNearDuplicate;
+	}
+
+
+	/**
+	 * can be read in OnFileScaledListener
+	 *
+	 * @return combination of the ScaleImageHelper.DEGRADED_ flags, 0 if the scaling wasn't degraded
+	 */
+	public int getDegradation() {
+		return mDegradation;
+	}
+
+
+	/**
+	 * replaces the listener, called on the main thread, the progress listener is dropped with a null listener and not restored,
+	 * a scaled file that was ready while there was no listener is delivered to the new one right away
+	 *
+	 * @param listener listener of the scaled file, can be null
+	 */
+	@Override
+	public void attach(OnFileScaledListener listener) {
+		mListener = listener;
+		if(listener == null) {
+			mProgressListener = null;
+		} else if(mHasResult && !mDelivered) {
+			mDelivered = true;
+			listener.onFileScaled(mResult);
+		}
+	}
+
+
+	/**
+	 * cancels the task, a running scaling stops at its next safe point and the partial output is deleted, the listener is not called
+	 */
+	@Override
+	public void cancelJob() {
+		cancel(true);
+		ScaleImageHelper helper = mHelper;
+		if(helper != null) {
+			helper.cancel();
+		}
+	}
+
+
+	@Override
+	public boolean isDone() {
+		return mDelivered || isCancelled();
+	}
+
+
+	@Override
+	protected void onPreExecute() {
+		mStartTime = SystemClock.elapsedRealtime();
 	}
 
 
 	@Override
 	protected File doInBackground(File... params) {
+		mSource = params[0];
+		CaptureSession session = CaptureTracer.getInstance().getSession(params[0]);
+		CaptureSession.Span scaleSpan = session != null ? session.startSpan(CaptureTracer.SPAN_SCALE) : null;
+		File scaledFile = scale(params[0]);
+		// the scaled file is the upload-ready end of the capture
+		CaptureTracer.endSpan(scaleSpan);
+		String outcome = isCancelled() ? CaptureSession.OUTCOME_CANCELLED : scaledFile != null ? CaptureSession.OUTCOME_READY : CaptureSession.OUTCOME_FAILED;
+		CaptureTracer.getInstance().finishSession(session, outcome);
+		return scaledFile;
+	}
+
+
+	private File scale(File file) {
 		try {
-			return new ScaleImageHelper(mContext, mReqWidth, mReqHeight).scaleImageFile(params[0]);
+			ScaleImageHelper scaleImageHelper = new ScaleImageHelper(mContext, mReqWidth, mReqHeight);
+			mHelper = scaleImageHelper;
+			scaleImageHelper.setUploadChunkSize(mUploadChunkSize);
+			scaleImageHelper.setRotationFree(mRotationFree);
+			scaleImageHelper.setPassThroughMode(mPassThroughMode);
+			scaleImageHelper.setPerceptualHashEnabled(mHashKey != null);
+			if(mProgressListener != null) {
+				Bitmap preview = scaleImageHelper.decodePreview(file, mPreviewSize);
+				if(preview != null) {
+					publishProgress(preview);
+				}
+			}
+			File scaledFile;
+			if(mBudgetMillis > 0) {
+				ScaleImageHelper.ScaleResult result = scaleImageHelper.scaleImageFile(file, mStartTime + mBudgetMillis);
+				mDegradation = result.getDegradation();
+				scaledFile = result.getFile();
+			} else {
+				scaledFile = scaleImageHelper.scaleImageFile(file);
+			}
+			mHasPerceptualHash = scaleImageHelper.hasPerceptualHash();
+			mPerceptualHash = scaleImageHelper.getPerceptualHash();
+			if(mHasPerceptualHash && mHashKey != null) {
+				// the index is read from the files dir on the first use, it's kept off the main thread
+				mNearDuplicate = PerceptualHashIndex.getInstance(mContext).indexAndMatch(mHashKey, mPerceptualHash, PerceptualHashIndex.DEFAULT_MAX_DISTANCE);
+			}
+			return scaledFile;
+		} catch(InterruptedIOException e) {
+			// cancelled at a safe point
+			return null;
 		} catch(IOException e) {
 			e.printStackTrace();
 			return null;
@@ -49,10 +290,33 @@ public class ScaleImageAsyncTask extends AsyncTask<File, Void, File> {
 	}
 
 
+	@Override
+	protected void onProgressUpdate(Bitmap... values) {
+		if(mProgressListener != null) {
+			mProgressListener.onPreviewDecoded(values[0], SystemClock.elapsedRealtime() - mStartTime);
+		}
+	}
+
+
 	@Override
 	protected void onPostExecute(File file) {
+		if(mProgressListener != null) {
+			mProgressListener.onScaleFinished(SystemClock.elapsedRealtime() - mStartTime);
+		}
+		mResult = file;
+		mHasResult = true;
 		if(mListener != null) {
+			mDelivered = true;
 			mListener.onFileScaled(file);
 		}
 	}
+
+
+	@Override
+	protected void onCancelled(File file) {
+		// the scaling finished before it reached a safe point, nobody reads the file, a passed through source is kept
+		if(file != null && !file.equals(mSource)) {
+			file.delete();
+		}
+	}
 }
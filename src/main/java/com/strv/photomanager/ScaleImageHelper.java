@@ -3,42 +3,830 @@ package com.strv.photomanager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 
 public class ScaleImageHelper {
 
+	public static final int MAX_OUTPUT_SIZE_BYTES = 320 * 1024;
+
+	/**
+	 * images that already meet the spec are decoded and encoded like any other image, so the output has no metadata of the source
+	 */
+	public static final int PASS_THROUGH_DISABLED = 0;
+
+	/**
+	 * the source file itself is returned for images that already meet the spec, the caller must not delete it
+	 */
+	public static final int PASS_THROUGH_ORIGINAL = 1;
+
+	/**
+	 * images that already meet the spec are hard linked to the cache dir, or copied if the file system doesn't support it
+	 */
+	public static final int PASS_THROUGH_LINK_OR_COPY = 2;
+
+	/**
+	 * images that already meet the spec are copied to the cache dir
+	 */
+	public static final int PASS_THROUGH_COPY = 3;
+
+	/**
+	 * the quality search of the encoder was capped, the output is within the budget but possibly at a lower quality than it could be
+	 */
+	public static final int DEGRADED_QUALITY_SEARCH = 1;
+
+	/**
+	 * the bitmap was resampled and oriented without filtering
+	 */
+	public static final int DEGRADED_FILTER = 2;
+
+	/**
+	 * the image was decoded with a larger inSampleSize, the output can be smaller than the required size
+	 */
+	public static final int DEGRADED_SAMPLE_SIZE = 4;
+
+	/**
+	 * even the cheapest plan didn't finish by the deadline
+	 */
+	public static final int DEGRADED_DEADLINE_MISSED = 8;
+
+	/**
+	 * shorter side of the sample decoded to hash an image that isn't decoded by the scaling, e.g. passed through
+	 */
+	private static final int HASH_SAMPLE_MIN_SIZE = 64;
+
 	private int mReqWidth;
 	private int mReqHeight;
 	private Context mContext;
+	private ImageEncoder mEncoder;
+	private ScalingProfile mProfile;
+	private int mUploadChunkSize;
+	private boolean mRotationFree;
+	private int mPassThroughMode = PASS_THROUGH_DISABLED;
+	private boolean mPerceptualHashEnabled;
+	private boolean mHasPerceptualHash;
+	private long mPerceptualHash;
+	private volatile boolean mCancelled;
+	private volatile BitmapFactory.Options mDecodeOptions;
+
+
+	public static class ScaleResult {
+
+		private File mFile;
+		private int mDegradation;
+
+
+		ScaleResult(File file, int degradation) {
+			mFile = file;
+			mDegradation = degradation;
+		}
+
+
+		public File getFile() {
+			return mFile;
+		}
+
+
+		/**
+		 * @return combination of the DEGRADED_ flags, 0 if the output is the same as of scaleImageFile(File)
+		 */
+		public int getDegradation() {
+			return mDegradation;
+		}
+
+
+		public boolean isDegraded() {
+			return mDegradation != 0;
+		}
+	}
 
 
 	public ScaleImageHelper(Context context, int width, int height) {
 		mReqWidth = width;
 		mReqHeight = height;
 		mContext = context;
+		mProfile = ScalingCalibrator.getInstance(context).getProfile();
+		mEncoder = mProfile.createEncoder();
 	}
 
 
+	/**
+	 * scales the image to the required size, rotates it according to exif and writes it as a compressed jpeg to the cache dir,
+	 * ScalePlanner decides from the image header whether an image that already meets the spec is passed through (see setPassThroughMode)
+	 * or a jpeg that only needs its orientation fixed is rotated losslessly without decoding
+	 *
+	 * @param file image file that should be scaled
+	 * @return scaled image file
+	 * @throws IOException is thrown if the image cannot be decoded or written
+	 */
 	public File scaleImageFile(File file) throws IOException {
-		final String photoPath = file.getAbsolutePath();
-		BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-		bmOptions.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(photoPath, bmOptions);
-		int inSampleSize = calculateInSampleSize(bmOptions, mReqWidth, mReqHeight);
-		bmOptions.inSampleSize = inSampleSize;
-		bmOptions.inJustDecodeBounds = false;
-
-		Bitmap bitmap = BitmapFactory.decodeFile(photoPath, bmOptions);
-		double height = bitmap.getHeight();
-		double width = bitmap.getWidth();
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		File planned = scaleWithoutDecoding(file, metadata);
+		if(planned != null) {
+			return planned;
+		}
+
+		Bitmap scaledBitmap = scaleImage(file, !mRotationFree);
+		try {
+			if(mRotationFree) {
+				return writeCompressedBitmap(scaledBitmap, metadata.getOrientation());
+			}
+			return writeCompressedBitmap(scaledBitmap);
+		} finally {
+			scaledBitmap.recycle();
+		}
+	}
+
+
+	/**
+	 * scales the image like scaleImageFile(File) but finishes by the deadline if it can, as the deadline approaches the work
+	 * is degraded in steps: capped quality search, unfiltered resampling, larger inSampleSize, the steps are picked by ScaleCostModel
+	 * from the per pixel costs of the previous scalings, the quality search is capped further if decoding took longer than predicted
+	 *
+	 * @param file     image file that should be scaled
+	 * @param deadline SystemClock.elapsedRealtime by which the scaled file should be written
+	 * @return scaled image file and the flags of what was degraded
+	 * @throws IOException is thrown if the image cannot be decoded or written
+	 */
+	public ScaleResult scaleImageFile(File file, long deadline) throws IOException {
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		File planned = scaleWithoutDecoding(file, metadata);
+		if(planned != null) {
+			return new ScaleResult(planned, getDeadlineMissed(deadline));
+		}
+
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.outWidth = metadata.getWidth();
+		bounds.outHeight = metadata.getHeight();
+		int inSampleSize = calculateInSampleSize(bounds, mReqWidth, mReqHeight);
+		long outputPixels = (long) mReqWidth * mReqHeight;
+		ScaleCostModel.Plan plan = ScaleCostModel.plan((long) metadata.getWidth() * metadata.getHeight(), inSampleSize, outputPixels, deadline - SystemClock.elapsedRealtime());
+		BitmapFactory.Options bmOptions = createScaledDecodeOptions(metadata.getWidth(), metadata.getHeight(), plan.sampleMultiplier);
+
+		long start = System.nanoTime();
+		Bitmap bitmap = decodeFile(file, bmOptions);
+		if(bitmap == null) {
+			throw new IOException("ScaleImageHelper: cannot decode " + file.getAbsolutePath());
+		}
+		ScaleCostModel.recordDecode((long) bitmap.getWidth() * bitmap.getHeight(), System.nanoTime() - start);
+
+		start = System.nanoTime();
+		int[] size = getScaledSize(bitmap.getWidth(), bitmap.getHeight());
+		Bitmap scaledBitmap = bitmap;
+		// the larger sample size may decode the image below the output size, it isn't scaled up
+		if(plan.sampleMultiplier == 1 || size[0] < bitmap.getWidth()) {
+			scaledBitmap = resampleDecoded(bitmap, bmOptions, plan.filter);
+		}
+		if(!mRotationFree) {
+			scaledBitmap = rotate(scaledBitmap, metadata.getOrientation(), plan.filter);
+		}
+		long scaledPixels = (long) scaledBitmap.getWidth() * scaledBitmap.getHeight();
+		ScaleCostModel.recordScale(scaledPixels, plan.filter, System.nanoTime() - start);
+
+		int degradation = plan.degradation & ~DEGRADED_QUALITY_SEARCH;
+		ImageEncoder encoder = mEncoder;
+		int maxPasses = ScaleCostModel.getAffordablePasses(scaledPixels, deadline - SystemClock.elapsedRealtime(), plan.maxPasses);
+		if(maxPasses != BitmapCompressEncoder.UNLIMITED_PASSES && mEncoder instanceof BitmapCompressEncoder) {
+			// the rate control of other encoders, e.g. JpegImageEncoder, doesn't search and isn't capped
+			encoder = new BitmapCompressEncoder(maxPasses);
+			degradation |= DEGRADED_QUALITY_SEARCH;
+		}
+
+		start = System.nanoTime();
+		File scaledFile;
+		try {
+			scaledFile = writeCompressedBitmap(scaledBitmap, mRotationFree ? metadata.getOrientation() : ExifInterface.ORIENTATION_NORMAL, encoder);
+		} finally {
+			scaledBitmap.recycle();
+		}
+		if(encoder instanceof BitmapCompressEncoder) {
+			ScaleCostModel.recordEncode(scaledPixels, ((BitmapCompressEncoder) encoder).getLastPassCount(), System.nanoTime() - start);
+		}
+		return new ScaleResult(scaledFile, degradation | getDeadlineMissed(deadline));
+	}
+
+
+	/**
+	 * scales the image to the required size and rotates it according to exif
+	 *
+	 * @param file image file that should be scaled
+	 * @return scaled bitmap
+	 * @throws IOException is thrown if the image cannot be decoded
+	 */
+	public Bitmap scaleImage(File file) throws IOException {
+		return scaleImage(file, true);
+	}
+
+
+	private Bitmap scaleImage(File file, boolean rotate) throws IOException {
+		// dimensions and orientation of known images are taken from the index instead of decoding bounds and reading exif again
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		BitmapFactory.Options bmOptions = createScaledDecodeOptions(metadata.getWidth(), metadata.getHeight());
+		Bitmap bitmap = decodeFile(file, bmOptions);
+		if(bitmap == null) {
+			throw new IOException("ScaleImageHelper: cannot decode " + file.getAbsolutePath());
+		}
+		Bitmap scaledBitmap = resampleDecoded(bitmap, bmOptions);
+		return rotate ? rotate(scaledBitmap, metadata.getOrientation()) : scaledBitmap;
+	}
+
+
+	/**
+	 * scales and rotates the image from a stream whose header was already probed, the image is decoded in a single pass,
+	 * so the stream doesn't need to support mark and reset
+	 *
+	 * @param inputStream stream of the image positioned at its start
+	 * @param width       width of the image in the sensor orientation
+	 * @param height      height of the image in the sensor orientation
+	 * @param orientation exif orientation of the image
+	 * @return scaled and rotated bitmap
+	 * @throws IOException is thrown if the image cannot be decoded
+	 */
+	public Bitmap scaleImage(InputStream inputStream, int width, int height, int orientation) throws IOException {
+		BitmapFactory.Options bmOptions = createScaledDecodeOptions(width, height);
+		Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, bmOptions);
+		if(bitmap == null) {
+			throw new IOException("ScaleImageHelper: cannot decode the stream");
+		}
+		return rotate(resampleDecoded(bitmap, bmOptions), orientation);
+	}
+
+
+	/**
+	 * cancels the scaling from another thread, a running decode is aborted through BitmapFactory.Options.requestCancelDecode
+	 * and the scaling stops at its next safe point with an InterruptedIOException, the helper cannot be used afterwards
+	 */
+	public void cancel() {
+		mCancelled = true;
+		BitmapFactory.Options options = mDecodeOptions;
+		if(options != null) {
+			options.requestCancelDecode();
+		}
+	}
+
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+
+	/**
+	 * enables the perceptual hash of the scaled images, it's computed from the scaled pixels before they're encoded, an image
+	 * that is passed through or rotated losslessly is hashed from an extra sample decode, see PerceptualHashIndex, disabled by default,
+	 * so the fast paths don't pay for the decode unless the app looks for near-duplicates
+	 *
+	 * @param enabled true to compute the perceptual hash
+	 */
+	public void setPerceptualHashEnabled(boolean enabled) {
+		mPerceptualHashEnabled = enabled;
+	}
+
+
+	/**
+	 * @return true if the last scaled image was hashed
+	 */
+	public boolean hasPerceptualHash() {
+		return mHasPerceptualHash;
+	}
+
+
+	/**
+	 * @return perceptual hash of the last scaled image as it's displayed, see PerceptualHash, valid if hasPerceptualHash returns true
+	 */
+	public long getPerceptualHash() {
+		return mPerceptualHash;
+	}
+
+
+	/**
+	 * @param encoder encoder used to write the scaled images, the encoder of the ScalingProfile of the device by default
+	 */
+	public void setEncoder(ImageEncoder encoder) {
+		mEncoder = encoder;
+	}
+
+
+	/**
+	 * enables the upload-ready output, chunk boundaries and checksums of the output are computed while it is written
+	 * and stored in a sidecar file, see UploadManifest.readFor, with encryption the manifest describes the plaintext
+	 *
+	 * @param chunkSize size of the upload chunks in bytes, 0 disables the manifest
+	 */
+	public void setUploadChunkSize(int chunkSize) {
+		mUploadChunkSize = chunkSize;
+	}
+
+
+	/**
+	 * a passed through image skips the decode and the encode, but it keeps all the metadata of the source: the GPS location,
+	 * the make and model of the device, the capture time and the embedded thumbnail, the re-encoded output has none of it,
+	 * so the pass-through should be enabled only if the outputs never leave the device or the metadata may be shared
+	 *
+	 * @param passThroughMode how scaleImageFile returns images that already meet the spec, one of PASS_THROUGH_DISABLED (default),
+	 *                        PASS_THROUGH_ORIGINAL, PASS_THROUGH_LINK_OR_COPY and PASS_THROUGH_COPY
+	 */
+	public void setPassThroughMode(int passThroughMode) {
+		mPassThroughMode = passThroughMode;
+	}
+
+
+	/**
+	 * enables the rotation-free output of scaleImageFile, the scaled pixels stay in the sensor orientation and the exif orientation
+	 * is written to the jpeg instead, this saves the allocation and resampling of the rotated bitmap but the consumers have to honor exif
+	 *
+	 * @param rotationFree true to write the exif orientation instead of rotating the pixels
+	 */
+	public void setRotationFree(boolean rotationFree) {
+		mRotationFree = rotationFree;
+	}
+
+
+	boolean isRotationFree() {
+		return mRotationFree;
+	}
+
+
+	int getReqWidth() {
+		return mReqWidth;
+	}
+
+
+	int getReqHeight() {
+		return mReqHeight;
+	}
+
+
+	/**
+	 * writes the bitmap with the encoder to the cache dir, the encoder keeps the file within MAX_OUTPUT_SIZE_BYTES,
+	 * if the upload chunk size is set the upload manifest is written next to the file
+	 *
+	 * @param bitmap bitmap that should be written
+	 * @return file with the compressed bitmap
+	 * @throws IOException is thrown if the file cannot be written
+	 */
+	public File writeCompressedBitmap(Bitmap bitmap) throws IOException {
+		return writeCompressedBitmap(bitmap, ExifInterface.ORIENTATION_NORMAL);
+	}
+
+
+	/**
+	 * writes the bitmap like writeCompressedBitmap(Bitmap) and stores the orientation in a minimal exif segment of the jpeg
+	 *
+	 * @param bitmap      bitmap in the sensor orientation
+	 * @param orientation exif orientation of the bitmap, no exif is written for ORIENTATION_NORMAL and ORIENTATION_UNDEFINED
+	 * @return file with the compressed bitmap
+	 * @throws IOException is thrown if the file cannot be written
+	 */
+	public File writeCompressedBitmap(Bitmap bitmap, int orientation) throws IOException {
+		return writeCompressedBitmap(bitmap, orientation, mEncoder);
+	}
+
+
+	private File writeCompressedBitmap(Bitmap bitmap, int orientation, ImageEncoder encoder) throws IOException {
+		checkCancelled();
+		final File scaledFile = createOutputFile(encoder.getFileExtension());
+		OutputStream outputStream = openOutputStream(scaledFile);
+		boolean success = false;
+		try {
+			encode(bitmap, orientation, encoder, outputStream);
+			success = true;
+		} finally {
+			outputStream.close();
+			if(!success) {
+				// e.g. the encoder was interrupted, a partial jpeg must not be left in the cache dir
+				scaledFile.delete();
+			}
+		}
+		finishOutput(scaledFile, outputStream);
+		return scaledFile;
+	}
+
+
+	/**
+	 * scales the image like scaleImageFile(File) and keeps the encoded bytes in memory instead of the cache dir
+	 *
+	 * @param file image file that should be scaled
+	 * @return encoded image in a pooled buffer, it should be released when it's consumed
+	 * @throws IOException is thrown if the image cannot be decoded
+	 */
+	public EncodedImage scaleImageToMemory(File file) throws IOException {
+		PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream();
+		boolean success = false;
+		try {
+			String mimeType = writeScaledImage(file, outputStream);
+			success = true;
+			return new EncodedImage(outputStream, mimeType);
+		} finally {
+			if(!success) {
+				outputStream.release();
+			}
+		}
+	}
+
+
+	/**
+	 * scales the image like scaleImageFile(File) and writes the encoded bytes to the caller's stream,
+	 * the output is not encrypted by EncryptedMediaStore and no upload manifest is computed, both belong to the files in the cache dir
+	 *
+	 * @param file         image file that should be scaled
+	 * @param outputStream destination of the encoded image, it's flushed but not closed
+	 * @return mime type of the written image
+	 * @throws IOException is thrown if the image cannot be decoded or the stream cannot be written
+	 */
+	public String writeScaledImage(File file, OutputStream outputStream) throws IOException {
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		int plan = ScalePlanner.plan(metadata, mReqWidth, mReqHeight, MAX_OUTPUT_SIZE_BYTES, mEncoder.getMimeType(), mRotationFree);
+		if(plan == ScalePlanner.PLAN_PASS_THROUGH && mPassThroughMode != PASS_THROUGH_DISABLED) {
+			InputStream inputStream = EncryptedMediaStore.getInstance(mContext).openInputStream(file);
+			try {
+				copy(inputStream, outputStream);
+			} finally {
+				inputStream.close();
+			}
+			outputStream.flush();
+			ScalePlanner.recordMaterialized(ScalePlanner.MATERIALIZED_COPY);
+			hashSample(file, metadata);
+			return mEncoder.getMimeType();
+		} else if(plan == ScalePlanner.PLAN_TRANSFORM) {
+			// the size is known only after the transform and a failed one must not leave a part of the jpeg in the caller's stream,
+			// so it's transformed to a pooled buffer first
+			PooledByteArrayOutputStream transformed = new PooledByteArrayOutputStream();
+			try {
+				InputStream inputStream = openSourceStream(file);
+				try {
+					JpegTransformer.transform(inputStream, transformed, metadata.getOrientation());
+				} finally {
+					inputStream.close();
+				}
+				if(transformed.size() <= MAX_OUTPUT_SIZE_BYTES) {
+					transformed.writeTo(outputStream);
+					outputStream.flush();
+					hashSample(file, metadata);
+					return "image/jpeg";
+				}
+			} catch(IOException e) {
+				// e.g. a progressive jpeg, it is decoded and rotated below
+				e.printStackTrace();
+			} finally {
+				transformed.release();
+			}
+		}
+
+		Bitmap scaledBitmap = scaleImage(file, !mRotationFree);
+		try {
+			encode(scaledBitmap, mRotationFree ? metadata.getOrientation() : ExifInterface.ORIENTATION_NORMAL, mEncoder, outputStream);
+		} finally {
+			scaledBitmap.recycle();
+		}
+		return mEncoder.getMimeType();
+	}
+
+
+	/**
+	 * scales the image and writes it to the file descriptor, e.g. of a ParcelFileDescriptor from another app
+	 *
+	 * @param file           image file that should be scaled
+	 * @param fileDescriptor writable file descriptor, it's not closed
+	 * @return mime type of the written image
+	 * @throws IOException is thrown if the image cannot be decoded or the descriptor cannot be written
+	 */
+	public String writeScaledImage(File file, FileDescriptor fileDescriptor) throws IOException {
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(fileDescriptor));
+		String mimeType = writeScaledImage(file, outputStream);
+		outputStream.flush();
+		return mimeType;
+	}
+
+
+	/**
+	 * scales the image and writes it to the content Uri, e.g. an item inserted to MediaStore or a document from ACTION_CREATE_DOCUMENT
+	 *
+	 * @param file        image file that should be scaled
+	 * @param destination writable content Uri
+	 * @return mime type of the written image
+	 * @throws IOException is thrown if the image cannot be decoded or the Uri cannot be opened or written
+	 */
+	public String writeScaledImage(File file, Uri destination) throws IOException {
+		OutputStream outputStream = mContext.getContentResolver().openOutputStream(destination);
+		if(outputStream == null) {
+			throw new FileNotFoundException("ScaleImageHelper: cannot open " + destination);
+		}
+		try {
+			return writeScaledImage(file, new BufferedOutputStream(outputStream));
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	/**
+	 * encodes the bitmap to the stream with the exif orientation segment if the orientation is not normal, the stream is not closed
+	 */
+	private void encode(Bitmap bitmap, int orientation, ImageEncoder encoder, OutputStream outputStream) throws IOException {
+		// the pixels are at hand, the hash reads a few rows of them
+		mHasPerceptualHash = mPerceptualHashEnabled;
+		if(mPerceptualHashEnabled) {
+			mPerceptualHash = PerceptualHash.compute(bitmap, orientation);
+		}
+		int maxSize = MAX_OUTPUT_SIZE_BYTES;
+		if(orientation != ExifInterface.ORIENTATION_NORMAL && orientation != ExifInterface.ORIENTATION_UNDEFINED) {
+			ExifOrientationOutputStream exifStream = new ExifOrientationOutputStream(outputStream, orientation);
+			encoder.encode(bitmap, exifStream, maxSize - ExifOrientationOutputStream.SEGMENT_SIZE);
+			exifStream.finish();
+		} else {
+			encoder.encode(bitmap, outputStream, maxSize);
+			outputStream.flush();
+		}
+	}
+
+
+	/**
+	 * takes the fast paths planned by ScalePlanner from the image header
+	 *
+	 * @return passed through or losslessly rotated file, null if the image has to be decoded
+	 */
+	private File scaleWithoutDecoding(File file, MediaMetadata metadata) throws IOException {
+		int plan = ScalePlanner.plan(metadata, mReqWidth, mReqHeight, MAX_OUTPUT_SIZE_BYTES, mEncoder.getMimeType(), mRotationFree);
+		if(plan == ScalePlanner.PLAN_PASS_THROUGH && mPassThroughMode != PASS_THROUGH_DISABLED) {
+			File passedThrough = passThrough(file);
+			hashSample(file, metadata);
+			return passedThrough;
+		} else if(plan == ScalePlanner.PLAN_TRANSFORM) {
+			try {
+				File transformed = transformLosslessly(file, metadata.getOrientation());
+				if(transformed != null) {
+					hashSample(file, metadata);
+				}
+				return transformed;
+			} catch(IOException e) {
+				// e.g. a progressive jpeg, it is decoded and rotated instead
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+
+	private static int getDeadlineMissed(long deadline) {
+		return SystemClock.elapsedRealtime() > deadline ? DEGRADED_DEADLINE_MISSED : 0;
+	}
+
+
+	/**
+	 * hashes an image whose pixels the fast paths didn't decode, the jpeg decoder skips most of the work at a large sample size
+	 */
+	private void hashSample(File file, MediaMetadata metadata) throws IOException {
+		mHasPerceptualHash = false;
+		if(!mPerceptualHashEnabled) {
+			return;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		int inSampleSize = 1;
+		while(Math.min(metadata.getWidth(), metadata.getHeight()) / (inSampleSize * 2) >= HASH_SAMPLE_MIN_SIZE) {
+			inSampleSize *= 2;
+		}
+		options.inSampleSize = inSampleSize;
+		Bitmap sample;
+		try {
+			sample = decodeFile(file, options);
+		} catch(InterruptedIOException e) {
+			throw e;
+		} catch(IOException e) {
+			// the image is already scaled, it only stays without the hash
+			e.printStackTrace();
+			return;
+		}
+		if(sample != null) {
+			mPerceptualHash = PerceptualHash.compute(sample, metadata.getOrientation());
+			mHasPerceptualHash = true;
+			sample.recycle();
+		}
+	}
+
+
+	/**
+	 * materializes an image that already meets the spec according to the pass-through mode, pixels are not touched
+	 *
+	 * @return the source, its hard link or copy
+	 * @throws IOException is thrown if the copy cannot be written
+	 */
+	private File passThrough(File file) throws IOException {
+		// the upload manifest is computed from the plaintext and a plaintext source has to be encrypted if the encryption is enabled,
+		// in these cases the file is streamed through openOutputStream once, otherwise its bytes can be used as they are
+		boolean bytesUsable = mUploadChunkSize <= 0 && EncryptedMediaStore.isEncrypted(file) == EncryptedMediaStore.getInstance(mContext).isEnabled();
+		if(mPassThroughMode == PASS_THROUGH_ORIGINAL && bytesUsable) {
+			ScalePlanner.recordMaterialized(ScalePlanner.MATERIALIZED_ORIGINAL);
+			return file;
+		}
+
+		File outputFile = createOutputFile(".jpg");
+		if(mPassThroughMode == PASS_THROUGH_LINK_OR_COPY && bytesUsable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			// createTempFile reserved the name, link() needs it free
+			outputFile.delete();
+			try {
+				Os.link(file.getAbsolutePath(), outputFile.getAbsolutePath());
+				ScalePlanner.recordMaterialized(ScalePlanner.MATERIALIZED_LINK);
+				return outputFile;
+			} catch(ErrnoException e) {
+				// e.g. the source is on another file system, it is copied below
+			}
+		}
+
+		if(!bytesUsable) {
+			OutputStream outputStream = openOutputStream(outputFile);
+			try {
+				InputStream inputStream = EncryptedMediaStore.getInstance(mContext).openInputStream(file);
+				try {
+					copy(inputStream, outputStream);
+				} finally {
+					inputStream.close();
+				}
+			} finally {
+				outputStream.close();
+			}
+			finishOutput(outputFile, outputStream);
+		} else {
+			FileChannel source = new FileInputStream(file).getChannel();
+			try {
+				FileChannel destination = new FileOutputStream(outputFile).getChannel();
+				try {
+					// transferTo lets the kernel copy the bytes without passing them through a java buffer
+					long position = 0;
+					long size = source.size();
+					while(position < size) {
+						position += source.transferTo(position, size - position, destination);
+					}
+				} finally {
+					destination.close();
+				}
+			} finally {
+				source.close();
+			}
+		}
+		ScalePlanner.recordMaterialized(ScalePlanner.MATERIALIZED_COPY);
+		return outputFile;
+	}
+
+
+	/**
+	 * rotates the jpeg in the DCT domain to the cache dir
+	 *
+	 * @return transformed file, null if it doesn't fit MAX_OUTPUT_SIZE_BYTES
+	 * @throws IOException is thrown if the jpeg is not supported by JpegTransformer or cannot be written
+	 */
+	private File transformLosslessly(File file, int orientation) throws IOException {
+		File transformedFile = createOutputFile(".jpg");
+		OutputStream outputStream = openOutputStream(transformedFile);
+		boolean success = false;
+		try {
+			InputStream inputStream = openSourceStream(file);
+			try {
+				JpegTransformer.transform(inputStream, outputStream, orientation);
+				success = true;
+			} finally {
+				inputStream.close();
+			}
+		} finally {
+			outputStream.close();
+			if(!success) {
+				transformedFile.delete();
+			}
+		}
+
+		if(transformedFile.length() > MAX_OUTPUT_SIZE_BYTES) {
+			transformedFile.delete();
+			return null;
+		}
+		finishOutput(transformedFile, outputStream);
+		return transformedFile;
+	}
+
+
+	private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+		byte[] buffer = new byte[16 * 1024];
+		int read;
+		while((read = inputStream.read(buffer)) != -1) {
+			if(Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("ScaleImageHelper: interrupted");
+			}
+			outputStream.write(buffer, 0, read);
+		}
+	}
+
+
+	private File createOutputFile(String extension) throws IOException {
+		File cacheDir = mContext.getExternalCacheDir();
+		if(cacheDir == null) {
+			cacheDir = mContext.getCacheDir();
+		}
+		return File.createTempFile("photo", extension, cacheDir);
+	}
+
+
+	/**
+	 * @return stream to the output file, it encrypts the output if EncryptedMediaStore is enabled
+	 * and computes the upload manifest of the plaintext if the upload chunk size is set
+	 */
+	private OutputStream openOutputStream(File file) throws IOException {
+		EncryptedMediaStore encryptedStore = EncryptedMediaStore.getInstance(mContext);
+		// the encrypting stream buffers whole segments itself, another buffer would only add a copy
+		OutputStream outputStream = encryptedStore.isEnabled() ? encryptedStore.openOutputStream(file) : new BufferedOutputStream(new FileOutputStream(file));
+		return mUploadChunkSize > 0 ? new ChunkingOutputStream(outputStream, mUploadChunkSize) : outputStream;
+	}
+
+
+	/**
+	 * @return buffered stream of the plaintext of the source image, which can be encrypted
+	 */
+	private InputStream openSourceStream(File file) throws IOException {
+		return new BufferedInputStream(EncryptedMediaStore.getInstance(mContext).openInputStream(file));
+	}
+
+
+	/**
+	 * decodes the source image, an encrypted one is decoded from the stream of its plaintext
+	 */
+	private Bitmap decodeFile(File file, BitmapFactory.Options options) throws IOException {
+		// the options are published before the check, so cancel() either sees them or the decode doesn't start
+		mDecodeOptions = options;
+		try {
+			checkCancelled();
+			Bitmap bitmap;
+			if(!EncryptedMediaStore.isEncrypted(file)) {
+				bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+			} else {
+				InputStream inputStream = EncryptedMediaStore.getInstance(mContext).openInputStream(file);
+				try {
+					bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+				} finally {
+					inputStream.close();
+				}
+			}
+			// a cancelled decode returns null, a decode that finished before the cancel is dropped
+			try {
+				checkCancelled();
+			} catch(InterruptedIOException e) {
+				if(bitmap != null) {
+					bitmap.recycle();
+				}
+				throw e;
+			}
+			return bitmap;
+		} finally {
+			mDecodeOptions = null;
+		}
+	}
+
+
+	/**
+	 * safe point of the scaling, it's called before and after the decode and before the encode
+	 *
+	 * @throws InterruptedIOException is thrown if the helper was cancelled or the thread was interrupted
+	 */
+	private void checkCancelled() throws InterruptedIOException {
+		if(mCancelled || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("ScaleImageHelper: cancelled");
+		}
+	}
+
+
+	/**
+	 * writes the upload manifest of the closed stream returned by openOutputStream
+	 */
+	private void finishOutput(File file, OutputStream outputStream) throws IOException {
+		if(outputStream instanceof ChunkingOutputStream) {
+			((ChunkingOutputStream) outputStream).getManifest().writeFor(file);
+		}
+	}
+
+
+	/**
+	 * @return width and height of the output, the longer side of a landscape image fits the required width,
+	 * of a portrait image the required height
+	 */
+	private int[] getScaledSize(double width, double height) {
 		if(width > height) {
 			// landscape
 			double ratio = width / mReqWidth;
@@ -54,35 +842,7 @@ public class ScaleImageHelper {
 			height = mReqHeight;
 			width = mReqWidth;
 		}
-
-		bitmap.recycle();
-		Bitmap scaledBitmap = checkOrientationAndSize(photoPath, (int) width, (int) height, mReqWidth, mReqHeight, inSampleSize);
-
-		return writeCompressedBitmap(mContext, scaledBitmap);
-	}
-
-
-	private File writeCompressedBitmap(Context context, Bitmap bitmap) throws IOException {
-		File cacheDir = context.getExternalCacheDir();
-		if(cacheDir == null) {
-			cacheDir = context.getCacheDir();
-		}
-		final File scaledFile = File.createTempFile("photo", ".jpg", cacheDir);
-		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(scaledFile));
-		bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-
-		int size = (int) scaledFile.length() / 1024;
-
-		int quality = 95;
-
-		while(size > 320) {
-			outputStream = new BufferedOutputStream(new FileOutputStream(scaledFile));
-			bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
-			size = (int) scaledFile.length() / 1024;
-			quality -= 5;
-		}
-
-		return scaledFile;
+		return new int[]{(int) width, (int) height};
 	}
 
 
@@ -108,45 +868,301 @@ public class ScaleImageHelper {
 	}
 
 
-	private Bitmap checkOrientationAndSize(String path, int width, int height, int reqWidth, int reqHeight, int inSampleSize) {
-		int orientation;
-		try {
-			if(path == null) {
-				return null;
+	/**
+	 * sets up the decode of the image at the sample size for the required size with the resampler and the bitmap config of the profile
+	 *
+	 * @param width  width of the image
+	 * @param height height of the image
+	 * @return options for the decode
+	 */
+	private BitmapFactory.Options createScaledDecodeOptions(int width, int height) {
+		return createScaledDecodeOptions(width, height, 1);
+	}
+
+
+	/**
+	 * @param width            width of the image
+	 * @param height           height of the image
+	 * @param sampleMultiplier multiplier of the sample size for the required size, see ScaleCostModel.Plan
+	 * @return options for the decode
+	 */
+	private BitmapFactory.Options createScaledDecodeOptions(int width, int height, int sampleMultiplier) {
+		BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+		bmOptions.outWidth = width;
+		bmOptions.outHeight = height;
+		bmOptions.inSampleSize = calculateInSampleSize(bmOptions, mReqWidth, mReqHeight) * sampleMultiplier;
+		// the sides of a jpeg decoded at a sample size are rounded up
+		int sampledWidth = (width + bmOptions.inSampleSize - 1) / bmOptions.inSampleSize;
+		int sampledHeight = (height + bmOptions.inSampleSize - 1) / bmOptions.inSampleSize;
+		int[] size = getScaledSize(sampledWidth, sampledHeight);
+		mProfile.prepareDecode(bmOptions, sampledWidth, sampledHeight, size[0], size[1]);
+		return bmOptions;
+	}
+
+
+	/**
+	 * resamples the bitmap decoded with createScaledDecodeOptions to the output size, the decoded bitmap is recycled if it's replaced
+	 */
+	private Bitmap resampleDecoded(Bitmap bitmap, BitmapFactory.Options bmOptions) {
+		return resampleDecoded(bitmap, bmOptions, true);
+	}
+
+
+	private Bitmap resampleDecoded(Bitmap bitmap, BitmapFactory.Options bmOptions, boolean filter) {
+		// the output size is computed from the decoded size, e.g. a png is sampled with rounding down
+		int[] size = getScaledSize(bitmap.getWidth(), bitmap.getHeight());
+		return ScalingProfile.resample(bitmap, bmOptions, size[0], size[1], filter);
+	}
+
+
+	/**
+	 * decodes a low resolution preview of the image, the embedded exif thumbnail is used if its longer side is at least half of the preview size,
+	 * otherwise the image is decoded with the largest power of 2 inSampleSize that keeps the longer side at least the preview size
+	 *
+	 * @param file        image file
+	 * @param previewSize required size of the longer side of the preview
+	 * @return preview rotated according to exif, null if the image cannot be decoded
+	 */
+	public Bitmap decodePreview(File file, int previewSize) {
+		final String photoPath = file.getAbsolutePath();
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		Bitmap preview = null;
+
+		// ExifInterface cannot read an encrypted file, its preview is decoded from the image
+		if(!EncryptedMediaStore.isEncrypted(file)) {
+			try {
+				ExifInterface exif = new ExifInterface(photoPath);
+				byte[] thumbnail = exif.hasThumbnail() ? exif.getThumbnail() : null;
+				if(thumbnail != null) {
+					BitmapFactory.Options bounds = new BitmapFactory.Options();
+					bounds.inJustDecodeBounds = true;
+					BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, bounds);
+					if(Math.max(bounds.outWidth, bounds.outHeight) * 2 >= previewSize) {
+						preview = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, null);
+					}
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
 			}
+		}
 
+		if(preview == null) {
 			BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+			int inSampleSize = 1;
+			while(Math.max(metadata.getWidth(), metadata.getHeight()) / (inSampleSize * 2) >= previewSize) {
+				inSampleSize *= 2;
+			}
 			bmOptions.inSampleSize = inSampleSize;
-			bmOptions.inJustDecodeBounds = false;
+			try {
+				preview = decodeFile(file, bmOptions);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return preview != null ? rotate(preview, metadata.getOrientation()) : null;
+	}
+
+
+	/**
+	 * crops the region of the image and scales it to the required size, only the region is decoded with BitmapRegionDecoder
+	 * at the largest power of 2 inSampleSize that keeps it at least the required size, so the work scales with the crop area
+	 *
+	 * @param file image file
+	 * @param crop region as fractions (0..1) of the width and height of the image as it is displayed, i.e. oriented according to exif,
+	 *             it should have the aspect ratio of the required size, otherwise the crop is stretched
+	 * @return cropped bitmap of the required size oriented according to exif
+	 * @throws IOException is thrown if the image cannot be decoded
+	 */
+	public Bitmap cropImage(File file, RectF crop) throws IOException {
+		return cropImage(file, crop, true);
+	}
+
 
-			Bitmap bm = BitmapFactory.decodeFile(path, bmOptions);
-			bm = Bitmap.createScaledBitmap(bm, width, height, true); // if the bitmap is too large this can cause out of memory
-			Bitmap bitmap = bm;
+	/**
+	 * crops the region of the image like cropImage and writes it with the encoder to the cache dir,
+	 * in the rotation-free mode the crop stays in the sensor orientation and the exif orientation is written
+	 *
+	 * @param file image file
+	 * @param crop region as fractions (0..1) of the width and height of the image as it is displayed
+	 * @return file with the compressed crop
+	 * @throws IOException is thrown if the image cannot be decoded or written
+	 */
+	public File cropImageFile(File file, RectF crop) throws IOException {
+		Bitmap croppedBitmap = cropImage(file, crop, !mRotationFree);
+		try {
+			if(mRotationFree) {
+				return writeCompressedBitmap(croppedBitmap, MediaMetadataIndex.getInstance(mContext).getImageMetadata(file).getOrientation());
+			}
+			return writeCompressedBitmap(croppedBitmap);
+		} finally {
+			croppedBitmap.recycle();
+		}
+	}
 
-			ExifInterface exif = new ExifInterface(path);
 
-			orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
+	private Bitmap cropImage(File file, RectF crop, boolean rotate) throws IOException {
+		MediaMetadata metadata = MediaMetadataIndex.getInstance(mContext).getImageMetadata(file);
+		if(metadata.getWidth() <= 0 || metadata.getHeight() <= 0) {
+			throw new IOException("ScaleImageHelper: cannot decode " + file.getAbsolutePath());
+		}
+		int orientation = metadata.getOrientation();
+		Rect region = mapToSensor(crop, orientation, metadata.getWidth(), metadata.getHeight());
+		if(region.width() <= 0 || region.height() <= 0) {
+			throw new IllegalArgumentException("ScaleImageHelper: empty crop");
+		}
+
+		// the required size is in the displayed orientation, the region in the sensor one
+		boolean transposed = orientation >= ExifInterface.ORIENTATION_TRANSPOSE && orientation <= ExifInterface.ORIENTATION_ROTATE_270;
+		int outputWidth = transposed ? mReqHeight : mReqWidth;
+		int outputHeight = transposed ? mReqWidth : mReqHeight;
+		BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+		bmOptions.inSampleSize = 1;
+		while(region.width() / (bmOptions.inSampleSize * 2) >= outputWidth && region.height() / (bmOptions.inSampleSize * 2) >= outputHeight) {
+			bmOptions.inSampleSize *= 2;
+		}
 
-			Matrix m = new Matrix();
+		Bitmap bitmap = decodeRegion(file, region, bmOptions);
+		if(bitmap == null) {
+			throw new IOException("ScaleImageHelper: cannot decode " + file.getAbsolutePath());
+		}
+		Bitmap scaled = Bitmap.createScaledBitmap(bitmap, outputWidth, outputHeight, true);
+		if(scaled != bitmap) {
+			bitmap.recycle();
+		}
+		return rotate ? rotate(scaled, orientation) : scaled;
+	}
 
-			if((orientation == ExifInterface.ORIENTATION_ROTATE_180)) {
-				m.postRotate(180);
-				bitmap = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), m, true);
-				return bitmap;
-			} else if(orientation == ExifInterface.ORIENTATION_ROTATE_90) {
-				m.postRotate(90);
-				bitmap = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), m, true);
-				return bitmap;
-			} else if(orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-				m.postRotate(270);
 
-				bitmap = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), m, true);
-				return bitmap;
+	/**
+	 * decodes the region with BitmapRegionDecoder, formats it doesn't support are decoded whole with the same sample size and cropped
+	 */
+	private Bitmap decodeRegion(File file, Rect region, BitmapFactory.Options options) throws IOException {
+		BitmapRegionDecoder decoder = null;
+		try {
+			if(EncryptedMediaStore.isEncrypted(file)) {
+				InputStream inputStream = openSourceStream(file);
+				try {
+					decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+				} finally {
+					inputStream.close();
+				}
+			} else {
+				decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
 			}
-			return bitmap;
-		} catch(Exception e) {
+		} catch(IOException e) {
+			// e.g. a gif, it is decoded whole below
+		}
+		if(decoder != null) {
+			try {
+				return decoder.decodeRegion(region, options);
+			} finally {
+				decoder.recycle();
+			}
+		}
+
+		Bitmap bitmap = decodeFile(file, options);
+		if(bitmap == null) {
 			return null;
 		}
+		int sampleSize = options.inSampleSize;
+		int left = Math.min(region.left / sampleSize, bitmap.getWidth() - 1);
+		int top = Math.min(region.top / sampleSize, bitmap.getHeight() - 1);
+		int width = Math.max(1, Math.min(region.width() / sampleSize, bitmap.getWidth() - left));
+		int height = Math.max(1, Math.min(region.height() / sampleSize, bitmap.getHeight() - top));
+		Bitmap cropped = Bitmap.createBitmap(bitmap, left, top, width, height, null, false);
+		if(cropped != bitmap) {
+			bitmap.recycle();
+		}
+		return cropped;
+	}
+
+
+	/**
+	 * maps the normalized crop of the displayed image to pixels of the image in the sensor orientation,
+	 * it is the inverse of the transform that rotate applies for the orientation
+	 */
+	private static Rect mapToSensor(RectF crop, int orientation, int width, int height) {
+		float left = crop.left;
+		float top = crop.top;
+		float right = crop.right;
+		float bottom = crop.bottom;
+		RectF sensor;
+		switch(orientation) {
+			case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+				sensor = new RectF(1 - right, top, 1 - left, bottom);
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				sensor = new RectF(1 - right, 1 - bottom, 1 - left, 1 - top);
+				break;
+			case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+				sensor = new RectF(left, 1 - bottom, right, 1 - top);
+				break;
+			case ExifInterface.ORIENTATION_TRANSPOSE:
+				sensor = new RectF(top, left, bottom, right);
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				sensor = new RectF(top, 1 - right, bottom, 1 - left);
+				break;
+			case ExifInterface.ORIENTATION_TRANSVERSE:
+				sensor = new RectF(1 - bottom, 1 - right, 1 - top, 1 - left);
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				sensor = new RectF(1 - bottom, left, 1 - top, right);
+				break;
+			default:
+				sensor = new RectF(left, top, right, bottom);
+				break;
+		}
+		return new Rect(Math.round(clamp(sensor.left) * width), Math.round(clamp(sensor.top) * height),
+				Math.round(clamp(sensor.right) * width), Math.round(clamp(sensor.bottom) * height));
+	}
+
+
+	private static float clamp(float value) {
+		return Math.max(0, Math.min(1, value));
+	}
+
+
+	/**
+	 * orients the bitmap according to the exif orientation, the source bitmap is recycled if an oriented copy was created
+	 *
+	 * @param bm          bitmap in the sensor orientation
+	 * @param orientation exif orientation
+	 * @return oriented bitmap
+	 */
+	private static Bitmap rotate(Bitmap bm, int orientation) {
+		return rotate(bm, orientation, true);
 	}
 
+
+	private static Bitmap rotate(Bitmap bm, int orientation, boolean filter) {
+		Matrix m = new Matrix();
+
+		if(orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+			m.postRotate(180);
+		} else if(orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+			m.postRotate(90);
+		} else if(orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+			m.postRotate(270);
+		} else if(orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL) {
+			m.postScale(-1, 1);
+		} else if(orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL) {
+			m.postScale(1, -1);
+		} else if(orientation == ExifInterface.ORIENTATION_TRANSPOSE) {
+			m.postRotate(90);
+			m.postScale(-1, 1);
+		} else if(orientation == ExifInterface.ORIENTATION_TRANSVERSE) {
+			m.postRotate(270);
+			m.postScale(-1, 1);
+		} else {
+			return bm;
+		}
+
+		Bitmap bitmap = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), m, filter);
+		if(bitmap != bm) {
+			bm.recycle();
+		}
+		return bitmap;
+	}
 }
@@ -0,0 +1,130 @@
+package com.strv.photomanager;
+
+import android.media.ExifInterface;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * decides from the header probe in MediaMetadataIndex (dimensions, orientation, size, format) how much work an image needs
+ * to meet the output spec of ScaleImageHelper, and counts the decisions so the hit rates of the fast paths can be reported
+ */
+public class ScalePlanner {
+
+	/**
+	 * the image has to be decoded, scaled and encoded
+	 */
+	public static final int PLAN_SCALE = 0;
+
+	/**
+	 * the image meets the spec except for its orientation, it is rotated losslessly by JpegTransformer
+	 */
+	public static final int PLAN_TRANSFORM = 1;
+
+	/**
+	 * the image meets the spec, its bytes are used as they are
+	 */
+	public static final int PLAN_PASS_THROUGH = 2;
+
+	public static final int MATERIALIZED_ORIGINAL = 0;
+	public static final int MATERIALIZED_LINK = 1;
+	public static final int MATERIALIZED_COPY = 2;
+
+	private static final AtomicInteger[] sPlanCounts = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+	private static final AtomicInteger[] sMaterializedCounts = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+
+
+	private ScalePlanner() {
+	}
+
+
+	/**
+	 * plans the work for the image and counts the plan in the metrics
+	 *
+	 * @param metadata        header probe of the image
+	 * @param reqWidth        required width of the output image
+	 * @param reqHeight       required height of the output image
+	 * @param maxSizeBytes    size limit of the output file
+	 * @param outputMimeType  mime type written by the encoder
+	 * @param orientationKept true if the output may keep the exif orientation (rotation-free mode)
+	 * @return one of PLAN_SCALE, PLAN_TRANSFORM, PLAN_PASS_THROUGH
+	 */
+	public static int plan(MediaMetadata metadata, int reqWidth, int reqHeight, long maxSizeBytes, String outputMimeType, boolean orientationKept) {
+		int plan = PLAN_SCALE;
+		if(outputMimeType.equals(metadata.getMimeType()) && metadata.getSize() <= maxSizeBytes && fits(metadata.getWidth(), metadata.getHeight(), reqWidth, reqHeight)) {
+			int orientation = metadata.getOrientation();
+			if(orientationKept || orientation == ExifInterface.ORIENTATION_NORMAL || orientation == ExifInterface.ORIENTATION_UNDEFINED) {
+				plan = PLAN_PASS_THROUGH;
+			} else if("image/jpeg".equals(outputMimeType) && JpegTransformer.isTransformNeeded(orientation)) {
+				plan = PLAN_TRANSFORM;
+			}
+		}
+		sPlanCounts[plan].incrementAndGet();
+		return plan;
+	}
+
+
+	/**
+	 * counts how a pass-through output was materialized
+	 *
+	 * @param materialized one of MATERIALIZED_ORIGINAL, MATERIALIZED_LINK, MATERIALIZED_COPY
+	 */
+	static void recordMaterialized(int materialized) {
+		sMaterializedCounts[materialized].incrementAndGet();
+	}
+
+
+	/**
+	 * @param plan one of PLAN_SCALE, PLAN_TRANSFORM, PLAN_PASS_THROUGH
+	 * @return number of images planned since the start of the process or the last reset
+	 */
+	public static int getPlanCount(int plan) {
+		return sPlanCounts[plan].get();
+	}
+
+
+	/**
+	 * @param materialized one of MATERIALIZED_ORIGINAL, MATERIALIZED_LINK, MATERIALIZED_COPY
+	 * @return number of pass-through outputs materialized since the start of the process or the last reset
+	 */
+	public static int getMaterializedCount(int materialized) {
+		return sMaterializedCounts[materialized].get();
+	}
+
+
+	/**
+	 * @return share of the planned images that skipped decoding, i.e. passed through or were transformed, 0 if nothing was planned yet
+	 */
+	public static double getHitRate() {
+		int total = 0;
+		for(AtomicInteger count : sPlanCounts) {
+			total += count.get();
+		}
+		return total > 0 ? (double) (getPlanCount(PLAN_PASS_THROUGH) + getPlanCount(PLAN_TRANSFORM)) / total : 0;
+	}
+
+
+	public static void resetMetrics() {
+		for(int i = 0; i < sPlanCounts.length; i++) {
+			sPlanCounts[i].set(0);
+			sMaterializedCounts[i].set(0);
+		}
+	}
+
+
+	/**
+	 * compares the size of the sensor image with the required size by the same rule as ScaleImageHelper.scaleImage uses,
+	 * the longer side of a landscape image is compared to the required width and of a portrait image to the required height
+	 */
+	static boolean fits(int width, int height, int reqWidth, int reqHeight) {
+		if(width <= 0 || height <= 0) {
+			return false;
+		} else if(width > height) {
+			return width <= reqWidth;
+		} else if(height > width) {
+			return height <= reqHeight;
+		} else {
+			return width <= reqWidth && height <= reqHeight;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.strv.photomanager;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * picks the ScalingProfile of the device, the candidate resamplers, bitmap configs and encoders are timed once on a synthetic photo
+ * in the background and the fastest profile is persisted per device model and os build, so an os update calibrates again,
+ * the calibration is bounded by MAX_CALIBRATION_MILLIS, a profile is persisted only if all the candidates were timed,
+ * otherwise the next calibrateInBackground tries again, the RGB_565 candidates are timed only if the app allows them
+ */
+public class ScalingCalibrator {
+
+	public static final long MAX_CALIBRATION_MILLIS = 4000;
+
+	private static final String PREFS_NAME = "photomanager_scaling_profile";
+
+	// a downsized camera photo, large enough for the sample size and the resampling to matter
+	private static final int SYNTHETIC_WIDTH = 2048;
+	private static final int SYNTHETIC_HEIGHT = 1536;
+	private static final int OUTPUT_WIDTH = 1280;
+	private static final int OUTPUT_HEIGHT = 960;
+	private static final int RUNS = 2;
+
+	/**
+	 * a candidate has to be faster than the default by this fraction, so the timing noise doesn't flip the profile,
+	 * RGB_565 bands the gradients and has to win by more
+	 */
+	private static final double MIN_GAIN = 0.1;
+	private static final double MIN_GAIN_RGB_565 = 0.25;
+
+	private static ScalingCalibrator sInstance;
+
+	private Context mContext;
+	private ScalingProfile mOverride;
+	private ScalingProfile mProfile;
+	private boolean mCalibrating;
+	private boolean mRgb565Allowed;
+
+
+	public interface OnCalibratedListener {
+		/**
+		 * called on the main thread when the calibration finished
+		 *
+		 * @param profile profile picked for the device
+		 */
+		void onCalibrated(ScalingProfile profile);
+	}
+
+
+	private ScalingCalibrator(Context context) {
+		mContext = context;
+	}
+
+
+	public static synchronized ScalingCalibrator getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new ScalingCalibrator(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+
+	/**
+	 * @return the override if set, the calibrated profile of the device, ScalingProfile.DEFAULT if the device is not calibrated yet
+	 */
+	public synchronized ScalingProfile getProfile() {
+		if(mOverride != null) {
+			return mOverride;
+		}
+		if(mProfile == null) {
+			mProfile = ScalingProfile.parse(getPreferences().getString(getProfileKey(), null));
+		}
+		return mProfile != null ? mProfile : ScalingProfile.DEFAULT;
+	}
+
+
+	/**
+	 * forces a profile regardless of the calibration, e.g. in tests
+	 *
+	 * @param profile profile used by all the scalings, null to use the calibrated profile again
+	 */
+	public synchronized void setOverride(@Nullable ScalingProfile profile) {
+		mOverride = profile;
+	}
+
+
+	/**
+	 * allows the calibration to pick the RGB_565 decoding, which halves the memory of the bitmaps but bands smooth gradients,
+	 * the profiles with and without RGB_565 are calibrated and persisted separately, disabled by default
+	 *
+	 * @param allowed true if the RGB_565 candidates should be timed
+	 */
+	public synchronized void setRgb565Allowed(boolean allowed) {
+		if(mRgb565Allowed != allowed) {
+			mRgb565Allowed = allowed;
+			mProfile = null;
+		}
+	}
+
+
+	/**
+	 * @return true if the device with its current os build has a persisted profile
+	 */
+	public synchronized boolean isCalibrated() {
+		return mProfile != null || getPreferences().contains(getProfileKey());
+	}
+
+
+	/**
+	 * runs the calibration on the thread pool if the device is not calibrated yet, e.g. when the app is idle after the start
+	 *
+	 * @param listener listener called with the picked profile, can be null
+	 */
+	public void calibrateInBackground(@Nullable final OnCalibratedListener listener) {
+		synchronized(this) {
+			if(mCalibrating || isCalibrated()) {
+				return;
+			}
+			mCalibrating = true;
+		}
+		new AsyncTask<Void, Void, ScalingProfile>() {
+			@Override
+			protected ScalingProfile doInBackground(Void... params) {
+				try {
+					return calibrate();
+				} catch(IOException e) {
+					e.printStackTrace();
+					return null;
+				} finally {
+					synchronized(ScalingCalibrator.this) {
+						mCalibrating = false;
+					}
+				}
+			}
+
+
+			@Override
+			protected void onPostExecute(ScalingProfile profile) {
+				if(profile != null && listener != null) {
+					listener.onCalibrated(profile);
+				}
+			}
+		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+
+	/**
+	 * times the candidates and persists the fastest profile if all of them were timed by the deadline,
+	 * it blocks and should be called on a worker thread
+	 *
+	 * @return profile picked for the device, it's not persisted if the calibration ran out of time
+	 * @throws IOException is thrown if the synthetic photo cannot be encoded or decoded
+	 */
+	public ScalingProfile calibrate() throws IOException {
+		boolean rgb565Allowed;
+		String profileKey;
+		synchronized(this) {
+			rgb565Allowed = mRgb565Allowed;
+			profileKey = getProfileKey();
+		}
+		long deadline = SystemClock.elapsedRealtime() + MAX_CALIBRATION_MILLIS;
+		byte[] jpeg = createSyntheticJpeg();
+
+		ScalingProfile defaultDecode = ScalingProfile.DEFAULT;
+		long defaultNanos = timeDecode(jpeg, defaultDecode, deadline);
+		boolean complete = defaultNanos != Long.MAX_VALUE;
+		ScalingProfile bestDecode = defaultDecode;
+		long bestNanos = defaultNanos;
+		List<ScalingProfile> candidates = new ArrayList<>();
+		candidates.add(new ScalingProfile(ScalingProfile.RESAMPLER_DECODER, Bitmap.Config.ARGB_8888, ScalingProfile.ENCODER_BITMAP_COMPRESS));
+		if(rgb565Allowed) {
+			candidates.add(new ScalingProfile(ScalingProfile.RESAMPLER_CREATE_SCALED, Bitmap.Config.RGB_565, ScalingProfile.ENCODER_BITMAP_COMPRESS));
+			candidates.add(new ScalingProfile(ScalingProfile.RESAMPLER_DECODER, Bitmap.Config.RGB_565, ScalingProfile.ENCODER_BITMAP_COMPRESS));
+		}
+		for(ScalingProfile candidate : candidates) {
+			long nanos = timeDecode(jpeg, candidate, deadline);
+			complete &= nanos != Long.MAX_VALUE;
+			double minGain = candidate.getBitmapConfig() == Bitmap.Config.RGB_565 ? MIN_GAIN_RGB_565 : MIN_GAIN;
+			if(nanos < defaultNanos * (1 - minGain) && nanos < bestNanos) {
+				bestDecode = candidate;
+				bestNanos = nanos;
+			}
+		}
+
+		int encoder = ScalingProfile.ENCODER_BITMAP_COMPRESS;
+		Bitmap bitmap = decode(jpeg, bestDecode, new BitmapFactory.Options());
+		try {
+			long compressNanos = timeEncode(bitmap, new BitmapCompressEncoder(), deadline);
+			long jpegNanos = timeEncode(bitmap, new JpegImageEncoder(), deadline);
+			complete &= compressNanos != Long.MAX_VALUE && jpegNanos != Long.MAX_VALUE;
+			if(jpegNanos < compressNanos * (1 - MIN_GAIN)) {
+				encoder = ScalingProfile.ENCODER_JPEG;
+			}
+		} finally {
+			bitmap.recycle();
+		}
+
+		ScalingProfile profile = new ScalingProfile(bestDecode.getResampler(), bestDecode.getBitmapConfig(), encoder);
+		if(!complete) {
+			// a slow or busy device, a profile of the candidates that were timed would stick until the next os update
+			return profile;
+		}
+		synchronized(this) {
+			// the app could have changed the RGB_565 permission while timing
+			if(profileKey.equals(getProfileKey())) {
+				mProfile = profile;
+			}
+			getPreferences().edit().putString(profileKey, profile.serialize()).apply();
+		}
+		return profile;
+	}
+
+
+	/**
+	 * @return key of the persisted profile, the device model and its os build
+	 */
+	static String getDeviceKey() {
+		return Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.VERSION.SDK_INT + "/" + Build.VERSION.INCREMENTAL;
+	}
+
+
+	/**
+	 * @return key of the persisted profile, the device key and whether the RGB_565 candidates were allowed
+	 */
+	private String getProfileKey() {
+		return mRgb565Allowed ? getDeviceKey() + "/rgb565" : getDeviceKey();
+	}
+
+
+	/**
+	 * @return the shortest time of the runs, Long.MAX_VALUE if the deadline passed before the candidate was timed
+	 */
+	private static long timeDecode(byte[] jpeg, ScalingProfile profile, long deadline) throws IOException {
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < RUNS && SystemClock.elapsedRealtime() < deadline; i++) {
+			long start = System.nanoTime();
+			Bitmap bitmap = decode(jpeg, profile, new BitmapFactory.Options());
+			best = Math.min(best, System.nanoTime() - start);
+			bitmap.recycle();
+		}
+		return best;
+	}
+
+
+	private static long timeEncode(Bitmap bitmap, ImageEncoder encoder, long deadline) throws IOException {
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < RUNS && SystemClock.elapsedRealtime() < deadline; i++) {
+			PooledByteArrayOutputStream output = new PooledByteArrayOutputStream();
+			try {
+				long start = System.nanoTime();
+				encoder.encode(bitmap, output, ScaleImageHelper.MAX_OUTPUT_SIZE_BYTES);
+				best = Math.min(best, System.nanoTime() - start);
+			} finally {
+				output.release();
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 * decodes and resamples the synthetic photo the way ScaleImageHelper does with the profile
+	 */
+	private static Bitmap decode(byte[] jpeg, ScalingProfile profile, BitmapFactory.Options options) throws IOException {
+		// the same sample size ScaleImageHelper.calculateInSampleSize picks for the output
+		int inSampleSize = 1;
+		while(SYNTHETIC_WIDTH / 2 / inSampleSize > OUTPUT_WIDTH || SYNTHETIC_HEIGHT / 2 / inSampleSize > OUTPUT_HEIGHT) {
+			inSampleSize *= 2;
+		}
+		options.inSampleSize = inSampleSize;
+		int sampledWidth = (SYNTHETIC_WIDTH + inSampleSize - 1) / inSampleSize;
+		int sampledHeight = (SYNTHETIC_HEIGHT + inSampleSize - 1) / inSampleSize;
+		profile.prepareDecode(options, sampledWidth, sampledHeight, OUTPUT_WIDTH, OUTPUT_HEIGHT);
+		Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		if(bitmap == null) {
+			throw new IOException("ScalingCalibrator: cannot decode the synthetic photo");
+		}
+		return ScalingProfile.resample(bitmap, options, OUTPUT_WIDTH, OUTPUT_HEIGHT, true);
+	}
+
+
+	/**
+	 * @return jpeg of smooth gradients with fine noise, which compresses about like a photo
+	 */
+	private static byte[] createSyntheticJpeg() throws IOException {
+		int[] pixels = new int[SYNTHETIC_WIDTH * SYNTHETIC_HEIGHT];
+		int seed = 1;
+		for(int y = 0; y < SYNTHETIC_HEIGHT; y++) {
+			for(int x = 0; x < SYNTHETIC_WIDTH; x++) {
+				seed = seed * 1103515245 + 12345;
+				int noise = (seed >>> 16) & 0x1f;
+				int r = (x * 255 / SYNTHETIC_WIDTH + noise) & 0xff;
+				int g = (y * 255 / SYNTHETIC_HEIGHT + noise) & 0xff;
+				int b = ((x + y) * 255 / (SYNTHETIC_WIDTH + SYNTHETIC_HEIGHT) + noise) & 0xff;
+				pixels[y * SYNTHETIC_WIDTH + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		Bitmap bitmap = Bitmap.createBitmap(pixels, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, Bitmap.Config.ARGB_8888);
+		PooledByteArrayOutputStream output = new PooledByteArrayOutputStream();
+		try {
+			if(!bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output)) {
+				throw new IOException("ScalingCalibrator: cannot encode the synthetic photo");
+			}
+			return output.toByteArray();
+		} finally {
+			output.release();
+			bitmap.recycle();
+		}
+	}
+
+
+	private SharedPreferences getPreferences() {
+		return mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+}
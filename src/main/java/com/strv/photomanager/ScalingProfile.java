@@ -0,0 +1,149 @@
+package com.strv.photomanager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+
+
+/**
+ * strategy of the scaling on a device: how the decoded image is resampled, which bitmap config it's decoded to and which encoder writes it,
+ * ScalingCalibrator picks it by timing the candidates and ScaleImageHelper consults it
+ */
+public class ScalingProfile {
+
+	/**
+	 * the image is decoded at the power of two sample size and resampled by Bitmap.createScaledBitmap
+	 */
+	public static final int RESAMPLER_CREATE_SCALED = 0;
+
+	/**
+	 * the decoder scales the sampled image to the output size through inDensity and inTargetDensity, there is no intermediate bitmap
+	 */
+	public static final int RESAMPLER_DECODER = 1;
+
+	public static final int ENCODER_BITMAP_COMPRESS = 0;
+	public static final int ENCODER_JPEG = 1;
+
+	/**
+	 * the strategy used before the calibration, the same as without a profile
+	 */
+	public static final ScalingProfile DEFAULT = new ScalingProfile(RESAMPLER_CREATE_SCALED, Bitmap.Config.ARGB_8888, ENCODER_BITMAP_COMPRESS);
+
+	private static final String FORMAT_VERSION = "1";
+
+	private int mResampler;
+	private Bitmap.Config mBitmapConfig;
+	private int mEncoder;
+
+
+	/**
+	 * @param resampler    one of the RESAMPLER_ constants
+	 * @param bitmapConfig ARGB_8888 or RGB_565, the images are opaque
+	 * @param encoder      one of the ENCODER_ constants
+	 */
+	public ScalingProfile(int resampler, Bitmap.Config bitmapConfig, int encoder) {
+		mResampler = resampler;
+		mBitmapConfig = bitmapConfig;
+		mEncoder = encoder;
+	}
+
+
+	public int getResampler() {
+		return mResampler;
+	}
+
+
+	public Bitmap.Config getBitmapConfig() {
+		return mBitmapConfig;
+	}
+
+
+	public int getEncoder() {
+		return mEncoder;
+	}
+
+
+	/**
+	 * @return new encoder of the profile
+	 */
+	public ImageEncoder createEncoder() {
+		return mEncoder == ENCODER_JPEG ? new JpegImageEncoder() : new BitmapCompressEncoder();
+	}
+
+
+	/**
+	 * sets up the decode of an image at the sample size for the resampler of the profile
+	 *
+	 * @param options       options with the sample size set
+	 * @param sampledWidth  width of the image at the sample size
+	 * @param sampledHeight height of the image at the sample size
+	 * @param width         width of the output
+	 * @param height        height of the output
+	 */
+	void prepareDecode(BitmapFactory.Options options, int sampledWidth, int sampledHeight, int width, int height) {
+		options.inPreferredConfig = mBitmapConfig;
+		// the decoder scales both sides by one factor, an output with another aspect ratio is resampled by createScaledBitmap
+		boolean uniform = Math.abs((long) width * sampledHeight - (long) height * sampledWidth) <= Math.max(sampledWidth, sampledHeight);
+		if(mResampler == RESAMPLER_DECODER && uniform && width < sampledWidth) {
+			// inScaled is true by default, the decoder scales once both densities are set
+			options.inDensity = Math.max(sampledWidth, sampledHeight);
+			options.inTargetDensity = Math.max(width, height);
+		}
+	}
+
+
+	/**
+	 * resamples the decoded bitmap to the output size unless the decoder already did, the decoded bitmap is recycled if it's replaced
+	 *
+	 * @param bitmap  bitmap decoded with the options
+	 * @param options options set up by prepareDecode
+	 * @param width   width of the output
+	 * @param height  height of the output
+	 * @param filter  true to filter the resampling
+	 * @return bitmap of the output size
+	 */
+	static Bitmap resample(Bitmap bitmap, BitmapFactory.Options options, int width, int height, boolean filter) {
+		// the decoder rounds the scaled sides on its own
+		if(options.inDensity != 0 && Math.abs(bitmap.getWidth() - width) <= 1 && Math.abs(bitmap.getHeight() - height) <= 1) {
+			// the decoder marks the bitmap with the target density, it would be drawn scaled down
+			bitmap.setDensity(Bitmap.DENSITY_NONE);
+			return bitmap;
+		}
+		Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, filter);
+		if(scaled != bitmap) {
+			bitmap.recycle();
+		}
+		return scaled;
+	}
+
+
+	String serialize() {
+		return FORMAT_VERSION + "," + mResampler + "," + mBitmapConfig.name() + "," + mEncoder;
+	}
+
+
+	/**
+	 * @return profile of the serialized string, null if it's not valid or of another version
+	 */
+	@Nullable
+	static ScalingProfile parse(@Nullable String serialized) {
+		if(serialized == null) {
+			return null;
+		}
+		String[] parts = serialized.split(",");
+		if(parts.length != 4 || !FORMAT_VERSION.equals(parts[0])) {
+			return null;
+		}
+		try {
+			return new ScalingProfile(Integer.parseInt(parts[1]), Bitmap.Config.valueOf(parts[2]), Integer.parseInt(parts[3]));
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return "ScalingProfile{resampler=" + mResampler + ", config=" + mBitmapConfig + ", encoder=" + mEncoder + "}";
+	}
+}
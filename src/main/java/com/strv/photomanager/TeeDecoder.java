@@ -0,0 +1,118 @@
+package com.strv.photomanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * decoder of the data a writer copies through a BoundedPipe, the decoder runs on an executor while the writer copies, it is optional:
+ * a decoder that hasn't started when the data ends is never started, so a writer on the same executor (e.g. an import on the thread pool)
+ * doesn't wait for a decoder queued behind it, and a started decoder is waited for at most the given timeout
+ *
+ * @param <T> type of the decoded result
+ */
+class TeeDecoder<T> {
+
+	private BoundedPipe mPipe;
+	private FutureTask<T> mTask;
+	private AtomicBoolean mStarted = new AtomicBoolean();
+
+
+	interface Decoder<T> {
+		/**
+		 * @param input stream of the written data, it's closed after the decoder returns
+		 * @return decoded result, null if the data should be processed another way
+		 * @throws IOException is thrown if the data cannot be decoded or the decoder was cut off
+		 */
+		T decode(InputStream input) throws IOException;
+	}
+
+
+	/**
+	 * queues the decoder on the executor
+	 *
+	 * @param executor           executor running the decoder
+	 * @param pipeCapacity       size of the ring buffer between the writer and the decoder
+	 * @param stallTimeoutMillis longest time the writer waits for the decoder to take data, see BoundedPipe
+	 * @param decoder            decoder of the data
+	 */
+	TeeDecoder(Executor executor, int pipeCapacity, long stallTimeoutMillis, final Decoder<T> decoder) {
+		mPipe = new BoundedPipe(pipeCapacity, stallTimeoutMillis);
+		mTask = new FutureTask<>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				if(!mStarted.compareAndSet(false, true)) {
+					return null;
+				}
+				InputStream input = mPipe.getInputStream();
+				try {
+					return decoder.decode(input);
+				} finally {
+					// closing the reader end lets the writer finish without waiting for a decoder that stopped early
+					input.close();
+				}
+			}
+		});
+		executor.execute(mTask);
+	}
+
+
+	/**
+	 * @return stream the writer tees the data to, it never blocks longer than the stall timeout
+	 */
+	OutputStream getOutputStream() {
+		return mPipe.getOutputStream();
+	}
+
+
+	/**
+	 * ends the data after the writer failed, a decoder that hasn't started is never started
+	 *
+	 * @param error error of the writer, the started decoder gets it
+	 */
+	void abort(IOException error) {
+		mPipe.closeWriter(error);
+		if(mStarted.compareAndSet(false, true)) {
+			mTask.cancel(false);
+		}
+	}
+
+
+	/**
+	 * ends the data and returns the result of the decoder, it should be called by the writer after the data is copied
+	 *
+	 * @param timeoutMillis longest wait for a started decoder
+	 * @return result of the decoder, null if it didn't start before the end of the data, was cut off, failed or didn't finish in time
+	 * @throws InterruptedIOException is thrown if the writer is interrupted while it waits
+	 */
+	T finish(long timeoutMillis) throws InterruptedIOException {
+		mPipe.closeWriter(null);
+		if(mStarted.compareAndSet(false, true)) {
+			// nothing else waits for the queued decoder, e.g. a small source fits in the pipe and the writer is the thread it's queued behind
+			mTask.cancel(false);
+			return null;
+		}
+		if(mPipe.isReaderCutOff()) {
+			// the decoder fails on the dropped data
+			return null;
+		}
+		try {
+			return mTask.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("TeeDecoder: interrupted");
+		} catch(ExecutionException | TimeoutException e) {
+			// e.g. a truncated jpeg or a decoder that is too slow, the data is processed another way
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.strv.photomanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * chunk boundaries and checksums of an output file computed while the file was written, it is stored in a sidecar file next to the output
+ * so an uploader can split the file and resume from any chunk without reading the file twice
+ * <p/>
+ * the chunks and the digest always describe the plaintext, the chunks of an encrypted file have to be read through
+ * EncryptedMediaStore.openRandomAccess and EncryptedFile.openInputStream(getChunkOffset, getChunkLength), not from the file itself
+ * <p/>
+ * the sidecar is a text file:
+ * <pre>
+ * photomanager-manifest 2
+ * length &lt;plaintext length&gt;
+ * storedLength &lt;length of the file on the disk&gt;
+ * encrypted &lt;true|false&gt;
+ * chunkSize &lt;chunk size&gt;
+ * sha256 &lt;hex digest of the whole file&gt;
+ * chunk &lt;index&gt; &lt;offset&gt; &lt;length&gt; &lt;hex md5 of the chunk&gt;
+ * ...
+ * </pre>
+ */
+public class UploadManifest {
+
+	public static final String MANIFEST_EXTENSION = ".manifest";
+
+	private static final String HEADER = "photomanager-manifest 2";
+
+	private long mLength;
+	private long mStoredLength;
+	private boolean mEncrypted;
+	private int mChunkSize;
+	private String mDigest;
+	private List<String> mChunkChecksums;
+
+
+	UploadManifest(long length, int chunkSize, String digest, List<String> chunkChecksums) {
+		this(length, length, false, chunkSize, digest, chunkChecksums);
+	}
+
+
+	private UploadManifest(long length, long storedLength, boolean encrypted, int chunkSize, String digest, List<String> chunkChecksums) {
+		mLength = length;
+		mStoredLength = storedLength;
+		mEncrypted = encrypted;
+		mChunkSize = chunkSize;
+		mDigest = digest;
+		mChunkChecksums = Collections.unmodifiableList(new ArrayList<>(chunkChecksums));
+	}
+
+
+	/**
+	 * @param file output file
+	 * @return sidecar file with the manifest of the output file
+	 */
+	public static File getManifestFile(File file) {
+		return new File(file.getParentFile(), file.getName() + MANIFEST_EXTENSION);
+	}
+
+
+	/**
+	 * reads the manifest stored next to the output file
+	 *
+	 * @param file output file
+	 * @return manifest of the file
+	 * @throws IOException is thrown if the sidecar is missing or malformed
+	 */
+	public static UploadManifest readFor(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(getManifestFile(file)), "UTF-8"));
+		try {
+			if(!HEADER.equals(reader.readLine())) {
+				throw new IOException("UploadManifest: unknown format of the manifest of " + file);
+			}
+			long length = Long.parseLong(readValue(reader, "length"));
+			long storedLength = Long.parseLong(readValue(reader, "storedLength"));
+			boolean encrypted = Boolean.parseBoolean(readValue(reader, "encrypted"));
+			int chunkSize = Integer.parseInt(readValue(reader, "chunkSize"));
+			String digest = readValue(reader, "sha256");
+
+			List<String> checksums = new ArrayList<>();
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if(parts.length != 5 || !"chunk".equals(parts[0]) || Integer.parseInt(parts[1]) != checksums.size()) {
+					throw new IOException("UploadManifest: malformed chunk in the manifest of " + file);
+				}
+				checksums.add(parts[4]);
+			}
+
+			UploadManifest manifest = new UploadManifest(length, storedLength, encrypted, chunkSize, digest, checksums);
+			if(chunkSize <= 0 || manifest.getChunkCount() != checksums.size()) {
+				throw new IOException("UploadManifest: chunks don't cover the file in the manifest of " + file);
+			}
+			return manifest;
+		} catch(NumberFormatException e) {
+			throw new IOException("UploadManifest: malformed manifest of " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * writes the manifest next to the closed output file, the sidecar is written to a temp file first so a reader never sees a partial manifest,
+	 * the length of the file on the disk and whether it is encrypted are taken from the file
+	 *
+	 * @param file output file
+	 * @return sidecar file
+	 * @throws IOException is thrown if the sidecar cannot be written
+	 */
+	public File writeFor(File file) throws IOException {
+		mStoredLength = file.length();
+		mEncrypted = EncryptedMediaStore.isEncrypted(file);
+		File manifestFile = getManifestFile(file);
+		File tempFile = new File(manifestFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+		try {
+			writer.write(HEADER + "\n");
+			writer.write("length " + mLength + "\n");
+			writer.write("storedLength " + mStoredLength + "\n");
+			writer.write("encrypted " + mEncrypted + "\n");
+			writer.write("chunkSize " + mChunkSize + "\n");
+			writer.write("sha256 " + mDigest + "\n");
+			for(int i = 0; i < mChunkChecksums.size(); i++) {
+				writer.write("chunk " + i + " " + getChunkOffset(i) + " " + getChunkLength(i) + " " + mChunkChecksums.get(i) + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if(!tempFile.renameTo(manifestFile)) {
+			tempFile.delete();
+			throw new IOException("UploadManifest: cannot write " + manifestFile);
+		}
+		return manifestFile;
+	}
+
+
+	/**
+	 * @param file output file
+	 * @return true if the file has the lengths recorded in the manifest, a changed file needs a new manifest
+	 */
+	public boolean matches(File file) {
+		if(file.length() != mStoredLength || EncryptedMediaStore.isEncrypted(file) != mEncrypted) {
+			return false;
+		}
+		try {
+			return (mEncrypted ? EncryptedMediaStore.getPlaintextLength(file) : file.length()) == mLength;
+		} catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+	/**
+	 * @return length of the plaintext, the chunks cover it
+	 */
+	public long getLength() {
+		return mLength;
+	}
+
+
+	/**
+	 * @return length of the file on the disk, it differs from getLength for an encrypted file
+	 */
+	public long getStoredLength() {
+		return mStoredLength;
+	}
+
+
+	/**
+	 * @return true if the file was encrypted by EncryptedMediaStore, its chunks are read through EncryptedFile
+	 */
+	public boolean isEncrypted() {
+		return mEncrypted;
+	}
+
+
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+
+
+	/**
+	 * @return hex encoded SHA-256 of the whole file
+	 */
+	public String getDigest() {
+		return mDigest;
+	}
+
+
+	public int getChunkCount() {
+		return (int) ((mLength + mChunkSize - 1) / mChunkSize);
+	}
+
+
+	public long getChunkOffset(int index) {
+		return (long) index * mChunkSize;
+	}
+
+
+	/**
+	 * @param index index of the chunk
+	 * @return length of the chunk, all chunks except the last one have the chunk size
+	 */
+	public int getChunkLength(int index) {
+		return (int) Math.min(mChunkSize, mLength - getChunkOffset(index));
+	}
+
+
+	/**
+	 * @param index index of the chunk
+	 * @return hex encoded MD5 of the chunk
+	 */
+	public String getChunkChecksum(int index) {
+		return mChunkChecksums.get(index);
+	}
+
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b : bytes) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+
+	private static String readValue(BufferedReader reader, String key) throws IOException {
+		String line = reader.readLine();
+		if(line == null || !line.startsWith(key + " ")) {
+			throw new IOException("UploadManifest: missing " + key);
+		}
+		return line.substring(key.length() + 1);
+	}
+}
@@ -0,0 +1,168 @@
+package com.strv.photomanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConcurrencyControllerTest {
+
+	private static final long JOB_NANOS = 50 * 1000 * 1000L;
+
+	private FakeProbe mProbe;
+	private long mNow;
+
+
+	/**
+	 * probe with the pressure set by the test, the gc time grows with the simulated time
+	 */
+	private static class FakeProbe implements ConcurrencyController.Probe {
+
+		double mHeadroom = 0.8;
+		double mGcFraction = -1;
+		double mGcTimeMillis;
+
+
+		@Override
+		public long getGcTimeMillis() {
+			return mGcFraction >= 0 ? (long) mGcTimeMillis : -1;
+		}
+
+
+		@Override
+		public double getMemoryHeadroom() {
+			return mHeadroom;
+		}
+
+
+		void advance(long nanos) {
+			if(mGcFraction >= 0) {
+				mGcTimeMillis += mGcFraction * nanos / 1e6;
+			}
+		}
+	}
+
+
+	@Before
+	public void setUp() {
+		mProbe = new FakeProbe();
+		mNow = 0;
+	}
+
+
+	@Test
+	public void limitRisesUnderDemandUpToTheCores() {
+		ConcurrencyController controller = new ConcurrencyController(1, 8, 1, mProbe);
+		run(controller, 4, 400, true);
+
+		// the throughput doesn't grow past the cores, the plateau reverts the increase
+		ConcurrencyController.Metrics metrics = controller.getMetrics();
+		assertTrue(metrics.toString(), controller.getLimit() >= 3 && controller.getLimit() <= 5);
+		assertTrue(metrics.getIncreaseCount() >= 3);
+		assertEquals(400, metrics.getCompletedJobs());
+	}
+
+
+	@Test
+	public void limitRisesToTheMaxOnManyCores() {
+		ConcurrencyController controller = new ConcurrencyController(1, 4, 1, mProbe);
+		run(controller, 16, 400, true);
+
+		assertEquals(4, controller.getLimit());
+	}
+
+
+	@Test
+	public void limitDoesntRiseWithoutDemand() {
+		ConcurrencyController controller = new ConcurrencyController(1, 8, 1, mProbe);
+		run(controller, 4, 200, false);
+
+		assertEquals(1, controller.getLimit());
+		assertEquals(0, controller.getMetrics().getIncreaseCount());
+	}
+
+
+	@Test
+	public void limitFallsUnderMemoryPressure() {
+		ConcurrencyController controller = new ConcurrencyController(1, 8, 8, mProbe);
+		// three whole windows of four rounds
+		run(controller, 8, 96, true);
+		assertEquals(8, controller.getLimit());
+
+		mProbe.mHeadroom = 0.1;
+		run(controller, 8, 32, true);
+		assertEquals(4, controller.getLimit());
+		assertEquals(ConcurrencyController.REASON_MEMORY, controller.getMetrics().getLastReason());
+
+		run(controller, 8, 100, true);
+		assertEquals(1, controller.getLimit());
+	}
+
+
+	@Test
+	public void limitFallsUnderGcPressure() {
+		mProbe.mGcFraction = 0.02;
+		ConcurrencyController controller = new ConcurrencyController(1, 8, 8, mProbe);
+		// three whole windows of four rounds
+		run(controller, 8, 96, true);
+		assertEquals(8, controller.getLimit());
+
+		mProbe.mGcFraction = 0.3;
+		run(controller, 8, 32, true);
+		assertEquals(4, controller.getLimit());
+		assertEquals(ConcurrencyController.REASON_GC, controller.getMetrics().getLastReason());
+		assertTrue(controller.getMetrics().getGcFraction() > ConcurrencyController.MAX_GC_FRACTION);
+
+		run(controller, 8, 100, true);
+		assertEquals(1, controller.getLimit());
+	}
+
+
+	@Test
+	public void limitRecoversAfterThePressure() {
+		ConcurrencyController controller = new ConcurrencyController(1, 8, 4, mProbe);
+		mProbe.mHeadroom = 0.1;
+		run(controller, 4, 40, true);
+		assertEquals(1, controller.getLimit());
+
+		mProbe.mHeadroom = 0.8;
+		run(controller, 4, 400, true);
+		assertTrue(controller.getMetrics().toString(), controller.getLimit() >= 3);
+	}
+
+
+	@Test
+	public void limitStaysWithinTheBounds() {
+		ConcurrencyController controller = new ConcurrencyController(2, 3, 10, mProbe);
+		assertEquals(3, controller.getLimit());
+
+		mProbe.mHeadroom = 0.1;
+		run(controller, 4, 100, true);
+		assertEquals(2, controller.getLimit());
+	}
+
+
+	/**
+	 * simulates a workload of cpu bound jobs: the running jobs share the cores, so a job takes longer when there are more jobs than cores,
+	 * the jobs are started in rounds of the current limit
+	 *
+	 * @param cores     number of jobs that run without slowing each other down
+	 * @param jobCount  number of jobs to run
+	 * @param saturated true if more jobs are waiting for a slot all the time
+	 */
+	private void run(ConcurrencyController controller, int cores, int jobCount, boolean saturated) {
+		int finished = 0;
+		while(finished < jobCount) {
+			int running = Math.min(controller.getLimit(), jobCount - finished);
+			long latency = JOB_NANOS * Math.max(cores, running) / cores;
+			mNow += latency;
+			mProbe.advance(latency);
+			for(int i = 0; i < running; i++) {
+				controller.onJobFinished(latency, mNow, saturated ? 1 : 0);
+			}
+			finished += running;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.strv.photomanager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class EncryptedMediaStoreTest {
+
+	private static final int SEGMENT_SIZE = EncryptedMediaStore.SEGMENT_SIZE;
+	private static final int SEALED_SEGMENT_SIZE = SEGMENT_SIZE + EncryptedMediaStore.TAG_SIZE;
+
+	@Rule
+	public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+	private EncryptedMediaStore mStore;
+
+
+	@Before
+	public void setUp() throws IOException {
+		mStore = new EncryptedMediaStore(mTemporaryFolder.newFolder("keys"), true);
+	}
+
+
+	@Test
+	public void encryptionRoundTrip() throws IOException {
+		int[] lengths = {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE + 100};
+		for(int length : lengths) {
+			byte[] data = createData(length);
+			File file = write(mStore, data);
+
+			assertTrue(EncryptedMediaStore.isEncrypted(file));
+			assertEquals(EncryptedMediaStore.HEADER_SIZE + length + Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE) * EncryptedMediaStore.TAG_SIZE, file.length());
+			assertArrayEquals("length " + length, data, readFully(mStore.openInputStream(file)));
+		}
+	}
+
+
+	@Test
+	public void fileDoesntContainThePlaintext() throws IOException {
+		byte[] data = createData(SEGMENT_SIZE);
+		File file = write(mStore, data);
+		byte[] sealed = Arrays.copyOfRange(readFile(file), EncryptedMediaStore.HEADER_SIZE, EncryptedMediaStore.HEADER_SIZE + 64);
+
+		assertFalse(Arrays.equals(Arrays.copyOf(data, 64), sealed));
+	}
+
+
+	@Test
+	public void rangesAreReadAcrossSegments() throws IOException {
+		byte[] data = createData(3 * SEGMENT_SIZE + 100);
+		File file = write(mStore, data);
+		EncryptedFile encryptedFile = mStore.openRandomAccess(file);
+		try {
+			assertEquals(data.length, encryptedFile.length());
+
+			Random random = new Random(3);
+			for(int i = 0; i < 50; i++) {
+				int position = random.nextInt(data.length);
+				int count = random.nextInt(2 * SEGMENT_SIZE);
+				byte[] buffer = new byte[count];
+				int read = encryptedFile.read(position, buffer, 0, count);
+				assertEquals(Math.min(count, data.length - position), read);
+				assertArrayEquals(Arrays.copyOfRange(data, position, position + read), Arrays.copyOf(buffer, read));
+			}
+			assertEquals(-1, encryptedFile.read(data.length, new byte[1], 0, 1));
+
+			// an upload chunk across the segment boundary
+			byte[] chunk = readFully(encryptedFile.openInputStream(SEGMENT_SIZE - 10, 1000));
+			assertArrayEquals(Arrays.copyOfRange(data, SEGMENT_SIZE - 10, SEGMENT_SIZE + 990), chunk);
+		} finally {
+			encryptedFile.close();
+		}
+	}
+
+
+	@Test
+	public void plaintextFileIsReadAsItIs() throws IOException {
+		byte[] data = createData(1000);
+		File file = mTemporaryFolder.newFile();
+		OutputStream output = new FileOutputStream(file);
+		output.write(data);
+		output.close();
+
+		assertFalse(EncryptedMediaStore.isEncrypted(file));
+		assertArrayEquals(data, readFully(mStore.openInputStream(file)));
+	}
+
+
+	@Test
+	public void decryptedCopyEqualsThePlaintext() throws IOException {
+		byte[] data = createData(2 * SEGMENT_SIZE + 7);
+		File copy = mTemporaryFolder.newFile();
+		mStore.decryptToFile(write(mStore, data), copy);
+
+		assertArrayEquals(data, readFile(copy));
+	}
+
+
+	@Test
+	public void modifiedSegmentFailsAuthentication() throws IOException {
+		File file = write(mStore, createData(2 * SEGMENT_SIZE + 7));
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		long position = EncryptedMediaStore.HEADER_SIZE + SEALED_SEGMENT_SIZE + 5;
+		randomAccessFile.seek(position);
+		int value = randomAccessFile.read();
+		randomAccessFile.seek(position);
+		randomAccessFile.write(value ^ 1);
+		randomAccessFile.close();
+
+		assertUnreadable(mStore, file);
+	}
+
+
+	@Test
+	public void fileTruncatedAtSegmentBoundaryFailsAuthentication() throws IOException {
+		File file = write(mStore, createData(2 * SEGMENT_SIZE + 7));
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		// the first segment becomes the last one, its nonce doesn't match
+		randomAccessFile.setLength(EncryptedMediaStore.HEADER_SIZE + SEALED_SEGMENT_SIZE);
+		randomAccessFile.close();
+
+		assertUnreadable(mStore, file);
+	}
+
+
+	@Test
+	public void otherMasterKeyCannotRead() throws IOException {
+		File file = write(mStore, createData(100));
+		EncryptedMediaStore otherStore = new EncryptedMediaStore(mTemporaryFolder.newFolder("otherKeys"), true);
+
+		assertUnreadable(otherStore, file);
+		// the key is kept, a new store on the same dir reads the file
+		EncryptedMediaStore sameStore = new EncryptedMediaStore(new File(mTemporaryFolder.getRoot(), "keys"), true);
+		assertEquals(100, readFully(sameStore.openInputStream(file)).length);
+	}
+
+
+	@Test
+	public void manifestOfEncryptedOutputDescribesThePlaintext() throws Exception {
+		int chunkSize = 50000;
+		byte[] data = createData(2 * SEGMENT_SIZE + 7);
+		File file = mTemporaryFolder.newFile();
+		ChunkingOutputStream output = new ChunkingOutputStream(mStore.openOutputStream(file), chunkSize);
+		output.write(data);
+		output.close();
+		output.getManifest().writeFor(file);
+
+		UploadManifest manifest = UploadManifest.readFor(file);
+		assertTrue(manifest.isEncrypted());
+		assertEquals(data.length, manifest.getLength());
+		assertEquals(file.length(), manifest.getStoredLength());
+		assertEquals(data.length, EncryptedMediaStore.getPlaintextLength(file));
+		assertTrue(manifest.matches(file));
+
+		EncryptedFile encryptedFile = mStore.openRandomAccess(file);
+		try {
+			for(int i = 0; i < manifest.getChunkCount(); i++) {
+				byte[] chunk = readFully(encryptedFile.openInputStream(manifest.getChunkOffset(i), manifest.getChunkLength(i)));
+				assertEquals(UploadManifest.toHex(MessageDigest.getInstance("MD5").digest(chunk)), manifest.getChunkChecksum(i));
+			}
+		} finally {
+			encryptedFile.close();
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(file.length() - 1);
+		randomAccessFile.close();
+		assertFalse(manifest.matches(file));
+	}
+
+
+	private File write(EncryptedMediaStore store, byte[] data) throws IOException {
+		File file = mTemporaryFolder.newFile();
+		OutputStream output = store.openOutputStream(file);
+		try {
+			// uneven writes, so the segments are filled across the write calls
+			int offset = 0;
+			int count = 1;
+			while(offset < data.length) {
+				int length = Math.min(count, data.length - offset);
+				output.write(data, offset, length);
+				offset += length;
+				count = count * 3 + 1;
+			}
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+
+	private static void assertUnreadable(EncryptedMediaStore store, File file) {
+		try {
+			readFully(store.openInputStream(file));
+			fail(file + " was read");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[10000];
+			int count;
+			while((count = input.read(buffer)) != -1) {
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			input.readFully(data);
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
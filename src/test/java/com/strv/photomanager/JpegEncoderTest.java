@@ -0,0 +1,112 @@
+package com.strv.photomanager;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class JpegEncoderTest {
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+
+	@Test
+	public void encodeWithinBudgetFitsTheBudget() throws IOException {
+		int[] pixels = createPhotoLikePixels(WIDTH, HEIGHT);
+		for(JpegEncoder.ChromaSubsampling subsampling : JpegEncoder.ChromaSubsampling.values()) {
+			for(int budget : new int[]{6 * 1024, 12 * 1024, 24 * 1024, 48 * 1024}) {
+				JpegEncoder encoder = new JpegEncoder(subsampling);
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				int written = encoder.encodeWithinBudget(pixels, WIDTH, HEIGHT, budget, output);
+
+				assertEquals(output.size(), written);
+				assertTrue(subsampling + " " + written + " bytes over the budget of " + budget, written <= budget);
+				assertDecodes(output.toByteArray(), WIDTH, HEIGHT);
+			}
+		}
+	}
+
+
+	@Test
+	public void largerBudgetUsesFinerScale() throws IOException {
+		int[] pixels = createPhotoLikePixels(WIDTH, HEIGHT);
+		JpegEncoder encoder = new JpegEncoder(JpegEncoder.ChromaSubsampling.YUV420);
+		encoder.encodeWithinBudget(pixels, WIDTH, HEIGHT, 8 * 1024, new ByteArrayOutputStream());
+		int smallBudgetScale = encoder.getLastScale();
+		encoder.encodeWithinBudget(pixels, WIDTH, HEIGHT, 32 * 1024, new ByteArrayOutputStream());
+		int largeBudgetScale = encoder.getLastScale();
+
+		assertTrue(largeBudgetScale < smallBudgetScale);
+	}
+
+
+	@Test
+	public void budgetIsNotUsedBeyondTheMinScale() throws IOException {
+		int[] pixels = createPhotoLikePixels(WIDTH, HEIGHT);
+		JpegEncoder encoder = new JpegEncoder(JpegEncoder.ChromaSubsampling.YUV420);
+		int minScale = JpegEncoder.qualityToScale(80);
+		encoder.encodeWithinBudget(pixels, WIDTH, HEIGHT, 1024 * 1024, minScale, new ByteArrayOutputStream());
+
+		assertEquals(minScale, encoder.getLastScale());
+	}
+
+
+	@Test
+	public void unreachableBudgetEndsAtTheMaxScale() throws IOException {
+		int[] pixels = createPhotoLikePixels(WIDTH, HEIGHT);
+		JpegEncoder encoder = new JpegEncoder(JpegEncoder.ChromaSubsampling.YUV444);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		encoder.encodeWithinBudget(pixels, WIDTH, HEIGHT, 100, output);
+
+		assertEquals(JpegEncoder.MAX_SCALE, encoder.getLastScale());
+		assertDecodes(output.toByteArray(), WIDTH, HEIGHT);
+	}
+
+
+	@Test
+	public void oddSizeIsEncoded() throws IOException {
+		int[] pixels = createPhotoLikePixels(37, 23);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new JpegEncoder(JpegEncoder.ChromaSubsampling.YUV420).encode(pixels, 37, 23, 90, output);
+
+		assertDecodes(output.toByteArray(), 37, 23);
+	}
+
+
+	private static void assertDecodes(byte[] jpeg, int width, int height) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		assertNotNull(image);
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+	}
+
+
+	/**
+	 * smooth gradients with fine noise, which compress about like a photo
+	 */
+	static int[] createPhotoLikePixels(int width, int height) {
+		int[] pixels = new int[width * height];
+		int seed = 1;
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				seed = seed * 1103515245 + 12345;
+				int noise = (seed >>> 16) & 0x1f;
+				int r = (x * 255 / width + noise) & 0xff;
+				int g = (y * 255 / height + noise) & 0xff;
+				int b = ((x + y) * 255 / (width + height) + noise) & 0xff;
+				pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,389 @@
+package com.strv.photomanager;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class JpegTransformerTest {
+
+	// mean difference of a channel caused by the rounding of the idct and the chroma upsampling of the decoder
+	private static final double MAX_MEAN_DIFFERENCE = 1.5;
+
+
+	@Test
+	public void allOrientationsAreTransformed() throws IOException {
+		for(JpegEncoder.ChromaSubsampling subsampling : JpegEncoder.ChromaSubsampling.values()) {
+			byte[] source = encode(64, 48, subsampling);
+			for(int orientation = 1; orientation <= 8; orientation++) {
+				assertTransformed(source, orientation, subsampling + " orientation " + orientation);
+			}
+		}
+	}
+
+
+	@Test
+	public void partialEdgeMcusAreTrimmed() throws IOException {
+		byte[] source = encode(70, 50, JpegEncoder.ChromaSubsampling.YUV420);
+		for(int orientation = 1; orientation <= 8; orientation++) {
+			assertTransformed(source, orientation, "orientation " + orientation);
+		}
+
+		// flipped horizontally the right edge would end up on the left, it's trimmed to whole 16 pixel MCUs
+		assertArrayEquals(new int[]{64, 50}, getSize(transform(source, 2)));
+		// rotated by 90 degrees the bottom edge would end up on the left
+		assertArrayEquals(new int[]{48, 70}, getSize(transform(source, 6)));
+		// transposed both edges stay on the right and the bottom
+		assertArrayEquals(new int[]{50, 70}, getSize(transform(source, 5)));
+	}
+
+
+	@Test
+	public void exifOrientationIsReset() throws IOException {
+		byte[] source = encode(32, 32, JpegEncoder.ChromaSubsampling.YUV420);
+		for(int orientation = 1; orientation <= 8; orientation++) {
+			for(boolean littleEndian : new boolean[]{false, true}) {
+				byte[] exifSource = addExifOrientation(source, orientation, littleEndian);
+				assertEquals(orientation, readExifOrientation(exifSource));
+
+				byte[] result = transform(exifSource, orientation);
+				assertEquals(1, readExifOrientation(result));
+				assertEquals(ExifOrientationOutputStream.SEGMENT_SIZE, countExifBytes(result));
+			}
+		}
+	}
+
+
+	@Test
+	public void sourceMetadataIsDropped() throws IOException {
+		byte[] thumbnail = encode(16, 8, JpegEncoder.ChromaSubsampling.YUV420);
+		byte[] icc = createSegment(0xe2, "ICC_PROFILE\0\1\1profile data");
+		byte[] comment = createSegment(0xfe, "comment of the camera");
+		byte[] source = insertSegments(encode(64, 48, JpegEncoder.ChromaSubsampling.YUV420),
+				createExifWithGpsAndThumbnail(6, thumbnail), icc, comment);
+		assertEquals(6, readExifOrientation(source));
+
+		byte[] result = transform(source, 6);
+		List<byte[]> segments = readSegments(result);
+		assertEquals(3, segments.size());
+		assertEquals(0xe0, segments.get(0)[1] & 0xff);
+		// the exif is replaced, so there is no GPS IFD, no thumbnail and no stale dimensions
+		assertArrayEquals(ExifOrientationOutputStream.buildSegment(1), segments.get(1));
+		assertArrayEquals(icc, segments.get(2));
+		assertEquals(-1, indexOf(result, thumbnail));
+		assertArrayEquals(new int[]{48, 64}, getSize(result));
+	}
+
+
+	@Test
+	public void onlyRotatedAndFlippedOrientationsNeedTransform() {
+		assertFalse(JpegTransformer.isTransformNeeded(0));
+		assertFalse(JpegTransformer.isTransformNeeded(1));
+		for(int orientation = 2; orientation <= 8; orientation++) {
+			assertTrue(JpegTransformer.isTransformNeeded(orientation));
+		}
+		assertFalse(JpegTransformer.isTransformNeeded(9));
+	}
+
+
+	private static void assertTransformed(byte[] source, int orientation, String message) throws IOException {
+		BufferedImage sourceImage = decode(source);
+		BufferedImage result = decode(transform(source, orientation));
+		boolean transpose = orientation >= 5;
+		int croppedWidth = transpose ? result.getHeight() : result.getWidth();
+		int croppedHeight = transpose ? result.getWidth() : result.getHeight();
+		assertTrue(message, croppedWidth <= sourceImage.getWidth() && sourceImage.getWidth() - croppedWidth < 16);
+		assertTrue(message, croppedHeight <= sourceImage.getHeight() && sourceImage.getHeight() - croppedHeight < 16);
+
+		long difference = 0;
+		for(int y = 0; y < result.getHeight(); y++) {
+			for(int x = 0; x < result.getWidth(); x++) {
+				int[] sourcePoint = getSourcePoint(x, y, croppedWidth, croppedHeight, orientation);
+				int expected = sourceImage.getRGB(sourcePoint[0], sourcePoint[1]);
+				int actual = result.getRGB(x, y);
+				for(int shift = 0; shift <= 16; shift += 8) {
+					difference += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+				}
+			}
+		}
+		double meanDifference = (double) difference / (3 * result.getWidth() * result.getHeight());
+		assertTrue(message + " differs by " + meanDifference, meanDifference < MAX_MEAN_DIFFERENCE);
+	}
+
+
+	/**
+	 * @return point of the stored image that is displayed at x, y for the exif orientation
+	 */
+	private static int[] getSourcePoint(int x, int y, int width, int height, int orientation) {
+		switch(orientation) {
+			case 2:
+				return new int[]{width - 1 - x, y};
+			case 3:
+				return new int[]{width - 1 - x, height - 1 - y};
+			case 4:
+				return new int[]{x, height - 1 - y};
+			case 5:
+				return new int[]{y, x};
+			case 6:
+				return new int[]{y, height - 1 - x};
+			case 7:
+				return new int[]{width - 1 - y, height - 1 - x};
+			case 8:
+				return new int[]{width - 1 - y, x};
+			default:
+				return new int[]{x, y};
+		}
+	}
+
+
+	private static byte[] encode(int width, int height, JpegEncoder.ChromaSubsampling subsampling) throws IOException {
+		// an asymmetric image, so every orientation is distinguishable
+		int[] pixels = new int[width * height];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				int r = x * 255 / width;
+				int g = y * 255 / height;
+				int b = x < width / 3 && y < height / 4 ? 230 : 40;
+				pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new JpegEncoder(subsampling).encode(pixels, width, height, 95, output);
+		return output.toByteArray();
+	}
+
+
+	private static byte[] transform(byte[] source, int orientation) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		JpegTransformer.transform(new ByteArrayInputStream(source), output, orientation);
+		return output.toByteArray();
+	}
+
+
+	private static BufferedImage decode(byte[] jpeg) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		assertNotNull(image);
+		return image;
+	}
+
+
+	private static int[] getSize(byte[] jpeg) throws IOException {
+		BufferedImage image = decode(jpeg);
+		return new int[]{image.getWidth(), image.getHeight()};
+	}
+
+
+	/**
+	 * inserts an exif segment with only the orientation tag after the JFIF segment the encoder writes
+	 */
+	private static byte[] addExifOrientation(byte[] jpeg, int orientation, boolean littleEndian) {
+		byte[] exif = {
+				(byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+				// tiff header, IFD0 at offset 8
+				'M', 'M', 0, 42, 0, 0, 0, 8,
+				// one entry: orientation, SHORT, count 1, value
+				0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+				// no next IFD
+				0, 0, 0, 0
+		};
+		if(littleEndian) {
+			byte[] littleEndianTiff = {
+					'I', 'I', 42, 0, 8, 0, 0, 0,
+					1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0, (byte) orientation, 0, 0, 0,
+					0, 0, 0, 0
+			};
+			System.arraycopy(littleEndianTiff, 0, exif, 10, littleEndianTiff.length);
+		}
+		return insertSegments(jpeg, exif);
+	}
+
+
+	/**
+	 * builds an exif segment like a camera writes: IFD0 with the orientation and a pointer to the GPS IFD,
+	 * and IFD1 with a jpeg thumbnail
+	 */
+	private static byte[] createExifWithGpsAndThumbnail(int orientation, byte[] thumbnail) throws IOException {
+		int gpsOffset = 8 + 30;
+		int ifd1Offset = gpsOffset + 30;
+		int thumbnailOffset = ifd1Offset + 30;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream tiff = new DataOutputStream(bytes);
+		tiff.writeBytes("MM");
+		tiff.writeShort(42);
+		tiff.writeInt(8);
+
+		// IFD0: orientation, GPS IFD pointer
+		tiff.writeShort(2);
+		writeEntry(tiff, 0x0112, 3, 1, orientation << 16);
+		writeEntry(tiff, 0x8825, 4, 1, gpsOffset);
+		tiff.writeInt(ifd1Offset);
+
+		// GPS IFD: latitude and longitude refs
+		tiff.writeShort(2);
+		writeEntry(tiff, 0x0001, 2, 2, 'N' << 24);
+		writeEntry(tiff, 0x0003, 2, 2, 'E' << 24);
+		tiff.writeInt(0);
+
+		// IFD1: the thumbnail
+		tiff.writeShort(2);
+		writeEntry(tiff, 0x0201, 4, 1, thumbnailOffset);
+		writeEntry(tiff, 0x0202, 4, 1, thumbnail.length);
+		tiff.writeInt(0);
+		tiff.write(thumbnail);
+		tiff.flush();
+
+		byte[] payload = new byte[6 + bytes.size()];
+		System.arraycopy("Exif".getBytes("US-ASCII"), 0, payload, 0, 4);
+		System.arraycopy(bytes.toByteArray(), 0, payload, 6, bytes.size());
+		return createSegment(0xe1, payload);
+	}
+
+
+	private static void writeEntry(DataOutputStream tiff, int tag, int type, int count, int value) throws IOException {
+		tiff.writeShort(tag);
+		tiff.writeShort(type);
+		tiff.writeInt(count);
+		tiff.writeInt(value);
+	}
+
+
+	private static byte[] createSegment(int marker, String payload) throws IOException {
+		return createSegment(marker, payload.getBytes("ISO-8859-1"));
+	}
+
+
+	private static byte[] createSegment(int marker, byte[] payload) {
+		byte[] segment = new byte[4 + payload.length];
+		segment[0] = (byte) 0xff;
+		segment[1] = (byte) marker;
+		segment[2] = (byte) ((payload.length + 2) >> 8);
+		segment[3] = (byte) (payload.length + 2);
+		System.arraycopy(payload, 0, segment, 4, payload.length);
+		return segment;
+	}
+
+
+	/**
+	 * inserts the segments after the JFIF segment the encoder writes
+	 */
+	private static byte[] insertSegments(byte[] jpeg, byte[]... segments) {
+		// SOI and the JFIF APP0 segment
+		int offset = 2 + 2 + ((jpeg[4] & 0xff) << 8 | jpeg[5] & 0xff);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		result.write(jpeg, 0, offset);
+		for(byte[] segment : segments) {
+			result.write(segment, 0, segment.length);
+		}
+		result.write(jpeg, offset, jpeg.length - offset);
+		return result.toByteArray();
+	}
+
+
+	/**
+	 * @return the segments in front of the tables and the frame, i.e. the APPn and COM segments, each with its marker
+	 */
+	private static List<byte[]> readSegments(byte[] jpeg) {
+		List<byte[]> segments = new ArrayList<>();
+		int offset = 2;
+		while(offset + 4 <= jpeg.length && (jpeg[offset] & 0xff) == 0xff) {
+			int marker = jpeg[offset + 1] & 0xff;
+			if(!(marker >= 0xe0 && marker <= 0xef) && marker != 0xfe) {
+				break;
+			}
+			int length = 2 + readShort(jpeg, offset + 2, false);
+			segments.add(Arrays.copyOfRange(jpeg, offset, offset + length));
+			offset += length;
+		}
+		return segments;
+	}
+
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		for(int i = 0; i + pattern.length <= data.length; i++) {
+			int k = 0;
+			while(k < pattern.length && data[i + k] == pattern[k]) {
+				k++;
+			}
+			if(k == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * @return orientation tag in IFD0 of the exif segment, 1 if there is none
+	 */
+	private static int readExifOrientation(byte[] jpeg) {
+		int segment = findExifSegment(jpeg);
+		if(segment == -1) {
+			return 1;
+		}
+		// marker, length, "Exif\0\0"
+		int tiff = segment + 10;
+		boolean littleEndian = jpeg[tiff] == 'I';
+		int ifd = tiff + readInt(jpeg, tiff + 4, littleEndian);
+		int entries = readShort(jpeg, ifd, littleEndian);
+		for(int i = 0; i < entries; i++) {
+			int entry = ifd + 2 + 12 * i;
+			if(readShort(jpeg, entry, littleEndian) == 0x0112) {
+				return readShort(jpeg, entry + 8, littleEndian);
+			}
+		}
+		return 1;
+	}
+
+
+	/**
+	 * @return size of the exif segment with its marker, 0 if there is none
+	 */
+	private static int countExifBytes(byte[] jpeg) {
+		int segment = findExifSegment(jpeg);
+		return segment != -1 ? 2 + readShort(jpeg, segment + 2, false) : 0;
+	}
+
+
+	/**
+	 * @return offset of the marker of the exif segment, -1 if there is none
+	 */
+	private static int findExifSegment(byte[] jpeg) {
+		int offset = 2;
+		while(offset + 4 <= jpeg.length && (jpeg[offset] & 0xff) == 0xff && (jpeg[offset + 1] & 0xff) != 0xda) {
+			if((jpeg[offset + 1] & 0xff) == 0xe1) {
+				return offset;
+			}
+			offset += 2 + readShort(jpeg, offset + 2, false);
+		}
+		return -1;
+	}
+
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian) {
+		int first = data[offset] & 0xff;
+		int second = data[offset + 1] & 0xff;
+		return littleEndian ? second << 8 | first : first << 8 | second;
+	}
+
+
+	private static int readInt(byte[] data, int offset, boolean littleEndian) {
+		int first = readShort(data, offset, littleEndian);
+		int second = readShort(data, offset + 2, littleEndian);
+		return littleEndian ? second << 16 | first : first << 16 | second;
+	}
+}
@@ -0,0 +1,196 @@
+package com.strv.photomanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class TeeDecoderTest {
+
+	private static final int PIPE_CAPACITY = 4 * 1024;
+	private static final long STALL_TIMEOUT_MILLIS = 100;
+
+	private ExecutorService mExecutor;
+	private AtomicInteger mDecodeCount = new AtomicInteger();
+
+
+	@Before
+	public void setUp() {
+		mExecutor = Executors.newSingleThreadExecutor();
+	}
+
+
+	@After
+	public void tearDown() {
+		mExecutor.shutdownNow();
+	}
+
+
+	@Test(timeout = 5000)
+	public void decoderQueuedBehindTheWriterIsDropped() throws Exception {
+		// the writer occupies the only thread of the executor, like an import on a saturated thread pool
+		byte[] result = mExecutor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				TeeDecoder<byte[]> decoder = new TeeDecoder<>(mExecutor, PIPE_CAPACITY, STALL_TIMEOUT_MILLIS, new ReadingDecoder(null));
+				// smaller than the pipe, so the writer never waits for the decoder
+				write(decoder.getOutputStream(), createData(1024));
+				return decoder.finish(10000);
+			}
+		}).get();
+
+		assertNull(result);
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(0, mDecodeCount.get());
+	}
+
+
+	@Test(timeout = 5000)
+	public void decoderStalledOnBusyExecutorIsCutOff() throws Exception {
+		final CountDownLatch blocker = new CountDownLatch(1);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					blocker.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		TeeDecoder<byte[]> decoder = new TeeDecoder<>(mExecutor, PIPE_CAPACITY, STALL_TIMEOUT_MILLIS, new ReadingDecoder(null));
+		// larger than the pipe, the writer waits for the stall timeout and then drops the data
+		write(decoder.getOutputStream(), createData(10 * PIPE_CAPACITY));
+		assertNull(decoder.finish(10000));
+
+		blocker.countDown();
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(0, mDecodeCount.get());
+	}
+
+
+	@Test(timeout = 5000)
+	public void startedDecoderGetsAllTheData() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		TeeDecoder<byte[]> decoder = new TeeDecoder<>(mExecutor, PIPE_CAPACITY, STALL_TIMEOUT_MILLIS, new ReadingDecoder(started));
+		started.await();
+		byte[] data = createData(10 * PIPE_CAPACITY + 17);
+		write(decoder.getOutputStream(), data);
+
+		assertArrayEquals(data, decoder.finish(10000));
+	}
+
+
+	@Test(timeout = 5000)
+	public void slowDecoderIsNotWaitedForPastTheTimeout() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		TeeDecoder<byte[]> decoder = new TeeDecoder<>(mExecutor, PIPE_CAPACITY, STALL_TIMEOUT_MILLIS, new TeeDecoder.Decoder<byte[]>() {
+			@Override
+			public byte[] decode(InputStream input) throws IOException {
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new byte[0];
+			}
+		});
+		started.await();
+		write(decoder.getOutputStream(), createData(1024));
+
+		long start = System.nanoTime();
+		assertNull(decoder.finish(200));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		release.countDown();
+	}
+
+
+	@Test(timeout = 5000)
+	public void abortedDataIsNotDecoded() throws Exception {
+		final CountDownLatch blocker = new CountDownLatch(1);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					blocker.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		TeeDecoder<byte[]> decoder = new TeeDecoder<>(mExecutor, PIPE_CAPACITY, STALL_TIMEOUT_MILLIS, new ReadingDecoder(null));
+		decoder.abort(new IOException("source failed"));
+
+		blocker.countDown();
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(0, mDecodeCount.get());
+	}
+
+
+	/**
+	 * decoder that reads all the data
+	 */
+	private class ReadingDecoder implements TeeDecoder.Decoder<byte[]> {
+
+		private CountDownLatch mStarted;
+
+
+		ReadingDecoder(CountDownLatch started) {
+			mStarted = started;
+		}
+
+
+		@Override
+		public byte[] decode(InputStream input) throws IOException {
+			mDecodeCount.incrementAndGet();
+			if(mStarted != null) {
+				mStarted.countDown();
+			}
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int count;
+			while((count = input.read(buffer)) != -1) {
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+		}
+	}
+
+
+	private static void write(OutputStream output, byte[] data) throws IOException {
+		for(int offset = 0; offset < data.length; offset += 1500) {
+			output.write(data, offset, Math.min(1500, data.length - offset));
+		}
+	}
+
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
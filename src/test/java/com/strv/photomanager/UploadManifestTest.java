@@ -0,0 +1,186 @@
+package com.strv.photomanager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class UploadManifestTest {
+
+	private static final int CHUNK_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+
+	@Test
+	public void manifestRoundTrip() throws Exception {
+		byte[] data = createData(3 * CHUNK_SIZE + 123);
+		File file = mTemporaryFolder.newFile("IMG_1.jpg");
+		UploadManifest manifest = writeChunked(file, data);
+		assertManifestOf(data, manifest);
+
+		File manifestFile = manifest.writeFor(file);
+		assertEquals(UploadManifest.getManifestFile(file), manifestFile);
+		assertFalse(new File(manifestFile.getPath() + ".tmp").exists());
+
+		UploadManifest readManifest = UploadManifest.readFor(file);
+		assertManifestOf(data, readManifest);
+		assertTrue(readManifest.matches(file));
+	}
+
+
+	@Test
+	public void chunksDontDependOnTheWriteSizes() throws Exception {
+		byte[] data = createData(5 * CHUNK_SIZE);
+		File file = mTemporaryFolder.newFile("IMG_2.jpg");
+		ChunkingOutputStream output = new ChunkingOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+		Random random = new Random(7);
+		int offset = 0;
+		while(offset < data.length) {
+			if(random.nextInt(4) == 0) {
+				output.write(data[offset++]);
+			} else {
+				int count = Math.min(data.length - offset, random.nextInt(3 * CHUNK_SIZE));
+				output.write(data, offset, count);
+				offset += count;
+			}
+		}
+		assertNull(output.getManifest());
+		output.close();
+
+		assertManifestOf(data, output.getManifest());
+		assertEquals(5, output.getManifest().getChunkCount());
+	}
+
+
+	@Test
+	public void emptyFileHasNoChunks() throws Exception {
+		File file = mTemporaryFolder.newFile("IMG_3.jpg");
+		UploadManifest manifest = writeChunked(file, new byte[0]);
+		manifest.writeFor(file);
+
+		UploadManifest readManifest = UploadManifest.readFor(file);
+		assertEquals(0, readManifest.getLength());
+		assertEquals(0, readManifest.getChunkCount());
+		assertEquals(sha256(new byte[0]), readManifest.getDigest());
+	}
+
+
+	@Test
+	public void changedFileDoesntMatch() throws Exception {
+		File file = mTemporaryFolder.newFile("IMG_4.jpg");
+		writeChunked(file, createData(CHUNK_SIZE)).writeFor(file);
+		FileOutputStream output = new FileOutputStream(file, true);
+		output.write(1);
+		output.close();
+
+		assertFalse(UploadManifest.readFor(file).matches(file));
+	}
+
+
+	@Test
+	public void malformedManifestIsRejected() throws Exception {
+		File file = mTemporaryFolder.newFile("IMG_5.jpg");
+		writeChunked(file, createData(2 * CHUNK_SIZE + 1)).writeFor(file);
+		File manifestFile = UploadManifest.getManifestFile(file);
+
+		// a manifest cut off after the first chunk doesn't cover the file
+		String content = new String(readFile(manifestFile), "UTF-8");
+		writeText(manifestFile, content.substring(0, content.indexOf("chunk 1 ")));
+		assertRejected(file);
+
+		writeText(manifestFile, "photomanager-manifest 2\nlength x\n");
+		assertRejected(file);
+
+		writeText(manifestFile, "something else\n");
+		assertRejected(file);
+
+		manifestFile.delete();
+		assertRejected(file);
+	}
+
+
+	private static UploadManifest writeChunked(File file, byte[] data) throws IOException {
+		ChunkingOutputStream output = new ChunkingOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+		output.write(data);
+		output.close();
+		return output.getManifest();
+	}
+
+
+	private static void assertManifestOf(byte[] data, UploadManifest manifest) throws NoSuchAlgorithmException {
+		assertEquals(data.length, manifest.getLength());
+		assertEquals(CHUNK_SIZE, manifest.getChunkSize());
+		assertEquals(sha256(data), manifest.getDigest());
+		assertEquals((data.length + CHUNK_SIZE - 1) / CHUNK_SIZE, manifest.getChunkCount());
+		for(int i = 0; i < manifest.getChunkCount(); i++) {
+			int offset = (int) manifest.getChunkOffset(i);
+			byte[] chunk = Arrays.copyOfRange(data, offset, offset + manifest.getChunkLength(i));
+			assertEquals(Math.min(CHUNK_SIZE, data.length - offset), chunk.length);
+			assertEquals(UploadManifest.toHex(MessageDigest.getInstance("MD5").digest(chunk)), manifest.getChunkChecksum(i));
+		}
+	}
+
+
+	private static void assertRejected(File file) {
+		try {
+			UploadManifest.readFor(file);
+			fail("malformed manifest of " + file + " was read");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+
+
+	private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+		return UploadManifest.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+	}
+
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(data);
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+
+
+	private static void writeText(File file, String text) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+}